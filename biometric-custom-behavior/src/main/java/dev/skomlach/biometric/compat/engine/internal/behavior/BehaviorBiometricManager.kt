@@ -348,7 +348,7 @@ class BehaviorBiometricManager(
         return LocalizationHelper.getLocalizedString(context, id, *formatArgs)
     }
 
-    private companion object {
+    internal companion object {
         const val IS_ENROLLMENT_KEY = "is_enrollment"
         const val ENROLLMENT_TAG_KEY = "enrollment_tag"
         const val LOCKOUT_STORAGE_NAME = "behavior_lockout"
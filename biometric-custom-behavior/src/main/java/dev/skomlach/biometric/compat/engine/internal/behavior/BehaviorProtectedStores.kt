@@ -0,0 +1,20 @@
+package dev.skomlach.biometric.compat.engine.internal.behavior
+
+import dev.skomlach.biometric.compat.custom.AbstractSoftwareBiometricManager
+import dev.skomlach.common.storage.ProtectedStoreDeclaration
+import dev.skomlach.common.storage.ProtectedStoreDeclarationProvider
+
+class BehaviorProtectedStores : ProtectedStoreDeclarationProvider {
+    override fun getProtectedStores(): List<ProtectedStoreDeclaration> {
+        return listOf(
+            ProtectedStoreDeclaration(
+                BehaviorBiometricManager.LOCKOUT_STORAGE_NAME,
+                AbstractSoftwareBiometricManager.LOCKOUT_STATE_KEYS
+            ),
+            ProtectedStoreDeclaration(
+                BehaviorTemplateStore.STORAGE_NAME,
+                cacheDecodedValues = false
+            )
+        )
+    }
+}
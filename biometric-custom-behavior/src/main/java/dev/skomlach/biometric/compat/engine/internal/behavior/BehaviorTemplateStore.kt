@@ -8,7 +8,7 @@ import java.util.UUID
 
 class BehaviorTemplateStore {
     private val prefs: SharedPreferences by lazy {
-        getProtectedPreferences(STORAGE_NAME)
+        getProtectedPreferences(STORAGE_NAME, cacheDecodedValues = false)
     }
 
     fun hasTemplate(): Boolean = templateNames().isNotEmpty()
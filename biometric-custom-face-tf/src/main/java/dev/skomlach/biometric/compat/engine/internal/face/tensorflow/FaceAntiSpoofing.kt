@@ -143,8 +143,10 @@ class FaceAntiSpoofing private constructor(
                 return Float.MAX_VALUE
             }
             interpreter.runForMultipleInputsOutputs(arrayOf<Any>(imgData), outputs)
-            LogCat.log(TAG, "ClssPred: ${clssPred[0].contentToString()}")
-            LogCat.log(TAG, "LeafNodeMask: ${leafNodeMask[0].contentToString()}")
+            LogCat.log(TAG, "antiSpoofing") {
+                field("ClssPred", clssPred[0])
+                field("LeafNodeMask", leafNodeMask[0])
+            }
             return calculateLeafScore(clssPred, leafNodeMask)
         } finally {
             if (bitmapScale !== bitmap && !bitmapScale.isRecycled) {
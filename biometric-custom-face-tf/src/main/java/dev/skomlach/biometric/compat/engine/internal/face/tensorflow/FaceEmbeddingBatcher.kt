@@ -0,0 +1,83 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import dev.skomlach.common.logging.LogCat
+
+/**
+ * Embedding model operations used by [FaceEmbeddingBatcher].
+ */
+internal interface FaceEmbeddingEngine<T> {
+    //Reshapes the model input and the buffers feeding it for batchSize faces
+    fun resize(batchSize: Int)
+
+    //Runs the faces through the current input shape, one embedding per face
+    fun run(faces: List<T>): Array<FloatArray>
+}
+
+/**
+ * Runs faces through [engine] in batches of at most [maxBatchSize]. The input is resized to
+ * power-of-two batch sizes and falls back to one face at a time when the engine can not resize
+ * it, for instance on delegates with a fixed input shape.
+ */
+internal class FaceEmbeddingBatcher<T>(
+    private val engine: FaceEmbeddingEngine<T>,
+    private val maxBatchSize: Int,
+    initialBatchSize: Int = 1
+) {
+    //Batch size the input is shaped for, 0 once the shape is unknown
+    var currentBatchSize = initialBatchSize
+        private set
+    var batchingSupported = true
+        private set
+
+    fun embed(faces: List<T>): List<FloatArray>? {
+        val result = ArrayList<FloatArray>(faces.size)
+        for (chunk in faces.chunked(maxBatchSize)) {
+            result.addAll(runChunk(chunk) ?: return null)
+        }
+        return result
+    }
+
+    //Power-of-two batch sizes, so a face count changing between frames rarely reallocates tensors
+    fun capacity(faces: Int): Int {
+        var capacity = 1
+        while (capacity < faces) capacity = capacity shl 1
+        return capacity
+    }
+
+    private fun runChunk(faces: List<T>): List<FloatArray>? {
+        if (!ensureBatchSize(faces.size)) {
+            if (faces.size == 1) return null
+            //Engine can not resize the input - run faces one by one
+            val result = ArrayList<FloatArray>(faces.size)
+            for (face in faces) {
+                result.add(runChunk(listOf(face))?.firstOrNull() ?: return null)
+            }
+            return result
+        }
+        return engine.run(faces).asList()
+    }
+
+    private fun ensureBatchSize(faces: Int): Boolean {
+        val batchSize = capacity(faces)
+        if (batchSize == currentBatchSize) return true
+        if (batchSize > 1 && !batchingSupported) return false
+        return try {
+            engine.resize(batchSize)
+            currentBatchSize = batchSize
+            true
+        } catch (t: Throwable) {
+            LogCat.logException(t)
+            if (batchSize > 1) {
+                batchingSupported = false
+            }
+            //The input may already have the new shape; restore the one the buffers are sized for
+            try {
+                if (currentBatchSize > 0) engine.resize(currentBatchSize)
+            } catch (e: Throwable) {
+                LogCat.logException(e)
+                currentBatchSize = 0
+            }
+            false
+        }
+    }
+}
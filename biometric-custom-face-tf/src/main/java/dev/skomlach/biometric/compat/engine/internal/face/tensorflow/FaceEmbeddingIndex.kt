@@ -0,0 +1,277 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.ln
+import kotlin.math.max
+import kotlin.math.roundToInt
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+internal class FaceEmbeddingMatch(
+    val name: String,
+    val distance: Float
+)
+
+/**
+ * Enrolled embeddings packed row by row in the configured [FaceEmbeddingPrecision].
+ *
+ * Quantized rows are scored asymmetrically: the float query is never quantized and the squared
+ * distance is expanded as `|q|^2 - 2 * scale * (q . c) + |scale * c|^2` with the last term
+ * precomputed per row. Instances are immutable; [with] and [without] return updated copies.
+ */
+internal class FaceEmbeddingIndex private constructor(
+    val precision: FaceEmbeddingPrecision,
+    private val dimension: Int,
+    private val names: Array<String>,
+    private val floats: FloatArray,
+    private val halves: ShortArray,
+    private val bytes: ByteArray,
+    private val scales: FloatArray,
+    private val squaredNorms: FloatArray
+) {
+    val size: Int
+        get() = names.size
+
+    fun findNearest(queries: List<FloatArray>): List<FaceEmbeddingMatch?> {
+        if (queries.isEmpty()) return emptyList()
+        val bestRows = IntArray(queries.size) { -1 }
+        val bestDistances = FloatArray(queries.size) { Float.MAX_VALUE }
+        val querySquaredNorms = FloatArray(queries.size) { squaredNorm(queries[it]) }
+        for (row in names.indices) {
+            val offset = row * dimension
+            for (q in queries.indices) {
+                val query = queries[q]
+                if (query.size != dimension) continue
+                val distance = when (precision) {
+                    FaceEmbeddingPrecision.FLOAT32 -> {
+                        var sum = 0f
+                        for (i in 0 until dimension) {
+                            val diff = query[i] - floats[offset + i]
+                            sum += diff * diff
+                        }
+                        sum
+                    }
+
+                    FaceEmbeddingPrecision.FLOAT16 -> {
+                        var dot = 0f
+                        for (i in 0 until dimension) {
+                            dot += query[i] * halfToFloat(halves[offset + i])
+                        }
+                        querySquaredNorms[q] - 2f * dot + squaredNorms[row]
+                    }
+
+                    FaceEmbeddingPrecision.INT8 -> {
+                        var dot = 0f
+                        for (i in 0 until dimension) {
+                            dot += query[i] * bytes[offset + i]
+                        }
+                        querySquaredNorms[q] - 2f * scales[row] * dot + squaredNorms[row]
+                    }
+                }.coerceAtLeast(0f)
+                if (distance < bestDistances[q]) {
+                    bestDistances[q] = distance
+                    bestRows[q] = row
+                }
+            }
+        }
+        return queries.indices.map { q ->
+            val row = bestRows[q]
+            if (row < 0) null else FaceEmbeddingMatch(
+                names[row],
+                sqrt(bestDistances[q].toDouble()).toFloat()
+            )
+        }
+    }
+
+    fun with(name: String, embedding: FloatArray): FaceEmbeddingIndex {
+        if (embedding.size != dimension) return without(name)
+        val base = without(name)
+        val row = base.size
+        val newNames = Array(row + 1) { if (it < row) base.names[it] else name }
+        val newScales = base.scales.copyOf(row + 1)
+        val newNorms = base.squaredNorms.copyOf(row + 1)
+        val offset = row * dimension
+        var newFloats = base.floats
+        var newHalves = base.halves
+        var newBytes = base.bytes
+        when (precision) {
+            FaceEmbeddingPrecision.FLOAT32 -> {
+                newFloats = base.floats.copyOf(offset + dimension)
+                embedding.copyInto(newFloats, offset)
+                newNorms[row] = squaredNorm(embedding)
+            }
+
+            FaceEmbeddingPrecision.FLOAT16 -> {
+                newHalves = base.halves.copyOf(offset + dimension)
+                var norm = 0f
+                for (i in 0 until dimension) {
+                    val half = floatToHalf(embedding[i])
+                    newHalves[offset + i] = half
+                    val restored = halfToFloat(half)
+                    norm += restored * restored
+                }
+                newNorms[row] = norm
+            }
+
+            FaceEmbeddingPrecision.INT8 -> {
+                newBytes = base.bytes.copyOf(offset + dimension)
+                var maxAbs = 0f
+                for (value in embedding) {
+                    maxAbs = max(maxAbs, abs(value))
+                }
+                val scale = if (maxAbs > 0f) maxAbs / 127f else 1f
+                var norm = 0f
+                for (i in 0 until dimension) {
+                    val code = (embedding[i] / scale).roundToInt().coerceIn(-127, 127)
+                    newBytes[offset + i] = code.toByte()
+                    norm += (code * code).toFloat()
+                }
+                newScales[row] = scale
+                newNorms[row] = norm * scale * scale
+            }
+        }
+        return FaceEmbeddingIndex(
+            precision, dimension, newNames,
+            newFloats, newHalves, newBytes, newScales, newNorms
+        )
+    }
+
+    fun without(name: String): FaceEmbeddingIndex {
+        val row = names.indexOf(name)
+        if (row < 0) return this
+        val keep = names.indices.filter { it != row }
+        val from = row * dimension
+        val to = from + dimension
+        return FaceEmbeddingIndex(
+            precision,
+            dimension,
+            Array(keep.size) { names[keep[it]] },
+            if (floats.isEmpty()) floats else floats.copyOfRange(0, from) + floats.copyOfRange(to, floats.size),
+            if (halves.isEmpty()) halves else halves.copyOfRange(0, from) + halves.copyOfRange(to, halves.size),
+            if (bytes.isEmpty()) bytes else bytes.copyOfRange(0, from) + bytes.copyOfRange(to, bytes.size),
+            FloatArray(keep.size) { scales[keep[it]] },
+            FloatArray(keep.size) { squaredNorms[keep[it]] }
+        )
+    }
+
+    companion object {
+        fun empty(precision: FaceEmbeddingPrecision, dimension: Int): FaceEmbeddingIndex {
+            return FaceEmbeddingIndex(
+                precision, dimension, emptyArray(),
+                FloatArray(0), ShortArray(0), ByteArray(0), FloatArray(0), FloatArray(0)
+            )
+        }
+
+        fun build(
+            precision: FaceEmbeddingPrecision,
+            dimension: Int,
+            templates: Map<String, FloatArray?>
+        ): FaceEmbeddingIndex {
+            var index = empty(precision, dimension)
+            for ((name, embedding) in templates) {
+                if (embedding != null) {
+                    index = index.with(name, embedding)
+                }
+            }
+            return index
+        }
+    }
+}
+
+/**
+ * Checks on synthetic data that [precision] keeps the nearest enrolled face of probes the same as
+ * the float baseline. Probes are placed near the midpoint of two templates, where quantization
+ * error is most likely to flip the ordering. Returns the fraction of probes whose top match agrees.
+ */
+internal fun calibrateEmbeddingPrecision(
+    precision: FaceEmbeddingPrecision,
+    dimension: Int,
+    templates: Int = 32,
+    probesPerTemplate: Int = 4,
+    noise: Float = 0.05f,
+    random: Random = Random(0x5EED)
+): Float {
+    val enrolled = (0 until templates).associate { "face$it" to gaussianVector(random, dimension, 1f) }
+    val baseline = FaceEmbeddingIndex.build(FaceEmbeddingPrecision.FLOAT32, dimension, enrolled)
+    val candidate = FaceEmbeddingIndex.build(precision, dimension, enrolled)
+    val vectors = enrolled.values.toList()
+    val probes = vectors.flatMap { template ->
+        (0 until probesPerTemplate).map {
+            val other = vectors[random.nextInt(vectors.size)]
+            val mix = 0.4f + random.nextFloat() * 0.2f
+            val jitter = gaussianVector(random, dimension, noise)
+            FloatArray(dimension) { i -> template[i] * (1f - mix) + other[i] * mix + jitter[i] }
+        }
+    }
+    val expected = baseline.findNearest(probes)
+    val actual = candidate.findNearest(probes)
+    val agreeing = probes.indices.count { expected[it]?.name == actual[it]?.name }
+    return agreeing.toFloat() / probes.size
+}
+
+private fun gaussianVector(random: Random, dimension: Int, sigma: Float): FloatArray {
+    return FloatArray(dimension) {
+        //Box-Muller transform
+        val u1 = random.nextDouble().coerceAtLeast(1e-12)
+        val u2 = random.nextDouble()
+        (sqrt(-2.0 * ln(u1)) * cos(2.0 * PI * u2) * sigma).toFloat()
+    }
+}
+
+private fun squaredNorm(values: FloatArray): Float {
+    var sum = 0f
+    for (value in values) {
+        sum += value * value
+    }
+    return sum
+}
+
+internal fun floatToHalf(value: Float): Short {
+    val bits = value.toRawBits()
+    val sign = (bits ushr 16) and 0x8000
+    val exponent = ((bits ushr 23) and 0xff) - 127 + 15
+    val mantissa = bits and 0x7fffff
+    return when {
+        ((bits ushr 23) and 0xff) == 0xff -> (sign or 0x7c00 or (if (mantissa != 0) 0x200 else 0))
+        exponent >= 0x1f -> (sign or 0x7c00)
+        exponent <= 0 -> {
+            if (exponent < -10) {
+                sign
+            } else {
+                val m = mantissa or 0x800000
+                val shift = 14 - exponent
+                var half = m ushr shift
+                //Round half to even
+                val remainder = m and ((1 shl shift) - 1)
+                val halfway = 1 shl (shift - 1)
+                if (remainder > halfway || (remainder == halfway && (half and 1) != 0)) half++
+                sign or half
+            }
+        }
+
+        else -> {
+            var half = (exponent shl 10) or (mantissa ushr 13)
+            val remainder = mantissa and 0x1fff
+            if (remainder > 0x1000 || (remainder == 0x1000 && (half and 1) != 0)) half++
+            sign or half
+        }
+    }.toShort()
+}
+
+internal fun halfToFloat(half: Short): Float {
+    val bits = half.toInt() and 0xffff
+    val sign = (bits and 0x8000) shl 16
+    val exponent = (bits ushr 10) and 0x1f
+    val mantissa = bits and 0x3ff
+    return when (exponent) {
+        0 -> {
+            val value = mantissa / 1024f / 16384f
+            if (sign != 0) -value else value
+        }
+
+        0x1f -> Float.fromBits(sign or 0x7f800000 or (mantissa shl 13))
+        else -> Float.fromBits(sign or ((exponent - 15 + 127) shl 23) or (mantissa shl 13))
+    }
+}
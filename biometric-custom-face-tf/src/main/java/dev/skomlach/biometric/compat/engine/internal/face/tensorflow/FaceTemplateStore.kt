@@ -0,0 +1,193 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import android.content.SharedPreferences
+import android.graphics.RectF
+import dev.skomlach.common.logging.LogCat
+import dev.skomlach.common.storage.EncryptedBlobStore
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Keeps every face template in its own encrypted file.
+ *
+ * Records live in [records], so enrolling or deleting one face writes only that file and the
+ * small manifest of enrolled names kept in [prefs]. A record is written before the manifest
+ * lists it and dropped after the manifest stops listing it, so the manifest never names a
+ * missing record.
+ */
+internal class FaceTemplateStore(
+    private val prefs: SharedPreferences,
+    private val records: EncryptedBlobStore,
+    private val maxTemplates: Int,
+    private val embeddingSize: Int
+) {
+    companion object {
+        private const val TAG = "FaceTemplateStore"
+        private const val MAX_EXTRA_ARRAYS = 4
+    }
+
+    @Volatile
+    private var manifest: FaceTemplateManifest? = null
+
+    fun load(): Map<String, SimilarityClassifier.Recognition> {
+        val current = readManifest()
+        val templates = LinkedHashMap<String, SimilarityClassifier.Recognition>()
+        for (name in current.names) {
+            if (templates.size >= maxTemplates) break
+            try {
+                val raw = records.read(name) ?: continue
+                templates[name] = json2recognition(JSONObject(String(raw, UTF_8)))
+            } catch (e: Throwable) {
+                LogCat.logException(e)
+            }
+        }
+        return templates
+    }
+
+    @Synchronized
+    fun put(name: String, rec: SimilarityClassifier.Recognition) {
+        if (!records.write(name, recognition2json(rec).toString().toByteArray(UTF_8))) {
+            LogCat.log(TAG, "Failed to store template $name")
+            return
+        }
+        val updated = readManifest().with(name)
+        prefs.edit().putString(TEMPLATE_MANIFEST_PREF_KEY, updated.serialize()).apply()
+        manifest = updated
+    }
+
+    @Synchronized
+    fun remove(name: String) {
+        val updated = readManifest().without(name)
+        prefs.edit().putString(TEMPLATE_MANIFEST_PREF_KEY, updated.serialize()).apply()
+        manifest = updated
+        records.remove(name)
+    }
+
+    @Synchronized
+    fun clear() {
+        prefs.edit().clear().apply()
+        manifest = FaceTemplateManifest.EMPTY
+        records.clear()
+    }
+
+    private fun readManifest(): FaceTemplateManifest {
+        manifest?.let { return it }
+        synchronized(this) {
+            manifest?.let { return it }
+            val stored = FaceTemplateManifest.parse(prefs.getString(TEMPLATE_MANIFEST_PREF_KEY, null))
+                ?: migrateLegacyTemplates()
+            manifest = stored
+            return stored
+        }
+    }
+
+    private fun migrateLegacyTemplates(): FaceTemplateManifest {
+        val jsonString = prefs.getString(REGISTERED_TEMPLATES_PREF_KEY, null)
+            ?: return FaceTemplateManifest.EMPTY
+        val names = ArrayList<String>()
+        var failed = false
+        try {
+            val jsonObjectRoot = JSONObject(jsonString)
+            val keys = jsonObjectRoot.keys()
+            while (keys.hasNext() && names.size < maxTemplates) {
+                val name = keys.next()
+                try {
+                    val jsonObject = jsonObjectRoot.getJSONObject(name)
+                    //Debug crops were never read back
+                    jsonObject.remove("crop")
+                    if (records.write(name, jsonObject.toString().toByteArray(UTF_8))) {
+                        names.add(name)
+                    } else {
+                        failed = true
+                    }
+                } catch (e: Throwable) {
+                    LogCat.logException(e)
+                }
+            }
+        } catch (e: Throwable) {
+            LogCat.logException(e)
+        }
+        val migrated = FaceTemplateManifest(1L, names)
+        //Keep the legacy blob until every template made it to its own record
+        if (failed) {
+            LogCat.log(TAG, "migration incomplete, ${names.size} templates moved")
+            return migrated
+        }
+        prefs.edit()
+            .putString(TEMPLATE_MANIFEST_PREF_KEY, migrated.serialize())
+            .remove(REGISTERED_TEMPLATES_PREF_KEY)
+            .apply()
+        LogCat.log(TAG, "migrated ${names.size} templates")
+        return migrated
+    }
+
+    @Throws(JSONException::class)
+    private fun json2recognition(jsonObject: JSONObject): SimilarityClassifier.Recognition {
+        val id = jsonObject.getString("id")
+        val title = jsonObject.getString("title")
+        val distance = jsonObject.getDouble("distance").toFloat()
+        val rect = jsonObject.getJSONObject("location")
+
+        val location = RectF(
+            rect.getDouble("left").toFloat(),
+            rect.getDouble("top").toFloat(),
+            rect.getDouble("right").toFloat(),
+            rect.getDouble("bottom").toFloat()
+        )
+
+        val recognition = SimilarityClassifier.Recognition(id, title, distance, location)
+        if (jsonObject.has("extra")) {
+            val top = jsonObject.getJSONArray("extra")
+            if (top.length() > MAX_EXTRA_ARRAYS) {
+                throw JSONException("Too many embedding arrays")
+            }
+            val array = arrayOfNulls<FloatArray>(top.length())
+            for (i in 0 until top.length()) {
+                val inner = top.getJSONArray(i)
+                if (inner.length() != embeddingSize) {
+                    throw JSONException("Unexpected embedding size")
+                }
+                val innerArray = FloatArray(inner.length())
+                for (j in 0 until inner.length()) {
+                    val value = inner.getDouble(j).toFloat()
+                    if (!value.isFinite()) {
+                        throw JSONException("Invalid embedding value")
+                    }
+                    innerArray[j] = value
+                }
+                array[i] = innerArray
+            }
+            recognition.extra = array
+        }
+        return recognition
+    }
+
+    @Throws(JSONException::class)
+    private fun recognition2json(rec: SimilarityClassifier.Recognition): JSONObject {
+        val jsonObject = JSONObject()
+        jsonObject.put("id", rec.id)
+        val rect = JSONObject()
+        rect.put("top", rec.getLocation().top.toDouble())
+        rect.put("left", rec.getLocation().left.toDouble())
+        rect.put("bottom", rec.getLocation().bottom.toDouble())
+        rect.put("right", rec.getLocation().right.toDouble())
+        jsonObject.put("location", rect)
+        jsonObject.put("distance", rec.distance?.toDouble())
+        val extra = rec.extra as? Array<FloatArray>
+        if (extra != null) {
+            val topArray = JSONArray()
+            for (i in extra.indices) {
+                val innerArray = JSONArray()
+                for (j in extra[i].indices) {
+                    innerArray.put(extra[i][j].toDouble())
+                }
+                topArray.put(innerArray)
+            }
+            jsonObject.put("extra", topArray)
+        }
+        jsonObject.put("title", rec.title)
+        return jsonObject
+    }
+}
@@ -0,0 +1,92 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import kotlin.math.abs
+import kotlin.math.max
+
+internal class FaceTrackSample(
+    val trackingId: Int,
+    val left: Int,
+    val top: Int,
+    val right: Int,
+    val bottom: Int,
+    val angleX: Float,
+    val angleY: Float,
+    val angleZ: Float,
+    val sharpness: Int
+)
+
+internal class FaceTrackingThresholds(
+    val maxBoxShiftRatio: Float,
+    val maxAngleDeltaDegrees: Float,
+    val maxSharpnessDeltaRatio: Float,
+    val maxReusedFrames: Int
+)
+
+/**
+ * Remembers the last recognition outcome of every ML Kit face track.
+ *
+ * A stored outcome is handed out again only while the face keeps its box, pose and sharpness
+ * within [thresholds], and never for more than [FaceTrackingThresholds.maxReusedFrames] frames
+ * in a row, so the caller still runs a fresh inference regularly.
+ */
+internal class FaceTrackingCache<R : Any>(
+    private val thresholds: FaceTrackingThresholds
+) {
+    private class Entry<R>(
+        val sample: FaceTrackSample,
+        val result: R,
+        var reusedFrames: Int = 0
+    )
+
+    private val entries = HashMap<Int, Entry<R>>()
+
+    fun lookup(sample: FaceTrackSample): R? {
+        val entry = entries[sample.trackingId] ?: return null
+        if (entry.reusedFrames >= thresholds.maxReusedFrames ||
+            !isStable(entry.sample, sample)
+        ) {
+            return null
+        }
+        entry.reusedFrames++
+        return entry.result
+    }
+
+    fun store(sample: FaceTrackSample, result: R) {
+        entries[sample.trackingId] = Entry(sample, result)
+    }
+
+    fun remove(trackingId: Int) {
+        entries.remove(trackingId)
+    }
+
+    fun retainTracks(trackingIds: Collection<Int>) {
+        entries.keys.retainAll(trackingIds.toSet())
+    }
+
+    fun clear() {
+        entries.clear()
+    }
+
+    val size: Int
+        get() = entries.size
+
+    private fun isStable(cached: FaceTrackSample, current: FaceTrackSample): Boolean {
+        val size = max(1, max(cached.right - cached.left, cached.bottom - cached.top))
+        val maxShift = thresholds.maxBoxShiftRatio * size
+        if (abs(current.left - cached.left) > maxShift ||
+            abs(current.top - cached.top) > maxShift ||
+            abs(current.right - cached.right) > maxShift ||
+            abs(current.bottom - cached.bottom) > maxShift
+        ) {
+            return false
+        }
+        if (abs(current.angleX - cached.angleX) > thresholds.maxAngleDeltaDegrees ||
+            abs(current.angleY - cached.angleY) > thresholds.maxAngleDeltaDegrees ||
+            abs(current.angleZ - cached.angleZ) > thresholds.maxAngleDeltaDegrees
+        ) {
+            return false
+        }
+        val sharpnessDelta = abs(current.sharpness - cached.sharpness).toFloat()
+        return sharpnessDelta <= thresholds.maxSharpnessDeltaRatio * max(1, cached.sharpness)
+    }
+}
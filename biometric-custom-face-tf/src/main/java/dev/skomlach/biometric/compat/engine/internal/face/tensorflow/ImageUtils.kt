@@ -25,6 +25,8 @@ import android.graphics.Matrix
 import dev.skomlach.common.logging.LogCat
 import java.io.File
 import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
 import kotlin.math.abs
 import kotlin.math.max
 
@@ -124,29 +126,19 @@ object ImageUtils {
     }
 
 
+    /**
+     * Converts an NV21 frame: the Y plane followed by interleaved V and U samples.
+     */
     fun convertYUV420SPToARGB8888(input: ByteArray, width: Int, height: Int, output: IntArray) {
         val frameSize = width * height
-        var j = 0
-        var yp = 0
-        while (j < height) {
-            var uvp = frameSize + (j shr 1) * width
-            var u = 0
-            var v = 0
-
-            var i = 0
-            while (i < width) {
-                val y = 0xff and input[yp].toInt()
-                if ((i and 1) == 0) {
-                    v = 0xff and input[uvp++].toInt()
-                    u = 0xff and input[uvp++].toInt()
-                }
-
-                output[yp] = YUV2RGB(y, u, v)
-                i++
-                yp++
-            }
-            j++
-        }
+        Yuv420Converter.convert(
+            ByteBuffer.wrap(input, 0, frameSize),
+            ByteBuffer.wrap(input, frameSize + 1, input.size - frameSize - 1),
+            ByteBuffer.wrap(input, frameSize, input.size - frameSize),
+            width, height,
+            width, 1, width, 2,
+            output
+        )
     }
 
     private fun YUV2RGB(y: Int, u: Int, v: Int): Int {
@@ -204,6 +196,41 @@ object ImageUtils {
         }
     }
 
+    /**
+     * Stride-aware variant of [convertYUV420ToARGB8888] that reads the image planes in place.
+     *
+     * @param downscaleFactor Integer factor the output is reduced by; `out` must hold
+     * `(width / downscaleFactor) * (height / downscaleFactor)` pixels.
+     * @param executor Optional executor used to convert row bands in parallel, e.g.
+     * the [dev.skomlach.common.misc.TaskLane.COMPUTE] lane.
+     */
+    @JvmOverloads
+    fun convertYUV420ToARGB8888(
+        yBuffer: ByteBuffer,
+        uBuffer: ByteBuffer,
+        vBuffer: ByteBuffer,
+        width: Int,
+        height: Int,
+        yRowStride: Int,
+        yPixelStride: Int,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        out: IntArray,
+        downscaleFactor: Int = 1,
+        scaleMode: YuvScaleMode = YuvScaleMode.NEAREST,
+        executor: Executor? = null
+    ) {
+        Yuv420Converter.convert(
+            yBuffer, uBuffer, vBuffer,
+            width, height,
+            yRowStride, yPixelStride, uvRowStride, uvPixelStride,
+            out,
+            downscaleFactor = downscaleFactor,
+            scaleMode = scaleMode,
+            executor = executor
+        )
+    }
+
     /**
      * Returns a transformation matrix from one reference frame into another. Handles cropping (if
      * maintaining aspect ratio is desired) and rotation.
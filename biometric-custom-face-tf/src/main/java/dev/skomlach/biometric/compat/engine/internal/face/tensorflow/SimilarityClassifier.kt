@@ -45,6 +45,21 @@ interface SimilarityClassifier {
      */
     fun recognizeImage(bitmap: Bitmap, getExtra: Boolean): List<Recognition>
 
+    /**
+     * Runs recognition on several aligned faces at once.
+     *
+     * @param bitmaps The images to process, all of the model input size.
+     * @param getExtra Whether to store the embedding info in the Recognition objects.
+     * @return One recognition per input image in the same order, or an empty list on failure.
+     */
+    fun recognizeImages(bitmaps: List<Bitmap>, getExtra: Boolean): List<Recognition> {
+        val recognitions = ArrayList<Recognition>(bitmaps.size)
+        for (bitmap in bitmaps) {
+            val result = recognizeImage(bitmap, getExtra).firstOrNull() ?: return emptyList()
+            recognitions.add(result)
+        }
+        return recognitions
+    }
 
     /** An immutable result returned by a Classifier describing what was recognized.  */
     class Recognition(
@@ -18,23 +18,17 @@
  */
 package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
 
+import android.content.SharedPreferences
 import android.content.res.AssetManager
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.graphics.RectF
-import android.util.Base64
-import android.util.Pair
-import androidx.core.content.edit
 import dev.skomlach.biometric.custom.face.tf.BuildConfig
 import dev.skomlach.common.contextprovider.AndroidContext
 import dev.skomlach.common.logging.LogCat
 import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.storage.SharedPreferenceProvider.getProtectedBlobStore
 import dev.skomlach.common.storage.SharedPreferenceProvider.getProtectedPreferences
-import org.json.JSONArray
-import org.json.JSONException
-import org.json.JSONObject
 import org.tensorflow.lite.Interpreter
-import java.io.ByteArrayOutputStream
 import java.io.FileInputStream
 import java.io.IOException
 import java.nio.ByteBuffer
@@ -43,19 +37,23 @@ import java.nio.MappedByteBuffer
 import java.nio.channels.FileChannel
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
-import kotlin.math.sqrt
 
 class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier {
     companion object {
         internal const val STORAGE_NAME = "tf_storage_v2"
+        private const val TEMPLATE_BLOB_STORE_NAME = "tf_templates"
         private const val OUTPUT_SIZE = 192
         private const val IMAGE_MEAN = 128.0f
         private const val IMAGE_STD = 128.0f
         private const val MODEL_INIT_TIMEOUT_MS = 3_000L
         private const val MAX_REGISTERED_TEMPLATES = 32
-        private const val MAX_EXTRA_ARRAYS = 4
-        private const val MAX_DEBUG_CROP_BASE64_CHARS = 512 * 1024
         private const val MAX_TEMPLATE_NAME_LENGTH = 80
+        private const val MAX_BATCH_SIZE = 4
+        private const val MIN_PRECISION_AGREEMENT = 0.98f
+
+        //Embeddings are too large to keep decoded, every user of the store must open it this way
+        internal fun protectedPreferences(): SharedPreferences =
+            getProtectedPreferences(STORAGE_NAME, cacheDecodedValues = false)
 
         @Throws(IOException::class)
         private fun loadModelFile(assets: AssetManager, modelFilename: String): MappedByteBuffer {
@@ -79,14 +77,16 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
             modelFilename: String,
             inputSize: Int,
             isQuantized: Boolean,
-            options: Interpreter.Options?
+            options: Interpreter.Options?,
+            embeddingPrecision: FaceEmbeddingPrecision = FaceEmbeddingPrecision.FLOAT32
         ): SimilarityClassifier {
             val model = TFLiteObjectDetectionAPIModel()
+            model.embeddingPrecision = resolvePrecision(embeddingPrecision)
             model.inputSize = inputSize
             model.isModelQuantized = isQuantized
-            val numBytesPerChannel = if (isQuantized) 1 else 4
+            model.numBytesPerChannel = if (isQuantized) 1 else 4
             model.imgData =
-                ByteBuffer.allocateDirect(inputSize * inputSize * 3 * numBytesPerChannel)
+                ByteBuffer.allocateDirect(inputSize * inputSize * 3 * model.numBytesPerChannel)
             model.imgData.order(ByteOrder.nativeOrder())
             model.intValues = IntArray(inputSize * inputSize)
             model.embeddings = Array(1) { FloatArray(OUTPUT_SIZE) }
@@ -94,39 +94,77 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
             model.startModelInitialization(assetManager, modelFilename, options)
             return model
         }
+
+        private fun resolvePrecision(requested: FaceEmbeddingPrecision): FaceEmbeddingPrecision {
+            if (requested == FaceEmbeddingPrecision.FLOAT32) return requested
+            val agreement = try {
+                calibrateEmbeddingPrecision(requested, OUTPUT_SIZE)
+            } catch (e: Throwable) {
+                LogCat.logException(e)
+                0f
+            }
+            LogCat.log("TFLiteObjectDetectionAPIModel", "$requested top-1 agreement $agreement")
+            return if (agreement >= MIN_PRECISION_AGREEMENT) requested else FaceEmbeddingPrecision.FLOAT32
+        }
     }
 
-    private val registered: HashMap<String?, SimilarityClassifier.Recognition?> by lazy {
-        val map = HashMap<String?, SimilarityClassifier.Recognition?>()
-        try {
-            val sharedPreferences = getProtectedPreferences(STORAGE_NAME)
-            val jsonString =
-                sharedPreferences.getString(REGISTERED_TEMPLATES_PREF_KEY, null)
-            val jsonObjectRoot = if (jsonString == null) JSONObject() else JSONObject(jsonString)
-            val keys = jsonObjectRoot.keys()
-            while (keys.hasNext() && map.size < MAX_REGISTERED_TEMPLATES) {
-                val name = keys.next()
-                try {
-                    val jsonObject = jsonObjectRoot.getJSONObject(name)
-                    val recognition = json2recognition(jsonObject)
-                    map[name] = recognition
+    private val templateStore: FaceTemplateStore by lazy {
+        FaceTemplateStore(
+            protectedPreferences(),
+            getProtectedBlobStore(TEMPLATE_BLOB_STORE_NAME),
+            MAX_REGISTERED_TEMPLATES,
+            OUTPUT_SIZE
+        )
+    }
+
+    //Copy-on-write snapshot: recognition reads it without locking, writers swap a new map
+    @Volatile
+    private var registeredSnapshot: Map<String, SimilarityClassifier.Recognition>? = null
+
+    //Swapped together with registeredSnapshot; holds the only in-memory copy of the embeddings
+    @Volatile
+    private var embeddingIndex: FaceEmbeddingIndex? = null
+
+    private val registered: Map<String, SimilarityClassifier.Recognition>
+        get() {
+            registeredSnapshot?.let { return it }
+            synchronized(this) {
+                registeredSnapshot?.let { return it }
+                val map = try {
+                    templateStore.load()
                 } catch (e: Throwable) {
                     LogCat.logException(e)
+                    emptyMap()
                 }
+                LogCat.log(javaClass.simpleName, "registered: size ${map.size}")
+                embeddingIndex = FaceEmbeddingIndex.build(
+                    embeddingPrecision,
+                    OUTPUT_SIZE,
+                    map.mapValues { embeddingOf(it.value) }
+                )
+                val snapshot = map.mapValues { withoutEmbeddings(it.value) }
+                registeredSnapshot = snapshot
+                return snapshot
             }
-        } catch (e: Throwable) {
-            LogCat.logException(e)
         }
-        LogCat.log(javaClass.simpleName, "registered: size ${map.size}")
-        map
-    }
+
+    private val templateIndex: FaceEmbeddingIndex
+        get() {
+            embeddingIndex?.let { return it }
+            registered
+            return embeddingIndex ?: FaceEmbeddingIndex.empty(embeddingPrecision, OUTPUT_SIZE)
+        }
+
+    private var embeddingPrecision = FaceEmbeddingPrecision.FLOAT32
 
     private var isModelQuantized = false
+    private var numBytesPerChannel = 4
     private var inputSize = 0
     private var intValues: IntArray = IntArray(0)
     private var embeddings: Array<FloatArray> = emptyArray()
     private var imgData: ByteBuffer = ByteBuffer.allocate(0)
     private var tfLite: Interpreter? = null
+    private var batcher: FaceEmbeddingBatcher<Bitmap>? = null
     private val outputMap: MutableMap<Int, Any> = HashMap(1)
     private val initLatch = CountDownLatch(1)
 
@@ -140,7 +178,9 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
     ) {
         ExecutorHelper.startOnBackground {
             try {
-                tfLite = Interpreter(loadModelFile(assetManager, modelFilename), options)
+                val interpreter = Interpreter(loadModelFile(assetManager, modelFilename), options)
+                batcher = FaceEmbeddingBatcher(InterpreterEngine(interpreter), MAX_BATCH_SIZE)
+                tfLite = interpreter
             } catch (t: Throwable) {
                 initializationError = t
                 LogCat.logException(t)
@@ -161,110 +201,26 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
         }
     }
 
-    @Throws(JSONException::class)
-    private fun json2recognition(jsonObject: JSONObject): SimilarityClassifier.Recognition {
-        val id = jsonObject.getString("id")
-        val title = jsonObject.getString("title")
-        val distance = jsonObject.getDouble("distance").toFloat()
-        val rect = jsonObject.getJSONObject("location")
-
-        val location = RectF(
-            rect.getDouble("left").toFloat(),
-            rect.getDouble("top").toFloat(),
-            rect.getDouble("right").toFloat(),
-            rect.getDouble("bottom").toFloat()
-        )
-
-        val recognition = SimilarityClassifier.Recognition(id, title, distance, location)
-        if (jsonObject.has("extra")) {
-            val top = jsonObject.getJSONArray("extra")
-            if (top.length() > MAX_EXTRA_ARRAYS) {
-                throw JSONException("Too many embedding arrays")
-            }
-            val array = arrayOfNulls<FloatArray>(top.length())
-            for (i in 0 until top.length()) {
-                val inner = top.getJSONArray(i)
-                if (inner.length() != OUTPUT_SIZE) {
-                    throw JSONException("Unexpected embedding size")
-                }
-                val innerArray = FloatArray(inner.length())
-                for (j in 0 until inner.length()) {
-                    val value = inner.getDouble(j).toFloat()
-                    if (!value.isFinite()) {
-                        throw JSONException("Invalid embedding value")
-                    }
-                    innerArray[j] = value
-                }
-                array[i] = innerArray
-            }
-            recognition.extra = array
-        }
-        if (jsonObject.has("crop")) {
-            val base64Bitmap = jsonObject.getString("crop")
-            if (base64Bitmap.length > MAX_DEBUG_CROP_BASE64_CHARS) {
-                throw JSONException("Debug crop is too large")
-            }
-            val bytes = Base64.decode(base64Bitmap, Base64.DEFAULT)
-            recognition.crop = BitmapFactory.decodeByteArray(bytes, 0, bytes.size)
-        }
-        return recognition
-    }
-
-    @Throws(JSONException::class)
-    private fun recognition2json(rec: SimilarityClassifier.Recognition): JSONObject {
-        val jsonObject = JSONObject()
-        jsonObject.put("id", rec.id)
-        val rect = JSONObject()
-        rect.put("top", rec.getLocation().top.toDouble())
-        rect.put("left", rec.getLocation().left.toDouble())
-        rect.put("bottom", rec.getLocation().bottom.toDouble())
-        rect.put("right", rec.getLocation().right.toDouble())
-        jsonObject.put("location", rect)
-        jsonObject.put("distance", rec.distance?.toDouble())
-        val extra = rec.extra as? Array<FloatArray>
-        if (extra != null) {
-            val topArray = JSONArray()
-            for (i in extra.indices) {
-                val innerArray = JSONArray()
-                for (j in extra[i].indices) {
-                    innerArray.put(extra[i][j].toDouble())
-                }
-                topArray.put(innerArray)
-            }
-            jsonObject.put("extra", topArray)
-        }
-        jsonObject.put("title", rec.title)
-
-        if (BuildConfig.DEBUG) rec.crop?.let { crop ->
-            val byteArrayOutputStream = ByteArrayOutputStream()
-            crop.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream)
-            jsonObject.put(
-                "crop",
-                Base64.encodeToString(byteArrayOutputStream.toByteArray(), Base64.DEFAULT)
-            )
-        }
-        return jsonObject
-    }
-
     override fun registeredCount(): Int = registered.size
     override fun hasRegistered(): Boolean = registered.isNotEmpty()
-    override fun getEnrolls(): Set<String> = registered.keys.filterNotNull().toSet()
+    override fun getEnrolls(): Set<String> = registered.keys
 
     override fun delete(name: String?) {
         if (name == null) {
             if (BuildConfig.DEBUG) {
-                registered.values.toMutableList().forEach { rec ->
-                    if (rec != null) {
-                        ImageUtils.deleteBitmap(
-                            AndroidContext.appContext,
-                            "${rec.title}-${rec.id}.png"
-                        )
-                    }
+                registered.values.forEach { rec ->
+                    ImageUtils.deleteBitmap(
+                        AndroidContext.appContext,
+                        "${rec.title}-${rec.id}.png"
+                    )
                 }
             }
-            registered.clear()
+            synchronized(this) {
+                registeredSnapshot = emptyMap()
+                embeddingIndex = FaceEmbeddingIndex.empty(embeddingPrecision, OUTPUT_SIZE)
+            }
             try {
-                getProtectedPreferences(STORAGE_NAME).edit { clear() }
+                templateStore.clear()
             } catch (e: Throwable) {
                 LogCat.logException(e)
             }
@@ -276,16 +232,12 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
                 ImageUtils.deleteBitmap(AndroidContext.appContext, "${rec.title}-${rec.id}.png")
             }
         }
-        registered.remove(name)
+        synchronized(this) {
+            registeredSnapshot = registered - name
+            embeddingIndex = templateIndex.without(name)
+        }
         try {
-            val sharedPreferences = getProtectedPreferences(STORAGE_NAME)
-            val jsonString =
-                sharedPreferences.getString(REGISTERED_TEMPLATES_PREF_KEY, null)
-            val jsonObjectRoot = if (jsonString == null) JSONObject() else JSONObject(jsonString)
-            jsonObjectRoot.remove(name)
-            sharedPreferences.edit {
-                putString(REGISTERED_TEMPLATES_PREF_KEY, jsonObjectRoot.toString())
-            }
+            templateStore.remove(name)
         } catch (e: Throwable) {
             LogCat.logException(e)
         }
@@ -293,13 +245,16 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
 
     override fun register(name: String, rec: SimilarityClassifier.Recognition) {
         val safeName = sanitizeName(name)
-        registered[safeName] = rec
-        val sharedPreferences = getProtectedPreferences(STORAGE_NAME)
-        val jsonString = sharedPreferences.getString(REGISTERED_TEMPLATES_PREF_KEY, null)
-        val jsonObjectRoot = if (jsonString == null) JSONObject() else JSONObject(jsonString)
-        jsonObjectRoot.put(safeName, recognition2json(rec))
-        sharedPreferences.edit {
-            putString(REGISTERED_TEMPLATES_PREF_KEY, jsonObjectRoot.toString())
+        //Persist the float embedding before the in-memory copy drops it
+        templateStore.put(safeName, rec)
+        synchronized(this) {
+            registeredSnapshot = registered + (safeName to withoutEmbeddings(rec))
+            val embedding = embeddingOf(rec)
+            embeddingIndex = if (embedding != null) {
+                templateIndex.with(safeName, embedding)
+            } else {
+                templateIndex.without(safeName)
+            }
         }
     }
 
@@ -311,86 +266,110 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
             .ifBlank { "face${registered.size + 1}" }
     }
 
-    private fun findNearest(emb: FloatArray): Pair<String, Float>? {
-        var ret: Pair<String, Float>? = null
-        for ((name, recognition) in registered.entries) {
-            val knownEmb = (recognition?.extra as? Array<FloatArray>)?.firstOrNull()
-            if (knownEmb != null && name != null) {
-                var distance = 0f
-                for (i in emb.indices) {
-                    val diff = emb[i] - knownEmb[i]
-                    distance += diff * diff
-                }
-                distance = sqrt(distance.toDouble()).toFloat()
-                if (ret == null || distance < ret.second) {
-                    ret = Pair(name, distance)
+    private fun embeddingOf(rec: SimilarityClassifier.Recognition): FloatArray? {
+        return (rec.extra as? Array<*>)?.firstOrNull() as? FloatArray
+    }
+
+    private fun withoutEmbeddings(
+        rec: SimilarityClassifier.Recognition
+    ): SimilarityClassifier.Recognition {
+        if (rec.extra == null) return rec
+        return SimilarityClassifier.Recognition(rec.id, rec.title, rec.distance, rec.getLocation())
+            .also { it.crop = rec.crop }
+    }
+
+    private fun fillInputBuffer(bitmaps: List<Bitmap>) {
+        imgData.rewind()
+        for (bitmap in bitmaps) {
+            bitmap.getPixels(
+                intValues,
+                0,
+                bitmap.width,
+                0,
+                0,
+                bitmap.width,
+                bitmap.height
+            )
+            for (i in 0 until inputSize) {
+                for (j in 0 until inputSize) {
+                    val pixelValue = intValues[i * inputSize + j]
+                    if (isModelQuantized) {
+                        imgData.put(((pixelValue shr 16) and 0xFF).toByte())
+                        imgData.put(((pixelValue shr 8) and 0xFF).toByte())
+                        imgData.put((pixelValue and 0xFF).toByte())
+                    } else {
+                        imgData.putFloat((((pixelValue shr 16) and 0xFF) - IMAGE_MEAN) / IMAGE_STD)
+                        imgData.putFloat((((pixelValue shr 8) and 0xFF) - IMAGE_MEAN) / IMAGE_STD)
+                        imgData.putFloat(((pixelValue and 0xFF) - IMAGE_MEAN) / IMAGE_STD)
+                    }
                 }
             }
         }
-        return ret
+    }
+
+    private inner class InterpreterEngine(
+        private val interpreter: Interpreter
+    ) : FaceEmbeddingEngine<Bitmap> {
+        override fun resize(batchSize: Int) {
+            interpreter.resizeInput(0, intArrayOf(batchSize, inputSize, inputSize, 3))
+            interpreter.allocateTensors()
+            imgData = ByteBuffer.allocateDirect(batchSize * inputSize * inputSize * 3 * numBytesPerChannel)
+            imgData.order(ByteOrder.nativeOrder())
+            embeddings = Array(batchSize) { FloatArray(OUTPUT_SIZE) }
+            outputMap[0] = embeddings
+        }
+
+        override fun run(faces: List<Bitmap>): Array<FloatArray> {
+            fillInputBuffer(faces)
+            for (embedding in embeddings) {
+                embedding.fill(0f)
+            }
+            interpreter.runForMultipleInputsOutputs(arrayOf<Any>(imgData), outputMap)
+            return Array(faces.size) { embeddings[it].copyOf() }
+        }
     }
 
     override fun recognizeImage(
         bitmap: Bitmap,
         storeExtra: Boolean
     ): MutableList<SimilarityClassifier.Recognition> {
-        bitmap.getPixels(
-            intValues,
-            0,
-            bitmap.width,
-            0,
-            0,
-            bitmap.width,
-            bitmap.height
-        )
-
-        imgData.rewind()
-        for (i in 0 until inputSize) {
-            for (j in 0 until inputSize) {
-                val pixelValue = intValues[i * inputSize + j]
-                if (isModelQuantized) {
-                    imgData.put(((pixelValue shr 16) and 0xFF).toByte())
-                    imgData.put(((pixelValue shr 8) and 0xFF).toByte())
-                    imgData.put((pixelValue and 0xFF).toByte())
-                } else {
-                    imgData.putFloat((((pixelValue shr 16) and 0xFF) - IMAGE_MEAN) / IMAGE_STD)
-                    imgData.putFloat((((pixelValue shr 8) and 0xFF) - IMAGE_MEAN) / IMAGE_STD)
-                    imgData.putFloat(((pixelValue and 0xFF) - IMAGE_MEAN) / IMAGE_STD)
-                }
-            }
-        }
+        return recognizeImages(listOf(bitmap), storeExtra).toMutableList()
+    }
 
-        embeddings[0].fill(0f)
+    override fun recognizeImages(
+        bitmaps: List<Bitmap>,
+        storeExtra: Boolean
+    ): List<SimilarityClassifier.Recognition> {
+        if (bitmaps.isEmpty()) return emptyList()
         if (!waitUntilReady()) {
             LogCat.logError(javaClass.simpleName, "Interpreter is not ready")
-            return mutableListOf()
+            return emptyList()
         }
-        val interpreter = tfLite ?: run {
+        val faceBatcher = batcher ?: run {
             LogCat.logError(javaClass.simpleName, "Interpreter is not initialized")
-            return mutableListOf<SimilarityClassifier.Recognition>()
+            return emptyList()
         }
-        interpreter.runForMultipleInputsOutputs(arrayOf<Any>(imgData), outputMap)
 
-        var distance = Float.MAX_VALUE
-        var recognitionId = "unknown"
-        var label: String? = "face"
-
-        if (registered.isNotEmpty()) {
-            val nearest = findNearest(embeddings[0])
+        val faceEmbeddings = faceBatcher.embed(bitmaps) ?: return emptyList()
+        val matches = templateIndex.findNearest(faceEmbeddings)
+        val recognitions = ArrayList<SimilarityClassifier.Recognition>(bitmaps.size)
+        for (index in faceEmbeddings.indices) {
+            val nearest = matches.getOrNull(index)
+            var distance = Float.MAX_VALUE
+            var recognitionId = "unknown"
+            var label: String? = "face"
             if (nearest != null) {
-                recognitionId = nearest.first
-                label = nearest.first
-                distance = nearest.second
+                recognitionId = nearest.name
+                label = nearest.name
+                distance = nearest.distance
                 LogCat.log(javaClass.simpleName, "nearest match found")
             }
+            val rec = SimilarityClassifier.Recognition(recognitionId, label, distance, RectF())
+            if (storeExtra) {
+                rec.extra = arrayOf(faceEmbeddings[index])
+            }
+            recognitions.add(rec)
         }
-
-        val recognitions = ArrayList<SimilarityClassifier.Recognition>(1)
-        val rec = SimilarityClassifier.Recognition(recognitionId, label, distance, RectF())
-        if (storeExtra) {
-            rec.extra = embeddings.map { it.copyOf() }.toTypedArray()
-        }
-        recognitions.add(rec)
         return recognitions
     }
 
@@ -401,6 +380,7 @@ class TFLiteObjectDetectionAPIModel private constructor() : SimilarityClassifier
             LogCat.logException(t)
         } finally {
             tfLite = null
+            batcher = null
         }
     }
 }
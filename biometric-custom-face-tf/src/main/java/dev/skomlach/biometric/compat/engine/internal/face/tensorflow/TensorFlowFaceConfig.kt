@@ -50,6 +50,16 @@ enum class AntiSpoofingMode {
     AFTER_CANDIDATE
 }
 
+/**
+ * In-memory storage of enrolled embeddings. Quantized modes fall back to [FLOAT32] when a
+ * start-up calibration shows they would change which template is nearest.
+ */
+enum class FaceEmbeddingPrecision {
+    FLOAT32,
+    FLOAT16,
+    INT8
+}
+
 enum class DevicePerformanceClass {
     LOW_END,
     MID_RANGE,
@@ -120,6 +130,16 @@ data class TensorFlowFaceConfig(
     val mismatchGraceDistanceDelta: Float = 0.08f,
     val recognitionCpuThreads: Int? = 4,
     val antiSpoofingCpuThreads: Int? = 2,
+    val embeddingPrecision: FaceEmbeddingPrecision = FaceEmbeddingPrecision.FLOAT32,
+    val faceTrackingCacheEnabled: Boolean = true,
+    @FloatRange(from = 0.0, to = 0.5)
+    val faceTrackingMaxBoxShiftRatio: Float = 0.06f,
+    @FloatRange(from = 0.0, to = 15.0)
+    val faceTrackingMaxAngleDegrees: Float = 3f,
+    @FloatRange(from = 0.0, to = 1.0)
+    val faceTrackingMaxSharpnessDelta: Float = 0.2f,
+    @IntRange(from = 0)
+    val faceTrackingMaxReusedFrames: Int = 2,
     val forceDeviceClass: DevicePerformanceClass? = null
 ) {
     init {
@@ -171,5 +191,15 @@ data class TensorFlowFaceConfig(
         }
         recognitionCpuThreads?.let { require(it > 0) { "recognitionCpuThreads must be > 0" } }
         antiSpoofingCpuThreads?.let { require(it > 0) { "antiSpoofingCpuThreads must be > 0" } }
+        require(faceTrackingMaxBoxShiftRatio in 0f..0.5f) {
+            "faceTrackingMaxBoxShiftRatio must be in 0..0.5"
+        }
+        require(faceTrackingMaxAngleDegrees in 0f..15f) {
+            "faceTrackingMaxAngleDegrees must be in 0..15"
+        }
+        require(faceTrackingMaxSharpnessDelta in 0f..1f) {
+            "faceTrackingMaxSharpnessDelta must be in 0..1"
+        }
+        require(faceTrackingMaxReusedFrames >= 0) { "faceTrackingMaxReusedFrames must be >= 0" }
     }
 }
@@ -4,6 +4,47 @@ import android.content.res.AssetManager
 import org.json.JSONObject
 
 internal const val REGISTERED_TEMPLATES_PREF_KEY = "registered"
+internal const val TEMPLATE_MANIFEST_PREF_KEY = "templates_manifest"
+private const val TEMPLATE_MANIFEST_VERSION = "m1"
+
+internal class FaceTemplateManifest(
+    val generation: Long,
+    val names: List<String>
+) {
+    fun with(name: String): FaceTemplateManifest {
+        return FaceTemplateManifest(generation + 1, names.filter { it != name } + name)
+    }
+
+    fun without(name: String): FaceTemplateManifest {
+        return FaceTemplateManifest(generation + 1, names.filter { it != name })
+    }
+
+    fun serialize(): String {
+        return listOf(TEMPLATE_MANIFEST_VERSION, generation.toString(), names.joinToString(","))
+            .joinToString("|")
+    }
+
+    companion object {
+        val EMPTY = FaceTemplateManifest(0L, emptyList())
+
+        fun parse(raw: String?): FaceTemplateManifest? {
+            if (raw.isNullOrBlank()) return null
+            val parts = raw.split("|", limit = 3)
+            if (parts.size != 3 || parts[0] != TEMPLATE_MANIFEST_VERSION) return null
+            val generation = parts[1].toLongOrNull() ?: return null
+            val names = parts[2]
+                .split(",")
+                .filter { it.isNotEmpty() }
+                .distinct()
+            return FaceTemplateManifest(generation, names)
+        }
+    }
+}
+
+internal fun countStoredTemplates(manifest: String?, legacyJson: () -> String?): Int {
+    return FaceTemplateManifest.parse(manifest)?.names?.size
+        ?: countRegisteredTemplates(legacyJson())
+}
 
 internal fun hasRegisteredTemplates(jsonString: String?): Boolean {
     return countRegisteredTemplates(jsonString) > 0
@@ -32,7 +32,7 @@ import dev.skomlach.biometric.custom.face.tf.R
 import dev.skomlach.common.contextprovider.AndroidContext
 import dev.skomlach.common.logging.LogCat
 import dev.skomlach.common.misc.ExecutorHelper
-import dev.skomlach.common.storage.SharedPreferenceProvider.getProtectedPreferences
+import dev.skomlach.common.misc.TaskLane
 import dev.skomlach.common.translate.LocalizationHelper
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
@@ -120,7 +120,7 @@ class TensorFlowFaceUnlockManager(
         private fun scheduleLocalizationPrefetch(stringIds: Array<Int>) {
             synchronized(prefetchLock) {
                 prefetchJob?.cancel()
-                prefetchJob = ExecutorHelper.scope.launch {
+                prefetchJob = ExecutorHelper.scope.launch(ExecutorHelper.dispatcher(TaskLane.PREFETCH)) {
                     try {
                         LocalizationHelper.prefetch(AndroidContext.appContext, *stringIds)
                     } catch (e: Throwable) {
@@ -189,6 +189,16 @@ class TensorFlowFaceUnlockManager(
     private var faceChallengeIndex = 0
     private var faceChallengeStepStartedAtMs = 0L
     private var faceChallengeRejectedAttempts = 0
+    private val faceTrackingCache: FaceTrackingCache<FaceAttemptResult> by lazy {
+        FaceTrackingCache(
+            FaceTrackingThresholds(
+                maxBoxShiftRatio = effectiveConfig.base.faceTrackingMaxBoxShiftRatio,
+                maxAngleDeltaDegrees = effectiveConfig.base.faceTrackingMaxAngleDegrees,
+                maxSharpnessDeltaRatio = effectiveConfig.base.faceTrackingMaxSharpnessDelta,
+                maxReusedFrames = effectiveConfig.base.faceTrackingMaxReusedFrames
+            )
+        )
+    }
 
     private val faceDetector: FaceDetector? by lazy {
         try {
@@ -197,6 +207,7 @@ class TensorFlowFaceUnlockManager(
                     .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
                     .setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_ALL)
                     .setClassificationMode(FaceDetectorOptions.CLASSIFICATION_MODE_NONE)
+                    .also { if (effectiveConfig.base.faceTrackingCacheEnabled) it.enableTracking() }
                     .build()
             )
         } catch (e: Exception) {
@@ -258,7 +269,8 @@ class TensorFlowFaceUnlockManager(
                 TF_OD_API_MODEL_FILE,
                 TF_OD_API_INPUT_SIZE,
                 TF_OD_API_IS_QUANTIZED,
-                TfLiteBackendHelper.createOptions(recognitionBackend)
+                TfLiteBackendHelper.createOptions(recognitionBackend),
+                effectiveConfig.base.embeddingPrecision
             ).also {
                 LogCat.log(
                     TAG,
@@ -299,7 +311,7 @@ class TensorFlowFaceUnlockManager(
         }
 
         return getStoredLockoutError(
-            getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME),
+            TFLiteObjectDetectionAPIModel.protectedPreferences(),
             lockoutPolicy
         )
     }
@@ -308,13 +320,13 @@ class TensorFlowFaceUnlockManager(
 
     private fun handleFailedAttempt() {
         recordFailedAttempt(
-            getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME),
+            TFLiteObjectDetectionAPIModel.protectedPreferences(),
             lockoutPolicy
         )
     }
 
     private fun isErrorActive(): Boolean {
-        val prefs = getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME)
+        val prefs = TFLiteObjectDetectionAPIModel.protectedPreferences()
         val activeUntil = prefs.getLong(KEY_ERROR_ACTIVE_UNTIL_TIMESTAMP, 0L)
         val now = System.currentTimeMillis()
         if (activeUntil <= now) {
@@ -327,7 +339,7 @@ class TensorFlowFaceUnlockManager(
     }
 
     private fun setErrorActive(durationMs: Long = effectiveConfig.errorCooldownMs) {
-        getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME).edit {
+        TFLiteObjectDetectionAPIModel.protectedPreferences().edit {
             putLong(KEY_ERROR_ACTIVE_UNTIL_TIMESTAMP, System.currentTimeMillis() + durationMs)
         }
     }
@@ -375,6 +387,7 @@ class TensorFlowFaceUnlockManager(
         processedFrameCounter = 0
         consecutiveMatchCounter = 0
         lastMatchedId = null
+        faceTrackingCache.clear()
         faceChallengeActions = emptyList()
         faceChallengeIndex = 0
         faceChallengeSessionNonce = null
@@ -395,11 +408,11 @@ class TensorFlowFaceUnlockManager(
     }
 
     override fun resetLockOut() {
-        resetTemporaryLockoutState(getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME))
+        resetTemporaryLockoutState(TFLiteObjectDetectionAPIModel.protectedPreferences())
     }
 
     override fun resetPermanentLockOut() {
-        resetPermanentLockoutState(getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME))
+        resetPermanentLockoutState(TFLiteObjectDetectionAPIModel.protectedPreferences())
     }
 
     override fun getPermissions(): List<String> = listOf(Manifest.permission.CAMERA)
@@ -486,10 +499,15 @@ class TensorFlowFaceUnlockManager(
         return recognitionModelAvailable && frameProvider.isHardwareCapabilityAvailable()
     }
 
+    private fun storedTemplateCount(): Int {
+        val prefs = TFLiteObjectDetectionAPIModel.protectedPreferences()
+        return countStoredTemplates(prefs.getString(TEMPLATE_MANIFEST_PREF_KEY, null)) {
+            prefs.getString(REGISTERED_TEMPLATES_PREF_KEY, null)
+        }
+    }
+
     override fun hasEnrolledBiometric(): Boolean {
-        val json = getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME)
-            .getString(REGISTERED_TEMPLATES_PREF_KEY, null)
-        return hasRegisteredTemplates(json)
+        return storedTemplateCount() > 0
     }
     override fun getManagers(): Set<Any> = emptySet()
 
@@ -499,10 +517,7 @@ class TensorFlowFaceUnlockManager(
     }
 
     override fun getEnrollBundle(name: String?): Bundle {
-        val registeredTemplates = countRegisteredTemplates(
-            getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME)
-                .getString(REGISTERED_TEMPLATES_PREF_KEY, null)
-        )
+        val registeredTemplates = storedTemplateCount()
         return Bundle().apply {
             putBoolean(IS_ENROLLMENT_KEY, true)
             putString(
@@ -528,6 +543,7 @@ class TensorFlowFaceUnlockManager(
         processedFrameCounter = 0
         consecutiveMatchCounter = 0
         lastMatchedId = null
+        faceTrackingCache.clear()
         authCallback = callback
         cancellationSignal = cancel
         cancellationSignal?.setOnCancelListener {
@@ -556,10 +572,7 @@ class TensorFlowFaceUnlockManager(
         }
 
         isEnrolling = extra?.getBoolean(IS_ENROLLMENT_KEY, false) ?: false
-        val registeredTemplates = countRegisteredTemplates(
-            getProtectedPreferences(TFLiteObjectDetectionAPIModel.STORAGE_NAME)
-                .getString(REGISTERED_TEMPLATES_PREF_KEY, null)
-        )
+        val registeredTemplates = storedTemplateCount()
         enrollmentTag = sanitizeEnrollmentTag(extra?.getString(ENROLLMENT_TAG_KEY))
             ?: "face${registeredTemplates + 1}"
 
@@ -805,17 +818,18 @@ class TensorFlowFaceUnlockManager(
         val shouldCount = effectiveConfig.countFailedAttemptsForDistantMismatches ||
                 distance <= effectiveConfig.maxDistanceThreshold + effectiveConfig.mismatchGraceDistanceDelta
         if (!shouldCount) {
-            LogCat.log(TAG, "Mismatch ignored for lockout accounting; distance=$distance")
+            LogCat.log(TAG) { "Mismatch ignored for lockout accounting; distance=$distance" }
             return
         }
         handleFailedAttempt()
     }
 
-    private fun processFaces(bitmap: Bitmap, faces: List<Face>) {
+    private fun processFaces(bitmap: Bitmap, faces: List<Face>): Unit = LogCat.trace("processFaces") {
         val ts = System.currentTimeMillis()
-        LogCat.log(TAG, "processFaces >")
+        LogCat.log(TAG) { "processFaces >" }
         try {
             if (isErrorActive()) return
+            faceTrackingCache.retainTracks(faces.mapNotNull { it.trackingId })
             if (faces.isEmpty()) {
                 clearAntiSpoofingWindow()
                 onAuthenticationError(
@@ -872,8 +886,8 @@ class TensorFlowFaceUnlockManager(
             var bestMismatchDistance: Float? = null
             var sawInvalidFace = false
 
-            for (face in sortedFaces) {
-                when (val result = processSingleFace(bitmap, face)) {
+            for (result in processFaceBatch(bitmap, sortedFaces)) {
+                when (result) {
                     FaceAttemptResult.Success -> return
 
                     FaceAttemptResult.MatchInProgress -> {
@@ -950,7 +964,7 @@ class TensorFlowFaceUnlockManager(
                 )
             )
         } finally {
-            LogCat.log(TAG, "processFaces < ${System.currentTimeMillis() - ts}ms")
+            LogCat.log(TAG) { "processFaces < ${System.currentTimeMillis() - ts}ms" }
         }
     }
 
@@ -967,24 +981,128 @@ class TensorFlowFaceUnlockManager(
         )
     }
 
+    private class PreparedFace(
+        val livenessCrop: Bitmap,
+        val alignedFace: Bitmap,
+        val track: FaceTrackSample?,
+        val livenessChecked: Boolean
+    ) {
+        fun recycle() {
+            if (!alignedFace.isRecycled) alignedFace.recycle()
+            if (!livenessCrop.isRecycled) livenessCrop.recycle()
+        }
+    }
+
+    private sealed class FacePreparation {
+        class Ready(val face: PreparedFace) : FacePreparation()
+        //Rejected by a quality check or answered from the tracking cache, no inference needed
+        class Resolved(val result: FaceAttemptResult) : FacePreparation()
+        //Failed the pre-recognition liveness check, reported once earlier faces are evaluated
+        object Spoofed : FacePreparation()
+    }
+
+    private fun isTerminalResult(result: FaceAttemptResult): Boolean {
+        return when (result) {
+            FaceAttemptResult.Success,
+            FaceAttemptResult.MatchInProgress,
+            FaceAttemptResult.Spoof,
+            FaceAttemptResult.FatalError -> true
+
+            is FaceAttemptResult.NoMatch,
+            FaceAttemptResult.InvalidFace -> false
+        }
+    }
+
     private fun processSingleFace(
         bitmap: Bitmap,
         face: Face
     ): FaceAttemptResult {
+        return processFaceBatch(bitmap, listOf(face)).first()
+    }
+
+    /**
+     * Runs all usable faces of the frame through a single recognition inference.
+     *
+     * Results are reported in [faces] order and the list stops at the first terminal result,
+     * so callers observe the same sequence as if the faces were processed one by one.
+     */
+    private fun processFaceBatch(
+        bitmap: Bitmap,
+        faces: List<Face>
+    ): List<FaceAttemptResult> {
+        val results = ArrayList<FaceAttemptResult>(faces.size)
+        val prepared = ArrayList<PreparedFace>(faces.size)
+        var pendingResult: FaceAttemptResult? = null
+        var pendingSpoof = false
+        try {
+            for (face in faces) {
+                when (val preparation = prepareFace(bitmap, face)) {
+                    is FacePreparation.Ready -> prepared.add(preparation.face)
+                    is FacePreparation.Resolved -> if (isTerminalResult(preparation.result)) {
+                        pendingResult = preparation.result
+                        break
+                    } else {
+                        results.add(preparation.result)
+                    }
+
+                    FacePreparation.Spoofed -> {
+                        pendingSpoof = true
+                        break
+                    }
+                }
+            }
+
+            if (prepared.isNotEmpty()) {
+                val recognitions = detector?.recognizeImages(
+                    prepared.map { it.alignedFace },
+                    isEnrolling
+                )
+                if (recognitions == null || recognitions.size != prepared.size) {
+                    clearAntiSpoofingWindow()
+                    onAuthenticationError(
+                        CUSTOM_BIOMETRIC_ERROR_NO_SPACE,
+                        LocalizationHelper.getLocalizedString(
+                            context,
+                            R.string.biometriccompat_tf_face_help_model_not_detected
+                        )
+                    )
+                    results.add(FaceAttemptResult.FatalError)
+                    return results
+                }
+                for (index in prepared.indices) {
+                    val result = evaluateRecognition(prepared[index], recognitions[index])
+                    prepared[index].track?.let { rememberTrack(it, result) }
+                    results.add(result)
+                    if (isTerminalResult(result)) return results
+                }
+            }
+            pendingResult?.let { results.add(it) }
+            if (pendingSpoof) results.add(rejectSpoof())
+            return results
+        } finally {
+            prepared.forEach { it.recycle() }
+        }
+    }
+
+    private fun prepareFace(
+        bitmap: Bitmap,
+        face: Face
+    ): FacePreparation {
+        val invalidFace = FacePreparation.Resolved(FaceAttemptResult.InvalidFace)
         if (face.boundingBox.width() < effectiveConfig.minFaceSizePx ||
             face.boundingBox.height() < effectiveConfig.minFaceSizePx
         ) {
-            return FaceAttemptResult.InvalidFace
+            return invalidFace
         }
 
         if (abs(face.headEulerAngleX) > effectiveConfig.maxHeadAngleX ||
             abs(face.headEulerAngleY) > effectiveConfig.maxHeadAngleY
         ) {
-            return FaceAttemptResult.InvalidFace
+            return invalidFace
         }
 
         if (!isEnrolling && !isFaceChallengeSatisfied(face)) {
-            return FaceAttemptResult.MatchInProgress
+            return FacePreparation.Resolved(FaceAttemptResult.MatchInProgress)
         }
 
         val livenessCrop = createScaledFaceCrop(
@@ -992,144 +1110,171 @@ class TensorFlowFaceUnlockManager(
             face = face,
             cropScale = effectiveConfig.livenessCropScale,
             outputSize = FaceAntiSpoofing.INPUT_IMAGE_SIZE
-        ) ?: return FaceAttemptResult.InvalidFace
+        ) ?: return invalidFace
 
-        val alignedFace = getAlignedFace(
-            originalBitmap = bitmap,
-            face = face,
-            cropScale = effectiveConfig.recognitionCropScale
-        ) ?: run {
+        if (!isBitmapBrightEnough(livenessCrop, effectiveConfig.minBrightnessLuma)) {
             livenessCrop.recycle()
-            return FaceAttemptResult.InvalidFace
+            return invalidFace
         }
 
-        try {
-            if (!isBitmapBrightEnough(livenessCrop, effectiveConfig.minBrightnessLuma)) {
-                return FaceAttemptResult.InvalidFace
-            }
+        val laplaceScore = if (antiSpoofingEnabled) {
+            antiSpoofing?.laplacian(livenessCrop) ?: effectiveConfig.minLaplacianScore
+        } else {
+            effectiveConfig.minLaplacianScore
+        }
+        if (laplaceScore < effectiveConfig.minLaplacianScore) {
+            livenessCrop.recycle()
+            return invalidFace
+        }
 
-            val laplaceScore = if (antiSpoofingEnabled) {
-                antiSpoofing?.laplacian(livenessCrop) ?: effectiveConfig.minLaplacianScore
-            } else {
-                effectiveConfig.minLaplacianScore
-            }
-            if (laplaceScore < effectiveConfig.minLaplacianScore) {
-                return FaceAttemptResult.InvalidFace
-            }
+        val track = createTrackSample(face, laplaceScore)
+        track?.let { faceTrackingCache.lookup(it) }?.let { cached ->
+            livenessCrop.recycle()
+            return FacePreparation.Resolved(cached)
+        }
 
-            var antiSpoofCheckedThisFace = false
-            val antiSpoofStageBefore = resolveAntiSpoofingStage(
-                frameNumber = processedFrameCounter,
-                consecutiveMatches = consecutiveMatchCounter,
-                candidateMatched = false
+        //Checked per face before the crop is queued, so a spoofed face never reaches the inference
+        val livenessChecked = resolveAntiSpoofingStage(
+            frameNumber = processedFrameCounter,
+            consecutiveMatches = consecutiveMatchCounter,
+            candidateMatched = false
+        ) == AntiSpoofingStage.BEFORE_RECOGNITION
+        if (livenessChecked && !isFaceAntiSpoofingAccepted(
+                decision = isSpoofDetected(livenessCrop),
+                requiredForAuthentication = effectiveConfig.base.requireAntiSpoofingForAuthentication
             )
-            if (antiSpoofStageBefore == AntiSpoofingStage.BEFORE_RECOGNITION) {
-                antiSpoofCheckedThisFace = true
-                if (!isFaceAntiSpoofingAccepted(
-                        decision = isSpoofDetected(livenessCrop),
-                        requiredForAuthentication = effectiveConfig.base.requireAntiSpoofingForAuthentication
-                    )
-                ) {
-                    consecutiveMatchCounter = 0
-                    lastMatchedId = null
-                    handleSpoofFailure()
-                    return FaceAttemptResult.Spoof
-                }
-            }
+        ) {
+            livenessCrop.recycle()
+            track?.let { faceTrackingCache.remove(it.trackingId) }
+            return FacePreparation.Spoofed
+        }
 
-            val results = detector?.recognizeImage(alignedFace, isEnrolling)
-            if (results.isNullOrEmpty()) {
-                clearAntiSpoofingWindow()
-                onAuthenticationError(
-                    CUSTOM_BIOMETRIC_ERROR_NO_SPACE,
-                    LocalizationHelper.getLocalizedString(
-                        context,
-                        R.string.biometriccompat_tf_face_help_model_not_detected
-                    )
-                )
-                return FaceAttemptResult.FatalError
-            }
+        val alignedFace = getAlignedFace(
+            originalBitmap = bitmap,
+            face = face,
+            cropScale = effectiveConfig.recognitionCropScale
+        ) ?: run {
+            livenessCrop.recycle()
+            return invalidFace
+        }
+        return FacePreparation.Ready(PreparedFace(livenessCrop, alignedFace, track, livenessChecked))
+    }
 
-            val result = results.minByOrNull { it.distance ?: Float.MAX_VALUE }
-                ?: return FaceAttemptResult.InvalidFace
+    private fun rejectSpoof(): FaceAttemptResult {
+        consecutiveMatchCounter = 0
+        lastMatchedId = null
+        handleSpoofFailure()
+        return FaceAttemptResult.Spoof
+    }
 
-            val antiSpoofStageAfter = resolveAntiSpoofingStage(
-                frameNumber = processedFrameCounter,
-                consecutiveMatches = consecutiveMatchCounter,
-                candidateMatched = isEnrolling
-            )
+    private fun createTrackSample(face: Face, sharpness: Int): FaceTrackSample? {
+        if (isEnrolling || !effectiveConfig.base.faceTrackingCacheEnabled) return null
+        val trackingId = face.trackingId ?: return null
+        val box = face.boundingBox
+        return FaceTrackSample(
+            trackingId = trackingId,
+            left = box.left,
+            top = box.top,
+            right = box.right,
+            bottom = box.bottom,
+            angleX = face.headEulerAngleX,
+            angleY = face.headEulerAngleY,
+            angleZ = face.headEulerAngleZ,
+            sharpness = sharpness
+        )
+    }
 
-            if (isEnrolling) {
-                if (!antiSpoofCheckedThisFace &&
-                    antiSpoofStageAfter == AntiSpoofingStage.AFTER_CANDIDATE &&
-                    !isFaceAntiSpoofingAccepted(
-                        decision = isSpoofDetected(livenessCrop),
-                        requiredForAuthentication = effectiveConfig.base.requireAntiSpoofingForAuthentication
-                    )
-                ) {
-                    clearAntiSpoofingWindow()
-                    handleSpoofFailure()
-                    return FaceAttemptResult.Spoof
-                }
+    private fun rememberTrack(track: FaceTrackSample, result: FaceAttemptResult) {
+        when (result) {
+            //A reused match never counts as a confirmation, it only keeps the attempt in progress
+            FaceAttemptResult.MatchInProgress,
+            is FaceAttemptResult.NoMatch -> faceTrackingCache.store(track, result)
 
-                result.crop =
-                    alignedFace.copy(alignedFace.config ?: Bitmap.Config.ARGB_8888, false)
-                detector?.register(enrollmentTag, result)
-                LogCat.logError(TAG, "processFaces onAuthenticationSucceeded (enroll)")
-                authCallback?.onAuthenticationSucceeded(AuthenticationResult(null))
-                stopAuthentication()
-                resetPermanentLockOut()
-                return FaceAttemptResult.Success
-            }
+            else -> faceTrackingCache.remove(track.trackingId)
+        }
+    }
 
-            val distance = result.distance ?: return FaceAttemptResult.InvalidFace
-            val id = result.id
-            val matched = distance < effectiveConfig.maxDistanceThreshold
+    private fun evaluateRecognition(
+        prepared: PreparedFace,
+        result: SimilarityClassifier.Recognition
+    ): FaceAttemptResult {
+        val livenessCrop = prepared.livenessCrop
+        val alignedFace = prepared.alignedFace
+
+        val antiSpoofCheckedThisFace = prepared.livenessChecked
+        val antiSpoofStageAfter = resolveAntiSpoofingStage(
+            frameNumber = processedFrameCounter,
+            consecutiveMatches = consecutiveMatchCounter,
+            candidateMatched = isEnrolling
+        )
 
-            val antiSpoofStageForMatch = resolveAntiSpoofingStage(
-                frameNumber = processedFrameCounter,
-                consecutiveMatches = consecutiveMatchCounter,
-                candidateMatched = matched
-            )
+        if (isEnrolling) {
             if (!antiSpoofCheckedThisFace &&
-                matched &&
-                antiSpoofStageForMatch == AntiSpoofingStage.AFTER_CANDIDATE &&
+                antiSpoofStageAfter == AntiSpoofingStage.AFTER_CANDIDATE &&
                 !isFaceAntiSpoofingAccepted(
                     decision = isSpoofDetected(livenessCrop),
                     requiredForAuthentication = effectiveConfig.base.requireAntiSpoofingForAuthentication
                 )
             ) {
                 clearAntiSpoofingWindow()
-                consecutiveMatchCounter = 0
-                lastMatchedId = null
                 handleSpoofFailure()
                 return FaceAttemptResult.Spoof
             }
 
-            if (matched) {
-                if (id == lastMatchedId) {
-                    consecutiveMatchCounter++
-                } else {
-                    consecutiveMatchCounter = 1
-                    lastMatchedId = id
-                }
+            result.crop =
+                alignedFace.copy(alignedFace.config ?: Bitmap.Config.ARGB_8888, false)
+            detector?.register(enrollmentTag, result)
+            LogCat.logError(TAG, "processFaces onAuthenticationSucceeded (enroll)")
+            authCallback?.onAuthenticationSucceeded(AuthenticationResult(null))
+            stopAuthentication()
+            resetPermanentLockOut()
+            return FaceAttemptResult.Success
+        }
 
-                if (consecutiveMatchCounter >= effectiveConfig.requiredConsecutiveMatches) {
-                    LogCat.logError(TAG, "processFaces onAuthenticationSucceeded (auth)")
-                    authCallback?.onAuthenticationSucceeded(AuthenticationResult(null))
-                    stopAuthentication()
-                    resetPermanentLockOut()
-                    return FaceAttemptResult.Success
-                }
+        val distance = result.distance ?: return FaceAttemptResult.InvalidFace
+        val id = result.id
+        val matched = distance < effectiveConfig.maxDistanceThreshold
 
-                return FaceAttemptResult.MatchInProgress
+        val antiSpoofStageForMatch = resolveAntiSpoofingStage(
+            frameNumber = processedFrameCounter,
+            consecutiveMatches = consecutiveMatchCounter,
+            candidateMatched = matched
+        )
+        if (!antiSpoofCheckedThisFace &&
+            matched &&
+            antiSpoofStageForMatch == AntiSpoofingStage.AFTER_CANDIDATE &&
+            !isFaceAntiSpoofingAccepted(
+                decision = isSpoofDetected(livenessCrop),
+                requiredForAuthentication = effectiveConfig.base.requireAntiSpoofingForAuthentication
+            )
+        ) {
+            clearAntiSpoofingWindow()
+            consecutiveMatchCounter = 0
+            lastMatchedId = null
+            handleSpoofFailure()
+            return FaceAttemptResult.Spoof
+        }
+
+        if (matched) {
+            if (id == lastMatchedId) {
+                consecutiveMatchCounter++
+            } else {
+                consecutiveMatchCounter = 1
+                lastMatchedId = id
             }
 
-            return FaceAttemptResult.NoMatch(distance)
-        } finally {
-            if (!alignedFace.isRecycled) alignedFace.recycle()
-            if (!livenessCrop.isRecycled) livenessCrop.recycle()
+            if (consecutiveMatchCounter >= effectiveConfig.requiredConsecutiveMatches) {
+                LogCat.logError(TAG, "processFaces onAuthenticationSucceeded (auth)")
+                authCallback?.onAuthenticationSucceeded(AuthenticationResult(null))
+                stopAuthentication()
+                resetPermanentLockOut()
+                return FaceAttemptResult.Success
+            }
+
+            return FaceAttemptResult.MatchInProgress
         }
+
+        return FaceAttemptResult.NoMatch(distance)
     }
 
     private fun isFaceChallengeSatisfied(face: Face): Boolean {
@@ -0,0 +1,17 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import dev.skomlach.common.storage.ProtectedStoreDeclaration
+import dev.skomlach.common.storage.ProtectedStoreDeclarationProvider
+
+class TensorFlowProtectedStores : ProtectedStoreDeclarationProvider {
+    override fun getProtectedStores(): List<ProtectedStoreDeclaration> {
+        return listOf(
+            //Templates share this store and keep it uncached, so warm-up only resolves its key
+            //names; hot keys would never be decoded
+            ProtectedStoreDeclaration(
+                TFLiteObjectDetectionAPIModel.STORAGE_NAME,
+                cacheDecodedValues = false
+            )
+        )
+    }
+}
@@ -0,0 +1,225 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+
+enum class YuvScaleMode {
+    NEAREST,
+    BILINEAR
+}
+
+/**
+ * Fixed-point YUV_420_888 to ARGB_8888 converter.
+ *
+ * Produces the same pixels as [ImageUtils.convertYUV420ToARGB8888] for the full-size path, but
+ * reads the planes in place (honouring row and pixel strides), converts two rows per pass so
+ * both rows share one chroma sample per 2x2 block and can split the frame into row bands.
+ */
+internal object Yuv420Converter {
+    private const val MIN_ROWS_PER_BAND = 32
+
+    fun outputSize(size: Int, downscaleFactor: Int): Int {
+        return (size / downscaleFactor).coerceAtLeast(1)
+    }
+
+    fun convert(
+        yPlane: ByteBuffer,
+        uPlane: ByteBuffer,
+        vPlane: ByteBuffer,
+        width: Int,
+        height: Int,
+        yRowStride: Int,
+        yPixelStride: Int,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        out: IntArray,
+        downscaleFactor: Int = 1,
+        scaleMode: YuvScaleMode = YuvScaleMode.NEAREST,
+        executor: Executor? = null,
+        bands: Int = Runtime.getRuntime().availableProcessors()
+    ) {
+        require(downscaleFactor >= 1) { "downscaleFactor must be >= 1" }
+        val outWidth = outputSize(width, downscaleFactor)
+        val outHeight = outputSize(height, downscaleFactor)
+        require(out.size >= outWidth * outHeight) { "Output buffer is too small" }
+
+        val planes = Planes(
+            yPlane, uPlane, vPlane,
+            width, height,
+            yRowStride, yPixelStride, uvRowStride, uvPixelStride
+        )
+        val convertRows: (Int, Int) -> Unit = when {
+            downscaleFactor == 1 -> { from, to -> planes.convertFullSize(out, from, to) }
+            scaleMode == YuvScaleMode.NEAREST -> { from, to ->
+                planes.convertNearest(out, outWidth, downscaleFactor, from, to)
+            }
+
+            else -> { from, to ->
+                planes.convertBilinear(out, outWidth, downscaleFactor, from, to)
+            }
+        }
+
+        val bandCount = if (executor == null) 1 else {
+            bands.coerceIn(1, (outHeight / MIN_ROWS_PER_BAND).coerceAtLeast(1))
+        }
+        if (bandCount == 1) {
+            convertRows(0, outHeight)
+            return
+        }
+
+        //Bands always start on an even row so row pairs never straddle two bands
+        val rowsPerBand = ((outHeight + bandCount - 1) / bandCount + 1) and 1.inv()
+        val latch = CountDownLatch(bandCount - 1)
+        var error: Throwable? = null
+        val lock = Any()
+        for (band in 1 until bandCount) {
+            val from = band * rowsPerBand
+            val to = minOf(from + rowsPerBand, outHeight)
+            val task = Runnable {
+                try {
+                    if (from < to) convertRows(from, to)
+                } catch (t: Throwable) {
+                    synchronized(lock) { error = t }
+                } finally {
+                    latch.countDown()
+                }
+            }
+            try {
+                executor!!.execute(task)
+            } catch (t: Throwable) {
+                //Executor rejected the band - convert it on the calling thread
+                task.run()
+            }
+        }
+        convertRows(0, minOf(rowsPerBand, outHeight))
+        latch.await()
+        synchronized(lock) { error }?.let { throw it }
+    }
+
+    private class Planes(
+        val y: ByteBuffer,
+        val u: ByteBuffer,
+        val v: ByteBuffer,
+        val width: Int,
+        val height: Int,
+        val yRowStride: Int,
+        val yPixelStride: Int,
+        val uvRowStride: Int,
+        val uvPixelStride: Int
+    ) {
+        private val yBase = y.position()
+        private val uBase = u.position()
+        private val vBase = v.position()
+
+        private fun luma(index: Int): Int {
+            val value = (y.get(yBase + index).toInt() and 0xff) - 16
+            return if (value < 0) 0 else 1192 * value
+        }
+
+        fun convertFullSize(out: IntArray, fromRow: Int, toRow: Int) {
+            var j = fromRow
+            while (j < toRow) {
+                val secondRow = j + 1 < toRow
+                val pY0 = yRowStride * j
+                val pY1 = pY0 + yRowStride
+                val pUV = uvRowStride * (j shr 1)
+                var o0 = j * width
+                var o1 = o0 + width
+                var i = 0
+                while (i < width) {
+                    val uvOffset = pUV + (i shr 1) * uvPixelStride
+                    val cu = (u.get(uBase + uvOffset).toInt() and 0xff) - 128
+                    val cv = (v.get(vBase + uvOffset).toInt() and 0xff) - 128
+                    val rv = 1634 * cv
+                    val guv = -833 * cv - 400 * cu
+                    val bu = 2066 * cu
+                    val pairEnd = minOf(i + 2, width)
+                    while (i < pairEnd) {
+                        val yOffset = i * yPixelStride
+                        out[o0++] = packArgb(luma(pY0 + yOffset), rv, guv, bu)
+                        if (secondRow) {
+                            out[o1++] = packArgb(luma(pY1 + yOffset), rv, guv, bu)
+                        }
+                        i++
+                    }
+                }
+                j += 2
+            }
+        }
+
+        fun convertNearest(
+            out: IntArray,
+            outWidth: Int,
+            factor: Int,
+            fromRow: Int,
+            toRow: Int
+        ) {
+            for (row in fromRow until toRow) {
+                val sy = row * factor
+                val pY = yRowStride * sy
+                val pUV = uvRowStride * (sy shr 1)
+                var o = row * outWidth
+                for (col in 0 until outWidth) {
+                    val sx = col * factor
+                    val uvOffset = pUV + (sx shr 1) * uvPixelStride
+                    val cu = (u.get(uBase + uvOffset).toInt() and 0xff) - 128
+                    val cv = (v.get(vBase + uvOffset).toInt() and 0xff) - 128
+                    out[o++] = packArgb(
+                        luma(pY + sx * yPixelStride),
+                        1634 * cv,
+                        -833 * cv - 400 * cu,
+                        2066 * cu
+                    )
+                }
+            }
+        }
+
+        fun convertBilinear(
+            out: IntArray,
+            outWidth: Int,
+            factor: Int,
+            fromRow: Int,
+            toRow: Int
+        ) {
+            //Samples the centre of every factor x factor block, which for an integer factor
+            //is the average of the 2x2 source pixels around it
+            val offset = (factor - 1) shr 1
+            for (row in fromRow until toRow) {
+                val sy0 = minOf(row * factor + offset, height - 1)
+                val sy1 = minOf(sy0 + 1, height - 1)
+                val pY0 = yRowStride * sy0
+                val pY1 = yRowStride * sy1
+                val pUV = uvRowStride * (sy1 shr 1)
+                var o = row * outWidth
+                for (col in 0 until outWidth) {
+                    val sx0 = minOf(col * factor + offset, width - 1)
+                    val sx1 = minOf(sx0 + 1, width - 1)
+                    val x0 = sx0 * yPixelStride
+                    val x1 = sx1 * yPixelStride
+                    val yValue = ((y.get(yBase + pY0 + x0).toInt() and 0xff) +
+                            (y.get(yBase + pY0 + x1).toInt() and 0xff) +
+                            (y.get(yBase + pY1 + x0).toInt() and 0xff) +
+                            (y.get(yBase + pY1 + x1).toInt() and 0xff) + 2) shr 2
+                    val uvOffset = pUV + (sx1 shr 1) * uvPixelStride
+                    val cu = (u.get(uBase + uvOffset).toInt() and 0xff) - 128
+                    val cv = (v.get(vBase + uvOffset).toInt() and 0xff) - 128
+                    val yScaled = if (yValue < 16) 0 else 1192 * (yValue - 16)
+                    out[o++] = packArgb(yScaled, 1634 * cv, -833 * cv - 400 * cu, 2066 * cu)
+                }
+            }
+        }
+    }
+
+    private fun packArgb(y1192: Int, rv: Int, guv: Int, bu: Int): Int {
+        // Shifting before clamping is equivalent to clamping to [0, kMaxChannelValue] first
+        return -0x1000000 or
+                (clampChannel((y1192 + rv) shr 10) shl 16) or
+                (clampChannel((y1192 + guv) shr 10) shl 8) or
+                clampChannel((y1192 + bu) shr 10)
+    }
+
+    private fun clampChannel(value: Int): Int {
+        return if (value < 0) 0 else if (value > 255) 255 else value
+    }
+}
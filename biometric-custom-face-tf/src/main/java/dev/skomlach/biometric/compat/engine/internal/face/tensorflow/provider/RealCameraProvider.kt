@@ -23,6 +23,8 @@ import dev.skomlach.biometric.compat.engine.internal.face.tensorflow.ImageUtils
 import dev.skomlach.biometric.compat.utils.SensorPrivacyCheck
 import dev.skomlach.biometric.custom.face.tf.R
 import dev.skomlach.common.logging.LogCat
+import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.misc.TaskLane
 import dev.skomlach.common.permissions.PermissionUtils
 import dev.skomlach.common.translate.LocalizationHelper
 import java.util.concurrent.atomic.AtomicBoolean
@@ -50,6 +52,9 @@ class RealCameraProvider(private val context: Context) : IFrameProvider,
 
     private val isConverting = AtomicBoolean(false)
 
+    //Bitmap.createBitmap copies the pixels, so one buffer is reused across frames
+    private var pixelBuffer: IntArray? = null
+
     override fun start(
         faceDetector: FaceDetector,
         frameListener: (bitmap: Bitmap, faces: List<Face>) -> Unit,
@@ -293,26 +298,18 @@ class RealCameraProvider(private val context: Context) : IFrameProvider,
                 val width = image.width
                 val height = image.height
                 val planes = image.planes
-                val yBuffer = planes[0].buffer
-                val uBuffer = planes[1].buffer
-                val vBuffer = planes[2].buffer
-
-
-                val yData = ByteArray(yBuffer.remaining()).apply { yBuffer.get(this) }
-                val uData = ByteArray(uBuffer.remaining()).apply { uBuffer.get(this) }
-                val vData = ByteArray(vBuffer.remaining()).apply { vBuffer.get(this) }
-
-                val yRowStride = planes[0].rowStride
-                val uvRowStride = planes[1].rowStride
-                val uvPixelStride = planes[1].pixelStride
-                image.close()
-                val pixels = IntArray(width * height)
+                val pixels = pixelBuffer
+                    ?.takeIf { it.size == width * height }
+                    ?: IntArray(width * height).also { pixelBuffer = it }
                 ImageUtils.convertYUV420ToARGB8888(
-                    yData, uData, vData,
+                    planes[0].buffer, planes[1].buffer, planes[2].buffer,
                     width, height,
-                    yRowStride, uvRowStride, uvPixelStride,
-                    pixels
+                    planes[0].rowStride, planes[0].pixelStride,
+                    planes[1].rowStride, planes[1].pixelStride,
+                    pixels,
+                    executor = ExecutorHelper.executor(TaskLane.COMPUTE)
                 )
+                image.close()
 
                 val unrotatedBitmap =
                     Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888)
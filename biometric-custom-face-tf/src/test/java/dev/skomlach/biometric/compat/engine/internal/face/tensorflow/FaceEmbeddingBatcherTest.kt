@@ -0,0 +1,129 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import dev.skomlach.common.logging.LogCat
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+class FaceEmbeddingBatcherTest {
+    private val debug = LogCat.DEBUG
+
+    @Before
+    fun setUp() {
+        LogCat.DEBUG = false
+    }
+
+    @After
+    fun tearDown() {
+        LogCat.DEBUG = debug
+    }
+
+    private class FakeEngine : FaceEmbeddingEngine<Float> {
+        val resizes = mutableListOf<Int>()
+        val batches = mutableListOf<Pair<Int, List<Float>>>()
+        var failResize: (Int) -> Boolean = { false }
+        private var shape = 1
+
+        override fun resize(batchSize: Int) {
+            resizes.add(batchSize)
+            if (failResize(batchSize)) {
+                shape = -1
+                throw IllegalArgumentException("Can not resize the input to $batchSize")
+            }
+            shape = batchSize
+        }
+
+        override fun run(faces: List<Float>): Array<FloatArray> {
+            check(faces.size <= shape) { "${faces.size} faces do not fit the input of $shape" }
+            batches.add(shape to faces)
+            return Array(faces.size) { floatArrayOf(faces[it]) }
+        }
+    }
+
+    private fun faces(count: Int): List<Float> = List(count) { it.toFloat() }
+
+    private fun List<FloatArray>?.values(): List<Float>? = this?.map { it.single() }
+
+    @Test
+    fun `batch capacity is the next power of two`() {
+        val batcher = FaceEmbeddingBatcher(FakeEngine(), 4)
+
+        assertEquals(listOf(1, 2, 4, 4, 8), listOf(1, 2, 3, 4, 5).map { batcher.capacity(it) })
+    }
+
+    @Test
+    fun `faces are run in one batch sized to the capacity`() {
+        val engine = FakeEngine()
+        val batcher = FaceEmbeddingBatcher(engine, 4)
+
+        assertEquals(faces(3), batcher.embed(faces(3)).values())
+        assertEquals(faces(2), batcher.embed(faces(2)).values())
+
+        assertEquals(listOf(4, 2), engine.resizes)
+        assertEquals(listOf(4 to faces(3), 2 to faces(2)), engine.batches)
+        assertEquals(2, batcher.currentBatchSize)
+    }
+
+    @Test
+    fun `faces are chunked by the max batch size`() {
+        val engine = FakeEngine()
+        val batcher = FaceEmbeddingBatcher(engine, 4)
+
+        assertEquals(faces(9), batcher.embed(faces(9)).values())
+
+        assertEquals(listOf(4, 4, 1), engine.batches.map { it.second.size })
+        assertEquals(listOf(4, 1), engine.resizes)
+    }
+
+    @Test
+    fun `faces run one by one when the input can not be resized`() {
+        val engine = FakeEngine().apply { failResize = { it > 1 } }
+        val batcher = FaceEmbeddingBatcher(engine, 4)
+
+        assertEquals(faces(3), batcher.embed(faces(3)).values())
+
+        assertFalse(batcher.batchingSupported)
+        assertEquals(listOf(1, 1, 1), engine.batches.map { it.first })
+        assertEquals(listOf(4, 1), engine.resizes)
+
+        //Batching is not retried once the engine refused it
+        engine.resizes.clear()
+        assertEquals(faces(2), batcher.embed(faces(2)).values())
+        assertTrue(engine.resizes.isEmpty())
+    }
+
+    @Test
+    fun `a failed resize restores the previous shape`() {
+        val engine = FakeEngine()
+        val batcher = FaceEmbeddingBatcher(engine, 4)
+        batcher.embed(faces(2))
+        engine.failResize = { it == 4 }
+
+        assertEquals(faces(3), batcher.embed(faces(3)).values())
+
+        assertEquals(listOf(2, 4, 2, 1), engine.resizes)
+        assertEquals(1, batcher.currentBatchSize)
+        assertFalse(batcher.batchingSupported)
+    }
+
+    @Test
+    fun `the shape is forgotten when it can not be restored`() {
+        val engine = FakeEngine()
+        val batcher = FaceEmbeddingBatcher(engine, 4)
+        engine.failResize = { true }
+
+        assertNull(batcher.embed(faces(2)))
+
+        assertEquals(0, batcher.currentBatchSize)
+        assertTrue(engine.batches.isEmpty())
+
+        //The next call reshapes the input instead of trusting a stale size
+        engine.failResize = { false }
+        assertEquals(faces(1), batcher.embed(faces(1)).values())
+        assertEquals(1, batcher.currentBatchSize)
+    }
+}
@@ -0,0 +1,83 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class FaceEmbeddingIndexTest {
+
+    private fun randomTemplates(count: Int, dimension: Int): Map<String, FloatArray?> {
+        val random = Random(7)
+        return (0 until count).associate { index ->
+            "face$index" to FloatArray(dimension) { random.nextFloat() * 2f - 1f }
+        }
+    }
+
+    @Test
+    fun float32IndexMatchesEveryQueryInOnePass() {
+        val templates = linkedMapOf<String, FloatArray?>(
+            "alice" to floatArrayOf(0f, 0f, 1f),
+            "bob" to floatArrayOf(1f, 0f, 0f),
+            "empty" to null,
+            "short" to floatArrayOf(1f)
+        )
+
+        val index = FaceEmbeddingIndex.build(FaceEmbeddingPrecision.FLOAT32, 3, templates)
+        val matches = index.findNearest(listOf(floatArrayOf(0.9f, 0f, 0f), floatArrayOf(0f, 0.1f, 1f)))
+
+        assertEquals(2, matches.size)
+        assertEquals("bob", matches[0]?.name)
+        assertEquals(0.1f, matches[0]!!.distance, 1e-5f)
+        assertEquals("alice", matches[1]?.name)
+        assertEquals(0.1f, matches[1]!!.distance, 1e-5f)
+        assertEquals(2, index.size)
+        assertTrue(index.findNearest(emptyList()).isEmpty())
+    }
+
+    @Test
+    fun quantizedDistancesStayCloseToFloatDistances() {
+        val templates = randomTemplates(4, 192)
+        val query = templates.getValue("face2")!!.map { it + 0.05f }.toFloatArray()
+        val exact = FaceEmbeddingIndex.build(FaceEmbeddingPrecision.FLOAT32, 192, templates)
+            .findNearest(listOf(query))[0]!!
+
+        for (precision in listOf(FaceEmbeddingPrecision.FLOAT16, FaceEmbeddingPrecision.INT8)) {
+            val match = FaceEmbeddingIndex.build(precision, 192, templates)
+                .findNearest(listOf(query))[0]!!
+            assertEquals("face2", match.name)
+            assertEquals(exact.distance, match.distance, 0.05f)
+        }
+    }
+
+    @Test
+    fun quantizedPrecisionsKeepNearestTemplateOrdering() {
+        assertTrue(calibrateEmbeddingPrecision(FaceEmbeddingPrecision.FLOAT16, 192) >= 0.99f)
+        assertTrue(calibrateEmbeddingPrecision(FaceEmbeddingPrecision.INT8, 192) >= 0.98f)
+    }
+
+    @Test
+    fun withAndWithoutReturnUpdatedCopies() {
+        val empty = FaceEmbeddingIndex.empty(FaceEmbeddingPrecision.INT8, 2)
+        val one = empty.with("a", floatArrayOf(1f, 0f))
+        val two = one.with("b", floatArrayOf(0f, 1f)).with("a", floatArrayOf(-1f, 0f))
+        val removed = two.without("a")
+
+        assertEquals(0, empty.size)
+        assertEquals(1, one.size)
+        assertEquals(2, two.size)
+        assertEquals("a", two.findNearest(listOf(floatArrayOf(-1f, 0f)))[0]?.name)
+        assertEquals("b", removed.findNearest(listOf(floatArrayOf(-1f, 0f)))[0]?.name)
+        assertNull(empty.findNearest(listOf(floatArrayOf(1f, 0f)))[0])
+    }
+
+    @Test
+    fun halfConversionRoundTrips() {
+        for (value in floatArrayOf(0f, 1f, -2.5f, 0.333f, 65504f, 6.1e-5f, 1e-7f)) {
+            val restored = halfToFloat(floatToHalf(value))
+            assertEquals(value, restored, kotlin.math.abs(value) * 1e-3f + 1e-7f)
+        }
+        assertEquals(Float.POSITIVE_INFINITY, halfToFloat(floatToHalf(1e6f)), 0f)
+    }
+}
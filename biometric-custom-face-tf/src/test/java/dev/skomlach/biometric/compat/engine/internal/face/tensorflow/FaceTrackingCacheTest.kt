@@ -0,0 +1,88 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class FaceTrackingCacheTest {
+
+    private val thresholds = FaceTrackingThresholds(
+        maxBoxShiftRatio = 0.05f,
+        maxAngleDeltaDegrees = 3f,
+        maxSharpnessDeltaRatio = 0.2f,
+        maxReusedFrames = 2
+    )
+
+    private fun sample(
+        trackingId: Int = 1,
+        shift: Int = 0,
+        angleY: Float = 0f,
+        sharpness: Int = 1000
+    ) = FaceTrackSample(
+        trackingId = trackingId,
+        left = 100 + shift,
+        top = 100,
+        right = 300 + shift,
+        bottom = 300,
+        angleX = 0f,
+        angleY = angleY,
+        angleZ = 0f,
+        sharpness = sharpness
+    )
+
+    @Test
+    fun `stable track reuses the stored result a bounded number of times`() {
+        val cache = FaceTrackingCache<String>(thresholds)
+        cache.store(sample(), "match")
+
+        assertEquals("match", cache.lookup(sample(shift = 5)))
+        assertEquals("match", cache.lookup(sample(angleY = 2f)))
+        assertNull(cache.lookup(sample()))
+    }
+
+    @Test
+    fun `fresh result resets the reuse budget`() {
+        val cache = FaceTrackingCache<String>(thresholds)
+        cache.store(sample(), "first")
+        cache.lookup(sample())
+        cache.lookup(sample())
+
+        cache.store(sample(), "second")
+
+        assertEquals("second", cache.lookup(sample()))
+    }
+
+    @Test
+    fun `moved turned or blurred face needs a new inference`() {
+        val cache = FaceTrackingCache<String>(thresholds)
+        cache.store(sample(), "match")
+
+        assertNull(cache.lookup(sample(shift = 11)))
+        assertNull(cache.lookup(sample(angleY = 3.5f)))
+        assertNull(cache.lookup(sample(sharpness = 750)))
+        assertNull(cache.lookup(sample(trackingId = 2)))
+    }
+
+    @Test
+    fun `tracks that left the frame are dropped`() {
+        val cache = FaceTrackingCache<String>(thresholds)
+        cache.store(sample(trackingId = 1), "a")
+        cache.store(sample(trackingId = 2), "b")
+
+        cache.retainTracks(listOf(2))
+
+        assertEquals(1, cache.size)
+        assertNull(cache.lookup(sample(trackingId = 1)))
+        assertEquals("b", cache.lookup(sample(trackingId = 2)))
+    }
+
+    @Test
+    fun `zero reuse budget disables the cache`() {
+        val cache = FaceTrackingCache<String>(
+            FaceTrackingThresholds(0.05f, 3f, 0.2f, maxReusedFrames = 0)
+        )
+        cache.store(sample(), "match")
+
+        assertNull(cache.lookup(sample()))
+    }
+}
@@ -2,6 +2,7 @@ package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
 
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
 import org.junit.Test
 
@@ -33,4 +34,39 @@ class TensorFlowFaceStateSupportTest {
         assertEquals(0, countRegisteredTemplates("{broken"))
         assertFalse(hasRegisteredTemplates("{broken"))
     }
+
+    @Test
+    fun templateManifestRoundTripsAndTracksGeneration() {
+        val manifest = FaceTemplateManifest.EMPTY
+            .with("face1")
+            .with("face2")
+            .with("face1")
+            .without("face2")
+
+        val parsed = FaceTemplateManifest.parse(manifest.serialize())
+
+        assertEquals(4L, parsed?.generation)
+        assertEquals(listOf("face1"), parsed?.names)
+    }
+
+    @Test
+    fun templateManifestRejectsUnknownFormat() {
+        assertNull(FaceTemplateManifest.parse(null))
+        assertNull(FaceTemplateManifest.parse("m0|1|face1"))
+        assertNull(FaceTemplateManifest.parse("m1|x|face1"))
+        assertEquals(emptyList<String>(), FaceTemplateManifest.parse("m1|3|")?.names)
+    }
+
+    @Test
+    fun storedTemplateCountPrefersManifestOverLegacyBlob() {
+        var legacyRead = false
+        val count = countStoredTemplates("m1|2|face1,face2,face3") {
+            legacyRead = true
+            "{}"
+        }
+
+        assertEquals(3, count)
+        assertFalse(legacyRead)
+        assertEquals(0, countStoredTemplates(null) { null })
+    }
 }
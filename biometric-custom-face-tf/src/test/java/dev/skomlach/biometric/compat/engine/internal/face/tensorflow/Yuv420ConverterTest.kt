@@ -0,0 +1,145 @@
+package dev.skomlach.biometric.compat.engine.internal.face.tensorflow
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import kotlin.random.Random
+
+class Yuv420ConverterTest {
+
+    private class Frame(
+        val width: Int,
+        val height: Int,
+        val yRowStride: Int,
+        val uvRowStride: Int,
+        val uvPixelStride: Int,
+        seed: Int
+    ) {
+        val y: ByteArray
+        val u: ByteArray
+        val v: ByteArray
+
+        init {
+            val random = Random(seed)
+            val chromaHeight = (height + 1) / 2
+            y = ByteArray(yRowStride * height).also { random.nextBytes(it) }
+            u = ByteArray(uvRowStride * chromaHeight).also { random.nextBytes(it) }
+            v = ByteArray(uvRowStride * chromaHeight).also { random.nextBytes(it) }
+        }
+
+        fun reference(): IntArray {
+            val out = IntArray(width * height)
+            ImageUtils.convertYUV420ToARGB8888(
+                y, u, v,
+                width, height,
+                yRowStride, uvRowStride, uvPixelStride,
+                out
+            )
+            return out
+        }
+    }
+
+    private fun convert(
+        frame: Frame,
+        downscaleFactor: Int = 1,
+        scaleMode: YuvScaleMode = YuvScaleMode.NEAREST,
+        parallel: Boolean = false
+    ): IntArray {
+        val out = IntArray(
+            Yuv420Converter.outputSize(frame.width, downscaleFactor) *
+                    Yuv420Converter.outputSize(frame.height, downscaleFactor)
+        )
+        val executor = if (parallel) Executors.newFixedThreadPool(3) else null
+        try {
+            Yuv420Converter.convert(
+                ByteBuffer.wrap(frame.y), ByteBuffer.wrap(frame.u), ByteBuffer.wrap(frame.v),
+                frame.width, frame.height,
+                frame.yRowStride, 1, frame.uvRowStride, frame.uvPixelStride,
+                out,
+                downscaleFactor = downscaleFactor,
+                scaleMode = scaleMode,
+                executor = executor,
+                bands = 4
+            )
+        } finally {
+            executor?.shutdown()
+        }
+        return out
+    }
+
+    @Test
+    fun fullSizeMatchesScalarConverterForPlanarChroma() {
+        val frame = Frame(64, 48, 64, 32, 1, seed = 1)
+
+        assertArrayEquals(frame.reference(), convert(frame))
+    }
+
+    @Test
+    fun fullSizeHonoursRowPaddingAndInterleavedChroma() {
+        val frame = Frame(50, 37, 64, 64, 2, seed = 2)
+
+        assertArrayEquals(frame.reference(), convert(frame))
+    }
+
+    @Test
+    fun parallelBandsMatchScalarConverter() {
+        val frame = Frame(160, 131, 176, 176, 2, seed = 3)
+
+        assertArrayEquals(frame.reference(), convert(frame, parallel = true))
+    }
+
+    @Test
+    fun nearestDownscaleSamplesSourcePixels() {
+        val frame = Frame(96, 64, 96, 96, 2, seed = 4)
+        val reference = frame.reference()
+
+        val out = convert(frame, downscaleFactor = 2, parallel = true)
+
+        for (row in 0 until 32) {
+            for (col in 0 until 48) {
+                assertEquals(reference[row * 2 * 96 + col * 2], out[row * 48 + col])
+            }
+        }
+    }
+
+    @Test
+    fun bilinearDownscaleKeepsFlatColour() {
+        val frame = Frame(40, 40, 40, 40, 2, seed = 5)
+        frame.y.fill(120.toByte())
+        frame.u.fill(90.toByte())
+        frame.v.fill(170.toByte())
+        val expected = frame.reference()[0]
+
+        val out = convert(frame, downscaleFactor = 4, scaleMode = YuvScaleMode.BILINEAR)
+
+        assertEquals(100, out.size)
+        out.forEach { assertEquals(expected, it) }
+    }
+
+    @Test
+    fun nv21MatchesScalarConverter() {
+        val width = 52
+        val height = 37
+        val chromaWidth = (width + 1) / 2
+        val chromaHeight = (height + 1) / 2
+        val nv21 = ByteArray(width * height + width * chromaHeight).also { Random(6).nextBytes(it) }
+        val u = ByteArray(chromaWidth * chromaHeight)
+        val v = ByteArray(chromaWidth * chromaHeight)
+        for (row in 0 until chromaHeight) {
+            for (col in 0 until chromaWidth) {
+                val vu = width * height + row * width + col * 2
+                v[row * chromaWidth + col] = nv21[vu]
+                u[row * chromaWidth + col] = nv21[vu + 1]
+            }
+        }
+        val expected = IntArray(width * height)
+        ImageUtils.convertYUV420ToARGB8888(nv21, u, v, width, height, width, chromaWidth, 1, expected)
+        val out = IntArray(width * height)
+
+        ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, out)
+
+        assertArrayEquals(expected, out)
+    }
+}
@@ -227,23 +227,34 @@ class VoiceBiometricManager(
         }
 
         if (isEnrollment) {
-            val tag = store.saveAll(
+            //Encrypting the templates must not hold up the calling thread
+            store.saveAll(
                 extra.getString(ENROLLMENT_TAG_KEY),
                 sample.phrase,
                 embeddings,
                 featureBatches
-            )
-            resetTemporaryLockoutState(prefs)
-            e(
-                "VoiceBiometricManager.enroll quality=OK samples=${embeddings.size} " +
-                    "featureBatches=${featureBatches.size} featureFrames=${featureBatches.sumOf { it.size }} " +
-                    "metrics=$preprocessMetrics"
-            )
-            finishWithSuccess(
-                callback,
-                crypto,
-                localized(R.string.biometriccompat_voice_help_enrolled, tag)
-            )
+            ) { tag, saved ->
+                if (!saved) {
+                    e("VoiceBiometricManager.enroll save_failed")
+                    finishWithError(
+                        callback,
+                        CUSTOM_BIOMETRIC_ERROR_UNABLE_TO_PROCESS,
+                        localized(R.string.biometriccompat_voice_help_unavailable)
+                    )
+                    return@saveAll
+                }
+                resetTemporaryLockoutState(prefs)
+                e(
+                    "VoiceBiometricManager.enroll quality=OK samples=${embeddings.size} " +
+                        "featureBatches=${featureBatches.size} featureFrames=${featureBatches.sumOf { it.size }} " +
+                        "metrics=$preprocessMetrics"
+                )
+                finishWithSuccess(
+                    callback,
+                    crypto,
+                    localized(R.string.biometriccompat_voice_help_enrolled, tag)
+                )
+            }
             return
         }
 
@@ -396,7 +407,7 @@ class VoiceBiometricManager(
     internal companion object {
         private const val IS_ENROLLMENT_KEY = "is_enrollment"
         private const val ENROLLMENT_TAG_KEY = "enrollment_tag"
-        private const val LOCKOUT_STORAGE_NAME = "voice_lockout"
+        internal const val LOCKOUT_STORAGE_NAME = "voice_lockout"
         private const val MATCH_THRESHOLD = 0.78f
         private const val TOP_K_TEMPLATES = 3
         private const val REPLAY_FRESHNESS_WINDOW_MS = 30_000L
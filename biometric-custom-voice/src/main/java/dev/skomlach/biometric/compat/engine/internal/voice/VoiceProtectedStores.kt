@@ -0,0 +1,20 @@
+package dev.skomlach.biometric.compat.engine.internal.voice
+
+import dev.skomlach.biometric.compat.custom.AbstractSoftwareBiometricManager
+import dev.skomlach.common.storage.ProtectedStoreDeclaration
+import dev.skomlach.common.storage.ProtectedStoreDeclarationProvider
+
+class VoiceProtectedStores : ProtectedStoreDeclarationProvider {
+    override fun getProtectedStores(): List<ProtectedStoreDeclaration> {
+        return listOf(
+            ProtectedStoreDeclaration(
+                VoiceBiometricManager.LOCKOUT_STORAGE_NAME,
+                AbstractSoftwareBiometricManager.LOCKOUT_STATE_KEYS
+            ),
+            ProtectedStoreDeclaration(
+                VoiceTemplateStore.STORAGE_NAME,
+                cacheDecodedValues = false
+            )
+        )
+    }
+}
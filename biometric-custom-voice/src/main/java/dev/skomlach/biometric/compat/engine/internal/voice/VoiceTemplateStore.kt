@@ -2,7 +2,9 @@ package dev.skomlach.biometric.compat.engine.internal.voice
 
 import android.content.SharedPreferences
 import android.util.Base64
+import dev.skomlach.common.misc.ExecutorHelper
 import dev.skomlach.common.storage.SharedPreferenceProvider.getProtectedPreferences
+import dev.skomlach.common.storage.editAsync
 import java.nio.charset.StandardCharsets.UTF_8
 import java.util.Locale
 import java.util.UUID
@@ -35,7 +37,7 @@ data class VoiceTemplate(
 
 class VoiceTemplateStore {
     private val prefs: SharedPreferences by lazy {
-        getProtectedPreferences(STORAGE_NAME)
+        getProtectedPreferences(STORAGE_NAME, cacheDecodedValues = false)
     }
 
     fun hasTemplate(): Boolean = templateNames().isNotEmpty()
@@ -59,11 +61,16 @@ class VoiceTemplateStore {
         return saveAll(tag, phrase, listOf(embedding))
     }
 
+    /**
+     * @param onSaved when set, the templates are encrypted and written off the calling thread and
+     * this is posted to the main thread with the normalized tag once they are committed.
+     */
     fun saveAll(
         tag: String?,
         phrase: String?,
         embeddings: List<FloatArray>,
-        featureBatches: List<List<FloatArray>> = emptyList()
+        featureBatches: List<List<FloatArray>> = emptyList(),
+        onSaved: ((tag: String, saved: Boolean) -> Unit)? = null
     ): String {
         val normalizedTag = sanitizeTag(tag) ?: UUID.randomUUID().toString()
         val storageKey = TEMPLATE_PREFIX + normalizedTag
@@ -71,15 +78,27 @@ class VoiceTemplateStore {
             ?.let { deserializeTemplates(normalizedTag, it) }
             .orEmpty()
         val incomingTemplates = trainVoiceTemplates(normalizedTag, phrase, embeddings, featureBatches)
-        if (incomingTemplates.isEmpty()) return normalizedTag
+        if (incomingTemplates.isEmpty()) {
+            onSaved?.let { callback ->
+                ExecutorHelper.executor.execute { callback(normalizedTag, true) }
+            }
+            return normalizedTag
+        }
         val templates = mergeVoiceTemplates(
             existing = existingTemplates,
             incoming = incomingTemplates,
             maxTemplates = MAX_TEMPLATES_PER_TAG
         )
-        prefs.edit()
-            .putString(storageKey, serializeTemplates(templates))
-            .apply()
+        val serialized = serializeTemplates(templates)
+        if (onSaved == null) {
+            prefs.edit()
+                .putString(storageKey, serialized)
+                .apply()
+        } else {
+            prefs.editAsync({ putString(storageKey, serialized) }) { saved ->
+                onSaved(normalizedTag, saved)
+            }
+        }
         return normalizedTag
     }
 
@@ -0,0 +1,157 @@
+package dev.skomlach.biometric.compat.engine.internal.fingerprint.zk
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+/**
+ * Hands captured templates to a single consumer through two pooled buffers.
+ *
+ * At most one capture is in flight and one is pending. A capture that arrives while another
+ * one is still pending replaces it, so when identification lags the consumer always picks up
+ * the newest touch instead of working through a backlog.
+ */
+internal class ZkCapturePipeline(
+    private val bufferSize: Int,
+    private val schedule: (Runnable) -> Boolean,
+    private val process: (ByteArray) -> Unit
+) {
+    private val lock = Any()
+    private val pool = ArrayDeque<ByteArray>(2)
+    private var pending: ByteArray? = null
+    private var drainScheduled = false
+
+    @Volatile
+    var droppedCaptures = 0
+        private set
+
+    private val drain = Runnable {
+        val buffer = synchronized(lock) {
+            drainScheduled = false
+            pending.also { pending = null }
+        } ?: return@Runnable
+        try {
+            process(buffer)
+        } finally {
+            synchronized(lock) { pool.addLast(buffer) }
+        }
+    }
+
+    init {
+        repeat(2) { pool.addLast(ByteArray(bufferSize)) }
+    }
+
+    fun offer(template: ByteArray): Boolean {
+        if (template.size > bufferSize) return false
+        synchronized(lock) {
+            val buffer = pending?.also { droppedCaptures++ }
+                ?: pool.removeFirstOrNull()
+                ?: return false
+            System.arraycopy(template, 0, buffer, 0, template.size)
+            buffer.fill(0, template.size, bufferSize)
+            pending = buffer
+            if (drainScheduled) return true
+            drainScheduled = true
+        }
+        if (!schedule(drain)) {
+            synchronized(lock) {
+                drainScheduled = false
+                pending?.let { pool.addLast(it) }
+                pending = null
+            }
+            return false
+        }
+        return true
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            pending?.let { pool.addLast(it) }
+            pending = null
+            droppedCaptures = 0
+        }
+    }
+}
+
+/**
+ * Reusable output buffer of `ZKFingerService.identify`, parsed in place.
+ *
+ * The engine writes `id\tscore` followed by a NUL terminator.
+ */
+internal class ZkIdentifyResult(size: Int) {
+    val buffer = ByteArray(size)
+
+    private var idStart = 0
+    private var idEnd = 0
+
+    var score = 0
+        private set
+
+    fun reset() {
+        buffer.fill(0)
+        idStart = 0
+        idEnd = 0
+        score = 0
+    }
+
+    fun parse(fallbackScore: Int): Boolean {
+        var end = 0
+        while (end < buffer.size && buffer[end] != 0.toByte()) end++
+        var start = 0
+        while (start < end && isBlank(buffer[start])) start++
+        var tab = start
+        while (tab < end && buffer[tab] != '\t'.code.toByte()) tab++
+        var stop = tab
+        while (stop > start && isBlank(buffer[stop - 1])) stop--
+        idStart = start
+        idEnd = stop
+        score = if (tab < end) parseScore(tab + 1, end) ?: fallbackScore else fallbackScore
+        return idEnd > idStart
+    }
+
+    fun idEquals(other: String): Boolean {
+        val length = idEnd - idStart
+        if (length != other.length) {
+            //Multi-byte UTF-8 ids can still be equal, compare them decoded
+            return hasNonAscii() && id() == other
+        }
+        for (i in 0 until length) {
+            val byte = buffer[idStart + i].toInt()
+            if (byte < 0) return id() == other
+            if (byte.toChar() != other[i]) return false
+        }
+        return true
+    }
+
+    fun id(): String = String(buffer, idStart, idEnd - idStart, UTF_8)
+
+    private fun hasNonAscii(): Boolean {
+        for (i in idStart until idEnd) {
+            if (buffer[i] < 0) return true
+        }
+        return false
+    }
+
+    private fun parseScore(from: Int, to: Int): Int? {
+        var start = from
+        var end = to
+        while (start < end && isBlank(buffer[start])) start++
+        while (end > start && isBlank(buffer[end - 1])) end--
+        if (start == end) return null
+        var negative = false
+        if (buffer[start] == '-'.code.toByte() || buffer[start] == '+'.code.toByte()) {
+            negative = buffer[start] == '-'.code.toByte()
+            start++
+            if (start == end) return null
+        }
+        var value = 0L
+        for (i in start until end) {
+            val digit = buffer[i] - '0'.code.toByte()
+            if (digit !in 0..9) return null
+            value = value * 10 + digit
+            if (value > Int.MAX_VALUE.toLong() + 1) return null
+        }
+        if (negative) value = -value
+        return if (value in Int.MIN_VALUE..Int.MAX_VALUE) value.toInt() else null
+    }
+
+    private fun isBlank(byte: Byte): Boolean = byte in 0..32
+}
@@ -16,7 +16,6 @@ import android.os.HandlerThread
 import android.os.Looper
 import android.util.Base64
 import androidx.core.content.ContextCompat
-import androidx.core.content.edit
 import com.zkteco.android.biometric.FingerprintExceptionListener
 import com.zkteco.android.biometric.core.device.ParameterHelper
 import com.zkteco.android.biometric.core.device.TransportType
@@ -31,10 +30,10 @@ import dev.skomlach.biometric.compat.custom.SoftwareBiometricAssuranceLevel
 import dev.skomlach.biometric.compat.custom.SoftwareBiometricSecurityProfile
 import dev.skomlach.biometric.zkfinger.R
 import dev.skomlach.common.logging.LogCat
+import dev.skomlach.common.misc.ExecutorHelper
 import dev.skomlach.common.storage.SharedPreferenceProvider.getProtectedPreferences
 import dev.skomlach.common.translate.LocalizationHelper
 import java.lang.ref.WeakReference
-import java.nio.charset.StandardCharsets.UTF_8
 import java.util.UUID
 import java.util.concurrent.atomic.AtomicBoolean
 
@@ -59,11 +58,9 @@ class ZkFingerUnlockManager(
         const val ENROLLMENT_TAG_KEY = "enrollment_tag"
 
         private const val TAG = "ZkFingerUnlockManager"
-        private const val STORAGE_NAME = "zkfinger_templates"
-        private const val TEMPLATE_PREFIX = "template_"
+        internal const val STORAGE_NAME = "zkfinger_templates"
         private const val TEMPLATE_SIZE = 2048
         private const val IDENTIFY_BUFFER_SIZE = 256
-        private const val USB_PERMISSION_POLL_INTERVAL_MS = 250L
         private const val USB_PERMISSION_TIMEOUT_MS = 30_000L
 
         @Volatile
@@ -71,6 +68,16 @@ class ZkFingerUnlockManager(
 
         private val activeSessionLock = Any()
 
+        //ZKFingerService is process-wide, so is the record of what it has loaded
+        private val templateSync: ZkTemplateSync by lazy {
+            ZkTemplateSync(
+                getProtectedPreferences(STORAGE_NAME, cacheDecodedValues = false),
+                ZkFingerServiceEngine,
+                decode = { runCatching { Base64.decode(it, Base64.NO_WRAP) }.getOrNull() },
+                encode = { Base64.encodeToString(it, Base64.NO_WRAP) }
+            )
+        }
+
         @Volatile
         private var currentActiveManager: WeakReference<ZkFingerUnlockManager>? = null
 
@@ -106,8 +113,9 @@ class ZkFingerUnlockManager(
     private val effectiveConfig: ZkFingerConfig
         get() = config
 
+    //Shares the store with templateSync, so it is opened the same way
     private val prefs by lazy {
-        getProtectedPreferences(STORAGE_NAME)
+        getProtectedPreferences(STORAGE_NAME, cacheDecodedValues = false)
     }
 
     private var backgroundThread: HandlerThread? = null
@@ -117,11 +125,21 @@ class ZkFingerUnlockManager(
     private var cancellationSignal: CancellationSignal? = null
     private var fingerprintSensor: FingerprintSensor? = null
     private var usbReceiver: BroadcastReceiver? = null
+    private var authenticationUsbListener: ZkUsbPreparationListener<UsbDevice>? = null
+    private val usbSession by lazy {
+        ZkUsbSession(AndroidUsbFacade(), USB_PERMISSION_TIMEOUT_MS)
+    }
     private var isEnrolling = false
     private var enrollmentTag = ""
     private var enrollmentSamples = mutableListOf<ByteArray>()
     private val isSessionActive = AtomicBoolean(false)
     private val isOpening = AtomicBoolean(false)
+    private val identifyResult = ZkIdentifyResult(IDENTIFY_BUFFER_SIZE)
+    private val capturePipeline = ZkCapturePipeline(
+        bufferSize = TEMPLATE_SIZE,
+        schedule = { task -> backgroundHandler?.post(task) == true },
+        process = { template -> processTemplate(template) }
+    )
 
     private val lockoutPolicy: LockoutPolicy
         get() = LockoutPolicy(
@@ -148,38 +166,34 @@ class ZkFingerUnlockManager(
         callback: PreparationCallback
     ) {
         try {
-            val device = findSupportedDevice()
-            if (device == null) {
-                callback.onPreparationError(
-                    CUSTOM_BIOMETRIC_ERROR_HW_NOT_PRESENT,
-                    localized(R.string.biometriccompat_zkfinger_help_sensor_not_found)
-                )
-                return
-            }
+            usbSession.prepare(object : ZkUsbPreparationListener<UsbDevice> {
+                override fun onReady(device: UsbDevice) {
+                    //Load templates while the prompt is shown so opening the sensor is cheap
+                    ExecutorHelper.startOnBackground { syncTemplateEngine() }
+                    callback.onPrepared()
+                }
 
-            if (hasUsbPermission(device)) {
-                callback.onPrepared()
-                return
-            }
+                override fun onNotFound() {
+                    callback.onPreparationError(
+                        CUSTOM_BIOMETRIC_ERROR_HW_NOT_PRESENT,
+                        localized(R.string.biometriccompat_zkfinger_help_sensor_not_found)
+                    )
+                }
 
-            requestUsbPermission(
-                device,
-                onGranted = {
-                    callback.onPrepared()
-                },
-                onDenied = {
+                override fun onDenied() {
                     callback.onPreparationError(
                         CUSTOM_BIOMETRIC_ERROR_NO_PERMISSIONS,
                         localized(R.string.biometriccompat_zkfinger_help_usb_permission_denied)
                     )
-                },
-                onDetached = {
+                }
+
+                override fun onDetached() {
                     callback.onPreparationError(
                         CUSTOM_BIOMETRIC_ERROR_HW_UNAVAILABLE,
                         localized(R.string.biometriccompat_zkfinger_help_sensor_unavailable)
                     )
                 }
-            )
+            })
         } catch (e: Throwable) {
             LogCat.logException(e)
             callback.onPreparationError(
@@ -204,12 +218,14 @@ class ZkFingerUnlockManager(
 
     override fun remove(extra: Bundle?) {
         val tag = extra?.getString(ENROLLMENT_TAG_KEY)
-        if (tag.isNullOrBlank()) {
-            getEnrolls().forEach { removeTemplate(it) }
-            runCatching { ZKFingerService.clear() }
-        } else {
-            removeTemplate(tag)
-            runCatching { ZKFingerService.del(tag) }
+        try {
+            if (tag.isNullOrBlank()) {
+                templateSync.removeAll()
+            } else {
+                templateSync.remove(tag)
+            }
+        } catch (e: Throwable) {
+            LogCat.logException(e)
         }
     }
 
@@ -221,11 +237,7 @@ class ZkFingerUnlockManager(
     }
 
     override fun getEnrolls(): Collection<String> {
-        return prefs.all.keys
-            .filterIsInstance<String>()
-            .filter { it.startsWith(TEMPLATE_PREFIX) }
-            .map { it.removePrefix(TEMPLATE_PREFIX) }
-            .sorted()
+        return templateSync.ids()
     }
 
     override fun authenticate(
@@ -295,41 +307,41 @@ class ZkFingerUnlockManager(
     private fun openWhenUsbPermissionReady() {
         if (!isSessionActive.get() || !isOpening.compareAndSet(false, true)) return
         try {
-            val device = findSupportedDevice()
-            if (device == null) {
-                onAuthenticationError(
-                    CUSTOM_BIOMETRIC_ERROR_HW_NOT_PRESENT,
-                    localized(R.string.biometriccompat_zkfinger_help_sensor_not_found)
-                )
-                stopAuthentication()
-                return
-            }
+            val listener = object : ZkUsbPreparationListener<UsbDevice> {
+                override fun onReady(device: UsbDevice) {
+                    authenticationUsbListener = null
+                    backgroundHandler?.post { openDevice(device) }
+                }
 
-            if (hasUsbPermission(device)) {
-                openDevice(device)
-                return
-            }
+                override fun onNotFound() {
+                    authenticationUsbListener = null
+                    onAuthenticationError(
+                        CUSTOM_BIOMETRIC_ERROR_HW_NOT_PRESENT,
+                        localized(R.string.biometriccompat_zkfinger_help_sensor_not_found)
+                    )
+                    stopAuthentication()
+                }
 
-            requestUsbPermission(
-                device,
-                onGranted = { grantedDevice ->
-                    backgroundHandler?.post { openDevice(grantedDevice) }
-                },
-                onDenied = {
+                override fun onDenied() {
+                    authenticationUsbListener = null
                     onAuthenticationError(
                         CUSTOM_BIOMETRIC_ERROR_NO_PERMISSIONS,
                         localized(R.string.biometriccompat_zkfinger_help_usb_permission_denied)
                     )
                     stopAuthentication()
-                },
-                onDetached = {
+                }
+
+                override fun onDetached() {
+                    authenticationUsbListener = null
                     onAuthenticationError(
                         CUSTOM_BIOMETRIC_ERROR_HW_UNAVAILABLE,
                         localized(R.string.biometriccompat_zkfinger_help_sensor_unavailable)
                     )
                     stopAuthentication()
                 }
-            )
+            }
+            authenticationUsbListener = listener
+            usbSession.prepare(listener)
         } catch (e: Throwable) {
             LogCat.logException(e)
             onAuthenticationError(
@@ -342,159 +354,93 @@ class ZkFingerUnlockManager(
         }
     }
 
-    private fun requestUsbPermission(
-        targetDevice: UsbDevice,
-        onGranted: (UsbDevice) -> Unit,
-        onDenied: () -> Unit,
-        onDetached: () -> Unit
-    ) {
-        val manager = usbManager() ?: run {
-            onDetached()
-            return
-        }
-        val completed = AtomicBoolean(false)
-        val completeGranted = { device: UsbDevice ->
-            if (completed.compareAndSet(false, true)) {
-                unregisterUsbReceiver()
-                onGranted(device)
-            }
-        }
-        val completeDenied = {
-            if (completed.compareAndSet(false, true)) {
-                unregisterUsbReceiver()
-                onDenied()
-            }
-        }
-        val completeDetached = {
-            if (completed.compareAndSet(false, true)) {
-                unregisterUsbReceiver()
-                onDetached()
-            }
+    private inner class AndroidUsbFacade : ZkUsbFacade<UsbDevice> {
+        private val timeoutHandler = Handler(Looper.getMainLooper())
+
+        override fun findDevice(): UsbDevice? = findSupportedDevice()
+
+        override fun isSameDevice(first: UsbDevice, second: UsbDevice): Boolean {
+            return first.vendorId == second.vendorId && first.productId == second.productId
         }
 
-        registerUsbReceiver(targetDevice, completeGranted, completeDenied, completeDetached)
-        val flags = PendingIntent.FLAG_UPDATE_CURRENT or
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                    // UsbManager adds EXTRA_DEVICE and EXTRA_PERMISSION_GRANTED to the
-                    // permission result. This PendingIntent must stay mutable for that
-                    // platform flow; the receiver still validates action and VID/PID.
-                    PendingIntent.FLAG_MUTABLE
-                } else {
-                    0
-                }
-        val permissionIntent = PendingIntent.getBroadcast(
-            context,
-            resolveZkPermissionRequestCode(
-                vendorId = targetDevice.vendorId,
-                productId = targetDevice.productId,
-                deviceIndex = effectiveConfig.deviceIndex
-            ),
-            Intent(resolveZkPermissionAction(context.packageName)).setPackage(context.packageName),
-            flags
-        )
-        manager.requestPermission(targetDevice, permissionIntent)
-        pollUsbPermissionResult(
-            targetDevice,
-            System.currentTimeMillis() + USB_PERMISSION_TIMEOUT_MS,
-            completed,
-            completeGranted,
-            completeDenied,
-            completeDetached
-        )
-    }
+        override fun hasPermission(device: UsbDevice): Boolean = hasUsbPermission(device)
 
-    private fun registerUsbReceiver(
-        targetDevice: UsbDevice,
-        onGranted: (UsbDevice) -> Unit,
-        onDenied: () -> Unit,
-        onDetached: () -> Unit
-    ) {
-        unregisterUsbReceiver()
-        val filter = IntentFilter().apply {
-            addAction(resolveZkPermissionAction(context.packageName))
-            addAction(UsbManager.ACTION_USB_DEVICE_DETACHED)
-        }
-        usbReceiver = object : BroadcastReceiver() {
-            override fun onReceive(receiverContext: Context, intent: Intent) {
-                val device = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                    intent.getParcelableExtra(UsbManager.EXTRA_DEVICE, UsbDevice::class.java)
-                } else {
-                    @Suppress("DEPRECATION")
-                    intent.getParcelableExtra(UsbManager.EXTRA_DEVICE)
-                }
-                if (device?.vendorId != targetDevice.vendorId ||
-                    device.productId != targetDevice.productId
-                ) {
-                    return
-                }
-                when (intent.action) {
-                    resolveZkPermissionAction(context.packageName) -> {
-                        if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                            onGranted(device)
-                        } else {
-                            onDenied()
-                        }
+        override fun requestPermission(device: UsbDevice) {
+            val manager = usbManager() ?: throw IllegalStateException("UsbManager unavailable")
+            val flags = PendingIntent.FLAG_UPDATE_CURRENT or
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                        // UsbManager adds EXTRA_DEVICE and EXTRA_PERMISSION_GRANTED to the
+                        // permission result. This PendingIntent must stay mutable for that
+                        // platform flow; the receiver still validates action and VID/PID.
+                        PendingIntent.FLAG_MUTABLE
+                    } else {
+                        0
+                    }
+            val permissionIntent = PendingIntent.getBroadcast(
+                context,
+                resolveZkPermissionRequestCode(
+                    vendorId = device.vendorId,
+                    productId = device.productId,
+                    deviceIndex = effectiveConfig.deviceIndex
+                ),
+                Intent(resolveZkPermissionAction(context.packageName)).setPackage(context.packageName),
+                flags
+            )
+            manager.requestPermission(device, permissionIntent)
+        }
+
+        override fun registerEvents(events: ZkUsbEvents<UsbDevice>) {
+            unregisterEvents()
+            val filter = IntentFilter().apply {
+                addAction(resolveZkPermissionAction(context.packageName))
+                addAction(UsbManager.ACTION_USB_DEVICE_DETACHED)
+            }
+            val receiver = object : BroadcastReceiver() {
+                override fun onReceive(receiverContext: Context, intent: Intent) {
+                    val device = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                        intent.getParcelableExtra(UsbManager.EXTRA_DEVICE, UsbDevice::class.java)
+                    } else {
+                        @Suppress("DEPRECATION")
+                        intent.getParcelableExtra(UsbManager.EXTRA_DEVICE)
                     }
+                    when (intent.action) {
+                        resolveZkPermissionAction(context.packageName) -> {
+                            events.onPermissionResult(
+                                device,
+                                intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)
+                            )
+                        }
 
-                    UsbManager.ACTION_USB_DEVICE_DETACHED -> {
-                        onDetached()
+                        UsbManager.ACTION_USB_DEVICE_DETACHED -> events.onDetached(device)
                     }
                 }
             }
+            usbReceiver = receiver
+            ContextCompat.registerReceiver(
+                context,
+                receiver,
+                filter,
+                ContextCompat.RECEIVER_NOT_EXPORTED
+            )
         }
-        ContextCompat.registerReceiver(
-            context,
-            usbReceiver,
-            filter,
-            ContextCompat.RECEIVER_NOT_EXPORTED
-        )
-    }
 
-    private fun pollUsbPermissionResult(
-        targetDevice: UsbDevice,
-        deadline: Long,
-        completed: AtomicBoolean,
-        onGranted: (UsbDevice) -> Unit,
-        onDenied: () -> Unit,
-        onDetached: () -> Unit
-    ) {
-        callbackHandler.postDelayed(
-            {
-                if (completed.get()) return@postDelayed
-                val device = findSupportedDevice()
-                if (device == null ||
-                    device.vendorId != targetDevice.vendorId ||
-                    device.productId != targetDevice.productId
-                ) {
-                    onDetached()
-                    return@postDelayed
-                }
-                if (hasUsbPermission(device)) {
-                    onGranted(device)
-                    return@postDelayed
-                }
-                if (System.currentTimeMillis() >= deadline) {
-                    onDenied()
-                    return@postDelayed
-                }
-                pollUsbPermissionResult(
-                    targetDevice,
-                    deadline,
-                    completed,
-                    onGranted,
-                    onDenied,
-                    onDetached
-                )
-            },
-            USB_PERMISSION_POLL_INTERVAL_MS
-        )
+        override fun unregisterEvents() {
+            unregisterUsbReceiver()
+        }
+
+        override fun schedule(delayMs: Long, task: Runnable) {
+            timeoutHandler.postDelayed(task, delayMs)
+        }
+
+        override fun cancel(task: Runnable) {
+            timeoutHandler.removeCallbacks(task)
+        }
     }
 
     private fun openDevice(device: UsbDevice) {
         if (!isSessionActive.get()) return
         try {
-            ensureTemplateEngine()
-            loadTemplatesIntoEngine()
+            syncTemplateEngine()
             val params = HashMap<String, Any>().apply {
                 put(ParameterHelper.PARAM_KEY_VID, device.vendorId)
                 put(ParameterHelper.PARAM_KEY_PID, device.productId)
@@ -528,8 +474,8 @@ class ZkFingerUnlockManager(
 
         override fun extractOK(template: ByteArray?) {
             if (!isSessionActive.get() || template == null) return
-            backgroundHandler?.post {
-                processTemplate(template.copyOf())
+            if (!capturePipeline.offer(template)) {
+                LogCat.logError(TAG, "capture dropped, size=${template.size}")
             }
         }
 
@@ -569,7 +515,7 @@ class ZkFingerUnlockManager(
 
     private fun processEnrollmentTemplate(template: ByteArray) {
         val duplicate = identify(template)
-        if (duplicate != null && duplicate.first != enrollmentTag) {
+        if (duplicate != null && !duplicate.idEquals(enrollmentTag)) {
             onAuthenticationError(
                 CUSTOM_BIOMETRIC_ERROR_UNABLE_TO_PROCESS,
                 localized(R.string.biometriccompat_zkfinger_help_already_registered)
@@ -618,8 +564,7 @@ class ZkFingerUnlockManager(
             return
         }
 
-        val saveRet = ZKFingerService.save(merged, enrollmentTag)
-        if (saveRet != 0) {
+        if (!templateSync.save(enrollmentTag, merged)) {
             onAuthenticationError(
                 CUSTOM_BIOMETRIC_ERROR_UNABLE_TO_PROCESS,
                 localized(R.string.biometriccompat_zkfinger_help_template_error)
@@ -628,7 +573,6 @@ class ZkFingerUnlockManager(
             return
         }
 
-        saveTemplate(enrollmentTag, merged)
         resetPermanentLockOut()
         onAuthenticationSucceeded()
         stopAuthentication()
@@ -653,55 +597,24 @@ class ZkFingerUnlockManager(
         }
     }
 
-    private fun identify(template: ByteArray): Pair<String, Int>? {
-        val buffer = ByteArray(IDENTIFY_BUFFER_SIZE)
-        val score = ZKFingerService.identify(template, buffer, effectiveConfig.matchThreshold, 1)
+    //Runs on the capture pipeline only, so the result buffer is never shared
+    private fun identify(template: ByteArray): ZkIdentifyResult? {
+        identifyResult.reset()
+        val score = ZKFingerService.identify(
+            template,
+            identifyResult.buffer,
+            effectiveConfig.matchThreshold,
+            1
+        )
         if (score <= 0) return null
-        val payload = String(buffer, UTF_8).substringBefore('\u0000').trim()
-        val parts = payload.split('\t')
-        val id = parts.firstOrNull()?.trim().orEmpty()
-        val parsedScore = parts.getOrNull(1)?.trim()?.toIntOrNull() ?: score
-        return if (id.isNotEmpty()) id to parsedScore else null
+        return identifyResult.takeIf { it.parse(score) }
     }
 
-    private fun ensureTemplateEngine() {
-        runCatching { ZKFingerService.init() }
+    private fun syncTemplateEngine() {
+        runCatching { templateSync.sync() }
             .onFailure { LogCat.logException(it) }
     }
 
-    private fun loadTemplatesIntoEngine() {
-        runCatching { ZKFingerService.clear() }
-        prefs.all.forEach { (key, value) ->
-            val id = key.removePrefix(TEMPLATE_PREFIX)
-            if (id == key) return@forEach
-            val encoded = value as? String ?: return@forEach
-            val template = runCatching {
-                Base64.decode(encoded, Base64.NO_WRAP)
-            }.getOrNull() ?: return@forEach
-            if (template.isNotEmpty()) {
-                val ret = ZKFingerService.save(template, id)
-                if (ret != 0) {
-                    LogCat.log(TAG, "Failed to load ZK template for $id: $ret")
-                }
-            }
-        }
-    }
-
-    private fun saveTemplate(id: String, template: ByteArray) {
-        prefs.edit {
-            putString(
-                TEMPLATE_PREFIX + id,
-                Base64.encodeToString(template, Base64.NO_WRAP)
-            )
-        }
-    }
-
-    private fun removeTemplate(id: String) {
-        prefs.edit {
-            remove(TEMPLATE_PREFIX + id)
-        }
-    }
-
     private fun checkLockoutState(): Int? {
         if (findSupportedDevice() == null) {
             return CUSTOM_BIOMETRIC_ERROR_LOCKOUT_PERMANENT
@@ -747,7 +660,8 @@ class ZkFingerUnlockManager(
 
     private fun stopAuthentication() {
         if (!isSessionActive.compareAndSet(true, false)) return
-        unregisterUsbReceiver()
+        authenticationUsbListener?.let { usbSession.cancel(it) }
+        authenticationUsbListener = null
         val sensor = fingerprintSensor
         fingerprintSensor = null
         try {
@@ -765,10 +679,10 @@ class ZkFingerUnlockManager(
         } catch (e: Throwable) {
             LogCat.logException(e)
         }
-        runCatching { ZKFingerService.free() }
         authCallback = null
         cancellationSignal = null
         enrollmentSamples.clear()
+        capturePipeline.clear()
         isEnrolling = false
         releaseSession(this)
         stopBackgroundThread()
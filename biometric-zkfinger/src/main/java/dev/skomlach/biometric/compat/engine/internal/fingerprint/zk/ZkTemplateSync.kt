@@ -0,0 +1,230 @@
+package dev.skomlach.biometric.compat.engine.internal.fingerprint.zk
+
+import android.content.SharedPreferences
+import com.zkteco.android.biometric.module.fingerprintreader.ZKFingerService
+import dev.skomlach.common.logging.LogCat
+
+internal const val ZK_TEMPLATE_PREFIX = "template_"
+internal const val ZK_TEMPLATE_INDEX_KEY = "templates_index"
+private const val ZK_TEMPLATE_INDEX_VERSION = "i1"
+
+/**
+ * Template operations of the matcher engine used by [ZkTemplateSync].
+ */
+internal interface ZkMatcherEngine {
+    fun init(): Int
+    fun save(template: ByteArray, id: String): Int
+    fun delete(id: String): Int
+    fun clear(): Int
+}
+
+internal object ZkFingerServiceEngine : ZkMatcherEngine {
+    override fun init(): Int = ZKFingerService.init()
+    override fun save(template: ByteArray, id: String): Int = ZKFingerService.save(template, id)
+    override fun delete(id: String): Int = ZKFingerService.del(id)
+    override fun clear(): Int = ZKFingerService.clear()
+}
+
+/**
+ * Enrolled ids with the store generation each of them was written at.
+ */
+internal class ZkTemplateIndex(
+    val generation: Long,
+    val entries: Map<String, Long>
+) {
+    fun with(id: String): ZkTemplateIndex {
+        val next = generation + 1
+        return ZkTemplateIndex(next, entries + (id to next))
+    }
+
+    fun without(id: String): ZkTemplateIndex {
+        if (!entries.containsKey(id)) return this
+        return ZkTemplateIndex(generation + 1, entries - id)
+    }
+
+    fun serialize(): String {
+        return "$ZK_TEMPLATE_INDEX_VERSION|$generation|" +
+                entries.entries.joinToString(",") { "${it.key}:${it.value}" }
+    }
+
+    companion object {
+        val EMPTY = ZkTemplateIndex(0L, emptyMap())
+
+        fun parse(raw: String?): ZkTemplateIndex? {
+            val parts = raw?.split('|', limit = 3) ?: return null
+            if (parts.size != 3 || parts[0] != ZK_TEMPLATE_INDEX_VERSION) return null
+            val generation = parts[1].toLongOrNull() ?: return null
+            val entries = LinkedHashMap<String, Long>()
+            if (parts[2].isNotEmpty()) {
+                for (entry in parts[2].split(',')) {
+                    val id = entry.substringBeforeLast(':')
+                    val entryGeneration = entry.substringAfterLast(':').toLongOrNull() ?: return null
+                    if (id.isEmpty() || id == entry) return null
+                    entries[id] = entryGeneration
+                }
+            }
+            return ZkTemplateIndex(generation, entries)
+        }
+    }
+}
+
+/**
+ * Keeps the matcher engine in step with the encrypted template store.
+ *
+ * The store keeps an index stamped with a generation that grows with every enrollment or
+ * removal. The engine outlives sensor sessions, so [sync] compares the stored index with the
+ * one already loaded and only decrypts and loads the templates that changed since.
+ */
+internal class ZkTemplateSync(
+    private val prefs: SharedPreferences,
+    private val engine: ZkMatcherEngine,
+    private val decode: (String) -> ByteArray?,
+    private val encode: (ByteArray) -> String
+) {
+    companion object {
+        private const val TAG = "ZkTemplateSync"
+    }
+
+    private val lock = Any()
+
+    @Volatile
+    private var stored: ZkTemplateIndex? = null
+
+    //What the engine currently holds, null until the engine is initialized
+    private var loaded: ZkTemplateIndex? = null
+
+    fun ids(): List<String> = readIndex().entries.keys.sorted()
+
+    fun sync() {
+        synchronized(lock) {
+            //One record is cheap to decrypt and picks up writes made behind this instance
+            val target = ZkTemplateIndex.parse(prefs.getString(ZK_TEMPLATE_INDEX_KEY, null))
+                ?.also { stored = it }
+                ?: readIndex()
+            val current = loaded ?: run {
+                engine.init()
+                engine.clear()
+                ZkTemplateIndex.EMPTY
+            }
+            if (loaded != null && current.generation == target.generation) return
+
+            for ((id, generation) in current.entries) {
+                if (target.entries[id] != generation) {
+                    engine.delete(id)
+                }
+            }
+            val applied = LinkedHashMap<String, Long>()
+            var added = 0
+            var failed = 0
+            for ((id, generation) in target.entries) {
+                if (current.entries[id] == generation) {
+                    applied[id] = generation
+                    continue
+                }
+                val template = prefs.getString(ZK_TEMPLATE_PREFIX + id, null)?.let(decode)
+                if (template == null || template.isEmpty()) continue
+                val ret = engine.save(template, id)
+                if (ret == 0) {
+                    applied[id] = generation
+                    added++
+                } else {
+                    LogCat.log(TAG, "Failed to load ZK template for $id: $ret")
+                    failed++
+                }
+            }
+            //After a failed load the engine stays behind the store, so the next sync retries it
+            val generation = if (failed == 0) target.generation else current.generation
+            loaded = ZkTemplateIndex(generation, applied)
+            LogCat.log(
+                TAG,
+                "engine at generation $generation, loaded $added templates, $failed failed"
+            )
+        }
+    }
+
+    fun save(id: String, template: ByteArray): Boolean {
+        synchronized(lock) {
+            val ret = engine.save(template, id)
+            if (ret != 0) {
+                LogCat.log(TAG, "Failed to save ZK template for $id: $ret")
+                return false
+            }
+            val previous = readIndex()
+            val updated = previous.with(id)
+            prefs.edit()
+                .putString(ZK_TEMPLATE_PREFIX + id, encode(template))
+                .putString(ZK_TEMPLATE_INDEX_KEY, updated.serialize())
+                .apply()
+            stored = updated
+            advanceLoaded(previous, updated, id, updated.entries[id])
+            return true
+        }
+    }
+
+    fun remove(id: String) {
+        synchronized(lock) {
+            val previous = readIndex()
+            val updated = previous.without(id)
+            prefs.edit()
+                .remove(ZK_TEMPLATE_PREFIX + id)
+                .putString(ZK_TEMPLATE_INDEX_KEY, updated.serialize())
+                .apply()
+            stored = updated
+            if (loaded != null) {
+                engine.delete(id)
+            }
+            advanceLoaded(previous, updated, id, null)
+        }
+    }
+
+    fun removeAll() {
+        synchronized(lock) {
+            val previous = readIndex()
+            val editor = prefs.edit()
+            previous.entries.keys.forEach { editor.remove(ZK_TEMPLATE_PREFIX + it) }
+            val updated = ZkTemplateIndex(previous.generation + 1, emptyMap())
+            editor.putString(ZK_TEMPLATE_INDEX_KEY, updated.serialize()).apply()
+            stored = updated
+            if (loaded != null) {
+                engine.clear()
+                loaded = updated
+            }
+        }
+    }
+
+    private fun advanceLoaded(
+        previous: ZkTemplateIndex,
+        updated: ZkTemplateIndex,
+        id: String,
+        generation: Long?
+    ) {
+        val current = loaded ?: return
+        //Only fast-forward when the engine was up to date, otherwise the next sync catches up
+        if (current.generation != previous.generation) return
+        val entries = if (generation == null) current.entries - id else current.entries + (id to generation)
+        loaded = ZkTemplateIndex(updated.generation, entries)
+    }
+
+    private fun readIndex(): ZkTemplateIndex {
+        stored?.let { return it }
+        synchronized(lock) {
+            stored?.let { return it }
+            val index = ZkTemplateIndex.parse(prefs.getString(ZK_TEMPLATE_INDEX_KEY, null))
+                ?: migrateLegacyTemplates()
+            stored = index
+            return index
+        }
+    }
+
+    private fun migrateLegacyTemplates(): ZkTemplateIndex {
+        val ids = prefs.all.keys
+            .filter { it.startsWith(ZK_TEMPLATE_PREFIX) }
+            .map { it.removePrefix(ZK_TEMPLATE_PREFIX) }
+            .filter { it.isNotEmpty() }
+            .sorted()
+        val index = ZkTemplateIndex(1L, ids.associateWith { 1L })
+        prefs.edit().putString(ZK_TEMPLATE_INDEX_KEY, index.serialize()).apply()
+        LogCat.log(TAG, "indexed ${ids.size} templates")
+        return index
+    }
+}
@@ -0,0 +1,139 @@
+package dev.skomlach.biometric.compat.engine.internal.fingerprint.zk
+
+import dev.skomlach.common.logging.LogCat
+
+/**
+ * Platform USB access used by [ZkUsbSession].
+ */
+internal interface ZkUsbFacade<D : Any> {
+    fun findDevice(): D?
+    fun isSameDevice(first: D, second: D): Boolean
+    fun hasPermission(device: D): Boolean
+    fun requestPermission(device: D)
+    fun registerEvents(events: ZkUsbEvents<D>)
+    fun unregisterEvents()
+    fun schedule(delayMs: Long, task: Runnable)
+    fun cancel(task: Runnable)
+}
+
+internal interface ZkUsbEvents<D : Any> {
+    fun onPermissionResult(device: D?, granted: Boolean)
+    fun onDetached(device: D?)
+}
+
+internal interface ZkUsbPreparationListener<D : Any> {
+    fun onReady(device: D)
+    fun onNotFound()
+    fun onDenied()
+    fun onDetached()
+}
+
+internal enum class ZkUsbSessionState {
+    IDLE,
+    AWAITING_PERMISSION
+}
+
+/**
+ * Waits for USB permission on broadcast events instead of polling.
+ *
+ * The device is enumerated once per request and kept while permission is pending. All callers
+ * that prepare concurrently share one permission request and one timeout, and every waiter is
+ * completed by the first permission result, detach event or timeout.
+ *
+ * Broadcasts are only received while permission is pending, so the device is not kept between
+ * requests: a detach in between would go unnoticed and leave a stale descriptor behind.
+ */
+internal class ZkUsbSession<D : Any>(
+    private val facade: ZkUsbFacade<D>,
+    private val timeoutMs: Long
+) {
+    private val lock = Any()
+    private val waiters = ArrayList<ZkUsbPreparationListener<D>>()
+    private var pendingDevice: D? = null
+
+    var state = ZkUsbSessionState.IDLE
+        private set
+
+    private val timeout = Runnable {
+        finish { it.onDenied() }
+    }
+
+    private val events = object : ZkUsbEvents<D> {
+        override fun onPermissionResult(device: D?, granted: Boolean) {
+            val target = synchronized(lock) { pendingDevice } ?: return
+            if (device == null || !facade.isSameDevice(device, target)) return
+            if (granted) {
+                finish { it.onReady(device) }
+            } else {
+                finish { it.onDenied() }
+            }
+        }
+
+        override fun onDetached(device: D?) {
+            val target = synchronized(lock) { pendingDevice } ?: return
+            if (device == null || !facade.isSameDevice(device, target)) return
+            finish { it.onDetached() }
+        }
+    }
+
+    fun prepare(listener: ZkUsbPreparationListener<D>) {
+        var ready: D? = null
+        var request: D? = null
+        synchronized(lock) {
+            if (state == ZkUsbSessionState.AWAITING_PERMISSION) {
+                waiters += listener
+                return
+            }
+            val device = facade.findDevice()
+            when {
+                device == null -> Unit
+                facade.hasPermission(device) -> ready = device
+                else -> {
+                    state = ZkUsbSessionState.AWAITING_PERMISSION
+                    pendingDevice = device
+                    waiters += listener
+                    facade.registerEvents(events)
+                    facade.schedule(timeoutMs, timeout)
+                    request = device
+                }
+            }
+        }
+        request?.let { device ->
+            try {
+                facade.requestPermission(device)
+            } catch (e: Throwable) {
+                LogCat.logException(e)
+                finish { it.onDetached() }
+            }
+            return
+        }
+        ready?.let { listener.onReady(it) } ?: listener.onNotFound()
+    }
+
+    fun cancel(listener: ZkUsbPreparationListener<D>) {
+        synchronized(lock) {
+            waiters.remove(listener)
+            if (waiters.isEmpty() && state == ZkUsbSessionState.AWAITING_PERMISSION) {
+                reset()
+            }
+        }
+    }
+
+    private fun finish(notify: (ZkUsbPreparationListener<D>) -> Unit) {
+        val completed = synchronized(lock) {
+            if (state != ZkUsbSessionState.AWAITING_PERMISSION) return
+            val current = waiters.toList()
+            waiters.clear()
+            reset()
+            current
+        }
+        completed.forEach(notify)
+    }
+
+    private fun reset() {
+        state = ZkUsbSessionState.IDLE
+        pendingDevice = null
+        facade.cancel(timeout)
+        facade.unregisterEvents()
+    }
+}
@@ -0,0 +1,174 @@
+package dev.skomlach.biometric.compat.engine.internal.fingerprint.zk
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ZkCapturePipelineTest {
+
+    /**
+     * Emits numbered templates like a sensor reporting one touch after another.
+     */
+    private class SimulatedCaptureSource(private val templateSize: Int) {
+        private var next = 0
+
+        fun touch(): ByteArray {
+            next++
+            return ByteArray(templateSize) { (next + it).toByte() }.also { it[0] = next.toByte() }
+        }
+    }
+
+    private class ManualScheduler {
+        val queue = ArrayDeque<Runnable>()
+
+        fun schedule(task: Runnable): Boolean {
+            queue.addLast(task)
+            return true
+        }
+
+        fun runAll() {
+            while (queue.isNotEmpty()) queue.removeFirst().run()
+        }
+    }
+
+    @Test
+    fun `lagging consumer only sees the newest pending capture`() {
+        val source = SimulatedCaptureSource(8)
+        val scheduler = ManualScheduler()
+        val processed = ArrayList<Int>()
+        val pipeline = ZkCapturePipeline(16, scheduler::schedule) { processed += it[0].toInt() }
+
+        repeat(5) { pipeline.offer(source.touch()) }
+
+        assertEquals(1, scheduler.queue.size)
+        scheduler.runAll()
+        assertEquals(listOf(5), processed)
+        assertEquals(4, pipeline.droppedCaptures)
+    }
+
+    @Test
+    fun `capture is copied and padded into a pooled buffer`() {
+        val scheduler = ManualScheduler()
+        var seen: ByteArray? = null
+        val buffers = Collections.newSetFromMap(java.util.IdentityHashMap<ByteArray, Boolean>())
+        val pipeline = ZkCapturePipeline(6, scheduler::schedule) {
+            seen = it.copyOf()
+            buffers += it
+        }
+
+        val template = byteArrayOf(1, 2, 3)
+        pipeline.offer(template)
+        template[0] = 9
+        scheduler.runAll()
+
+        assertArrayEquals(byteArrayOf(1, 2, 3, 0, 0, 0), seen)
+        repeat(10) {
+            pipeline.offer(byteArrayOf(it.toByte()))
+            scheduler.runAll()
+        }
+        assertTrue(buffers.size <= 2)
+        assertFalse(pipeline.offer(ByteArray(7)))
+    }
+
+    @Test
+    fun `capture arriving during processing is handled next`() {
+        val source = SimulatedCaptureSource(4)
+        val scheduler = ManualScheduler()
+        val processed = ArrayList<Int>()
+        lateinit var pipeline: ZkCapturePipeline
+        pipeline = ZkCapturePipeline(4, scheduler::schedule) {
+            processed += it[0].toInt()
+            if (processed.size == 1) {
+                pipeline.offer(source.touch())
+                pipeline.offer(source.touch())
+            }
+        }
+
+        pipeline.offer(source.touch())
+        scheduler.runAll()
+
+        assertEquals(listOf(1, 3), processed)
+    }
+
+    @Test
+    fun `rejected schedule releases the buffer`() {
+        val processed = ArrayList<Int>()
+        var accept = false
+        val scheduler = ManualScheduler()
+        val pipeline = ZkCapturePipeline(4, { accept && scheduler.schedule(it) }) {
+            processed += it[0].toInt()
+        }
+
+        assertFalse(pipeline.offer(byteArrayOf(1)))
+        accept = true
+        assertTrue(pipeline.offer(byteArrayOf(2)))
+        assertTrue(pipeline.offer(byteArrayOf(3)))
+        scheduler.runAll()
+
+        assertEquals(listOf(3), processed)
+    }
+
+    @Test
+    fun `rapid touches on a real thread keep ordering and finish with the newest`() {
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            val source = SimulatedCaptureSource(32)
+            val processed = Collections.synchronizedList(ArrayList<Int>())
+            val last = CountDownLatch(1)
+            val pipeline = ZkCapturePipeline(32, { executor.execute(it); true }) {
+                Thread.sleep(2)
+                processed += it[0].toInt()
+                if (it[0].toInt() == 100) last.countDown()
+            }
+
+            repeat(100) {
+                assertTrue(pipeline.offer(source.touch()))
+                Thread.sleep(0, 200_000)
+            }
+
+            assertTrue(last.await(5, TimeUnit.SECONDS))
+            assertEquals(processed.sorted(), processed)
+            assertEquals(100, processed.size + pipeline.droppedCaptures)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun `identify output is parsed in place`() {
+        val result = ZkIdentifyResult(32)
+        result.reset()
+        " zkfinger2\t 87 ".toByteArray().copyInto(result.buffer)
+
+        assertTrue(result.parse(10))
+        assertEquals("zkfinger2", result.id())
+        assertEquals(87, result.score)
+        assertTrue(result.idEquals("zkfinger2"))
+        assertFalse(result.idEquals("zkfinger20"))
+        assertFalse(result.idEquals("zkfinger3"))
+    }
+
+    @Test
+    fun `missing score falls back and empty id is rejected`() {
+        val result = ZkIdentifyResult(16)
+        result.reset()
+        "abc\tx".toByteArray().copyInto(result.buffer)
+        assertTrue(result.parse(42))
+        assertEquals(42, result.score)
+
+        result.reset()
+        "  \t".toByteArray().copyInto(result.buffer)
+        assertFalse(result.parse(1))
+
+        result.reset()
+        "café".toByteArray().copyInto(result.buffer)
+        assertTrue(result.parse(1))
+        assertTrue(result.idEquals("café"))
+    }
+}
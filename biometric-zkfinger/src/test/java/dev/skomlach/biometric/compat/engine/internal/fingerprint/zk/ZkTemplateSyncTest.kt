@@ -0,0 +1,282 @@
+package dev.skomlach.biometric.compat.engine.internal.fingerprint.zk
+
+import android.content.SharedPreferences
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ZkTemplateSyncTest {
+
+    @Test
+    fun `first sync loads every stored template`() {
+        val prefs = FakeSharedPreferences()
+        val engine = FakeEngine()
+        ZkTemplateSync(prefs, FakeEngine(), ::decode, ::encode).apply {
+            save("a", byteArrayOf(1))
+            save("b", byteArrayOf(2))
+        }
+
+        ZkTemplateSync(prefs, engine, ::decode, ::encode).sync()
+
+        assertEquals(setOf("a", "b"), engine.templates.keys)
+        assertEquals(1, engine.inits)
+    }
+
+    @Test
+    fun `unchanged generation skips decoding and engine calls`() {
+        val prefs = FakeSharedPreferences()
+        val engine = FakeEngine()
+        val sync = ZkTemplateSync(prefs, engine, ::decode, ::encode)
+        sync.save("a", byteArrayOf(1))
+        sync.sync()
+        val calls = engine.calls
+        val reads = prefs.templateReads
+
+        sync.sync()
+        sync.sync()
+
+        assertEquals(calls, engine.calls)
+        assertEquals(reads, prefs.templateReads)
+    }
+
+    @Test
+    fun `only changes made elsewhere are applied`() {
+        val prefs = FakeSharedPreferences()
+        val engine = FakeEngine()
+        val sync = ZkTemplateSync(prefs, engine, ::decode, ::encode)
+        sync.save("a", byteArrayOf(1))
+        sync.save("b", byteArrayOf(2))
+        sync.sync()
+
+        //Another writer replaces "b", adds "c" and drops "a"
+        ZkTemplateSync(prefs, FakeEngine(), ::decode, ::encode).apply {
+            save("b", byteArrayOf(3))
+            save("c", byteArrayOf(4))
+            remove("a")
+        }
+        val reads = prefs.templateReads
+        val calls = engine.calls
+        sync.sync()
+
+        assertEquals(setOf("b", "c"), engine.templates.keys)
+        assertEquals(listOf(3.toByte()), engine.templates["b"]!!.toList())
+        assertEquals(reads + 2, prefs.templateReads)
+        //delete "a", replace "b" (delete + save), save "c"
+        assertEquals(calls + 4, engine.calls)
+    }
+
+    @Test
+    fun `saving and removing keep a loaded engine current`() {
+        val prefs = FakeSharedPreferences()
+        val engine = FakeEngine()
+        val sync = ZkTemplateSync(prefs, engine, ::decode, ::encode)
+        sync.sync()
+
+        sync.save("a", byteArrayOf(1))
+        sync.save("b", byteArrayOf(2))
+        sync.remove("a")
+        val reads = prefs.templateReads
+        sync.sync()
+
+        assertEquals(setOf("b"), engine.templates.keys)
+        assertEquals(reads, prefs.templateReads)
+        assertEquals(listOf("b"), sync.ids())
+
+        sync.removeAll()
+        assertTrue(engine.templates.isEmpty())
+        assertTrue(sync.ids().isEmpty())
+        assertNull(prefs.getString(ZK_TEMPLATE_PREFIX + "b", null))
+    }
+
+    @Test
+    fun `templates the engine failed to load are retried on the next sync`() {
+        val prefs = FakeSharedPreferences()
+        ZkTemplateSync(prefs, FakeEngine(), ::decode, ::encode).apply {
+            save("a", byteArrayOf(1))
+            save("b", byteArrayOf(2))
+        }
+        val engine = FakeEngine().apply { failures["b"] = 1 }
+        val sync = ZkTemplateSync(prefs, engine, ::decode, ::encode)
+
+        sync.sync()
+        assertEquals(setOf("a"), engine.templates.keys)
+
+        val reads = prefs.templateReads
+        sync.sync()
+
+        assertEquals(setOf("a", "b"), engine.templates.keys)
+        assertEquals(reads + 1, prefs.templateReads)
+
+        val calls = engine.calls
+        sync.sync()
+        assertEquals(calls, engine.calls)
+    }
+
+    @Test
+    fun `legacy templates are indexed once`() {
+        val prefs = FakeSharedPreferences()
+        prefs.edit()
+            .putString(ZK_TEMPLATE_PREFIX + "old1", encode(byteArrayOf(7)))
+            .putString("failed_attempts", "1")
+            .apply()
+        val engine = FakeEngine()
+        val sync = ZkTemplateSync(prefs, engine, ::decode, ::encode)
+
+        assertEquals(listOf("old1"), sync.ids())
+        assertNotNull(ZkTemplateIndex.parse(prefs.getString(ZK_TEMPLATE_INDEX_KEY, null)))
+        sync.sync()
+        assertEquals(setOf("old1"), engine.templates.keys)
+    }
+
+    @Test
+    fun `index round trips and rejects malformed input`() {
+        val index = ZkTemplateIndex.EMPTY.with("a").with("b").without("a")
+
+        val parsed = ZkTemplateIndex.parse(index.serialize())
+
+        assertEquals(3L, parsed?.generation)
+        assertEquals(mapOf("b" to 2L), parsed?.entries)
+        assertNull(ZkTemplateIndex.parse("i1|x|"))
+        assertNull(ZkTemplateIndex.parse("i1|1|a"))
+        assertNull(ZkTemplateIndex.parse("a,b"))
+    }
+
+    private fun encode(bytes: ByteArray): String = bytes.joinToString(",")
+
+    private fun decode(value: String): ByteArray? =
+        value.split(',').map { it.toByte() }.toByteArray()
+
+    private class FakeEngine : ZkMatcherEngine {
+        val templates = LinkedHashMap<String, ByteArray>()
+        val failures = HashMap<String, Int>()
+        var inits = 0
+        var calls = 0
+
+        override fun init(): Int {
+            inits++
+            calls++
+            return 0
+        }
+
+        override fun save(template: ByteArray, id: String): Int {
+            calls++
+            val remaining = failures[id] ?: 0
+            if (remaining > 0) {
+                failures[id] = remaining - 1
+                return -1
+            }
+            templates[id] = template
+            return 0
+        }
+
+        override fun delete(id: String): Int {
+            calls++
+            return if (templates.remove(id) != null) 0 else -1
+        }
+
+        override fun clear(): Int {
+            calls++
+            templates.clear()
+            return 0
+        }
+    }
+
+    private class FakeSharedPreferences : SharedPreferences {
+        private val data = LinkedHashMap<String, Any>()
+        var templateReads = 0
+
+        override fun getAll(): MutableMap<String, *> = LinkedHashMap(data)
+
+        override fun getString(key: String?, defValue: String?): String? {
+            if (key?.startsWith(ZK_TEMPLATE_PREFIX) == true) templateReads++
+            return data[key] as? String ?: defValue
+        }
+
+        override fun getStringSet(key: String?, defValues: MutableSet<String>?): MutableSet<String>? =
+            @Suppress("UNCHECKED_CAST")
+            ((data[key] as? Set<String>)?.toMutableSet()) ?: defValues
+
+        override fun getInt(key: String?, defValue: Int): Int = data[key] as? Int ?: defValue
+
+        override fun getLong(key: String?, defValue: Long): Long = data[key] as? Long ?: defValue
+
+        override fun getFloat(key: String?, defValue: Float): Float = data[key] as? Float ?: defValue
+
+        override fun getBoolean(key: String?, defValue: Boolean): Boolean =
+            data[key] as? Boolean ?: defValue
+
+        override fun contains(key: String?): Boolean = data.containsKey(key)
+
+        override fun edit(): SharedPreferences.Editor = Editor(data)
+
+        override fun registerOnSharedPreferenceChangeListener(
+            listener: SharedPreferences.OnSharedPreferenceChangeListener?
+        ) = Unit
+
+        override fun unregisterOnSharedPreferenceChangeListener(
+            listener: SharedPreferences.OnSharedPreferenceChangeListener?
+        ) = Unit
+
+        private class Editor(
+            private val target: LinkedHashMap<String, Any>
+        ) : SharedPreferences.Editor {
+            private val updates = LinkedHashMap<String, Any?>()
+            private var clearRequested = false
+
+            override fun putString(key: String?, value: String?): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putStringSet(
+                key: String?,
+                values: MutableSet<String>?
+            ): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = values?.toSet()
+            }
+
+            override fun putInt(key: String?, value: Int): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putLong(key: String?, value: Long): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putFloat(key: String?, value: Float): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putBoolean(key: String?, value: Boolean): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun remove(key: String?): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = null
+            }
+
+            override fun clear(): SharedPreferences.Editor = apply {
+                clearRequested = true
+            }
+
+            override fun commit(): Boolean {
+                apply()
+                return true
+            }
+
+            override fun apply() {
+                if (clearRequested) {
+                    target.clear()
+                }
+                updates.forEach { (key, value) ->
+                    if (value == null) {
+                        target.remove(key)
+                    } else {
+                        target[key] = value
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package dev.skomlach.biometric.compat.engine.internal.fingerprint.zk
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ZkUsbSessionTest {
+
+    private data class Device(val vendorId: Int, val productId: Int)
+
+    private class FakeUsbFacade : ZkUsbFacade<Device> {
+        var attached: Device? = Device(1, 2)
+        val granted = HashSet<Device>()
+        var enumerations = 0
+        var permissionRequests = 0
+        var events: ZkUsbEvents<Device>? = null
+        var scheduled: Runnable? = null
+
+        override fun findDevice(): Device? {
+            enumerations++
+            return attached
+        }
+
+        override fun isSameDevice(first: Device, second: Device): Boolean = first == second
+
+        override fun hasPermission(device: Device): Boolean = granted.contains(device)
+
+        override fun requestPermission(device: Device) {
+            permissionRequests++
+        }
+
+        override fun registerEvents(events: ZkUsbEvents<Device>) {
+            this.events = events
+        }
+
+        override fun unregisterEvents() {
+            events = null
+        }
+
+        override fun schedule(delayMs: Long, task: Runnable) {
+            scheduled = task
+        }
+
+        override fun cancel(task: Runnable) {
+            if (scheduled === task) scheduled = null
+        }
+    }
+
+    private class RecordingListener : ZkUsbPreparationListener<Device> {
+        val outcomes = ArrayList<String>()
+
+        override fun onReady(device: Device) {
+            outcomes += "ready"
+        }
+
+        override fun onNotFound() {
+            outcomes += "not_found"
+        }
+
+        override fun onDenied() {
+            outcomes += "denied"
+        }
+
+        override fun onDetached() {
+            outcomes += "detached"
+        }
+    }
+
+    @Test
+    fun `granted device is ready without registering for events`() {
+        val facade = FakeUsbFacade().apply { granted += Device(1, 2) }
+        val listener = RecordingListener()
+
+        ZkUsbSession(facade, 1_000L).prepare(listener)
+
+        assertEquals(listOf("ready"), listener.outcomes)
+        assertNull(facade.events)
+        assertEquals(0, facade.permissionRequests)
+    }
+
+    @Test
+    fun `missing device is reported`() {
+        val facade = FakeUsbFacade().apply { attached = null }
+        val listener = RecordingListener()
+
+        ZkUsbSession(facade, 1_000L).prepare(listener)
+
+        assertEquals(listOf("not_found"), listener.outcomes)
+    }
+
+    @Test
+    fun `permission broadcast completes every waiter at once`() {
+        val facade = FakeUsbFacade()
+        val session = ZkUsbSession(facade, 1_000L)
+        val first = RecordingListener()
+        val second = RecordingListener()
+
+        session.prepare(first)
+        session.prepare(second)
+
+        assertEquals(ZkUsbSessionState.AWAITING_PERMISSION, session.state)
+        assertEquals(1, facade.enumerations)
+        assertEquals(1, facade.permissionRequests)
+
+        facade.events!!.onPermissionResult(Device(9, 9), true)
+        assertTrue(first.outcomes.isEmpty())
+
+        facade.events!!.onPermissionResult(Device(1, 2), true)
+
+        assertEquals(listOf("ready"), first.outcomes)
+        assertEquals(listOf("ready"), second.outcomes)
+        assertEquals(ZkUsbSessionState.IDLE, session.state)
+        assertNull(facade.events)
+        assertNull(facade.scheduled)
+    }
+
+    @Test
+    fun `denial detach and timeout each end the wait once`() {
+        val facade = FakeUsbFacade()
+        val session = ZkUsbSession(facade, 1_000L)
+
+        val denied = RecordingListener()
+        session.prepare(denied)
+        val events = facade.events!!
+        events.onPermissionResult(Device(1, 2), false)
+        events.onPermissionResult(Device(1, 2), true)
+        assertEquals(listOf("denied"), denied.outcomes)
+
+        val detached = RecordingListener()
+        session.prepare(detached)
+        facade.events!!.onDetached(Device(1, 2))
+        assertEquals(listOf("detached"), detached.outcomes)
+
+        val timedOut = RecordingListener()
+        session.prepare(timedOut)
+        facade.scheduled!!.run()
+        assertEquals(listOf("denied"), timedOut.outcomes)
+        assertEquals(3, facade.enumerations)
+    }
+
+    @Test
+    fun `cancelling the last waiter stops listening`() {
+        val facade = FakeUsbFacade()
+        val session = ZkUsbSession(facade, 1_000L)
+        val listener = RecordingListener()
+
+        session.prepare(listener)
+        session.cancel(listener)
+
+        assertEquals(ZkUsbSessionState.IDLE, session.state)
+        assertNull(facade.events)
+        assertNull(facade.scheduled)
+        assertTrue(listener.outcomes.isEmpty())
+    }
+}
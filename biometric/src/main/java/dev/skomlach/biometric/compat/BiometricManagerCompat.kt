@@ -125,7 +125,7 @@ object BiometricManagerCompat {
             ).isBiometricEnrollChanged || HardwareAccessImpl.getInstance(
                 api.withApi(BiometricApi.BIOMETRIC_API)
             ).isBiometricEnrollChanged
-        BiometricLoggerImpl.d("BiometricManagerCompat.isBiometricEnrollChanged for $api return $result")
+        BiometricLoggerImpl.d { "BiometricManagerCompat.isBiometricEnrollChanged for $api return $result" }
         preferences.edit {
             putBoolean(api.stateCacheKey("isBiometricEnrollChanged"), result)
         }
@@ -191,7 +191,7 @@ object BiometricManagerCompat {
         ignoreCameraCheck: Boolean = true
     ): Boolean {
         val result = getAuthSnapshot(api, ignoreCameraCheck).state.permanentlyLocked
-        BiometricLoggerImpl.d("BiometricManagerCompat.isBiometricSensorPermanentlyLocked for $api return $result")
+        BiometricLoggerImpl.d { "BiometricManagerCompat.isBiometricSensorPermanentlyLocked for $api return $result" }
         return result
     }
 
@@ -200,7 +200,7 @@ object BiometricManagerCompat {
         api: BiometricAuthRequest = BiometricAuthRequest.default()
     ): Boolean {
         val result = getAuthSnapshot(api).state.hardwareDetected
-        BiometricLoggerImpl.d("BiometricManagerCompat.isHardwareDetected for $api return $result")
+        BiometricLoggerImpl.d { "BiometricManagerCompat.isHardwareDetected for $api return $result" }
         return result
     }
 
@@ -209,7 +209,7 @@ object BiometricManagerCompat {
         api: BiometricAuthRequest = BiometricAuthRequest.default()
     ): Boolean {
         val result = getAuthSnapshot(api).state.enrolled
-        BiometricLoggerImpl.d("BiometricManagerCompat.hasEnrolled for $api return $result")
+        BiometricLoggerImpl.d { "BiometricManagerCompat.hasEnrolled for $api return $result" }
         return result
     }
 
@@ -219,7 +219,7 @@ object BiometricManagerCompat {
         ignoreCameraCheck: Boolean = true
     ): Boolean {
         val result = getAuthSnapshot(api, ignoreCameraCheck).state.lockedOut
-        BiometricLoggerImpl.d("BiometricManagerCompat.isLockOut for $api return $result")
+        BiometricLoggerImpl.d { "BiometricManagerCompat.isLockOut for $api return $result" }
         return result
     }
 
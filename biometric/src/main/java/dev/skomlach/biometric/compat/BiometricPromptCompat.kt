@@ -71,6 +71,7 @@ import dev.skomlach.common.contextprovider.AndroidContext
 import dev.skomlach.common.device.DeviceInfo
 import dev.skomlach.common.logging.LogCat
 import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.misc.TaskLane
 import dev.skomlach.common.misc.Utils
 import dev.skomlach.common.multiwindow.MultiWindowSupport
 import dev.skomlach.common.permissions.PermissionUtils
@@ -266,7 +267,7 @@ class BiometricPromptCompat private constructor(private val builder: Builder) {
         private fun scheduleLocalizationPrefetch(stringIds: Array<Int>) {
             synchronized(prefetchLock) {
                 prefetchJob?.cancel()
-                prefetchJob = ExecutorHelper.scope.launch {
+                prefetchJob = ExecutorHelper.scope.launch(ExecutorHelper.dispatcher(TaskLane.PREFETCH)) {
                     try {
                         LocalizationHelper.prefetch(
                             AndroidContext.appContext,
@@ -61,6 +61,16 @@ abstract class AbstractSoftwareBiometricManager {
         private const val KEY_FAILED_ATTEMPTS = "failed_attempts"
         private const val KEY_LOCKOUT_END_TIMESTAMP = "lockout_end_timestamp"
         private const val KEY_PERMANENT_LOCKOUT_COUNT = "permanent_lockout_count"
+
+        /**
+         * Keys the lockout helpers read on every prompt, for warm-up declarations of lockout stores.
+         */
+        @JvmField
+        val LOCKOUT_STATE_KEYS: Set<String> = setOf(
+            KEY_FAILED_ATTEMPTS,
+            KEY_LOCKOUT_END_TIMESTAMP,
+            KEY_PERMANENT_LOCKOUT_COUNT
+        )
     }
 
     open val priority: Int = PRIORITY_BELOW_SYSTEM_HARDWARE
@@ -63,6 +63,7 @@ import dev.skomlach.biometric.compat.utils.logging.BiometricLoggerImpl.d
 import dev.skomlach.biometric.compat.utils.logging.BiometricLoggerImpl.e
 import dev.skomlach.common.contextprovider.AndroidContext
 import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.misc.TaskLane
 import java.lang.ref.SoftReference
 import java.lang.ref.WeakReference
 import java.util.Collections
@@ -325,7 +326,7 @@ object LegacyBiometric {
     }
 
     private fun initModule(method: BiometricMethod, initListener: LegacyBiometricInitListener) {
-        ExecutorHelper.startOnBackground {
+        ExecutorHelper.startOnBackground(TaskLane.CRITICAL) {
             try {
                 when (method) {
                     BiometricMethod.DUMMY_BIOMETRIC -> DummyBiometricModule(initListener)
@@ -47,12 +47,11 @@ import dev.skomlach.biometric.compat.utils.DialogMainColor
 import dev.skomlach.biometric.compat.utils.logging.BiometricLoggerImpl
 import dev.skomlach.biometric.compat.utils.logging.BiometricLoggerImpl.e
 import dev.skomlach.biometric.compat.utils.themes.DarkLightThemes
+import dev.skomlach.common.blur.BlurController
 import dev.skomlach.common.blur.BlurUtil
 import dev.skomlach.common.blur.DEFAULT_RADIUS
-import dev.skomlach.common.misc.ExecutorHelper
 import dev.skomlach.common.misc.Utils
 import dev.skomlach.common.statusbar.ColorUtil
-import java.util.concurrent.atomic.AtomicBoolean
 import dev.skomlach.common.permissions.PermissionUtils
 class WindowForegroundBlurring(
     private val compatBuilder: BiometricPromptCompat.Builder,
@@ -66,7 +65,7 @@ class WindowForegroundBlurring(
 
     @Volatile
     private var isBlurViewAttachedToHost = false
-    private var drawingInProgress = AtomicBoolean(false)
+    private var blurController: BlurController? = null
     private var biometricsLayout: View? = null
     private var defaultColor = Color.TRANSPARENT
     private val lifecycleEventObserver = object :
@@ -102,6 +101,7 @@ class WindowForegroundBlurring(
                 }
             }
         }
+    //Fires every frame, the controller only recaptures when the content actually changed
     private val onDrawListener = ViewTreeObserver.OnPreDrawListener {
         updateBackground()
         true
@@ -124,6 +124,17 @@ class WindowForegroundBlurring(
                 contentView = v
             }
         }
+        blurController = contentView?.let {
+            BlurController(
+                it,
+                BlurUtil.OnPublishListener { originalBitmap, blurredBitmap ->
+                    if (!isBlurViewAttachedToHost) return@OnPublishListener
+                    setDrawable(blurredBitmap)
+                    updateDefaultColor(originalBitmap)
+                },
+                context.resources.getInteger(android.R.integer.config_shortAnimTime).toLong()
+            )
+        }
 
         @SuppressLint("ClickableViewAccessibility")
         v = LayoutInflater.from(parentView.context)
@@ -156,32 +167,10 @@ class WindowForegroundBlurring(
     private fun updateBackground() {
         if (!isBlurViewAttachedToHost)
             return
-        if (!drawingInProgress.get()) {
-            drawingInProgress.set(true)
-
-            BiometricLoggerImpl.d("${this.javaClass.name}.updateBackground")
-            try {
-                contentView?.let {
-                    BlurUtil.takeScreenshotAndBlur(it) { originalBitmap, blurredBitmap ->
-                        if (!isBlurViewAttachedToHost) {
-                            ExecutorHelper.postDelayed(
-                                {
-                                    drawingInProgress.set(false)
-                                },
-                                context.resources.getInteger(android.R.integer.config_shortAnimTime)
-                                    .toLong()
-                            )
-                            return@takeScreenshotAndBlur
-                        }
-                        setDrawable(blurredBitmap)
-                        updateDefaultColor(originalBitmap)
-                    }
-                } ?: ExecutorHelper.postDelayed({
-                    drawingInProgress.set(false)
-                }, context.resources.getInteger(android.R.integer.config_shortAnimTime).toLong())
-            } catch (e: Throwable) {
-                BiometricLoggerImpl.e(e)
-            }
+        try {
+            blurController?.invalidate()
+        } catch (e: Throwable) {
+            BiometricLoggerImpl.e(e)
         }
     }
 
@@ -204,9 +193,6 @@ class WindowForegroundBlurring(
         } catch (e: Throwable) {
             BiometricLoggerImpl.e(e)
         }
-        ExecutorHelper.postDelayed({
-            drawingInProgress.set(false)
-        }, context.resources.getInteger(android.R.integer.config_shortAnimTime).toLong())
     }
 
     fun setupListeners() {
@@ -239,6 +225,7 @@ class WindowForegroundBlurring(
         isBlurViewAttachedToHost = false
         try {
             parentView.viewTreeObserver.removeOnPreDrawListener(onDrawListener)
+            blurController?.reset()
             parentView.findViewTreeLifecycleOwner()?.lifecycle?.removeObserver(
                 lifecycleEventObserver
             )
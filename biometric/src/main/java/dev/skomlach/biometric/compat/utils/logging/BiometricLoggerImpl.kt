@@ -40,4 +40,15 @@ object BiometricLoggerImpl {
     fun d(vararg msgs: Any?) {
         if (DEBUG) Log.d("BiometricLogging", listOf(*msgs).toString())
     }
+
+    /**
+     * Lazy form for hot paths: [message] is evaluated only when [DEBUG] is on.
+     */
+    inline fun d(message: () -> Any?) {
+        if (DEBUG) Log.d("BiometricLogging", "[${message()}]")
+    }
+
+    inline fun e(message: () -> Any?) {
+        if (DEBUG) Log.e("BiometricLogging", "[${message()}]")
+    }
 }
\ No newline at end of file
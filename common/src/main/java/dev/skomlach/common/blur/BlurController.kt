@@ -0,0 +1,102 @@
+package dev.skomlach.common.blur
+
+import android.graphics.Bitmap
+import android.os.SystemClock
+import android.view.View
+import dev.skomlach.common.logging.LogCat
+import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.misc.TaskLane
+
+/**
+ * Keeps a blurred copy of [view] up to date without paying for a capture and blur per frame.
+ *
+ * [invalidate] may be called on every pre-draw: updates are throttled to one per
+ * [minIntervalMs], a capture whose content matches the previous one is dropped before the blur,
+ * and the capture and blur bitmaps are reused between updates. The original bitmap handed to
+ * [listener] is only valid during the callback.
+ */
+class BlurController @JvmOverloads constructor(
+    private val view: View,
+    private val listener: BlurUtil.OnPublishListener,
+    minIntervalMs: Long = DEFAULT_MIN_INTERVAL_MS
+) {
+    companion object {
+        const val DEFAULT_MIN_INTERVAL_MS = 250L
+        private const val FINGERPRINT_GRID = 24
+    }
+
+    private val throttle = BlurUpdateThrottle(minIntervalMs)
+    private val update = Runnable { runUpdate() }
+    private var capture: Bitmap? = null
+
+    //Blurred results alternate between two buffers, the one on screen is never written
+    private val outputs = arrayOfNulls<Bitmap>(2)
+    private var nextOutput = 0
+    private var lastFingerprint: Long? = null
+    private var generation = 0
+
+    fun invalidate() {
+        throttle.invalidate(SystemClock.uptimeMillis())?.let { schedule(it) }
+    }
+
+    /**
+     * Drops pending work, reusable buffers and the last fingerprint; results of an update still
+     * running are discarded.
+     */
+    fun reset() {
+        generation++
+        ExecutorHelper.removeCallbacks(update)
+        throttle.reset()
+        capture = null
+        outputs.fill(null)
+        lastFingerprint = null
+    }
+
+    private fun schedule(delayMs: Long) {
+        if (delayMs == 0L) ExecutorHelper.post(update) else ExecutorHelper.postDelayed(update, delayMs)
+    }
+
+    private fun runUpdate() {
+        if (!throttle.start(SystemClock.uptimeMillis())) return
+        val bitmap = BlurUtil.captureInto(view, capture)
+        if (bitmap == null) {
+            finish()
+            return
+        }
+        capture = bitmap
+        val fingerprint = sampledFingerprint(bitmap.width, bitmap.height, FINGERPRINT_GRID) { x, y ->
+            bitmap.getPixel(x, y)
+        }
+        if (fingerprint == lastFingerprint) {
+            finish()
+            return
+        }
+        lastFingerprint = fingerprint
+        val started = generation
+        val slot = nextOutput
+        val output = outputs[slot]
+        ExecutorHelper.startOnBackground(TaskLane.COMPUTE) {
+            try {
+                BlurUtil.blur(view.context, bitmap, output) { original, blurred ->
+                    if (started != generation) return@blur
+                    if (blurred != null) {
+                        outputs[slot] = blurred
+                        nextOutput = 1 - slot
+                    }
+                    try {
+                        listener.onBlurredScreenshot(original, blurred)
+                    } finally {
+                        finish()
+                    }
+                }
+            } catch (e: Throwable) {
+                LogCat.logException(e, "BlurController")
+                ExecutorHelper.post { if (started == generation) finish() }
+            }
+        }
+    }
+
+    private fun finish() {
+        throttle.finish(SystemClock.uptimeMillis())?.let { schedule(it) }
+    }
+}
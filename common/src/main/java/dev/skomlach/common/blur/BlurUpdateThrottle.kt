@@ -0,0 +1,81 @@
+package dev.skomlach.common.blur
+
+/**
+ * Decides when a blurred background may be refreshed. Changes arriving while an update runs, or
+ * sooner than [minIntervalMs] after the last one started, collapse into a single trailing update.
+ *
+ * Not thread safe; driven from the main thread.
+ */
+internal class BlurUpdateThrottle(private val minIntervalMs: Long) {
+    private var lastStartMs: Long? = null
+    private var running = false
+    private var scheduled = false
+    private var dirty = false
+
+    /**
+     * Records a change.
+     * @return delay before the update should start, or null when one is already on its way
+     */
+    fun invalidate(nowMs: Long): Long? {
+        dirty = true
+        if (running || scheduled) return null
+        scheduled = true
+        return delayFrom(nowMs)
+    }
+
+    /**
+     * Called when a scheduled update fires.
+     * @return true when the update should run
+     */
+    fun start(nowMs: Long): Boolean {
+        scheduled = false
+        if (running || !dirty) return false
+        running = true
+        dirty = false
+        lastStartMs = nowMs
+        return true
+    }
+
+    /**
+     * @return delay before a follow-up update for changes made while this one ran, or null
+     */
+    fun finish(nowMs: Long): Long? {
+        running = false
+        if (!dirty || scheduled) return null
+        scheduled = true
+        return delayFrom(nowMs)
+    }
+
+    fun reset() {
+        lastStartMs = null
+        running = false
+        scheduled = false
+        dirty = false
+    }
+
+    private fun delayFrom(nowMs: Long): Long {
+        val last = lastStartMs ?: return 0
+        return (last + minIntervalMs - nowMs).coerceAtLeast(0)
+    }
+}
+
+/**
+ * Cheap content hash over an evenly spaced [grid] x [grid] sample of the pixels; equal frames
+ * always match, while any visible change of the host almost always moves some sample.
+ */
+internal fun sampledFingerprint(width: Int, height: Int, grid: Int, pixel: (Int, Int) -> Int): Long {
+    var hash = 1125899906842597L
+    hash = 31 * hash + width
+    hash = 31 * hash + height
+    if (width <= 0 || height <= 0) return hash
+    val stepsX = minOf(grid, width)
+    val stepsY = minOf(grid, height)
+    for (j in 0 until stepsY) {
+        val y = (j * 2 + 1) * height / (stepsY * 2)
+        for (i in 0 until stepsX) {
+            val x = (i * 2 + 1) * width / (stepsX * 2)
+            hash = 31 * hash + pixel(x, y)
+        }
+    }
+    return hash
+}
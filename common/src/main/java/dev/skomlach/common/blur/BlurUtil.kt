@@ -25,6 +25,7 @@ import android.content.Context
 import android.content.ContextWrapper
 import android.graphics.Bitmap
 import android.graphics.Canvas
+import android.graphics.Color
 import android.graphics.Rect
 import android.os.Build
 import android.view.PixelCopy
@@ -91,7 +92,7 @@ object BlurUtil {
             withContext(Dispatchers.Main) {
                 val bm = window.captureRegionToBitmap()
                 bm.addListener({
-                    blur(window.context, bm.get(), listener)
+                    blur(window.context, bm.get(), listener = listener)
                 }, ExecutorHelper.executor)
             }
         }
@@ -119,7 +120,7 @@ object BlurUtil {
                         blur(
                             view.context,
                             it,
-                            listener
+                            listener = listener
                         )
                     }
                 }
@@ -128,16 +129,24 @@ object BlurUtil {
 
     }
 
-    private fun fallbackViewCapture(view: View): Bitmap? {
+    /**
+     * Draws [view] into [reuse] when it still matches the view size, otherwise into a new bitmap.
+     * Must be called on the main thread.
+     */
+    internal fun captureInto(view: View, reuse: Bitmap?): Bitmap? = fallbackViewCapture(view, reuse)
+
+    private fun fallbackViewCapture(view: View, reuse: Bitmap? = null): Bitmap? {
         val startMs = System.currentTimeMillis()
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             try {
-                val bm =
-                    createBitmap(
-                        view.measuredWidth.takeIf { it > 0 } ?: return null,
-                        view.measuredHeight.takeIf { it > 0 } ?: return null,
-                        Bitmap.Config.ARGB_4444
-                    )
+                val width = view.measuredWidth.takeIf { it > 0 } ?: return null
+                val height = view.measuredHeight.takeIf { it > 0 } ?: return null
+                val bm = reuse?.takeIf {
+                    !it.isRecycled && it.isMutable && it.width == width && it.height == height &&
+                            it.config == Bitmap.Config.ARGB_4444
+                }?.apply {
+                    eraseColor(Color.TRANSPARENT)
+                } ?: createBitmap(width, height, Bitmap.Config.ARGB_4444)
                 val canvas = Canvas(bm)
                 view.draw(canvas)
                 LogCat.log("BlurUtil.takeScreenshot#2 time - ${System.currentTimeMillis() - startMs} ms")
@@ -172,7 +181,16 @@ object BlurUtil {
         return null
     }
 
-    private fun blur(context: Context, bkg: Bitmap, listener: OnPublishListener) {
+    /**
+     * Blurs [bkg] and posts the result to [listener] on the main thread; [output] is reused for
+     * the result when it has the right size.
+     */
+    internal fun blur(
+        context: Context,
+        bkg: Bitmap,
+        output: Bitmap? = null,
+        listener: OnPublishListener
+    ) {
         if (bkg.height == 0 || bkg.width == 0)
             return
         val startMs = System.currentTimeMillis()
@@ -189,7 +207,8 @@ object BlurUtil {
                 sampling = 4,
                 width = bkg.width,
                 height = bkg.height
-            )
+            ),
+            output
         )
         ExecutorHelper.post {
             LogCat.log("BlurUtil.Blurring time - ${System.currentTimeMillis() - startMs} ms")
@@ -22,9 +22,11 @@ package dev.skomlach.common.blur
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.Canvas
+import android.graphics.Color
 import android.graphics.Paint
 import android.graphics.PorterDuff
 import android.graphics.PorterDuffColorFilter
+import android.graphics.Rect
 import android.os.Build
 import android.renderscript.Allocation
 import android.renderscript.Element
@@ -33,15 +35,60 @@ import android.renderscript.RenderScript
 import android.renderscript.RenderScript.RSMessageHandler
 import android.renderscript.ScriptIntrinsicBlur
 import androidx.annotation.RequiresApi
+import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.misc.TaskLane
 
+/**
+ * Blurs are serialized; the RenderScript context, its allocations, the downscaled working bitmap
+ * and the stack blur buffers are kept between calls and only recreated when the size changes.
+ */
 internal object FastBlur {
-    fun of(context: Context, source: Bitmap, factor: FastBlurConfig): Bitmap? {
+    private val lock = Any()
+    private val stackBlur = StackBlur()
+    private val scalePaint = Paint(Paint.FILTER_BITMAP_FLAG)
+
+    //Working copy of sampled blurs; never returned, the result is scaled out of it
+    private var scratch: Bitmap? = null
+
+    private var renderScript: RenderScript? = null
+    private var blurScript: ScriptIntrinsicBlur? = null
+    private var input: Allocation? = null
+    private var output: Allocation? = null
+
+    //Shape the allocations were created for; any bitmap of that shape is copied in and out
+    private var allocatedWidth = 0
+    private var allocatedHeight = 0
+    private var allocatedConfig: Bitmap.Config? = null
+
+    private var renderScriptFailed = false
+
+    /**
+     * @param output bitmap the result is written to when it is mutable and of the requested size;
+     * a new one is returned otherwise
+     */
+    fun of(
+        context: Context,
+        source: Bitmap,
+        factor: FastBlurConfig,
+        output: Bitmap? = null
+    ): Bitmap? = synchronized(lock) {
         val width = factor.width / factor.sampling
         val height = factor.height / factor.sampling
         if (hasZero(width, height)) {
             return null
         }
-        var bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_4444)
+        val sampled = factor.sampling != DEFAULT_SAMPLING
+        val reusable = output?.takeIf {
+            !it.isRecycled && it.isMutable && it.width == factor.width && it.height == factor.height
+        }
+        var bitmap = when {
+            sampled -> scratch?.takeIf { !it.isRecycled && it.width == width && it.height == height }
+                ?.apply { eraseColor(Color.TRANSPARENT) }
+                ?: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_4444).also { scratch = it }
+
+            reusable != null -> reusable.apply { eraseColor(Color.TRANSPARENT) }
+            else -> Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_4444)
+        }
         val canvas = Canvas(bitmap)
         canvas.scale(1 / factor.sampling.toFloat(), 1 / factor.sampling.toFloat())
         val paint = Paint()
@@ -51,18 +98,27 @@ internal object FastBlur {
         canvas.drawBitmap(source, 0f, 0f, paint)
         bitmap = try {
             //crash on JB/Kitkat
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !renderScriptFailed) {
                 rs(context, bitmap, factor.radius)
-            } else stack(bitmap, factor.radius, true)
+            } else stack(bitmap, factor.radius)
         } catch (e: RSRuntimeException) {
-            stack(bitmap, factor.radius, true)
+            renderScriptFailed = true
+            releaseRenderScript()
+            stack(bitmap, factor.radius)
         }
-        return if (factor.sampling == DEFAULT_SAMPLING) {
+        return if (!sampled) {
             bitmap
+        } else if (reusable != null) {
+            reusable.eraseColor(Color.TRANSPARENT)
+            Canvas(reusable).drawBitmap(
+                bitmap,
+                null,
+                Rect(0, 0, factor.width, factor.height),
+                scalePaint
+            )
+            reusable
         } else {
-            val scaled = Bitmap.createScaledBitmap(bitmap, factor.width, factor.height, true)
-            bitmap.recycle()
-            scaled
+            Bitmap.createScaledBitmap(bitmap, factor.width, factor.height, true)
         }
     }
 
@@ -78,267 +134,67 @@ internal object FastBlur {
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR1)
     @Throws(RSRuntimeException::class)
     private fun rs(context: Context, bitmap: Bitmap, radius: Int): Bitmap {
-        var rs: RenderScript? = null
-        var input: Allocation? = null
-        var output: Allocation? = null
-        var blur: ScriptIntrinsicBlur? = null
-        try {
-            rs = RenderScript.create(context)
-            rs.messageHandler = RSMessageHandler()
+        val rs = renderScript ?: RenderScript.create(context.applicationContext).also {
+            it.messageHandler = RSMessageHandler()
+            renderScript = it
+        }
+        val blur = blurScript ?: ScriptIntrinsicBlur.create(rs, Element.U8_4(rs)).also {
+            blurScript = it
+        }
+        var input = this.input
+        var output = this.output
+        if (input == null || output == null || bitmap.width != allocatedWidth ||
+            bitmap.height != allocatedHeight || bitmap.config != allocatedConfig
+        ) {
+            destroyAllocations()
             input = Allocation.createFromBitmap(
                 rs, bitmap, Allocation.MipmapControl.MIPMAP_NONE,
                 Allocation.USAGE_SCRIPT
             )
             output = Allocation.createTyped(rs, input.type)
-            blur = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs))
-            blur.setInput(input)
-            blur.setRadius(radius.toFloat())
-            blur.forEach(output)
-            output.copyTo(bitmap)
-        } finally {
-            rs?.destroy()
-            input?.destroy()
-            output?.destroy()
-            blur?.destroy()
+            this.input = input
+            this.output = output
+            allocatedWidth = bitmap.width
+            allocatedHeight = bitmap.height
+            allocatedConfig = bitmap.config
+        } else {
+            input.copyFrom(bitmap)
         }
+        blur.setInput(input)
+        blur.setRadius(radius.toFloat())
+        blur.forEach(output)
+        output.copyTo(bitmap)
         return bitmap
     }
 
-    private fun stack(sentBitmap: Bitmap, r: Int, canReuseInBitmap: Boolean): Bitmap {
-
-        var radius: Int = r
-        // Stack Blur v1.0 from
-        // http://www.quasimondo.com/StackBlurForCanvas/StackBlurDemo.html
-        //
-        // Java Author: Mario Klingemann <mario at quasimondo.com>
-        // http://incubator.quasimondo.com
-        // created Feburary 29, 2004
-        // Android port : Yahel Bouaziz <yahel at kayenko.com>
-        // http://www.kayenko.com
-        // ported april 5th, 2012
+    private fun destroyAllocations() {
+        input?.destroy()
+        output?.destroy()
+        input = null
+        output = null
+        allocatedWidth = 0
+        allocatedHeight = 0
+        allocatedConfig = null
+    }
 
-        // This is a compromise between Gaussian Blur and Box blur
-        // It creates much better looking blurs than Box Blur, but is
-        // 7x faster than my Gaussian Blur implementation.
-        //
-        // I called it Stack Blur because this describes best how this
-        // filter works internally: it creates a kind of moving stack
-        // of colors whilst scanning through the image. Thereby it
-        // just has to add one new block of color to the right side
-        // of the stack and remove the leftmost color. The remaining
-        // colors on the topmost layer of the stack are either added on
-        // or reduced by one, depending on if they are on the right or
-        // on the left side of the stack.
-        //
-        // If you are using this algorithm in your code please add
-        // the following line:
-        //
-        // Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
-        val bitmap: Bitmap = if (canReuseInBitmap || sentBitmap.config == null) {
-            sentBitmap
-        } else {
-            sentBitmap.copy(sentBitmap.config!!, true)
-        }
-        if (radius < 1) {
-            radius = DEFAULT_RADIUS
+    private fun releaseRenderScript() {
+        runCatching {
+            destroyAllocations()
+            blurScript?.destroy()
+            renderScript?.destroy()
         }
+        blurScript = null
+        renderScript = null
+    }
+
+    private fun stack(bitmap: Bitmap, r: Int): Bitmap {
+        val radius = if (r < 1) DEFAULT_RADIUS else r
         val w = bitmap.width
         val h = bitmap.height
-        val pix = IntArray(w * h)
+        val pix = stackBlur.pixelBuffer(w * h)
         bitmap.getPixels(pix, 0, w, 0, 0, w, h)
-        val wm = w - 1
-        val hm = h - 1
-        val wh = w * h
-        val div = radius + radius + 1
-        val r = IntArray(wh)
-        val g = IntArray(wh)
-        val b = IntArray(wh)
-        var rsum: Int
-        var gsum: Int
-        var bsum: Int
-        var x: Int
-        var y: Int
-        var i: Int
-        var p: Int
-        var yp: Int
-        var yi: Int
-        val vmin = IntArray(Math.max(w, h))
-        var divsum = div + 1 shr 1
-        divsum *= divsum
-        val dv = IntArray(256 * divsum)
-        i = 0
-        while (i < 256 * divsum) {
-            dv[i] = i / divsum
-            i++
-        }
-        yi = 0
-        var yw: Int = yi
-        val stack = Array(div) { IntArray(3) }
-        var stackpointer: Int
-        var stackstart: Int
-        var sir: IntArray
-        var rbs: Int
-        val r1 = radius + 1
-        var routsum: Int
-        var goutsum: Int
-        var boutsum: Int
-        var rinsum: Int
-        var ginsum: Int
-        var binsum: Int
-        y = 0
-        while (y < h) {
-            bsum = 0
-            gsum = bsum
-            rsum = gsum
-            boutsum = rsum
-            goutsum = boutsum
-            routsum = goutsum
-            binsum = routsum
-            ginsum = binsum
-            rinsum = ginsum
-            i = -radius
-            while (i <= radius) {
-                p = pix[yi + wm.coerceAtMost(i.coerceAtLeast(0))]
-                sir = stack[i + radius]
-                sir[0] = p and 0xff0000 shr 16
-                sir[1] = p and 0x00ff00 shr 8
-                sir[2] = p and 0x0000ff
-                rbs = r1 - Math.abs(i)
-                rsum += sir[0] * rbs
-                gsum += sir[1] * rbs
-                bsum += sir[2] * rbs
-                if (i > 0) {
-                    rinsum += sir[0]
-                    ginsum += sir[1]
-                    binsum += sir[2]
-                } else {
-                    routsum += sir[0]
-                    goutsum += sir[1]
-                    boutsum += sir[2]
-                }
-                i++
-            }
-            stackpointer = radius
-            x = 0
-            while (x < w) {
-                r[yi] = dv[rsum]
-                g[yi] = dv[gsum]
-                b[yi] = dv[bsum]
-                rsum -= routsum
-                gsum -= goutsum
-                bsum -= boutsum
-                stackstart = stackpointer - radius + div
-                sir = stack[stackstart % div]
-                routsum -= sir[0]
-                goutsum -= sir[1]
-                boutsum -= sir[2]
-                if (y == 0) {
-                    vmin[x] = (x + radius + 1).coerceAtMost(wm)
-                }
-                p = pix[yw + vmin[x]]
-                sir[0] = p and 0xff0000 shr 16
-                sir[1] = p and 0x00ff00 shr 8
-                sir[2] = p and 0x0000ff
-                rinsum += sir[0]
-                ginsum += sir[1]
-                binsum += sir[2]
-                rsum += rinsum
-                gsum += ginsum
-                bsum += binsum
-                stackpointer = (stackpointer + 1) % div
-                sir = stack[stackpointer % div]
-                routsum += sir[0]
-                goutsum += sir[1]
-                boutsum += sir[2]
-                rinsum -= sir[0]
-                ginsum -= sir[1]
-                binsum -= sir[2]
-                yi++
-                x++
-            }
-            yw += w
-            y++
-        }
-        x = 0
-        while (x < w) {
-            bsum = 0
-            gsum = bsum
-            rsum = gsum
-            boutsum = rsum
-            goutsum = boutsum
-            routsum = goutsum
-            binsum = routsum
-            ginsum = binsum
-            rinsum = ginsum
-            yp = -radius * w
-            i = -radius
-            while (i <= radius) {
-                yi = 0.coerceAtLeast(yp) + x
-                sir = stack[i + radius]
-                sir[0] = r[yi]
-                sir[1] = g[yi]
-                sir[2] = b[yi]
-                rbs = r1 - Math.abs(i)
-                rsum += r[yi] * rbs
-                gsum += g[yi] * rbs
-                bsum += b[yi] * rbs
-                if (i > 0) {
-                    rinsum += sir[0]
-                    ginsum += sir[1]
-                    binsum += sir[2]
-                } else {
-                    routsum += sir[0]
-                    goutsum += sir[1]
-                    boutsum += sir[2]
-                }
-                if (i < hm) {
-                    yp += w
-                }
-                i++
-            }
-            yi = x
-            stackpointer = radius
-            y = 0
-            while (y < h) {
-
-                // Preserve alpha channel: ( 0xff000000 & pix[yi] )
-                pix[yi] =
-                    -0x1000000 and pix[yi] or (dv[rsum] shl 16) or (dv[gsum] shl 8) or dv[bsum]
-                rsum -= routsum
-                gsum -= goutsum
-                bsum -= boutsum
-                stackstart = stackpointer - radius + div
-                sir = stack[stackstart % div]
-                routsum -= sir[0]
-                goutsum -= sir[1]
-                boutsum -= sir[2]
-                if (x == 0) {
-                    vmin[y] = Math.min(y + r1, hm) * w
-                }
-                p = x + vmin[y]
-                sir[0] = r[p]
-                sir[1] = g[p]
-                sir[2] = b[p]
-                rinsum += sir[0]
-                ginsum += sir[1]
-                binsum += sir[2]
-                rsum += rinsum
-                gsum += ginsum
-                bsum += binsum
-                stackpointer = (stackpointer + 1) % div
-                sir = stack[stackpointer]
-                routsum += sir[0]
-                goutsum += sir[1]
-                boutsum += sir[2]
-                rinsum -= sir[0]
-                ginsum -= sir[1]
-                binsum -= sir[2]
-                yi += w
-                y++
-            }
-            x++
-        }
+        stackBlur.blur(pix, w, h, radius, ExecutorHelper.executor(TaskLane.COMPUTE))
         bitmap.setPixels(pix, 0, w, 0, 0, w, h)
         return bitmap
     }
-}
\ No newline at end of file
+}
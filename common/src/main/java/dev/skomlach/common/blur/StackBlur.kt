@@ -0,0 +1,238 @@
+package dev.skomlach.common.blur
+
+import dev.skomlach.common.misc.mapInChunks
+import java.util.concurrent.Executor
+import kotlin.math.abs
+
+/**
+ * Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
+ *
+ * Same output as the original two-pass implementation, restructured so that scratch buffers live
+ * as long as the engine and are only reallocated when the image grows or the radius changes.
+ * The horizontal pass keeps its result packed as RGB in a single array instead of three channel
+ * arrays. Rows, then columns, are split into bands that run on the given executor.
+ *
+ * Not thread safe; callers serialize access.
+ */
+internal class StackBlur {
+    companion object {
+        private const val MIN_BAND_SIZE = 32
+        private const val MAX_BANDS = 8
+    }
+
+    private var pixels = IntArray(0)
+    private var packed = IntArray(0)
+    private var rowMin = IntArray(0)
+    private var columnMin = IntArray(0)
+    private var divTable = IntArray(0)
+    private var divTableRadius = -1
+    private var stacks = Array(0) { IntArray(0) }
+
+    /**
+     * Reusable array for callers to read pixels into before [blur].
+     */
+    fun pixelBuffer(size: Int): IntArray {
+        if (pixels.size < size) pixels = IntArray(size)
+        return pixels
+    }
+
+    /**
+     * Blurs the first [width] * [height] ARGB pixels of [pix] in place; alpha is preserved.
+     */
+    fun blur(pix: IntArray, width: Int, height: Int, radius: Int, executor: Executor?) {
+        if (width <= 0 || height <= 0 || radius < 1) return
+        prepare(width, height, radius)
+        runInBands(height, executor) { band, from, to ->
+            blurRows(pix, width, radius, from, to, stacks[band])
+        }
+        runInBands(width, executor) { band, from, to ->
+            blurColumns(pix, width, height, radius, from, to, stacks[band])
+        }
+    }
+
+    private fun prepare(width: Int, height: Int, radius: Int) {
+        val size = width * height
+        if (packed.size < size) packed = IntArray(size)
+        if (rowMin.size < width) rowMin = IntArray(width)
+        if (columnMin.size < height) columnMin = IntArray(height)
+        for (x in 0 until width) rowMin[x] = minOf(x + radius + 1, width - 1)
+        for (y in 0 until height) columnMin[y] = minOf(y + radius + 1, height - 1) * width
+        if (divTableRadius != radius) {
+            val div = radius + radius + 1
+            val divsum = ((div + 1) shr 1) * ((div + 1) shr 1)
+            divTable = IntArray(256 * divsum) { it / divsum }
+            divTableRadius = radius
+        }
+        val stackSize = (radius + radius + 1) * 3
+        if (stacks.size < MAX_BANDS || stacks[0].size != stackSize) {
+            stacks = Array(MAX_BANDS) { IntArray(stackSize) }
+        }
+    }
+
+    private fun runInBands(length: Int, executor: Executor?, pass: (Int, Int, Int) -> Unit) {
+        val bands = (length / MIN_BAND_SIZE).coerceIn(1, MAX_BANDS)
+        val bandSize = (length + bands - 1) / bands
+        mapInChunks((0 until bands).toList(), executor, 2, 1) { band ->
+            val from = band * bandSize
+            pass(band, from, minOf(length, from + bandSize))
+        }
+    }
+
+    private fun blurRows(pix: IntArray, w: Int, radius: Int, from: Int, to: Int, stack: IntArray) {
+        val dv = divTable
+        val wm = w - 1
+        val div = radius + radius + 1
+        val r1 = radius + 1
+        for (y in from until to) {
+            var rsum = 0
+            var gsum = 0
+            var bsum = 0
+            var rinsum = 0
+            var ginsum = 0
+            var binsum = 0
+            var routsum = 0
+            var goutsum = 0
+            var boutsum = 0
+            val yw = y * w
+            for (i in -radius..radius) {
+                val p = pix[yw + minOf(wm, maxOf(i, 0))]
+                val s = (i + radius) * 3
+                stack[s] = p shr 16 and 0xff
+                stack[s + 1] = p shr 8 and 0xff
+                stack[s + 2] = p and 0xff
+                val rbs = r1 - abs(i)
+                rsum += stack[s] * rbs
+                gsum += stack[s + 1] * rbs
+                bsum += stack[s + 2] * rbs
+                if (i > 0) {
+                    rinsum += stack[s]
+                    ginsum += stack[s + 1]
+                    binsum += stack[s + 2]
+                } else {
+                    routsum += stack[s]
+                    goutsum += stack[s + 1]
+                    boutsum += stack[s + 2]
+                }
+            }
+            var stackpointer = radius
+            var yi = yw
+            for (x in 0 until w) {
+                packed[yi] = (dv[rsum] shl 16) or (dv[gsum] shl 8) or dv[bsum]
+                rsum -= routsum
+                gsum -= goutsum
+                bsum -= boutsum
+                //Oldest stack entry, (stackpointer - radius) modulo div
+                var start = stackpointer + r1
+                if (start >= div) start -= div
+                var s = start * 3
+                routsum -= stack[s]
+                goutsum -= stack[s + 1]
+                boutsum -= stack[s + 2]
+                val p = pix[yw + rowMin[x]]
+                stack[s] = p shr 16 and 0xff
+                stack[s + 1] = p shr 8 and 0xff
+                stack[s + 2] = p and 0xff
+                rinsum += stack[s]
+                ginsum += stack[s + 1]
+                binsum += stack[s + 2]
+                rsum += rinsum
+                gsum += ginsum
+                bsum += binsum
+                if (++stackpointer == div) stackpointer = 0
+                s = stackpointer * 3
+                routsum += stack[s]
+                goutsum += stack[s + 1]
+                boutsum += stack[s + 2]
+                rinsum -= stack[s]
+                ginsum -= stack[s + 1]
+                binsum -= stack[s + 2]
+                yi++
+            }
+        }
+    }
+
+    private fun blurColumns(
+        pix: IntArray,
+        w: Int,
+        h: Int,
+        radius: Int,
+        from: Int,
+        to: Int,
+        stack: IntArray
+    ) {
+        val dv = divTable
+        val hm = h - 1
+        val div = radius + radius + 1
+        val r1 = radius + 1
+        for (x in from until to) {
+            var rsum = 0
+            var gsum = 0
+            var bsum = 0
+            var rinsum = 0
+            var ginsum = 0
+            var binsum = 0
+            var routsum = 0
+            var goutsum = 0
+            var boutsum = 0
+            var yp = -radius * w
+            for (i in -radius..radius) {
+                val q = packed[maxOf(0, yp) + x]
+                val s = (i + radius) * 3
+                stack[s] = q shr 16 and 0xff
+                stack[s + 1] = q shr 8 and 0xff
+                stack[s + 2] = q and 0xff
+                val rbs = r1 - abs(i)
+                rsum += stack[s] * rbs
+                gsum += stack[s + 1] * rbs
+                bsum += stack[s + 2] * rbs
+                if (i > 0) {
+                    rinsum += stack[s]
+                    ginsum += stack[s + 1]
+                    binsum += stack[s + 2]
+                } else {
+                    routsum += stack[s]
+                    goutsum += stack[s + 1]
+                    boutsum += stack[s + 2]
+                }
+                if (i < hm) {
+                    yp += w
+                }
+            }
+            var stackpointer = radius
+            var yi = x
+            for (y in 0 until h) {
+                // Preserve alpha channel: ( 0xff000000 & pix[yi] )
+                pix[yi] = (-0x1000000 and pix[yi]) or (dv[rsum] shl 16) or (dv[gsum] shl 8) or dv[bsum]
+                rsum -= routsum
+                gsum -= goutsum
+                bsum -= boutsum
+                //Oldest stack entry, (stackpointer - radius) modulo div
+                var start = stackpointer + r1
+                if (start >= div) start -= div
+                var s = start * 3
+                routsum -= stack[s]
+                goutsum -= stack[s + 1]
+                boutsum -= stack[s + 2]
+                val q = packed[x + columnMin[y]]
+                stack[s] = q shr 16 and 0xff
+                stack[s + 1] = q shr 8 and 0xff
+                stack[s + 2] = q and 0xff
+                rinsum += stack[s]
+                ginsum += stack[s + 1]
+                binsum += stack[s + 2]
+                rsum += rinsum
+                gsum += ginsum
+                bsum += binsum
+                if (++stackpointer == div) stackpointer = 0
+                s = stackpointer * 3
+                routsum += stack[s]
+                goutsum += stack[s + 1]
+                boutsum += stack[s + 2]
+                rinsum -= stack[s]
+                ginsum -= stack[s + 1]
+                binsum -= stack[s + 2]
+                yi += w
+            }
+        }
+    }
+}
@@ -24,18 +24,13 @@ import dev.skomlach.common.contextprovider.AndroidContext
 import dev.skomlach.common.logging.LogCat
 import dev.skomlach.common.misc.ExecutorHelper
 import dev.skomlach.common.network.NetworkApi
-import dev.skomlach.common.translate.LocalizationHelper
 import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileInputStream
-import java.io.FileOutputStream
-import java.io.OutputStreamWriter
 import java.net.URI
 import java.net.URLDecoder
 import java.nio.charset.StandardCharsets
 import java.util.concurrent.TimeUnit
-import org.json.JSONArray
-import org.json.JSONObject
 
 object DataProviders {
 
@@ -99,6 +94,7 @@ object DataProviders {
     }
 
     private val loadingInProgress = LruCache<String, Boolean>(50)
+    private val downloader = JsonFileDownloader()
     fun checkCache(url: String) {
         val fileName = extractFileNameFromUrl(url)
         var reload = false
@@ -124,9 +120,7 @@ object DataProviders {
             ExecutorHelper.startOnBackground {
                 if (NetworkApi.hasInternet()) {
                     try {
-                        val data =
-                            LocalizationHelper.fetchFromWeb(url)
-                        saveToCache(data ?: return@startOnBackground, fileName)
+                        downloader.refresh(url, cacheFile(fileName))
                     } catch (e: Throwable) {
                         LogCat.logException(e)
                     } finally {
@@ -164,49 +158,42 @@ object DataProviders {
         return null
     }
 
-    private fun saveToCache(data: String, name: String) {
-        try {
-            validateJson(data)
-            val cacheDir = AndroidContext.appContext.cacheDir
-            val file = File(cacheDir, name)
-            val canonicalCacheDir = cacheDir.canonicalFile
-            val canonicalFile = file.canonicalFile
-            if (canonicalFile.parentFile != canonicalCacheDir) {
-                throw SecurityException("Unsafe cache file path")
-            }
-            val parent = file.parentFile
-            if (parent != null && !parent.exists()) {
-                parent.mkdirs()
-            }
-
-            val tmpFile = File(file.absolutePath + ".tmp")
-
-            FileOutputStream(tmpFile).use { fos ->
-                OutputStreamWriter(fos, StandardCharsets.UTF_8).buffered(512 * 1024).use { writer ->
-                    writer.write(data)
-                    writer.flush()
-                }
-                //fos.fd.sync()
-            }
-
-            if (!tmpFile.renameTo(file)) {
-                tmpFile.delete()
-                throw IllegalStateException("Failed to rename ${tmpFile.absolutePath} to ${file.absolutePath}")
-            }
+    /**
+     * Identifies the copy of [url] that [getOrCacheJSON] reads; a revalidation that only
+     * touches the cached file keeps the version.
+     */
+    internal fun databaseVersion(url: String): String {
+        return try {
+            databaseVersion(File(AndroidContext.appContext.cacheDir, extractFileNameFromUrl(url)))
         } catch (e: Throwable) {
             LogCat.logException(e)
+            "unknown"
         }
     }
 
-    private fun validateJson(data: String) {
-        val trimmed = data.trimStart()
-        if (trimmed.startsWith("{")) {
-            JSONObject(data)
-        } else if (trimmed.startsWith("[")) {
-            JSONArray(data)
+    internal fun databaseVersion(file: File): String {
+        if (!file.exists()) return "asset"
+        val validators = JsonFileDownloader.validatorsFile(file)
+        return if (validators.exists()) {
+            "${file.length()}:${validators.readText().hashCode()}"
         } else {
-            throw IllegalArgumentException("Unexpected JSON root")
+            "${file.length()}:${file.lastModified()}"
+        }
+    }
+
+    private fun cacheFile(name: String): File {
+        val cacheDir = AndroidContext.appContext.cacheDir
+        val file = File(cacheDir, name)
+        val canonicalCacheDir = cacheDir.canonicalFile
+        val canonicalFile = file.canonicalFile
+        if (canonicalFile.parentFile != canonicalCacheDir) {
+            throw SecurityException("Unsafe cache file path")
+        }
+        val parent = file.parentFile
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs()
         }
+        return file
     }
 
     private const val MAX_CACHE_FILE_NAME_LENGTH = 128
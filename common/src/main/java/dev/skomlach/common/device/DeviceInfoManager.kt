@@ -19,7 +19,9 @@
 
 package dev.skomlach.common.device
 
+import android.os.Build
 import androidx.core.content.edit
+import dev.skomlach.common.contextprovider.AndroidContext
 import dev.skomlach.common.device.DeviceSpecManager.getSensors
 import dev.skomlach.common.logging.LogCat
 import dev.skomlach.common.misc.ExecutorHelper
@@ -36,6 +38,12 @@ object DeviceInfoManager {
     const val OUTDATE_TIME_CACHE_DAYS = 7L
     const val OUTDATE_TIME_DAYS_FILES = OUTDATE_TIME_DAYS - OUTDATE_TIME_CACHE_DAYS
 
+    private val DATABASE_URLS = listOf(
+        "https://github.com/androidtrackers/certified-android-devices/blob/master/by_model.json?raw=true",
+        "https://github.com/sergeykomlach/AdvancedBiometricPromptCompat/blob/main/common/src/main/assets/devices/specifications.json?raw=true",
+        "https://github.com/nowrom/devices/blob/main/devices.json?raw=true"
+    )
+
     private var running = AtomicBoolean(false)
 
     private val listeners =
@@ -73,9 +81,11 @@ object DeviceInfoManager {
         }
         ExecutorHelper.startOnBackground {
             try {
+                //Taken before resolving, so a database replaced meanwhile forces another pass
+                val specKey = specCacheKey()
                 val emulatorKind: EmulatorKind? = runCatching { detectEmulatorKind }.getOrNull()
                 val deviceInfo = getCurrentDeviceInfo(emulatorKind).also {
-                    setCachedDeviceInfo(it)
+                    setCachedDeviceInfo(it, specKey)
                 }
                 notifyListeners(deviceInfo)
             } catch (e: Exception) {
@@ -104,27 +114,26 @@ object DeviceInfoManager {
         if (Date().time - checked <= TimeUnit.DAYS.toMillis(OUTDATE_TIME_CACHE_DAYS)) {
             return
         }
-        ExecutorHelper.startOnBackground {
-            DataProviders.checkCache("https://github.com/androidtrackers/certified-android-devices/blob/master/by_model.json?raw=true")
-        }
-        ExecutorHelper.startOnBackground {
-            DataProviders.checkCache("https://github.com/sergeykomlach/AdvancedBiometricPromptCompat/blob/main/common/src/main/assets/devices/specifications.json?raw=true")
-        }
-        ExecutorHelper.startOnBackground {
-            DataProviders.checkCache("https://github.com/nowrom/devices/blob/main/devices.json?raw=true")
+        DATABASE_URLS.forEach { url ->
+            ExecutorHelper.startOnBackground {
+                DataProviders.checkCache(url)
+            }
         }
         sharedPreferences.edit {
             putLong("timestampCache", Date().time)
         }
     }
 
+    /**
+     * Resolved once per build fingerprint, app install and set of database files; the persisted
+     * result is reused until one of them changes.
+     */
     @Volatile
     private var cachedDeviceInfo: DeviceInfo? = null
         get() {
             if (field == null) {
                 val sharedPreferences = getPreferences(PREF_NAME)
-                val checked = sharedPreferences.getLong("timestamp", 0)
-                if (Date().time - checked <= TimeUnit.DAYS.toMillis(OUTDATE_TIME_DAYS)) {
+                if (sharedPreferences.getString("specKey", null) == specCacheKey()) {
                     val model =
                         sharedPreferences.getString("model", null)
                             ?: return null
@@ -134,20 +143,30 @@ object DeviceInfoManager {
                     val emu = sharedPreferences.getString("emulatorKind", null)
                     val emulatorKind =
                         emu?.let { runCatching { EmulatorKind.valueOf(it) }.getOrNull() }
+                    val checked = sharedPreferences.getLong("timestamp", 0)
                     field =
                         DeviceInfo(model, fixModelAsAnsi(model), sensors, checked, emulatorKind)
                 }
-            } else {
-                if (Date().time - (field?.timeStamp ?: 0) >= TimeUnit.DAYS.toMillis(
-                        OUTDATE_TIME_DAYS
-                    )
-                ) {
-                    field = null
-                }
             }
             return field
         }
 
+    private fun specCacheKey(): String {
+        val appUpdateTime = runCatching {
+            val context = AndroidContext.appContext
+            context.packageManager.getPackageInfo(context.packageName, 0).lastUpdateTime
+        }.getOrDefault(0L)
+        return buildString {
+            append(Build.FINGERPRINT)
+            append('|')
+            append(appUpdateTime)
+            DATABASE_URLS.forEach {
+                append('|')
+                append(DataProviders.databaseVersion(it))
+            }
+        }
+    }
+
     private fun getCurrentDeviceInfo(emulatorKind: EmulatorKind?): DeviceInfo {
         cachedDeviceInfo?.let {
             return it
@@ -173,7 +192,7 @@ object DeviceInfoManager {
         }
     }
 
-    private fun setCachedDeviceInfo(deviceInfo: DeviceInfo) {
+    private fun setCachedDeviceInfo(deviceInfo: DeviceInfo, specKey: String) {
         cachedDeviceInfo = deviceInfo
         try {
             getPreferences(PREF_NAME).edit {
@@ -181,6 +200,7 @@ object DeviceInfoManager {
                     .putString("model", deviceInfo.model)
                     .putString("emulatorKind", deviceInfo.emulatorKind?.name)
                     .putLong("timestamp", Date().time)
+                    .putString("specKey", specKey)
             }
         } catch (e: Throwable) {
             LogCat.logException(e)
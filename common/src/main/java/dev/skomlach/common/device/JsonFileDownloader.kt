@@ -0,0 +1,205 @@
+/*
+ *  Copyright (c) 2026 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.device
+
+import dev.skomlach.common.logging.LogCat
+import dev.skomlach.common.network.NetworkApi
+import dev.skomlach.common.translate.LocalizationHelper
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.security.SecureRandom
+
+/**
+ * Refreshes a cached JSON file without holding the body in memory.
+ *
+ * The response is streamed into a temporary file next to the target and validated as it
+ * arrives. It replaces the target only when complete and well-formed. The ETag and
+ * Last-Modified of the cached copy are kept in a sidecar file and sent back, so an unchanged
+ * file costs a 304.
+ */
+internal class JsonFileDownloader(
+    private val openConnection: (String) -> HttpURLConnection = {
+        NetworkApi.createConnection(it, TIMEOUT_MS)
+    },
+    private val isWebUrl: (String) -> Boolean = NetworkApi::isWebUrl,
+    private val userAgent: () -> String? = {
+        LocalizationHelper.agents[SecureRandom().nextInt(LocalizationHelper.agents.size)]
+    },
+    private val maxBytes: Long = MAX_DOWNLOAD_BYTES
+) {
+    enum class Result {
+        UPDATED,
+        NOT_MODIFIED,
+        FAILED
+    }
+
+    companion object {
+        private const val TIMEOUT_MS = 5000
+        private const val MAX_REDIRECTS = 5
+        private const val MAX_DOWNLOAD_BYTES = 16L * 1024 * 1024
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val ETAG = "ETag"
+        private const val LAST_MODIFIED = "Last-Modified"
+
+        internal fun validatorsFile(target: File) = File(target.parentFile, target.name + ".validators")
+    }
+
+    fun refresh(url: String, target: File): Result {
+        var current = url
+        var redirects = 0
+        while (true) {
+            var connection: HttpURLConnection? = null
+            try {
+                connection = openConnection(current)
+                connection.requestMethod = "GET"
+                connection.instanceFollowRedirects = false
+                userAgent()?.let { connection.setRequestProperty("User-Agent", it) }
+                if (target.exists()) {
+                    val validators = readValidators(target)
+                    validators[ETAG]?.let { connection.setRequestProperty("If-None-Match", it) }
+                    validators[LAST_MODIFIED]?.let {
+                        connection.setRequestProperty("If-Modified-Since", it)
+                    }
+                }
+
+                when (val responseCode = connection.responseCode) {
+                    HttpURLConnection.HTTP_OK -> {
+                        store(connection, target)
+                        return Result.UPDATED
+                    }
+
+                    HttpURLConnection.HTTP_NOT_MODIFIED -> {
+                        //Restarts the outdate period of the cached copy
+                        target.setLastModified(System.currentTimeMillis())
+                        return Result.NOT_MODIFIED
+                    }
+
+                    HttpURLConnection.HTTP_MOVED_TEMP,
+                    HttpURLConnection.HTTP_MOVED_PERM,
+                    HttpURLConnection.HTTP_SEE_OTHER,
+                    307,
+                    308 -> {
+                        if (++redirects > MAX_REDIRECTS) {
+                            LogCat.logError("Too many redirects for URL: $url")
+                            return Result.FAILED
+                        }
+                        current = redirectTarget(connection) ?: return Result.FAILED
+                    }
+
+                    else -> {
+                        LogCat.logError("Server returned code: $responseCode for URL: $current")
+                        return Result.FAILED
+                    }
+                }
+            } catch (e: Throwable) {
+                LogCat.logException(e, "JsonFileDownloader")
+                return Result.FAILED
+            } finally {
+                connection?.disconnect()
+            }
+        }
+    }
+
+    private fun redirectTarget(connection: HttpURLConnection): String? {
+        val location = connection.getHeaderField("Location") ?: return null
+        val target = when {
+            location.startsWith("//") -> "${connection.url.protocol}:$location"
+            isWebUrl(location) -> location
+            else -> NetworkApi.resolveUrl(connection.url.toString(), location)
+        }
+        if (!isWebUrl(target)) {
+            LogCat.logError("Blocked non-web redirect for URL: ${connection.url}")
+            return null
+        }
+        if (connection.url.protocol.equals("https", ignoreCase = true) &&
+            !target.startsWith("https://", ignoreCase = true)
+        ) {
+            LogCat.logError("Blocked HTTPS downgrade redirect")
+            return null
+        }
+        return target
+    }
+
+    private fun store(connection: HttpURLConnection, target: File) {
+        val tmpFile = File(target.parentFile, target.name + ".tmp")
+        try {
+            val validator = JsonStreamValidator()
+            connection.inputStream.use { input ->
+                FileOutputStream(tmpFile).use { output ->
+                    val buffer = ByteArray(BUFFER_SIZE)
+                    var total = 0L
+                    var length: Int
+                    while (input.read(buffer).also { length = it } != -1) {
+                        total += length
+                        if (total > maxBytes) {
+                            throw IOException("Blocked oversized download")
+                        }
+                        validator.feed(buffer, 0, length)
+                        output.write(buffer, 0, length)
+                    }
+                    validator.finish()
+                }
+            }
+            //Validators of the old copy must never be sent for the new one
+            validatorsFile(target).delete()
+            if (!tmpFile.renameTo(target)) {
+                throw IllegalStateException("Failed to rename ${tmpFile.absolutePath} to ${target.absolutePath}")
+            }
+            writeValidators(
+                target,
+                connection.getHeaderField(ETAG),
+                connection.getHeaderField(LAST_MODIFIED)
+            )
+        } finally {
+            tmpFile.delete()
+        }
+    }
+
+    private fun readValidators(target: File): Map<String, String> {
+        return try {
+            val file = validatorsFile(target)
+            if (!file.exists()) return emptyMap()
+            file.readLines().mapNotNull { line ->
+                val name = line.substringBefore(':', "")
+                val value = line.substringAfter(':', "").trim()
+                if (name.isEmpty() || value.isEmpty()) null else name to value
+            }.toMap()
+        } catch (e: Throwable) {
+            LogCat.logException(e, "JsonFileDownloader")
+            emptyMap()
+        }
+    }
+
+    private fun writeValidators(target: File, etag: String?, lastModified: String?) {
+        try {
+            val lines = buildList {
+                etag?.let { add("$ETAG: $it") }
+                lastModified?.let { add("$LAST_MODIFIED: $it") }
+            }
+            if (lines.isNotEmpty()) {
+                validatorsFile(target).writeText(lines.joinToString("\n"))
+            }
+        } catch (e: Throwable) {
+            LogCat.logException(e, "JsonFileDownloader")
+        }
+    }
+}
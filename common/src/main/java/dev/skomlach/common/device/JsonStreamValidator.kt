@@ -0,0 +1,235 @@
+/*
+ *  Copyright (c) 2026 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.device
+
+/**
+ * Syntax check of a UTF-8 JSON document with an object or array root, fed in chunks as they
+ * arrive. Nothing is materialized; memory is bounded by the nesting depth.
+ *
+ * [feed] and [finish] throw [IllegalArgumentException] on the first malformed byte.
+ */
+internal class JsonStreamValidator(private val maxDepth: Int = DEFAULT_MAX_DEPTH) {
+    companion object {
+        const val DEFAULT_MAX_DEPTH = 512
+
+        private const val START = 0
+        private const val VALUE = 1
+        private const val VALUE_OR_END = 2
+        private const val KEY = 3
+        private const val KEY_OR_END = 4
+        private const val COLON = 5
+        private const val AFTER_VALUE = 6
+        private const val STRING = 7
+        private const val ESCAPE = 8
+        private const val UNICODE = 9
+        private const val LITERAL = 10
+        private const val NUMBER = 11
+        private const val DONE = 12
+
+        private const val N_SIGN = 0
+        private const val N_ZERO = 1
+        private const val N_INT = 2
+        private const val N_POINT = 3
+        private const val N_FRACTION = 4
+        private const val N_EXPONENT = 5
+        private const val N_EXPONENT_SIGN = 6
+        private const val N_EXPONENT_DIGITS = 7
+
+        private val TRUE = "true".toByteArray()
+        private val FALSE = "false".toByteArray()
+        private val NULL = "null".toByteArray()
+    }
+
+    private var containers = ByteArray(16)
+    private var depth = 0
+    private var state = START
+    private var stringIsKey = false
+    private var hexLeft = 0
+    private var literal = TRUE
+    private var literalIndex = 0
+    private var numberState = N_SIGN
+    private var position = 0L
+
+    fun feed(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset) {
+        for (i in offset until offset + length) {
+            accept(bytes[i].toInt() and 0xff)
+            position++
+        }
+    }
+
+    fun finish() {
+        if (state != DONE) fail("Unexpected end of JSON")
+    }
+
+    private fun accept(c: Int) {
+        when (state) {
+            STRING -> when {
+                c == '"'.code -> state = if (stringIsKey) COLON else AFTER_VALUE
+                c == '\\'.code -> state = ESCAPE
+                c < 0x20 -> fail("Unescaped control character")
+            }
+
+            ESCAPE -> when (c) {
+                '"'.code, '\\'.code, '/'.code, 'b'.code, 'f'.code, 'n'.code, 'r'.code, 't'.code ->
+                    state = STRING
+
+                'u'.code -> {
+                    hexLeft = 4
+                    state = UNICODE
+                }
+
+                else -> fail("Invalid escape")
+            }
+
+            UNICODE -> {
+                if (Character.digit(c, 16) < 0) fail("Invalid unicode escape")
+                if (--hexLeft == 0) state = STRING
+            }
+
+            LITERAL -> {
+                if (c != literal[literalIndex].toInt()) fail("Invalid literal")
+                if (++literalIndex == literal.size) state = AFTER_VALUE
+            }
+
+            NUMBER -> if (!acceptNumber(c)) {
+                state = AFTER_VALUE
+                accept(c)
+            }
+
+            else -> if (c != ' '.code && c != '\n'.code && c != '\r'.code && c != '\t'.code) {
+                acceptToken(c)
+            }
+        }
+    }
+
+    private fun acceptToken(c: Int) {
+        when (state) {
+            START -> if (c == '{'.code || c == '['.code) open(c) else fail("Unexpected JSON root")
+            VALUE -> value(c)
+            VALUE_OR_END -> if (c == ']'.code) close(c) else value(c)
+            KEY -> key(c)
+            KEY_OR_END -> if (c == '}'.code) close(c) else key(c)
+            COLON -> if (c == ':'.code) state = VALUE else fail("Expected ':'")
+            AFTER_VALUE -> when (c) {
+                ','.code -> state = if (containers[depth - 1] == '{'.code.toByte()) KEY else VALUE
+                '}'.code, ']'.code -> close(c)
+                else -> fail("Expected ',' or end of container")
+            }
+
+            else -> fail("Unexpected data after JSON root")
+        }
+    }
+
+    private fun value(c: Int) {
+        when (c) {
+            '{'.code, '['.code -> open(c)
+            '"'.code -> {
+                stringIsKey = false
+                state = STRING
+            }
+
+            't'.code -> startLiteral(TRUE)
+            'f'.code -> startLiteral(FALSE)
+            'n'.code -> startLiteral(NULL)
+            '-'.code -> startNumber(N_SIGN)
+            '0'.code -> startNumber(N_ZERO)
+            in '1'.code..'9'.code -> startNumber(N_INT)
+            else -> fail("Expected a value")
+        }
+    }
+
+    private fun key(c: Int) {
+        if (c != '"'.code) fail("Expected a key")
+        stringIsKey = true
+        state = STRING
+    }
+
+    private fun open(c: Int) {
+        if (depth == maxDepth) fail("JSON nested too deeply")
+        if (depth == containers.size) containers = containers.copyOf(depth * 2)
+        containers[depth++] = c.toByte()
+        state = if (c == '{'.code) KEY_OR_END else VALUE_OR_END
+    }
+
+    private fun close(c: Int) {
+        val opening = if (c == '}'.code) '{'.code else '['.code
+        if (containers[depth - 1].toInt() != opening) fail("Mismatched end of container")
+        depth--
+        state = if (depth == 0) DONE else AFTER_VALUE
+    }
+
+    private fun startLiteral(expected: ByteArray) {
+        literal = expected
+        literalIndex = 1
+        state = LITERAL
+    }
+
+    private fun startNumber(first: Int) {
+        numberState = first
+        state = NUMBER
+    }
+
+    //false when [c] is not part of the number and the number may end before it
+    private fun acceptNumber(c: Int): Boolean {
+        val digit = c in '0'.code..'9'.code
+        val exponent = c == 'e'.code || c == 'E'.code
+        numberState = when (numberState) {
+            N_SIGN -> when {
+                c == '0'.code -> N_ZERO
+                digit -> N_INT
+                else -> fail("Invalid number")
+            }
+
+            N_ZERO -> when {
+                c == '.'.code -> N_POINT
+                exponent -> N_EXPONENT
+                else -> return false
+            }
+
+            N_INT -> when {
+                digit -> N_INT
+                c == '.'.code -> N_POINT
+                exponent -> N_EXPONENT
+                else -> return false
+            }
+
+            N_POINT -> if (digit) N_FRACTION else fail("Invalid number")
+            N_FRACTION -> when {
+                digit -> N_FRACTION
+                exponent -> N_EXPONENT
+                else -> return false
+            }
+
+            N_EXPONENT -> when {
+                digit -> N_EXPONENT_DIGITS
+                c == '+'.code || c == '-'.code -> N_EXPONENT_SIGN
+                else -> fail("Invalid number")
+            }
+
+            N_EXPONENT_SIGN -> if (digit) N_EXPONENT_DIGITS else fail("Invalid number")
+            else -> if (digit) N_EXPONENT_DIGITS else return false
+        }
+        return true
+    }
+
+    private fun fail(message: String): Nothing {
+        throw IllegalArgumentException("$message at byte $position")
+    }
+}
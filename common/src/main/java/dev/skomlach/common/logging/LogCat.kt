@@ -25,6 +25,12 @@ import dev.skomlach.common.BuildConfig
 
 object LogCat {
     var DEBUG = BuildConfig.DEBUG
+
+    /**
+     * Receives [trace] spans; the system trace by default, a [TraceRing] in tests.
+     */
+    var traceSink: TraceSink = SystemTraceSink
+
     fun logError(vararg msgs: Any?) {
         if (DEBUG) Log.e("LogCat", "${listOf(*msgs)}")
     }
@@ -48,4 +54,54 @@ object LogCat {
             Log.d("LogCat", "${listOf(*msgs)}".toString())
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Lazy form for hot paths: [message] is evaluated, and anything allocated, only when [DEBUG]
+     * is on. Prints the same as `log(tag, message)`.
+     */
+    inline fun log(tag: String, message: () -> Any?) {
+        if (DEBUG) Log.d("LogCat", format(tag, message()))
+    }
+
+    inline fun logError(tag: String, message: () -> Any?) {
+        if (DEBUG) Log.e("LogCat", format(tag, message()))
+    }
+
+    /**
+     * Structured lazy form, `log(TAG, "frame") { field("faces", 2) }` prints `[TAG, frame faces=2]`.
+     */
+    inline fun log(tag: String, event: String, fields: LogFields.() -> Unit) {
+        if (DEBUG) Log.d("LogCat", format(tag, LogFields(event).apply(fields)))
+    }
+
+    /**
+     * Runs [block] inside a [traceSink] span named [section]; only [block] runs when [DEBUG] is off.
+     */
+    inline fun <T> trace(section: String, block: () -> T): T {
+        if (!DEBUG) return block()
+        val sink = traceSink
+        sink.begin(section)
+        try {
+            return block()
+        } finally {
+            sink.end()
+        }
+    }
+
+    @PublishedApi
+    internal fun format(tag: String, message: Any?): String = "[$tag, $message]"
+}
+
+class LogFields @PublishedApi internal constructor(event: String) {
+    private val builder = StringBuilder(event)
+
+    fun field(name: String, value: Any?) {
+        builder.append(' ').append(name).append('=').append(value)
+    }
+
+    fun field(name: String, value: FloatArray?) {
+        field(name, value?.contentToString())
+    }
+
+    override fun toString(): String = builder.toString()
+}
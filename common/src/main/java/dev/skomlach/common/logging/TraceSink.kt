@@ -0,0 +1,80 @@
+/*
+ *  Copyright (c) 2023 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.logging
+
+import android.os.Trace
+
+/**
+ * Destination of [LogCat.trace] spans; [begin] and [end] pair up per thread.
+ */
+interface TraceSink {
+    fun begin(name: String)
+    fun end()
+}
+
+internal object SystemTraceSink : TraceSink {
+    private const val MAX_SECTION_NAME_LENGTH = 127
+
+    override fun begin(name: String) {
+        Trace.beginSection(name.take(MAX_SECTION_NAME_LENGTH))
+    }
+
+    override fun end() {
+        Trace.endSection()
+    }
+}
+
+/**
+ * Keeps the last [capacity] closed spans in memory.
+ */
+class TraceRing @JvmOverloads constructor(
+    private val capacity: Int = 256,
+    private val clock: () -> Long = System::nanoTime
+) : TraceSink {
+    class Span(val name: String, val depth: Int, val startNanos: Long, val durationNanos: Long)
+
+    private class Open(val name: String, val startNanos: Long)
+
+    private val open = object : ThreadLocal<ArrayList<Open>>() {
+        override fun initialValue() = ArrayList<Open>()
+    }
+    private val closed = ArrayDeque<Span>(capacity)
+
+    override fun begin(name: String) {
+        open.get()!!.add(Open(name, clock()))
+    }
+
+    override fun end() {
+        val stack = open.get()!!
+        if (stack.isEmpty()) return
+        val span = stack.removeAt(stack.size - 1)
+        val now = clock()
+        synchronized(closed) {
+            if (closed.size == capacity) closed.removeFirst()
+            closed.addLast(Span(span.name, stack.size, span.startNanos, now - span.startNanos))
+        }
+    }
+
+    fun spans(): List<Span> = synchronized(closed) { closed.toList() }
+
+    fun clear() {
+        synchronized(closed) { closed.clear() }
+    }
+}
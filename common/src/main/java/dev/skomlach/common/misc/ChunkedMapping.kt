@@ -0,0 +1,61 @@
+package dev.skomlach.common.misc
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Applies [transform] to every item, splitting large inputs into chunks that run on [executor].
+ *
+ * The calling thread claims chunks as well and only waits for the ones a helper already picked
+ * up, so a busy or saturated executor slows the call down but never blocks it. Results keep the
+ * order of [items]; the first failure is rethrown on the calling thread.
+ */
+internal fun <T, R> mapInChunks(
+    items: List<T>,
+    executor: Executor?,
+    parallelThreshold: Int,
+    chunkSize: Int,
+    transform: (T) -> R
+): List<R> {
+    if (executor == null || parallelThreshold <= 0 || items.size < parallelThreshold) {
+        return items.map(transform)
+    }
+    val chunkCount = (items.size + chunkSize - 1) / chunkSize
+    val results = arrayOfNulls<Any?>(items.size)
+    val nextChunk = AtomicInteger(0)
+    val done = CountDownLatch(chunkCount)
+    val failure = AtomicReference<Throwable?>(null)
+
+    val worker = Runnable {
+        while (true) {
+            val chunk = nextChunk.getAndIncrement()
+            if (chunk >= chunkCount) break
+            try {
+                if (failure.get() == null) {
+                    val end = minOf(items.size, (chunk + 1) * chunkSize)
+                    for (i in chunk * chunkSize until end) {
+                        results[i] = transform(items[i])
+                    }
+                }
+            } catch (e: Throwable) {
+                failure.compareAndSet(null, e)
+            } finally {
+                done.countDown()
+            }
+        }
+    }
+    repeat(chunkCount - 1) {
+        try {
+            executor.execute(worker)
+        } catch (_: Throwable) {
+            //Rejected helpers are fine, the calling thread drains whatever is left
+        }
+    }
+    worker.run()
+    done.await()
+    failure.get()?.let { throw it }
+    @Suppress("UNCHECKED_CAST")
+    return results.asList() as List<R>
+}
@@ -22,6 +22,7 @@ package dev.skomlach.common.misc
 import android.os.Handler
 import android.os.Looper
 import dev.skomlach.common.logging.LogCat
+import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineExceptionHandler
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Runnable
@@ -30,13 +31,16 @@ import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.delay as coroutineDelay
 import java.util.concurrent.Executor
-import java.util.concurrent.Executors
-import java.util.concurrent.ThreadFactory
-import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.RejectedExecutionException
 
 object ExecutorHelper {
-    private const val MAX_BACKGROUND_THREADS = 8
-    private val backgroundThreadCounter = AtomicInteger(0)
+    private const val IO_THREADS = 8
+    private const val CRITICAL_THREADS = 2
+    private const val PREFETCH_THREADS = 2
+    private const val COMPUTE_QUEUE_CAPACITY = 256
+    private const val IO_QUEUE_CAPACITY = 512
+    private const val PREFETCH_QUEUE_CAPACITY = 64
+    private const val OVERFLOW_RETRY_DELAY_MS = 16L
 
     val handler: Handler by lazy {
         Handler(Looper.getMainLooper())
@@ -45,23 +49,66 @@ object ExecutorHelper {
         HandlerExecutor()
     }
 
-    val backgroundExecutor: Executor = Executors.newFixedThreadPool(
-        MAX_BACKGROUND_THREADS,
-        ThreadFactory { runnable ->
-            Thread(
-                runnable,
-                "BiometricCompat-bg-${backgroundThreadCounter.incrementAndGet()}"
-            ).apply {
-                isDaemon = true
-            }
+    private val lanes: Map<TaskLane, LaneExecutor> = TaskLane.values().associateWith { lane ->
+        when (lane) {
+            TaskLane.CRITICAL -> createLane(
+                "critical", CRITICAL_THREADS, Int.MAX_VALUE, Thread.NORM_PRIORITY + 1, LaneOverflow.CALLER_RUNS
+            )
+
+            TaskLane.COMPUTE -> createLane(
+                "compute",
+                Runtime.getRuntime().availableProcessors().coerceAtLeast(2),
+                COMPUTE_QUEUE_CAPACITY,
+                Thread.NORM_PRIORITY,
+                LaneOverflow.CALLER_RUNS
+            )
+
+            TaskLane.IO -> createLane(
+                "bg", IO_THREADS, IO_QUEUE_CAPACITY, Thread.NORM_PRIORITY, LaneOverflow.CALLER_RUNS
+            )
+
+            TaskLane.PREFETCH -> createLane(
+                "prefetch", PREFETCH_THREADS, PREFETCH_QUEUE_CAPACITY, Thread.MIN_PRIORITY, LaneOverflow.REJECT
+            )
         }
+    }
+
+    private val dispatchers: Map<TaskLane, CoroutineDispatcher> =
+        lanes.mapValues { (_, lane) -> lane.asCoroutineDispatcher() }
+
+    private fun createLane(
+        name: String,
+        threads: Int,
+        queueCapacity: Int,
+        priority: Int,
+        overflow: LaneOverflow
+    ) = LaneExecutor(
+        name,
+        threads,
+        queueCapacity,
+        priority,
+        overflow,
+        callerMayBlock = { Looper.myLooper() != Looper.getMainLooper() },
+        retryLater = { handler.postDelayed(it, OVERFLOW_RETRY_DELAY_MS) }
     )
 
-    private val dispatcher = backgroundExecutor.asCoroutineDispatcher()
+    /**
+     * Executor of the [TaskLane.IO] lane, which also backs [scope] and [startOnBackground].
+     */
+    val backgroundExecutor: Executor = executor(TaskLane.IO)
+
+    fun executor(lane: TaskLane): Executor = lanes.getValue(lane)
+
+    /**
+     * Coroutine dispatcher of [lane]. A coroutine dispatched to a full [TaskLane.PREFETCH] lane is
+     * cancelled.
+     */
+    fun dispatcher(lane: TaskLane): CoroutineDispatcher = dispatchers.getValue(lane)
+
     private val exceptionHandler = CoroutineExceptionHandler { _, throwable ->
         LogCat.logException(throwable, "ExecutorHelper")
     }
-    val scope = CoroutineScope(SupervisorJob() + dispatcher + exceptionHandler)
+    val scope = CoroutineScope(SupervisorJob() + dispatcher(TaskLane.IO) + exceptionHandler)
 
     fun startOnBackground(task: Runnable, delay: Long) {
         scope.launch {
@@ -75,13 +122,40 @@ object ExecutorHelper {
     }
 
     fun startOnBackground(task: Runnable) {
-        scope.launch {
+        startOnBackground(TaskLane.IO, null, task)
+    }
+
+    fun startOnBackground(lane: TaskLane, task: Runnable) {
+        startOnBackground(lane, null, task)
+    }
+
+    /**
+     * Runs [task] on [lane]. Tasks sharing a [tag] can be cancelled together with [cancel].
+     */
+    fun startOnBackground(lane: TaskLane, tag: Any?, task: Runnable) {
+        val guarded = Runnable {
             runCatching {
                 task.run()
             }.onFailure {
                 LogCat.logException(it, "startOnBackground")
             }
         }
+        try {
+            if (tag == null) {
+                lanes.getValue(lane).execute(guarded)
+            } else {
+                lanes.getValue(lane).execute(tag, guarded)
+            }
+        } catch (e: RejectedExecutionException) {
+            LogCat.log("ExecutorHelper", "Dropped ${lane.name} task: ${e.message}")
+        }
+    }
+
+    /**
+     * Cancels the pending and running tasks submitted under [tag] in every lane.
+     */
+    fun cancel(tag: Any) {
+        lanes.values.forEach { it.cancel(tag) }
     }
 
     fun postDelayed(task: Runnable, delay: Long) {
@@ -0,0 +1,132 @@
+package dev.skomlach.common.misc
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Background lanes of [ExecutorHelper]. Each lane has its own threads, so work in one lane never
+ * waits behind a backlog in another.
+ */
+enum class TaskLane {
+    /** Work a visible prompt is waiting on; never bounded. */
+    CRITICAL,
+
+    /** CPU-bound work, sized to the core count. */
+    COMPUTE,
+
+    /** Blocking disk and network I/O; the default lane. */
+    IO,
+
+    /** Best-effort prefetch and refresh; rejected instead of queued when the lane is full. */
+    PREFETCH
+}
+
+internal enum class LaneOverflow {
+    /**
+     * A full lane makes a background submitter run the task itself; submissions from a thread
+     * that must not block are retried later instead.
+     */
+    CALLER_RUNS,
+
+    /** A full lane throws [RejectedExecutionException]. */
+    REJECT
+}
+
+/**
+ * Fixed size pool with a bounded queue whose tasks can be grouped under a tag and cancelled
+ * together. Idle threads exit after [keepAliveMs].
+ */
+internal class LaneExecutor(
+    private val name: String,
+    threads: Int,
+    queueCapacity: Int,
+    threadPriority: Int,
+    private val overflow: LaneOverflow,
+    private val callerMayBlock: () -> Boolean,
+    private val retryLater: (Runnable) -> Unit,
+    keepAliveMs: Long = 30_000L
+) : Executor {
+    private inner class TaggedTask(val tag: Any, command: Runnable) : FutureTask<Unit>(command, Unit) {
+        override fun done() {
+            tagged.computeIfPresent(tag) { _, tasks ->
+                tasks.remove(this)
+                tasks.ifEmpty { null }
+            }
+        }
+    }
+
+    private val threadCounter = AtomicInteger(0)
+    private val tagged = ConcurrentHashMap<Any, MutableSet<TaggedTask>>()
+
+    private val queue: BlockingQueue<Runnable> =
+        if (queueCapacity == Int.MAX_VALUE) LinkedBlockingQueue() else ArrayBlockingQueue(queueCapacity)
+
+    private val pool = ThreadPoolExecutor(
+        threads,
+        threads,
+        keepAliveMs,
+        TimeUnit.MILLISECONDS,
+        queue,
+        ThreadFactory { runnable ->
+            Thread(runnable, "BiometricCompat-$name-${threadCounter.incrementAndGet()}").apply {
+                isDaemon = true
+                priority = threadPriority
+            }
+        },
+        RejectedExecutionHandler { runnable, executor ->
+            when {
+                executor.isShutdown || overflow == LaneOverflow.REJECT ->
+                    throw RejectedExecutionException("$name lane is full")
+
+                callerMayBlock() -> runnable.run()
+                else -> retryLater(Runnable { execute(runnable) })
+            }
+        }
+    ).apply {
+        allowCoreThreadTimeOut(true)
+    }
+
+    val queuedTasks: Int
+        get() = queue.size
+
+    override fun execute(command: Runnable) {
+        pool.execute(command)
+    }
+
+    fun execute(tag: Any, command: Runnable) {
+        val task = TaggedTask(tag, command)
+        tagged.compute(tag) { _, tasks ->
+            (tasks ?: ConcurrentHashMap.newKeySet()).apply { add(task) }
+        }
+        try {
+            pool.execute(task)
+        } catch (e: RejectedExecutionException) {
+            task.cancel(false)
+            throw e
+        }
+    }
+
+    /**
+     * Drops queued tasks submitted under [tag] and interrupts the running ones.
+     * @return the number of tasks cancelled
+     */
+    fun cancel(tag: Any): Int {
+        val tasks = tagged.remove(tag) ?: return 0
+        var cancelled = 0
+        for (task in tasks) {
+            pool.remove(task)
+            if (task.cancel(true)) cancelled++
+        }
+        return cancelled
+    }
+}
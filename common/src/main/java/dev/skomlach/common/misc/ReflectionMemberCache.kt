@@ -0,0 +1,148 @@
+/*
+ *  Copyright (c) 2023 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.misc
+
+import android.content.Context
+import java.lang.reflect.Constructor
+import java.lang.reflect.Member
+import java.lang.reflect.Method
+import java.lang.reflect.Modifier
+
+/**
+ * Members found by the [ReflectionTools] signature scans, in scan order; an empty list is a
+ * cached miss.
+ *
+ * Results are kept per class in memory for the life of the process and, through [persisted],
+ * across launches as member signatures. A persisted entry is only trusted while [versionOf] the class is unchanged and
+ * every listed member still resolves, otherwise the class is scanned again.
+ */
+internal class ReflectionMemberCache(
+    private val persisted: Persisted?,
+    private val versionOf: (Class<*>) -> String
+) {
+    interface Persisted {
+        fun get(key: String): String?
+        fun put(key: String, value: String)
+    }
+
+    companion object {
+        private const val FORMAT = "1"
+        private const val CONSTRUCTOR = "<init>"
+        private const val CONTEXT_SUFFIX = "(Context)"
+    }
+
+    //Members reference their declaring class, so entries would pin their keys in a weak map anyway;
+    //the scanned classes are framework managers that live as long as the process
+    private val memory = HashMap<Class<*>, HashMap<String, List<Member>>>()
+
+    fun booleanGetters(clazz: Class<*>, keywords: Array<out String?>): List<Method> {
+        val query = "bool:" + keywords.filterNot { it.isNullOrEmpty() }.joinToString(",")
+        @Suppress("UNCHECKED_CAST")
+        return resolve(clazz, query) {
+            clazz.methods.filter { m ->
+                Modifier.isPublic(m.modifiers) &&
+                        m.parameterTypes.isEmpty() &&
+                        (m.returnType == java.lang.Boolean.TYPE || m.returnType == java.lang.Boolean::class.java) &&
+                        keywords.any { !it.isNullOrEmpty() && m.name.contains(it) }
+            }
+        } as List<Method>
+    }
+
+    fun intGetters(clazz: Class<*>, startWith: String): List<Method> {
+        @Suppress("UNCHECKED_CAST")
+        return resolve(clazz, "int:$startWith") {
+            clazz.methods.filter { m ->
+                Modifier.isPublic(m.modifiers) &&
+                        m.parameterTypes.isEmpty() &&
+                        (m.returnType == Integer.TYPE || m.returnType == Integer::class.java) &&
+                        m.name.startsWith(startWith)
+            }
+        } as List<Method>
+    }
+
+    /**
+     * Public static factories returning the class, or one of its supertypes, followed by public
+     * constructors; all either without parameters or taking a [Context].
+     */
+    fun instanceFactories(clazz: Class<*>): List<Member> {
+        return resolve(clazz, "instance") {
+            val factories = ArrayList<Member>()
+            for (m in clazz.methods) {
+                if (!Modifier.isPublic(m.modifiers) || !Modifier.isStatic(m.modifiers)) continue
+                val returned = m.returnType
+                if (returned == Void.TYPE || returned == Any::class.java) continue
+                if (returned != clazz && returned != clazz.superclass && returned !in clazz.interfaces) continue
+                if (takesNothingOrContext(m.parameterTypes)) factories += m
+            }
+            for (c in clazz.constructors) {
+                if (Modifier.isPublic(c.modifiers) && takesNothingOrContext(c.parameterTypes)) {
+                    factories += c
+                }
+            }
+            factories
+        }
+    }
+
+    private fun takesNothingOrContext(parameters: Array<Class<*>>): Boolean =
+        parameters.isEmpty() || (parameters.size == 1 && parameters[0].name == Context::class.java.name)
+
+    private fun resolve(clazz: Class<*>, query: String, scan: () -> List<Member>): List<Member> {
+        synchronized(memory) {
+            memory[clazz]?.get(query)?.let { return it }
+        }
+        val key = clazz.name + "|" + query
+        val version = FORMAT + ":" + versionOf(clazz)
+        val members = persisted?.get(key)?.let { restore(clazz, version, it) }
+            ?: scan().also { persisted?.put(key, encode(version, it)) }
+        synchronized(memory) {
+            memory.getOrPut(clazz) { HashMap() }[query] = members
+        }
+        return members
+    }
+
+    private fun encode(version: String, members: List<Member>): String {
+        return buildString {
+            append(version)
+            for (member in members) {
+                append('\n')
+                append(if (member is Constructor<*>) CONSTRUCTOR else member.name)
+                val parameters = if (member is Method) member.parameterTypes else (member as Constructor<*>).parameterTypes
+                if (parameters.isNotEmpty()) append(CONTEXT_SUFFIX)
+            }
+        }
+    }
+
+    private fun restore(clazz: Class<*>, version: String, encoded: String): List<Member>? {
+        val lines = encoded.split('\n')
+        if (lines.first() != version) return null
+        return try {
+            lines.drop(1).map { signature ->
+                val withContext = signature.endsWith(CONTEXT_SUFFIX)
+                val name = signature.removeSuffix(CONTEXT_SUFFIX)
+                val parameters = if (withContext) arrayOf<Class<*>>(Context::class.java) else emptyArray()
+                if (name == CONSTRUCTOR) clazz.getConstructor(*parameters) else clazz.getMethod(name, *parameters)
+            }
+        } catch (_: NoSuchMethodException) {
+            null
+        } catch (_: SecurityException) {
+            null
+        }
+    }
+}
@@ -19,42 +19,100 @@
 
 package dev.skomlach.common.misc
 
-import android.content.Context
 import android.content.pm.PackageManager
+import android.os.Build
+import androidx.core.content.pm.PackageInfoCompat
 import androidx.core.os.BuildCompat
 import dalvik.system.PathClassLoader
 import dev.skomlach.common.contextprovider.AndroidContext.appContext
 import dev.skomlach.common.logging.LogCat.log
 import dev.skomlach.common.logging.LogCat.logException
-import java.lang.reflect.Modifier
+import dev.skomlach.common.storage.SharedPreferenceProvider.getPreferences
+import java.lang.reflect.Constructor
+import java.lang.reflect.Method
 import java.util.WeakHashMap
 
 
 object ReflectionTools {
 
+    private const val PREF_NAME = "BiometricCompat_ReflectionTools"
+
     private val cache = WeakHashMap<String, PathClassLoader>()
 
+    //Version codes of the packages behind getPathClassLoaderForPkg loaders
+    private val loaderVersions = WeakHashMap<ClassLoader, Long>()
+
+    private val members = ReflectionMemberCache(
+        object : ReflectionMemberCache.Persisted {
+            override fun get(key: String): String? = try {
+                getPreferences(PREF_NAME).getString(key, null)
+            } catch (e: Throwable) {
+                logException(e)
+                null
+            }
+
+            override fun put(key: String, value: String) {
+                try {
+                    getPreferences(PREF_NAME).edit().putString(key, value).apply()
+                } catch (e: Throwable) {
+                    logException(e)
+                }
+            }
+        }
+    ) { clazz ->
+        val packageVersion = synchronized(loaderVersions) { loaderVersions[clazz.classLoader] }
+        if (packageVersion == null) {
+            "${Build.FINGERPRINT}#host:$hostVersion"
+        } else {
+            "${Build.FINGERPRINT}#pkg:$packageVersion"
+        }
+    }
+
+    //Classes outside package loaders come from the framework or the host app, which can be
+    //updated without a new fingerprint
+    private val hostVersion: String by lazy {
+        try {
+            val info = appContext.packageManager.getPackageInfo(appContext.packageName, 0)
+            "${PackageInfoCompat.getLongVersionCode(info)}@${info.lastUpdateTime}"
+        } catch (e: Throwable) {
+            logException(e)
+            //Unknown install, nothing persisted by this process is reused by the next one
+            "process@${System.currentTimeMillis()}"
+        }
+    }
+
     @Throws(Exception::class)
     fun getPathClassLoaderForPkg(pkg: String): PathClassLoader {
-        var pathClassLoader = cache[pkg]
-        if (pathClassLoader == null) {
-            var apkName: String? = null
-            try {
-                apkName = appContext.packageManager.getApplicationInfo(
-                    pkg, 0
+        synchronized(cache) {
+            cache[pkg]?.let { return it }
+        }
+        var apkName: String? = null
+        try {
+            apkName = appContext.packageManager.getApplicationInfo(
+                pkg, 0
+            ).sourceDir
+        } catch (e: Throwable) {
+            if (BuildCompat.isAtLeastN()) apkName =
+                appContext.packageManager.getApplicationInfo(
+                    pkg, PackageManager.MATCH_SYSTEM_ONLY
                 ).sourceDir
-            } catch (e: Throwable) {
-                if (BuildCompat.isAtLeastN()) apkName =
-                    appContext.packageManager.getApplicationInfo(
-                        pkg, PackageManager.MATCH_SYSTEM_ONLY
-                    ).sourceDir
-            }
-            pathClassLoader = PathClassLoader(
-                apkName,
-                ClassLoader.getSystemClassLoader()
-            )
+        }
+        val pathClassLoader = PathClassLoader(
+            apkName,
+            ClassLoader.getSystemClassLoader()
+        )
+        val version = try {
+            PackageInfoCompat.getLongVersionCode(appContext.packageManager.getPackageInfo(pkg, 0))
+        } catch (e: Throwable) {
+            null
+        }
+        synchronized(cache) {
+            cache[pkg]?.let { return it }
             cache[pkg] = pathClassLoader
         }
+        if (version != null) {
+            synchronized(loaderVersions) { loaderVersions[pathClassLoader] = version }
+        }
         return pathClassLoader
     }
 
@@ -74,31 +132,10 @@ object ReflectionTools {
         vararg keywords: String?
     ): Boolean {
         try {
-            val allMethods = clazz.methods
-            for (m in allMethods) {
+            for (m in members.booleanGetters(clazz, keywords)) {
                 try {
-                    val isReturnBoolean =
-                        Boolean::class.javaPrimitiveType?.name == m.returnType.name || Boolean::class.java.name == m.returnType.name
-                    var containsKeyword = false
-                    val name = m.name
-                    for (s in keywords) {
-                        if (!s.isNullOrEmpty() && name.contains(s)) {
-                            containsKeyword = true
-                            break
-                        }
-                    }
-                    if (Modifier.isPublic(m.modifiers) && isReturnBoolean && containsKeyword) {
-                        log("Method: " + m.name)
-                        if (m.parameterTypes.isEmpty()) try {
-                            return if (Boolean::class.javaPrimitiveType?.name == m.returnType.name) {
-                                m.invoke(managerObject) as Boolean
-                            } else {
-                                m.invoke(managerObject) as Boolean
-                            }
-                        } catch (e: Throwable) {
-                            logException(e)
-                        }
-                    }
+                    log("Method: " + m.name)
+                    return m.invoke(managerObject) as Boolean
                 } catch (e: Throwable) {
                     logException(e)
                 }
@@ -111,23 +148,10 @@ object ReflectionTools {
 
     fun checkIntMethodForSignature(clazz: Class<*>, managerObject: Any?, startWith: String): Int {
         try {
-            val allMethods = clazz.methods
-            for (m in allMethods) {
+            for (m in members.intGetters(clazz, startWith)) {
                 try {
-                    val isReturnInt =
-                        Int::class.javaPrimitiveType?.name == m.returnType.name || Int::class.java.name == m.returnType.name
-                    if (Modifier.isPublic(m.modifiers) && isReturnInt && m.name.startsWith(startWith)) {
-                        log("Method: " + m.name)
-                        if (m.parameterTypes.isEmpty()) try {
-                            return if (Int::class.javaPrimitiveType?.name == m.returnType.name) {
-                                m.invoke(managerObject) as Int
-                            } else {
-                                m.invoke(managerObject) as Int
-                            }
-                        } catch (e: Throwable) {
-                            logException(e)
-                        }
-                    }
+                    log("Method: " + m.name)
+                    return m.invoke(managerObject) as Int
                 } catch (e: Throwable) {
                     logException(e)
                 }
@@ -140,64 +164,26 @@ object ReflectionTools {
 
     fun callGetOrCreateInstance(target: Class<*>): Any? {
         try {
-            val array = target.methods
-            for (m in array) {
+            for (factory in members.instanceFactories(target)) {
                 try {
-                    if (Modifier.isPublic(m.modifiers) && Modifier.isStatic(m.modifiers)) {
-                        val returnedType = m.returnType
-                        if (returnedType == Void.TYPE || returnedType == Any::class.java) continue
-                        if (returnedType == target || returnedType == target.superclass || listOf(
-                                *target.interfaces
-                            ).contains(returnedType)
-                        ) {
-                            log("Method: " + m.name)
-                            try {
-                                if (m.parameterTypes.size == 1 && m
-                                        .parameterTypes[0].name == Context::class.java.name
-                                ) {
-                                    //Case for SomeManager.getInstance(Context)
-                                    return m.invoke(null, appContext)
-                                } else if (m.parameterTypes.isEmpty()) {
-                                    //Case for SomeManager.getInstance()
-                                    return m.invoke(null)
-                                }
-                            } catch (e: Throwable) {
-                                //FIXME:
-                                //Deal with Caused by: java.lang.SecurityException: Permission Denial: get/set setting for user asks to run as user -2 but is calling from user 0; this requires android.permission.INTERACT_ACROSS_USERS_FULL
-                                logException(e)
-                            }
+                    when (factory) {
+                        is Method -> {
+                            log("Method: " + factory.name)
+                            //Case for SomeManager.getInstance() or SomeManager.getInstance(Context)
+                            return if (factory.parameterTypes.isEmpty()) factory.invoke(null)
+                            else factory.invoke(null, appContext)
                         }
-                    }
-                } catch (e: Throwable) {
-                    logException(e)
-                }
-            }
-        } catch (e: Throwable) {
-            logException(e)
-        }
-        try {
-            val array = target.constructors
-            for (c in array) {
-                try {
-                    if (Modifier.isPublic(c.modifiers)) {
-                        log("Constructor: " + c.name)
-                        try {
-                            if (c.parameterTypes.size == 1 && c
-                                    .parameterTypes[0].name == Context::class.java.name
-                            ) {
-                                //Case for new SomeManager(Context)
-                                return c.newInstance(appContext)
-                            } else if (c.parameterTypes.isEmpty()) {
-                                //Case for new SomeManager()
-                                return c.newInstance()
-                            }
-                        } catch (e: Throwable) {
-                            //FIXME:
-                            //Deal with Caused by: java.lang.SecurityException: Permission Denial: get/set setting for user asks to run as user -2 but is calling from user 0; this requires android.permission.INTERACT_ACROSS_USERS_FULL
-                            logException(e)
+
+                        is Constructor<*> -> {
+                            log("Constructor: " + factory.name)
+                            //Case for new SomeManager() or new SomeManager(Context)
+                            return if (factory.parameterTypes.isEmpty()) factory.newInstance()
+                            else factory.newInstance(appContext)
                         }
                     }
                 } catch (e: Throwable) {
+                    //FIXME:
+                    //Deal with Caused by: java.lang.SecurityException: Permission Denial: get/set setting for user asks to run as user -2 but is calling from user 0; this requires android.permission.INTERACT_ACROSS_USERS_FULL
                     logException(e)
                 }
             }
@@ -206,4 +192,4 @@ object ReflectionTools {
         }
         return null
     }
-}
\ No newline at end of file
+}
@@ -76,7 +76,7 @@ object Utils {
     private fun schedulePrefetch(stringIds: Array<Int>) {
         synchronized(prefetchLock) {
             prefetchJob?.cancel()
-            prefetchJob = ExecutorHelper.scope.launch {
+            prefetchJob = ExecutorHelper.scope.launch(ExecutorHelper.dispatcher(TaskLane.PREFETCH)) {
                 try {
                     LocalizationHelper.prefetch(
                         AndroidContext.appContext,
@@ -27,13 +27,21 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import java.io.BufferedReader
 import java.io.File
-import java.io.FileReader
 import java.net.InetAddress
 import java.net.Socket
 
 object HookDetection {
+    private const val BUFFER_SIZE = 16 * 1024
+    private const val MAX_MAPS_BYTES = 32L * 1024 * 1024
+    private const val MAX_TASKS = 1024
+
+    private val mappingScanner by lazy {
+        MultiPatternScanner(listOf("frida", "gum-js-loop", "gmain", "xposed", "substrate"))
+    }
+    private val threadScanner by lazy {
+        MultiPatternScanner(listOf("frida", "gum-js-loop", "gmain", "gdbus"))
+    }
     private var job: Job? = null
     private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
 
@@ -48,14 +56,15 @@ object HookDetection {
     }
 
     private fun hooksDetection(): Boolean {
+        val buffer = ByteArray(BUFFER_SIZE)
 
         if (checkDebuggerAttached()) return true
 
         if (checkTracerPid()) return true
 
-        if (checkSuspiciousThreads()) return true
+        if (checkSuspiciousThreads(buffer)) return true
 
-        if (checkMemoryMappings()) return true
+        if (checkMemoryMappings(buffer)) return true
 
         if (checkSuspiciousClasses()) return true
 
@@ -89,55 +98,28 @@ object HookDetection {
         }
     }
 
-    private fun checkSuspiciousThreads(): Boolean {
-        val suspiciousNames = arrayOf("frida", "gum-js-loop", "gmain", "gdbus")
+    private fun checkSuspiciousThreads(buffer: ByteArray): Boolean {
         return try {
-            File("/proc/self/task").listFiles()?.any { task ->
-                val status = File(task, "status")
-                if (!status.exists()) return@any false
-                status.useLines { lines ->
-                    val name = lines.firstOrNull { it.startsWith("Name:") }
-                        ?.substringAfter(':')
-                        ?.trim()
-                        ?.lowercase()
-                    suspiciousNames.any { marker -> name?.contains(marker) == true }
-                }
-            } == true
+            val name = threadScanner.scanTaskNames(File("/proc/self/task"), buffer, MAX_TASKS)
+            if (name != null) LogCat.logError("HookDetection", "Found suspicious thread: $name")
+            name != null
         } catch (e: Throwable) {
             LogCat.logError("HookDetection", "Thread check error", e)
             false
         }
     }
 
-    private fun checkMemoryMappings(): Boolean {
-        val filesToScan = arrayOf("/proc/self/maps")
-        for (filePath in filesToScan) {
-            try {
-                val file = File(filePath)
-                if (!file.exists()) continue
-
-                BufferedReader(FileReader(file)).use { reader ->
-                    var line: String?
-                    while (reader.readLine().also { line = it } != null) {
-                        val mapLine = line?.lowercase() ?: continue
-
-                        if (mapLine.contains("frida") ||
-                            mapLine.contains("gum-js-loop") ||
-                            mapLine.contains("gmain") ||
-                            mapLine.contains("xposed") ||
-                            mapLine.contains("substrate") ||
-                            mapLine.contains("com.saurik.substrate")
-                        ) {
-                            LogCat.logError("HookDetection", "Found suspicious mapping: $mapLine")
-                            return true
-                        }
-                    }
-                }
-            } catch (e: Exception) {
-                LogCat.logError("HookDetection", "Mapping check error", e)
-            }
+    private fun checkMemoryMappings(buffer: ByteArray): Boolean {
+        return try {
+            val file = File("/proc/self/maps")
+            if (!file.exists()) return false
+            val pattern = mappingScanner.scanFile(file, buffer, MAX_MAPS_BYTES)
+            if (pattern != null) LogCat.logError("HookDetection", "Found suspicious mapping: $pattern")
+            pattern != null
+        } catch (e: Exception) {
+            LogCat.logError("HookDetection", "Mapping check error", e)
+            false
         }
-        return false
     }
 
     private fun checkSuspiciousClasses(): Boolean {
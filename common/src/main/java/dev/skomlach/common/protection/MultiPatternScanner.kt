@@ -0,0 +1,149 @@
+/*
+ *  Copyright (c) 2023 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.protection
+
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.Locale
+
+/**
+ * Aho-Corasick automaton matching ASCII [patterns] case-insensitively in a byte stream.
+ *
+ * The automaton is compiled into a full transition table with case folding built in, so a scan
+ * costs one array read per byte and allocates nothing.
+ */
+internal class MultiPatternScanner(patterns: List<String>) {
+    val patterns: List<String> = patterns.map { it.lowercase(Locale.ROOT) }
+
+    //(state shl 8) + byte -> next state
+    private val table: IntArray
+
+    //state -> index of a pattern ending there, or -1
+    private val output: IntArray
+
+    init {
+        val trie = ArrayList<IntArray>()
+        val ends = ArrayList<Int>()
+        trie += IntArray(256) { -1 }
+        ends += -1
+        this.patterns.forEachIndexed { index, pattern ->
+            require(pattern.isNotEmpty() && pattern.all { it.code < 128 }) { "Unsupported pattern: $pattern" }
+            var state = 0
+            for (ch in pattern) {
+                val c = ch.code
+                if (trie[state][c] == -1) {
+                    trie[state][c] = trie.size
+                    trie += IntArray(256) { -1 }
+                    ends += -1
+                }
+                state = trie[state][c]
+            }
+            if (ends[state] == -1) ends[state] = index
+        }
+
+        val states = trie.size
+        val fail = IntArray(states)
+        table = IntArray(states shl 8)
+        output = IntArray(states)
+        output[0] = -1
+        val queue = ArrayDeque<Int>()
+        for (c in 0 until 256) {
+            val next = trie[0][c]
+            if (next == -1) {
+                table[c] = 0
+            } else {
+                table[c] = next
+                queue.addLast(next)
+            }
+        }
+        while (queue.isNotEmpty()) {
+            val state = queue.removeFirst()
+            output[state] = if (ends[state] != -1) ends[state] else output[fail[state]]
+            for (c in 0 until 256) {
+                val next = trie[state][c]
+                val fallback = table[(fail[state] shl 8) + c]
+                if (next == -1) {
+                    table[(state shl 8) + c] = fallback
+                } else {
+                    fail[next] = fallback
+                    table[(state shl 8) + c] = next
+                    queue.addLast(next)
+                }
+            }
+        }
+        for (state in 0 until states) {
+            for (c in 'A'.code..'Z'.code) {
+                table[(state shl 8) + c] = table[(state shl 8) + c + ('a' - 'A')]
+            }
+        }
+    }
+
+    /**
+     * Reads at most [maxBytes] of [input] through [buffer].
+     *
+     * @return index in [patterns] of the first match, or -1
+     */
+    fun scan(input: InputStream, buffer: ByteArray, maxBytes: Long = Long.MAX_VALUE): Int {
+        var state = 0
+        var total = 0L
+        while (total < maxBytes) {
+            val read = input.read(buffer, 0, minOf(buffer.size.toLong(), maxBytes - total).toInt())
+            if (read <= 0) break
+            total += read
+            for (i in 0 until read) {
+                state = table[(state shl 8) + (buffer[i].toInt() and 0xff)]
+                if (output[state] >= 0) return output[state]
+            }
+        }
+        return -1
+    }
+}
+
+private const val MAX_COMM_BYTES = 64L
+
+/**
+ * @return the pattern found in the first [maxBytes] of [file], or null
+ */
+internal fun MultiPatternScanner.scanFile(file: File, buffer: ByteArray, maxBytes: Long): String? {
+    val found = FileInputStream(file).use { scan(it, buffer, maxBytes) }
+    return if (found >= 0) patterns[found] else null
+}
+
+/**
+ * Matches the `comm` name of up to [maxTasks] threads listed in [taskDir], such as
+ * /proc/self/task.
+ *
+ * @return the pattern found in a thread name, or null
+ */
+internal fun MultiPatternScanner.scanTaskNames(taskDir: File, buffer: ByteArray, maxTasks: Int): String? {
+    val tasks = taskDir.list() ?: return null
+    for (i in 0 until minOf(tasks.size, maxTasks)) {
+        val found = try {
+            FileInputStream(File(taskDir, tasks[i] + "/comm")).use { scan(it, buffer, MAX_COMM_BYTES) }
+        } catch (_: IOException) {
+            //The thread is gone
+            -1
+        }
+        if (found >= 0) return patterns[found]
+    }
+    return null
+}
@@ -0,0 +1,99 @@
+package dev.skomlach.common.storage
+
+import java.security.MessageDigest
+
+internal const val CONFIG_ID_LENGTH = 8
+private const val TAGGED_VALUE_PREFIX = "k1:"
+private const val LEGACY_KEY_NAME_PREFIX = "e2_"
+private const val TAGGED_KEY_NAME_PREFIX = "e3_"
+
+/**
+ * Ciphertext split from its envelope; [configId] is null for entries written before tagging.
+ */
+internal class TaggedCiphertext(
+    val configId: String?,
+    val payload: String
+)
+
+internal class TaggedDecryption<S, T>(
+    val value: T,
+    val slot: S
+)
+
+/**
+ * Short stable identifier of an encryption config, derived without running the key derivation.
+ */
+internal fun encryptionConfigId(password: ByteArray, salt: ByteArray): String {
+    val digest = MessageDigest.getInstance("SHA-256").apply {
+        update("cfg-id".toByteArray(Charsets.UTF_8))
+        update(password)
+        update(salt)
+    }.digest()
+    val builder = StringBuilder(CONFIG_ID_LENGTH)
+    for (i in 0 until CONFIG_ID_LENGTH / 2) {
+        val byte = digest[i].toInt() and 0xff
+        builder.append(Character.forDigit(byte ushr 4, 16))
+        builder.append(Character.forDigit(byte and 0x0f, 16))
+    }
+    return builder.toString()
+}
+
+internal fun tagValue(configId: String, ciphertext: String): String {
+    return "$TAGGED_VALUE_PREFIX$configId:$ciphertext"
+}
+
+internal fun parseTaggedValue(raw: String): TaggedCiphertext {
+    if (raw.startsWith(TAGGED_VALUE_PREFIX)) {
+        val idEnd = TAGGED_VALUE_PREFIX.length + CONFIG_ID_LENGTH
+        if (raw.length > idEnd && raw[idEnd] == ':') {
+            return TaggedCiphertext(
+                raw.substring(TAGGED_VALUE_PREFIX.length, idEnd),
+                raw.substring(idEnd + 1)
+            )
+        }
+    }
+    return TaggedCiphertext(null, raw)
+}
+
+/**
+ * Turns an `e2_` key name into `e3_<configId><payload>`; other names are returned unchanged.
+ */
+internal fun tagKeyName(configId: String, encryptedName: String): String {
+    if (!encryptedName.startsWith(LEGACY_KEY_NAME_PREFIX)) return encryptedName
+    return TAGGED_KEY_NAME_PREFIX + configId + encryptedName.substring(LEGACY_KEY_NAME_PREFIX.length)
+}
+
+/**
+ * Splits a tagged key name back into its config id and the `e2_` name the cipher understands.
+ */
+internal fun parseTaggedKeyName(raw: String): TaggedCiphertext {
+    val idEnd = TAGGED_KEY_NAME_PREFIX.length + CONFIG_ID_LENGTH
+    if (raw.startsWith(TAGGED_KEY_NAME_PREFIX) && raw.length > idEnd) {
+        return TaggedCiphertext(
+            raw.substring(TAGGED_KEY_NAME_PREFIX.length, idEnd),
+            LEGACY_KEY_NAME_PREFIX + raw.substring(idEnd)
+        )
+    }
+    return TaggedCiphertext(null, raw)
+}
+
+/**
+ * Decrypts [ciphertext] with the slot its tag names, so a tagged entry costs a single attempt.
+ * Untagged entries, and tagged ones whose slot fails, fall back to trying every slot in order.
+ */
+internal fun <S, T : Any> decryptTagged(
+    ciphertext: TaggedCiphertext,
+    slots: List<S>,
+    slotId: (S) -> String,
+    attempt: (S, String) -> T?
+): TaggedDecryption<S, T>? {
+    val tagged = ciphertext.configId?.let { id -> slots.firstOrNull { slotId(it) == id } }
+    if (tagged != null) {
+        attempt(tagged, ciphertext.payload)?.let { return TaggedDecryption(it, tagged) }
+    }
+    for (slot in slots) {
+        if (slot === tagged) continue
+        attempt(slot, ciphertext.payload)?.let { return TaggedDecryption(it, slot) }
+    }
+    return null
+}
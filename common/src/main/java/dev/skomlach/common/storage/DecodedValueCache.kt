@@ -0,0 +1,57 @@
+package dev.skomlach.common.storage
+
+internal class CachedValue(val value: Any?)
+
+/**
+ * Bounded LRU of decoded preference values keyed by plain key.
+ *
+ * Every entry remembers the ciphertext it was decoded from and is only returned while the store
+ * still holds that exact ciphertext, so a write that bypassed the invalidation hooks can never
+ * surface a stale value; the hooks just release plaintext early.
+ */
+internal class DecodedValueCache(private val maxEntries: Int) {
+    private class Entry(
+        val encryptedKey: String,
+        val ciphertext: String,
+        val cached: CachedValue
+    )
+
+    private val entries = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?): Boolean {
+            return size > maxEntries
+        }
+    }
+
+    @Synchronized
+    fun get(plainKey: String, encryptedKey: String, ciphertext: String): CachedValue? {
+        val entry = entries[plainKey] ?: return null
+        if (entry.encryptedKey != encryptedKey || entry.ciphertext != ciphertext) {
+            entries.remove(plainKey)
+            return null
+        }
+        return entry.cached
+    }
+
+    @Synchronized
+    fun put(plainKey: String, encryptedKey: String, ciphertext: String, value: Any?) {
+        entries[plainKey] = Entry(encryptedKey, ciphertext, CachedValue(value))
+    }
+
+    @Synchronized
+    fun invalidate(plainKeys: Collection<String>) {
+        plainKeys.forEach { entries.remove(it) }
+    }
+
+    @Synchronized
+    fun invalidateEncrypted(encryptedKey: String) {
+        entries.values.removeAll { it.encryptedKey == encryptedKey }
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+    }
+
+    val size: Int
+        @Synchronized get() = entries.size
+}
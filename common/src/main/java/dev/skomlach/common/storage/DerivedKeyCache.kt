@@ -0,0 +1,172 @@
+package dev.skomlach.common.storage
+
+import dev.skomlach.common.logging.LogCat
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import javax.crypto.Cipher
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+
+private const val DERIVED_KEY_FILE_PREFIX = "bio_dk_"
+private const val DERIVED_KEY_FORMAT = 1
+private const val TEMP_SUFFIX = ".tmp"
+
+/**
+ * Wraps key material before it touches the disk.
+ */
+internal interface KeyMaterialWrapper {
+    fun wrap(cleartext: ByteArray): ByteArray
+    fun unwrap(wrapped: ByteArray): ByteArray
+}
+
+/**
+ * AES-GCM wrapping under [secretKey]; an Android Keystore key in production, a software key in
+ * tests.
+ */
+internal class AesGcmKeyWrapper(private val secretKey: () -> SecretKey) : KeyMaterialWrapper {
+    override fun wrap(cleartext: ByteArray): ByteArray {
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey())
+        val iv = cipher.iv
+        return byteArrayOf(iv.size.toByte()) + iv + cipher.doFinal(cleartext)
+    }
+
+    override fun unwrap(wrapped: ByteArray): ByteArray {
+        val ivSize = wrapped.firstOrNull()?.toInt() ?: 0
+        require(ivSize > 0 && wrapped.size > ivSize + 1)
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(
+            Cipher.DECRYPT_MODE,
+            secretKey(),
+            GCMParameterSpec(128, wrapped.copyOfRange(1, 1 + ivSize))
+        )
+        return cipher.doFinal(wrapped, 1 + ivSize, wrapped.size - 1 - ivSize)
+    }
+}
+
+internal class DerivedKeyMaterial(
+    val encryptionKey: ByteArray,
+    val macKey: ByteArray
+)
+
+/**
+ * Digest of the inputs a derivation ran on; a cached entry is only used when it matches.
+ */
+internal fun derivedKeyBinding(password: ByteArray, salt: ByteArray): ByteArray {
+    return MessageDigest.getInstance("SHA-256").apply {
+        update("pbkdf2-binding".toByteArray(Charsets.UTF_8))
+        update(password)
+        update(salt)
+    }.digest()
+}
+
+/**
+ * Keeps the output of password-based key derivation so it runs once per install instead of once
+ * per process and store.
+ *
+ * Results are shared in memory and persisted wrapped by [wrapper] together with the binding of
+ * the inputs they came from. A file that fails to unwrap, or whose binding does not match, is
+ * replaced by a fresh derivation. Without a wrapper nothing is written to disk.
+ */
+internal class DerivedKeyCache(
+    private val directory: () -> File,
+    private val wrapper: KeyMaterialWrapper?
+) {
+    companion object {
+        private const val TAG = "DerivedKeyCache"
+    }
+
+    private val memory = ConcurrentHashMap<String, DerivedKeyMaterial>()
+    private val locks = ConcurrentHashMap<String, Any>()
+
+    fun getOrDerive(
+        configId: String,
+        binding: ByteArray,
+        derive: () -> DerivedKeyMaterial
+    ): DerivedKeyMaterial {
+        memory[configId]?.let { return it }
+        synchronized(locks.getOrPut(configId) { Any() }) {
+            memory[configId]?.let { return it }
+            val material = readPersisted(configId, binding) ?: derive().also {
+                persist(configId, binding, it)
+            }
+            memory[configId] = material
+            return material
+        }
+    }
+
+    private fun file(configId: String) = File(directory(), DERIVED_KEY_FILE_PREFIX + configId)
+
+    private fun readPersisted(configId: String, binding: ByteArray): DerivedKeyMaterial? {
+        val wrapper = wrapper ?: return null
+        val file = file(configId)
+        if (!file.exists()) return null
+        try {
+            val wrapped = try {
+                file.setReadable(true, true)
+                file.readBytes()
+            } finally {
+                file.setReadable(false, false)
+            }
+            DataInputStream(wrapper.unwrap(wrapped).inputStream()).use { input ->
+                if (input.readInt() == DERIVED_KEY_FORMAT) {
+                    val storedBinding = ByteArray(input.readInt()).also { input.readFully(it) }
+                    if (MessageDigest.isEqual(storedBinding, binding)) {
+                        val encryptionKey = ByteArray(input.readInt()).also { input.readFully(it) }
+                        val macKey = ByteArray(input.readInt()).also { input.readFully(it) }
+                        return DerivedKeyMaterial(encryptionKey, macKey)
+                    }
+                }
+            }
+            LogCat.log(TAG, "Derived keys for $configId are stale")
+        } catch (e: Throwable) {
+            LogCat.log(TAG, "Derived keys for $configId are unreadable: ${e.message}")
+        }
+        runCatching { file.delete() }
+        return null
+    }
+
+    private fun persist(configId: String, binding: ByteArray, material: DerivedKeyMaterial) {
+        val wrapper = wrapper ?: return
+        try {
+            val buffer = ByteArrayOutputStream()
+            DataOutputStream(buffer).use { output ->
+                output.writeInt(DERIVED_KEY_FORMAT)
+                output.writeInt(binding.size)
+                output.write(binding)
+                output.writeInt(material.encryptionKey.size)
+                output.write(material.encryptionKey)
+                output.writeInt(material.macKey.size)
+                output.write(material.macKey)
+            }
+            //Written aside and renamed over the old copy, so a reader never sees a partial file
+            val file = file(configId)
+            val temp = File(file.parentFile, file.name + TEMP_SUFFIX)
+            try {
+                //A leftover from an interrupted write may already be read-only
+                temp.delete()
+                FileOutputStream(temp).use { output ->
+                    output.write(wrapper.wrap(buffer.toByteArray()))
+                    output.flush()
+                    output.fd.sync()
+                }
+                temp.setReadable(false, false)
+                temp.setWritable(true, true)
+                temp.setExecutable(false, false)
+                temp.setReadOnly()
+                if (!temp.renameTo(file)) throw IOException("Could not publish ${file.name}")
+            } catch (e: Throwable) {
+                runCatching { temp.delete() }
+                throw e
+            }
+        } catch (e: Throwable) {
+            LogCat.logException(e, TAG)
+        }
+    }
+}
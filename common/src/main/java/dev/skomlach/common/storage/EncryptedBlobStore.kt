@@ -0,0 +1,382 @@
+package dev.skomlach.common.storage
+
+import android.content.SharedPreferences
+import dev.skomlach.common.logging.LogCat
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+import java.security.SecureRandom
+import java.util.UUID
+import javax.crypto.Cipher
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.math.min
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Encrypted binary records stored one file per record, with a small index kept in [index].
+ *
+ * A record is split into AES-GCM chunks. Each chunk is bound to its file, the record name, its
+ * position and whether it is the last one, so truncated, reordered or swapped files fail to read.
+ * A write goes to a temporary file that is synced and renamed into place. It is then published
+ * through the index, which is the commit point; the previous file of the record is removed after.
+ *
+ * [index] is expected to be a protected store, it also holds the record key.
+ */
+class EncryptedBlobStore internal constructor(
+    private val directory: File,
+    private val index: SharedPreferences,
+    private val chunkSize: Int
+) {
+    constructor(directory: File, index: SharedPreferences) : this(
+        directory,
+        index,
+        DEFAULT_CHUNK_SIZE
+    )
+
+    companion object {
+        private const val TAG = "EncryptedBlobStore"
+        private const val DEFAULT_CHUNK_SIZE = 64 * 1024
+        private const val MAGIC = 0x424c4231 //BLB1
+        private const val NONCE_PREFIX_SIZE = 8
+        private const val TAG_SIZE = 16
+        private const val KEY_SIZE = 32
+        private const val RECORD_PREFIX = "record:"
+        private const val KEY_ENTRY = "blob_key"
+        private const val BLOB_SUFFIX = ".blob"
+        private const val TEMP_SUFFIX = ".tmp"
+    }
+
+    private val lock = Any()
+    private val random = SecureRandom()
+
+    @Volatile
+    private var cleaned = false
+
+    //A key that failed to persist is never used, records sealed with it would be lost on restart
+    private val secretKey: SecretKey by lazy {
+        synchronized(lock) {
+            val stored = index.getString(KEY_ENTRY, null)?.let(::fromHex)
+            val key = stored?.takeIf { it.size == KEY_SIZE } ?: ByteArray(KEY_SIZE).also {
+                random.nextBytes(it)
+                if (!index.edit().putString(KEY_ENTRY, toHex(it)).commit()) {
+                    it.fill(0)
+                    throw IOException("Could not store the blob key")
+                }
+            }
+            SecretKeySpec(key, "AES")
+        }
+    }
+
+    /**
+     * Streams a record to disk. Nothing is visible until [commit]; closing an uncommitted writer
+     * discards it.
+     */
+    inner class Writer internal constructor(private val name: String) : OutputStream() {
+        private val fileName = UUID.randomUUID().toString() + BLOB_SUFFIX
+        private val temp = File(directory, fileName + TEMP_SUFFIX)
+        private val fileOutput = FileOutputStream(temp)
+        private val output = DataOutputStream(BufferedOutputStream(fileOutput))
+        private val noncePrefix = ByteArray(NONCE_PREFIX_SIZE).also { random.nextBytes(it) }
+        private val buffer = ByteArray(chunkSize)
+        private var filled = 0
+        private var chunkIndex = 0
+        private var finished = false
+
+        init {
+            output.writeInt(MAGIC)
+            output.writeInt(chunkSize)
+            output.write(noncePrefix)
+        }
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            check(!finished) { "Writer is closed" }
+            var offset = off
+            var remaining = len
+            while (remaining > 0) {
+                //A full chunk is only written once more data arrives, the last one is marked final
+                if (filled == chunkSize) writeChunk(false)
+                val count = min(remaining, chunkSize - filled)
+                System.arraycopy(b, offset, buffer, filled, count)
+                filled += count
+                offset += count
+                remaining -= count
+            }
+        }
+
+        @Throws(IOException::class)
+        fun commit() {
+            check(!finished) { "Writer is closed" }
+            finished = true
+            try {
+                writeChunk(true)
+                output.flush()
+                fileOutput.fd.sync()
+                output.close()
+                val target = File(directory, fileName)
+                if (!temp.renameTo(target)) throw IOException("Could not publish $fileName")
+                publish(name, fileName)
+            } catch (e: Throwable) {
+                runCatching { output.close() }
+                temp.delete()
+                File(directory, fileName).delete()
+                throw if (e is IOException) e else IOException(e)
+            } finally {
+                buffer.fill(0)
+            }
+        }
+
+        override fun close() {
+            if (finished) return
+            finished = true
+            runCatching { output.close() }
+            buffer.fill(0)
+            temp.delete()
+        }
+
+        private fun writeChunk(last: Boolean) {
+            val cipher = chunkCipher(Cipher.ENCRYPT_MODE, noncePrefix, fileName, name, chunkIndex, last)
+            val sealed = cipher.doFinal(buffer, 0, filled)
+            output.writeBoolean(last)
+            output.writeInt(sealed.size)
+            output.write(sealed)
+            chunkIndex++
+            filled = 0
+        }
+    }
+
+    private inner class Reader(
+        private val name: String,
+        private val fileName: String,
+        file: File
+    ) : InputStream() {
+        private val input = DataInputStream(BufferedInputStream(FileInputStream(file)))
+        private val storedChunkSize: Int
+        private val noncePrefix = ByteArray(NONCE_PREFIX_SIZE)
+        private var chunk = ByteArray(0)
+        private var position = 0
+        private var chunkIndex = 0
+        private var lastSeen = false
+
+        init {
+            try {
+                if (input.readInt() != MAGIC) throw IOException("Not a blob: $fileName")
+                storedChunkSize = input.readInt()
+                if (storedChunkSize <= 0) throw IOException("Corrupted blob header: $fileName")
+                input.readFully(noncePrefix)
+            } catch (e: IOException) {
+                input.close()
+                throw e
+            }
+        }
+
+        override fun read(): Int {
+            if (!ensureData()) return -1
+            return chunk[position++].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            if (!ensureData()) return -1
+            val count = min(len, chunk.size - position)
+            System.arraycopy(chunk, position, b, off, count)
+            position += count
+            return count
+        }
+
+        override fun available(): Int = chunk.size - position
+
+        override fun close() {
+            input.close()
+        }
+
+        private fun ensureData(): Boolean {
+            while (position == chunk.size) {
+                if (lastSeen) return false
+                readChunk()
+            }
+            return true
+        }
+
+        private fun readChunk() {
+            try {
+                val last = input.readBoolean()
+                val size = input.readInt()
+                if (size < TAG_SIZE || size > storedChunkSize + TAG_SIZE) {
+                    throw IOException("Corrupted chunk $chunkIndex in $fileName")
+                }
+                val sealed = ByteArray(size).also { input.readFully(it) }
+                chunk = chunkCipher(Cipher.DECRYPT_MODE, noncePrefix, fileName, name, chunkIndex, last)
+                    .doFinal(sealed)
+                position = 0
+                chunkIndex++
+                lastSeen = last
+                if (last && input.read() != -1) throw IOException("Trailing data in $fileName")
+            } catch (e: EOFException) {
+                throw IOException("Truncated blob $fileName", e)
+            } catch (e: GeneralSecurityException) {
+                throw IOException("Corrupted chunk $chunkIndex in $fileName", e)
+            }
+        }
+    }
+
+    fun openWrite(name: String): Writer {
+        cleanUpOnce()
+        directory.mkdirs()
+        return Writer(name)
+    }
+
+    fun write(name: String, data: ByteArray): Boolean {
+        return try {
+            openWrite(name).use { writer ->
+                writer.write(data)
+                writer.commit()
+            }
+            true
+        } catch (e: IOException) {
+            LogCat.logException(e, TAG)
+            false
+        }
+    }
+
+    /**
+     * Opens [name] for streaming, or returns null when there is no such record. Tampered or
+     * truncated data surfaces as an [IOException] from the returned stream.
+     */
+    @Throws(IOException::class)
+    fun openRead(name: String): InputStream? {
+        cleanUpOnce()
+        val fileName = index.getString(RECORD_PREFIX + name, null) ?: return null
+        val file = File(directory, fileName)
+        if (!file.exists()) return null
+        return Reader(name, fileName, file)
+    }
+
+    fun read(name: String): ByteArray? {
+        return try {
+            openRead(name)?.use { input ->
+                ByteArrayOutputStream().also { input.copyTo(it) }.toByteArray()
+            }
+        } catch (e: IOException) {
+            LogCat.logException(e, TAG)
+            null
+        }
+    }
+
+    fun names(): List<String> {
+        return index.all.keys
+            .filterNotNull()
+            .filter { it.startsWith(RECORD_PREFIX) }
+            .map { it.removePrefix(RECORD_PREFIX) }
+            .sorted()
+    }
+
+    fun contains(name: String): Boolean = index.contains(RECORD_PREFIX + name)
+
+    fun remove(name: String) {
+        synchronized(lock) {
+            val fileName = index.getString(RECORD_PREFIX + name, null) ?: return
+            index.edit().remove(RECORD_PREFIX + name).commit()
+            File(directory, fileName).delete()
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            val editor = index.edit()
+            names().forEach { editor.remove(RECORD_PREFIX + it) }
+            editor.commit()
+            directory.listFiles()?.forEach { it.delete() }
+        }
+    }
+
+    private fun publish(name: String, fileName: String) {
+        synchronized(lock) {
+            val previous = index.getString(RECORD_PREFIX + name, null)
+            if (!index.edit().putString(RECORD_PREFIX + name, fileName).commit()) {
+                throw IOException("Could not update the index for $name")
+            }
+            if (previous != null && previous != fileName) {
+                File(directory, previous).delete()
+            }
+        }
+    }
+
+    //Drops leftovers of interrupted writes and files no longer referenced by the index
+    private fun cleanUpOnce() {
+        if (cleaned) return
+        synchronized(lock) {
+            if (cleaned) return
+            cleaned = true
+            val referenced = names().mapNotNull { index.getString(RECORD_PREFIX + it, null) }.toSet()
+            directory.listFiles()?.forEach { file ->
+                if (file.name !in referenced) {
+                    LogCat.log(TAG, "Removing stale blob ${file.name}")
+                    file.delete()
+                }
+            }
+        }
+    }
+
+    private fun chunkCipher(
+        mode: Int,
+        noncePrefix: ByteArray,
+        fileName: String,
+        name: String,
+        chunkIndex: Int,
+        last: Boolean
+    ): Cipher {
+        val nonce = ByteBuffer.allocate(NONCE_PREFIX_SIZE + Integer.BYTES)
+            .put(noncePrefix)
+            .putInt(chunkIndex)
+            .array()
+        return Cipher.getInstance("AES/GCM/NoPadding").apply {
+            init(mode, secretKey, GCMParameterSpec(TAG_SIZE * 8, nonce))
+            updateAAD(fileName.toByteArray(UTF_8))
+            updateAAD(byteArrayOf(0))
+            updateAAD(name.toByteArray(UTF_8))
+            updateAAD(
+                ByteBuffer.allocate(Integer.BYTES + 1)
+                    .putInt(chunkIndex)
+                    .put(if (last) 1.toByte() else 0.toByte())
+                    .array()
+            )
+        }
+    }
+
+    private fun toHex(bytes: ByteArray): String {
+        val builder = StringBuilder(bytes.size * 2)
+        for (byte in bytes) {
+            val value = byte.toInt() and 0xff
+            builder.append(Character.forDigit(value ushr 4, 16))
+            builder.append(Character.forDigit(value and 0x0f, 16))
+        }
+        return builder.toString()
+    }
+
+    private fun fromHex(hex: String): ByteArray? {
+        if (hex.length % 2 != 0) return null
+        return ByteArray(hex.length / 2) { i ->
+            val high = Character.digit(hex[i * 2], 16)
+            val low = Character.digit(hex[i * 2 + 1], 16)
+            if (high < 0 || low < 0) return null
+            ((high shl 4) or low).toByte()
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package dev.skomlach.common.storage
+
+import android.content.SharedPreferences
+import androidx.collection.ArraySet
+import dev.skomlach.common.misc.mapInChunks
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+
+internal const val NULL_VALUE = "__NULL__"
+
+/**
+ * Internal enum to set the type of encrypted data.
+ */
+internal enum class EncryptedType(val id: Int) {
+    STRING(0), STRING_SET(1), INT(2), LONG(3), FLOAT(4), BOOLEAN(5);
+
+    companion object {
+        fun fromId(id: Int): EncryptedType? {
+            return when (id) {
+                0 -> STRING
+                1 -> STRING_SET
+                2 -> INT
+                3 -> LONG
+                4 -> FLOAT
+                5 -> BOOLEAN
+                else -> null
+            }
+        }
+    }
+}
+
+/**
+ * Editor of an [EncryptedSharedPreferences] store. Values are serialized when they are put and
+ * encrypted either right away or, with [deferEncryption], all at once on commit.
+ */
+internal class EncryptedEditor(
+    private val store: Store,
+    private val mEditor: SharedPreferences.Editor,
+    private val deferEncryption: Boolean = false
+) : SharedPreferences.Editor {
+    companion object {
+        private const val PARALLEL_ENCRYPT_THRESHOLD = 4
+    }
+
+    /**
+     * The parts of a protected store an editor writes through. Keys are plain key names with
+     * null already mapped to [NULL_VALUE].
+     */
+    interface Store {
+        val writeLock: Any
+        val bulkCryptoExecutor: Executor?
+        fun storedKeys(): Collection<String?>
+        fun encryptKey(key: String): String?
+        fun encryptValue(payload: ByteArray): String?
+        fun findEncryptedKey(key: String): String?
+        fun rememberEncryptedKey(key: String, encryptedKey: String)
+        fun forgetEncryptedKey(key: String)
+        fun clearEncryptedKeys()
+
+        //Called under writeLock once the backing editor committed
+        fun invalidateValues(keys: List<String?>, cleared: Boolean)
+        fun notifyListeners(keys: List<String?>)
+    }
+
+    private class PendingValue(
+        val payload: ByteArray,
+        @Volatile var cipherText: String?
+    )
+
+    private val mKeysChanged: MutableList<String?> = CopyOnWriteArrayList()
+    private val mClearRequested = AtomicBoolean(false)
+
+    //Plain key to pending value, null for removals; key names are resolved on commit
+    private val mPendingValues = LinkedHashMap<String, PendingValue?>()
+
+    override fun putString(key: String?, value: String?): SharedPreferences.Editor {
+        var outValue = value
+        if (outValue == null) {
+            outValue = NULL_VALUE
+        }
+        val stringBytes = outValue.toByteArray(StandardCharsets.UTF_8)
+        val stringByteLength = stringBytes.size
+        val buffer = ByteBuffer.allocate(
+            (Integer.BYTES + Integer.BYTES + stringByteLength)
+        )
+        buffer.putInt(EncryptedType.STRING.id)
+        buffer.putInt(stringByteLength)
+        buffer.put(stringBytes)
+        putEncryptedObject(key, buffer.array())
+        return this
+    }
+
+    override fun putStringSet(
+        key: String?, values: MutableSet<String>?
+    ): SharedPreferences.Editor {
+        var localValues = values
+        if (localValues == null) {
+            localValues = ArraySet()
+            localValues.add(NULL_VALUE)
+        }
+        val byteValues: MutableList<ByteArray> = ArrayList(localValues.size)
+        var totalBytes = localValues.size * Integer.BYTES
+        for (strValue in localValues) {
+            val byteValue = strValue.toByteArray(StandardCharsets.UTF_8)
+            byteValues.add(byteValue)
+            totalBytes += byteValue.size
+        }
+        totalBytes += Integer.BYTES
+        val buffer = ByteBuffer.allocate(totalBytes)
+        buffer.putInt(EncryptedType.STRING_SET.id)
+        for (bytes in byteValues) {
+            buffer.putInt(bytes.size)
+            buffer.put(bytes)
+        }
+        putEncryptedObject(key, buffer.array())
+        return this
+    }
+
+    override fun putInt(key: String?, value: Int): SharedPreferences.Editor {
+        val buffer = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES)
+        buffer.putInt(EncryptedType.INT.id)
+        buffer.putInt(value)
+        putEncryptedObject(key, buffer.array())
+        return this
+    }
+
+    override fun putLong(key: String?, value: Long): SharedPreferences.Editor {
+        val buffer = ByteBuffer.allocate(Integer.BYTES + java.lang.Long.BYTES)
+        buffer.putInt(EncryptedType.LONG.id)
+        buffer.putLong(value)
+        putEncryptedObject(key, buffer.array())
+        return this
+    }
+
+    override fun putFloat(key: String?, value: Float): SharedPreferences.Editor {
+        val buffer = ByteBuffer.allocate(Integer.BYTES + java.lang.Float.BYTES)
+        buffer.putInt(EncryptedType.FLOAT.id)
+        buffer.putFloat(value)
+        putEncryptedObject(key, buffer.array())
+        return this
+    }
+
+    override fun putBoolean(key: String?, value: Boolean): SharedPreferences.Editor {
+        val buffer = ByteBuffer.allocate(Integer.BYTES + java.lang.Byte.BYTES)
+        buffer.putInt(EncryptedType.BOOLEAN.id)
+        buffer.put(if (value) 1.toByte() else 0.toByte())
+        putEncryptedObject(key, buffer.array())
+        return this
+    }
+
+    override fun remove(key: String?): SharedPreferences.Editor {
+        synchronized(mPendingValues) {
+            mPendingValues[key ?: NULL_VALUE] = null
+        }
+        mKeysChanged.add(key)
+        return this
+    }
+
+    override fun clear(): SharedPreferences.Editor {
+        mClearRequested.set(true)
+        return this
+    }
+
+    override fun commit(): Boolean {
+        encryptPendingValues()
+        val result = synchronized(store.writeLock) {
+            val cleared = writePendingValues()
+            mEditor.commit().also { store.invalidateValues(mKeysChanged, cleared) }
+        }
+        store.notifyListeners(mKeysChanged)
+        return result
+    }
+
+    override fun apply() {
+        encryptPendingValues()
+        synchronized(store.writeLock) {
+            val cleared = writePendingValues()
+            mEditor.apply()
+            store.invalidateValues(mKeysChanged, cleared)
+        }
+        store.notifyListeners(mKeysChanged)
+    }
+
+    private fun writePendingValues(): Boolean {
+        val cleared = mClearRequested.getAndSet(false)
+        if (cleared) {
+            for (key in store.storedKeys()) {
+                mEditor.remove(key)
+            }
+            store.clearEncryptedKeys()
+        }
+        val pending = synchronized(mPendingValues) {
+            LinkedHashMap(mPendingValues).also { mPendingValues.clear() }
+        }
+        for ((key, value) in pending) {
+            val encryptedKey = if (cleared) null else store.findEncryptedKey(key)
+            if (value == null) {
+                encryptedKey?.let { mEditor.remove(it) }
+                store.forgetEncryptedKey(key)
+                continue
+            }
+            val targetKey = encryptedKey ?: store.encryptKey(key)
+                ?: throw SecurityException("Could not encrypt data: key name")
+            val cipherText = value.cipherText
+                ?: store.encryptValue(value.payload)
+                ?: throw SecurityException("Could not encrypt data: value")
+            mEditor.putString(targetKey, cipherText)
+            store.rememberEncryptedKey(key, targetKey)
+        }
+        return cleared
+    }
+
+    /**
+     * Encrypts values whose encryption was deferred, several at a time when there are enough
+     * of them to be worth spreading over the store's bulk crypto executor.
+     */
+    private fun encryptPendingValues() {
+        val deferred = synchronized(mPendingValues) {
+            mPendingValues.values.filter { it != null && it.cipherText == null }
+        }.filterNotNull()
+        mapInChunks(deferred, store.bulkCryptoExecutor, PARALLEL_ENCRYPT_THRESHOLD, 1) { value ->
+            value.cipherText = store.encryptValue(value.payload)
+                ?: throw SecurityException("Could not encrypt data: value")
+        }
+    }
+
+    private fun putEncryptedObject(key: String?, value: ByteArray) {
+        val cipherText = if (deferEncryption) {
+            null
+        } else {
+            store.encryptValue(value)
+                ?: throw SecurityException("Could not encrypt data: value")
+        }
+        synchronized(mPendingValues) {
+            mPendingValues[key ?: NULL_VALUE] = PendingValue(value, cipherText)
+        }
+        mKeysChanged.add(key)
+    }
+}
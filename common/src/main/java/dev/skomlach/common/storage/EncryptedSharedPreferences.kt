@@ -23,17 +23,19 @@ import android.content.Context
 import android.content.SharedPreferences
 import android.preference.PreferenceManager
 import android.util.Base64
-import android.util.Pair
 import androidx.collection.ArraySet
 import com.tozny.crypto.android.AesCbcWithIntegrity
 import dev.skomlach.common.logging.LogCat
+import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.misc.TaskLane
+import dev.skomlach.common.misc.mapInChunks
 import java.io.UnsupportedEncodingException
 import java.nio.ByteBuffer
 import java.nio.charset.StandardCharsets
 import java.security.GeneralSecurityException
 import java.security.SecureRandom
 import java.util.concurrent.CopyOnWriteArrayList
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.Executor
 import javax.crypto.Cipher
 import javax.crypto.spec.GCMParameterSpec
 import javax.crypto.spec.SecretKeySpec
@@ -92,36 +94,93 @@ private class KeyNameCipher(
 
 class EncryptedSharedPreferences(
     private val context: Context,
-    private val sharedPrefFilename: String? = null
+    private val sharedPrefFilename: String? = null,
+    private val bulkCryptoExecutor: Executor? = ExecutorHelper.executor(TaskLane.COMPUTE),
+    cacheDecodedValues: Boolean = true
 ) : SharedPreferences {
     companion object {
-        private const val NULL_VALUE = "__NULL__"
+        private const val MAX_CACHED_VALUES = 64
+        private const val PARALLEL_DECRYPT_THRESHOLD = 64
+        private const val PARALLEL_DECRYPT_CHUNK = 16
+        private const val PARALLEL_MIGRATE_THRESHOLD = 4
+        private const val MIGRATION_DELAY_MS = 500L
     }
 
-    private data class DerivedConfig(
+    private class DecryptedEntry(
+        val encryptedKey: String,
+        val plainKey: String?,
+        val value: Any?
+    )
+
+    private class DecryptedValue(
+        val bytes: ByteArray,
+        val current: Boolean
+    )
+
+    private class PendingMigration(
+        val plainKey: String,
+        val encryptedValue: String,
+        val value: ByteArray
+    )
+
+    private class MigratedEntry(
+        val encryptedKey: String,
+        val encryptedValue: String,
+        val plainKey: String,
+        val migratedKey: String,
+        val migratedValue: String
+    )
+
+    private class DerivedConfig(
         val valueKeys: AesCbcWithIntegrity.SecretKeys,
         val fileNameCipher: KeyNameCipher
     )
 
-    private val primaryConfig by lazy {
-        deriveConfig(SharedPreferenceProvider.EncryptionConfig.primaryInstance)
+    /**
+     * An encryption config and the id its entries are tagged with. Keys are derived on first use,
+     * so a store whose entries all carry the primary id never derives the other key sets.
+     */
+    private inner class ConfigSlot(config: SharedPreferenceProvider.EncryptionConfig) {
+        val id = encryptionConfigId(config.password, config.salt)
+        val derived by lazy { deriveConfig(config, id) }
+    }
+
+    private val primarySlot by lazy {
+        SharedPreferenceProvider.EncryptionConfig.primaryInstance?.let { ConfigSlot(it) }
     }
-    private val legacyDeviceIdConfig by lazy {
-        deriveConfig(SharedPreferenceProvider.EncryptionConfig.legacyDeviceIdInstance)
+    private val legacyDeviceIdSlot by lazy {
+        SharedPreferenceProvider.EncryptionConfig.legacyDeviceIdInstance?.let { ConfigSlot(it) }
     }
-    private val secondaryConfig by lazy {
-        deriveConfig(SharedPreferenceProvider.EncryptionConfig.secondaryInstance)
+    private val secondarySlot by lazy {
+        ConfigSlot(SharedPreferenceProvider.EncryptionConfig.secondaryInstance)
     }
 
-    private val configs: List<DerivedConfig>
-        get() = listOfNotNull(primaryConfig, legacyDeviceIdConfig, secondaryConfig)
+    private val slots: List<ConfigSlot>
+        get() = listOfNotNull(primarySlot, legacyDeviceIdSlot, secondarySlot)
 
-    private fun deriveConfig(config: SharedPreferenceProvider.EncryptionConfig?): DerivedConfig? {
-        if (config == null) return null
-        return DerivedConfig(
-            valueKeys = AesCbcWithIntegrity.generateKeyFromPassword(
+    //New entries are written here, entries read under any other slot are migrated to it
+    private val writeSlot: ConfigSlot
+        get() = primarySlot ?: secondarySlot
+
+    private fun deriveConfig(
+        config: SharedPreferenceProvider.EncryptionConfig,
+        configId: String
+    ): DerivedConfig {
+        //PBKDF2 runs once per install, later processes unwrap the persisted result
+        val material = SharedPreferenceProvider.EncryptionConfig.derivedKeyCache.getOrDerive(
+            configId,
+            derivedKeyBinding(config.password, config.salt)
+        ) {
+            val keys = AesCbcWithIntegrity.generateKeyFromPassword(
                 String(config.password.reversedArray()),
                 config.salt.reversedArray()
+            )
+            DerivedKeyMaterial(keys.confidentialityKey.encoded, keys.integrityKey.encoded)
+        }
+        return DerivedConfig(
+            valueKeys = AesCbcWithIntegrity.SecretKeys(
+                SecretKeySpec(material.encryptionKey, "AES"),
+                SecretKeySpec(material.macKey, "HmacSHA256")
             ),
             fileNameCipher = KeyNameCipher(
                 (config.password + config.salt).copyOf(32).reversedArray()
@@ -132,6 +191,12 @@ class EncryptedSharedPreferences(
     private val mListeners =
         CopyOnWriteArrayList<SharedPreferences.OnSharedPreferenceChangeListener>()
     private val keyResolver = PreferenceKeyResolver()
+    private val writeLock = Any()
+
+    //Legacy entries read since the last flush, by stored key name; guarded by itself
+    private val pendingMigrations = LinkedHashMap<String, PendingMigration>()
+    private var migrationScheduled = false
+    private val flushMigrationsTask = Runnable { flushMigrations() }
 
 
     //the backing pref file
@@ -141,6 +206,73 @@ class EncryptedSharedPreferences(
         context.getSharedPreferences(sharedPrefFilename, Context.MODE_PRIVATE)
     }
 
+    //Decoded values of hot entries, null when the store opted out
+    private val valueCache = if (cacheDecodedValues) DecodedValueCache(MAX_CACHED_VALUES) else null
+
+    internal val cachesDecodedValues: Boolean
+        get() = valueCache != null
+
+    //Held strongly, the backing store only keeps a weak reference to its listeners
+    private val backingStoreListener =
+        SharedPreferences.OnSharedPreferenceChangeListener { _, encryptedKey ->
+            if (encryptedKey == null) {
+                valueCache?.clear()
+            } else {
+                valueCache?.invalidateEncrypted(encryptedKey)
+            }
+        }
+
+    init {
+        if (valueCache != null) {
+            mSharedPreferences.registerOnSharedPreferenceChangeListener(backingStoreListener)
+        }
+    }
+
+    private val editorStore = object : EncryptedEditor.Store {
+        override val writeLock: Any
+            get() = this@EncryptedSharedPreferences.writeLock
+        override val bulkCryptoExecutor: Executor?
+            get() = this@EncryptedSharedPreferences.bulkCryptoExecutor
+
+        override fun storedKeys(): Collection<String?> = mSharedPreferences.all.keys
+
+        override fun encryptKey(key: String): String? = this@EncryptedSharedPreferences.encryptKey(key)
+
+        override fun encryptValue(payload: ByteArray): String? = encrypt(payload)
+
+        override fun findEncryptedKey(key: String): String? =
+            this@EncryptedSharedPreferences.findEncryptedKey(key)
+
+        override fun rememberEncryptedKey(key: String, encryptedKey: String) {
+            keyResolver.remember(key, encryptedKey)
+        }
+
+        override fun forgetEncryptedKey(key: String) {
+            keyResolver.forget(key)
+        }
+
+        override fun clearEncryptedKeys() {
+            keyResolver.clear()
+        }
+
+        override fun invalidateValues(keys: List<String?>, cleared: Boolean) {
+            val cache = valueCache ?: return
+            if (cleared) {
+                cache.clear()
+            } else {
+                cache.invalidate(keys.map { it ?: NULL_VALUE })
+            }
+        }
+
+        override fun notifyListeners(keys: List<String?>) {
+            for (listener in mListeners) {
+                for (key in keys) {
+                    listener.onSharedPreferenceChanged(this@EncryptedSharedPreferences, key)
+                }
+            }
+        }
+    }
+
     /**
      * @param ciphertext
      * @return decrypted plain text, unless decryption fails, in which case null
@@ -149,28 +281,33 @@ class EncryptedSharedPreferences(
         if (ciphertext.isNullOrEmpty()) {
             return ciphertext
         }
-        return configs.firstNotNullOfOrNull { config ->
+        return decryptTagged(parseTaggedKeyName(ciphertext), slots, { it.id }) { slot, payload ->
             try {
-                config.fileNameCipher.decryptName(ciphertext)
+                slot.derived.fileNameCipher.decryptName(payload)
             } catch (_: Throwable) {
                 null
             }
-        }
+        }?.value
     }
 
     private fun encryptString(cleartext: String?): String? {
         if (cleartext.isNullOrEmpty()) {
             return cleartext
         }
-        return primaryConfig?.fileNameCipher?.encryptName(cleartext)
-            ?: secondaryConfig?.fileNameCipher?.encryptName(cleartext)
+        val slot = writeSlot
+        return tagKeyName(slot.id, slot.derived.fileNameCipher.encryptName(cleartext))
     }
 
-    private fun decrypt(ciphertext: String?): ByteArray? {
-        if (ciphertext.isNullOrEmpty()) return ciphertext?.toByteArray(UTF_8)
-        return configs.firstNotNullOfOrNull { config ->
-            decryptWith(config.valueKeys, ciphertext)
+    private fun decrypt(ciphertext: String?): DecryptedValue? {
+        if (ciphertext.isNullOrEmpty()) {
+            return ciphertext?.let { DecryptedValue(it.toByteArray(UTF_8), true) }
         }
+        val tagged = parseTaggedValue(ciphertext)
+        val result = decryptTagged(tagged, slots, { it.id }) { slot, payload ->
+            decryptWith(slot.derived.valueKeys, payload)
+        } ?: return null
+        val slot = writeSlot
+        return DecryptedValue(result.value, result.slot === slot && tagged.configId == slot.id)
     }
 
     private fun decryptWith(
@@ -192,10 +329,8 @@ class EncryptedSharedPreferences(
             return String(cleartext ?: return null, UTF_8)
         }
         return try {
-            AesCbcWithIntegrity.encrypt(
-                cleartext,
-                primaryConfig?.valueKeys ?: secondaryConfig?.valueKeys ?: return null
-            ).toString()
+            val slot = writeSlot
+            tagValue(slot.id, AesCbcWithIntegrity.encrypt(cleartext, slot.derived.valueKeys).toString())
         } catch (e: GeneralSecurityException) {
             LogCat.logException(e)
             null
@@ -205,152 +340,36 @@ class EncryptedSharedPreferences(
         }
     }
 
-    private inner class Editor(
-        private val mEncryptedSharedPreferences: EncryptedSharedPreferences,
-        editor: SharedPreferences.Editor
-    ) : SharedPreferences.Editor {
-        private val mEditor: SharedPreferences.Editor = editor
-        private val mKeysChanged: MutableList<String?> = CopyOnWriteArrayList()
-        private val mClearRequested = AtomicBoolean(false)
-
-        override fun putString(key: String?, value: String?): SharedPreferences.Editor {
-            var outValue = value
-            if (outValue == null) {
-                outValue = NULL_VALUE
-            }
-            val stringBytes = outValue.toByteArray(StandardCharsets.UTF_8)
-            val stringByteLength = stringBytes.size
-            val buffer = ByteBuffer.allocate(
-                (Integer.BYTES + Integer.BYTES + stringByteLength)
+    /**
+     * Decrypts every stored key and value exactly once and fills the key resolver on the way,
+     * instead of resolving each decrypted key back to its ciphertext. Large stores are decrypted
+     * in parallel on [bulkCryptoExecutor].
+     */
+    override fun getAll(): MutableMap<String?, in Any?> {
+        val stored = mSharedPreferences.all.entries.toList()
+        val decrypted = mapInChunks(
+            stored,
+            bulkCryptoExecutor,
+            PARALLEL_DECRYPT_THRESHOLD,
+            PARALLEL_DECRYPT_CHUNK
+        ) { (encryptedKey, encryptedValue) ->
+            val plainKey = decryptString(encryptedKey)
+            DecryptedEntry(
+                encryptedKey,
+                plainKey,
+                if (plainKey == null) null else readValue(plainKey, encryptedKey, encryptedValue as? String)
             )
-            buffer.putInt(EncryptedType.STRING.id)
-            buffer.putInt(stringByteLength)
-            buffer.put(stringBytes)
-            putEncryptedObject(key, buffer.array())
-            return this
-        }
-
-        override fun putStringSet(
-            key: String?, values: MutableSet<String>?
-        ): SharedPreferences.Editor {
-            var localValues = values
-            if (localValues == null) {
-                localValues = ArraySet()
-                localValues.add(NULL_VALUE)
-            }
-            val byteValues: MutableList<ByteArray> = ArrayList(localValues.size)
-            var totalBytes = localValues.size * Integer.BYTES
-            for (strValue in localValues) {
-                val byteValue = strValue.toByteArray(StandardCharsets.UTF_8)
-                byteValues.add(byteValue)
-                totalBytes += byteValue.size
-            }
-            totalBytes += Integer.BYTES
-            val buffer = ByteBuffer.allocate(totalBytes)
-            buffer.putInt(EncryptedType.STRING_SET.id)
-            for (bytes in byteValues) {
-                buffer.putInt(bytes.size)
-                buffer.put(bytes)
-            }
-            putEncryptedObject(key, buffer.array())
-            return this
         }
-
-        override fun putInt(key: String?, value: Int): SharedPreferences.Editor {
-            val buffer = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES)
-            buffer.putInt(EncryptedType.INT.id)
-            buffer.putInt(value)
-            putEncryptedObject(key, buffer.array())
-            return this
-        }
-
-        override fun putLong(key: String?, value: Long): SharedPreferences.Editor {
-            val buffer = ByteBuffer.allocate(Integer.BYTES + java.lang.Long.BYTES)
-            buffer.putInt(EncryptedType.LONG.id)
-            buffer.putLong(value)
-            putEncryptedObject(key, buffer.array())
-            return this
-        }
-
-        override fun putFloat(key: String?, value: Float): SharedPreferences.Editor {
-            val buffer = ByteBuffer.allocate(Integer.BYTES + java.lang.Float.BYTES)
-            buffer.putInt(EncryptedType.FLOAT.id)
-            buffer.putFloat(value)
-            putEncryptedObject(key, buffer.array())
-            return this
-        }
-
-        override fun putBoolean(key: String?, value: Boolean): SharedPreferences.Editor {
-            val buffer = ByteBuffer.allocate(Integer.BYTES + java.lang.Byte.BYTES)
-            buffer.putInt(EncryptedType.BOOLEAN.id)
-            buffer.put(if (value) 1.toByte() else 0.toByte())
-            putEncryptedObject(key, buffer.array())
-            return this
-        }
-
-        override fun remove(key: String?): SharedPreferences.Editor {
-            val encryptedKey = mEncryptedSharedPreferences.findEncryptedKey(key)
-                ?: mEncryptedSharedPreferences.encryptKey(key)
-            mEditor.remove(encryptedKey)
-            mEncryptedSharedPreferences.forgetEncryptedKey(key)
-            mKeysChanged.add(key)
-            return this
-        }
-
-        override fun clear(): SharedPreferences.Editor {
-            mClearRequested.set(true)
-            return this
-        }
-
-        override fun commit(): Boolean {
-            clearKeysIfNeeded()
-            val result = mEditor.commit()
-            notifyListeners()
-            return result
-        }
-
-        override fun apply() {
-            clearKeysIfNeeded()
-            mEditor.apply()
-            notifyListeners()
-        }
-
-        private fun clearKeysIfNeeded() {
-            if (mClearRequested.getAndSet(false)) {
-                for ((key) in mEncryptedSharedPreferences.mSharedPreferences.all.entries) {
-                    if (!mKeysChanged.contains(key)) {
-                        mEditor.remove(key)
-                    }
-                }
-                mEncryptedSharedPreferences.clearEncryptedKeyCache()
-            }
-        }
-
-        private fun notifyListeners() {
-            for (listener in mEncryptedSharedPreferences.mListeners) {
-                for (key in mKeysChanged) {
-                    listener.onSharedPreferenceChanged(mEncryptedSharedPreferences, key)
-                }
-            }
-        }
-
-        private fun putEncryptedObject(key: String?, value: ByteArray?) {
-            try {
-                val encryptedPair = mEncryptedSharedPreferences.encryptKeyValuePair(key, value)
-                mEditor.putString(encryptedPair.first, encryptedPair.second)
-                mEncryptedSharedPreferences.rememberEncryptedKey(key, encryptedPair.first)
-                mKeysChanged.add(key)
-            } catch (e: GeneralSecurityException) {
-                throw SecurityException("Could not encrypt data: ${e.message}", e)
-            }
-        }
-    }
-
-    override fun getAll(): MutableMap<String?, in Any?> {
         val allEntries: MutableMap<String?, in Any?> = HashMap()
-        for ((key) in mSharedPreferences.all.entries) {
-            val decryptedKey = decryptKey(key)
-            allEntries[decryptedKey] = getDecryptedObject(decryptedKey)
+        for (entry in decrypted) {
+            val plainKey = entry.plainKey
+            if (plainKey == null) {
+                allEntries[entry.encryptedKey] = null
+                continue
+            }
+            if (allEntries.containsKey(plainKey)) continue
+            keyResolver.remember(plainKey, entry.encryptedKey)
+            allEntries[plainKey] = entry.value
         }
         return allEntries
     }
@@ -397,8 +416,55 @@ class EncryptedSharedPreferences(
         return mSharedPreferences.contains(encryptedKey)
     }
 
+    /**
+     * Derives the write config, resolves every stored key name in a single pass and decodes
+     * [hotKeys] into the value cache, so the first reads after start-up are lookups.
+     */
+    internal fun warmUp(hotKeys: Collection<String>): WarmedStore {
+        writeSlot.derived
+        val seen = HashSet<String>()
+        for (encryptedKey in mSharedPreferences.all.keys) {
+            val plainKey = encryptedKey?.let { decryptString(it) } ?: continue
+            //Same rule as getAll: the first stored name of a key wins
+            if (seen.add(plainKey)) keyResolver.remember(plainKey, encryptedKey)
+        }
+        val decoded = if (valueCache == null) 0 else hotKeys.count { getDecryptedObject(it) != null }
+        return WarmedStore(seen.size, decoded)
+    }
+
     override fun edit(): SharedPreferences.Editor {
-        return Editor(this, mSharedPreferences.edit())
+        return EncryptedEditor(editorStore, mSharedPreferences.edit())
+    }
+
+    /**
+     * Records the mutations made by [block] without encrypting them, then encrypts the values in
+     * parallel on a background thread and commits them in a single write. [onComplete] is posted
+     * to the main thread with the commit result.
+     */
+    @JvmOverloads
+    fun editAsync(
+        block: SharedPreferences.Editor.() -> Unit,
+        onComplete: ((Boolean) -> Unit)? = null
+    ) {
+        val editor = batchEditor().apply(block)
+        commitInBackground(
+            ExecutorHelper.backgroundExecutor,
+            ExecutorHelper.executor,
+            onComplete,
+            editor::commit
+        )
+    }
+
+    /**
+     * Suspending variant of [editAsync]; resumes once the batch is committed.
+     */
+    suspend fun editBatch(block: SharedPreferences.Editor.() -> Unit): Boolean {
+        val editor = batchEditor().apply(block)
+        return commitOn(ExecutorHelper.dispatcher(TaskLane.IO), editor::commit)
+    }
+
+    private fun batchEditor(): EncryptedEditor {
+        return EncryptedEditor(editorStore, mSharedPreferences.edit(), deferEncryption = true)
     }
 
     override fun registerOnSharedPreferenceChangeListener(
@@ -413,27 +479,6 @@ class EncryptedSharedPreferences(
         mListeners.remove(listener)
     }
 
-    /**
-     * Internal enum to set the type of encrypted data.
-     */
-    private enum class EncryptedType(val id: Int) {
-        STRING(0), STRING_SET(1), INT(2), LONG(3), FLOAT(4), BOOLEAN(5);
-
-        companion object {
-            fun fromId(id: Int): EncryptedType? {
-                return when (id) {
-                    0 -> STRING
-                    1 -> STRING_SET
-                    2 -> INT
-                    3 -> LONG
-                    4 -> FLOAT
-                    5 -> BOOLEAN
-                    else -> null
-                }
-            }
-        }
-    }
-
     private fun encryptKey(key: String?): String? {
         return encryptString(key ?: NULL_VALUE)
     }
@@ -468,11 +513,106 @@ class EncryptedSharedPreferences(
 
         try {
             val encryptedKey = findEncryptedKey(localKey) ?: return null
-            val encryptedValue: String =
-                mSharedPreferences.getString(encryptedKey, null) ?: return null
+            val encryptedValue = mSharedPreferences.getString(encryptedKey, null) ?: return null
+            valueCache?.get(localKey, encryptedKey, encryptedValue)?.let {
+                return copyIfMutable(it.value)
+            }
+            val value = readValue(localKey, encryptedKey, encryptedValue)
+            valueCache?.put(localKey, encryptedKey, encryptedValue, value)
+            return copyIfMutable(value)
+        } catch (ex: GeneralSecurityException) {
+            throw SecurityException("Could not decrypt value. ${ex.message}", ex)
+        } catch (_: RuntimeException) {
+            return null
+        }
+    }
+
+    private fun readValue(plainKey: String, encryptedKey: String, encryptedValue: String?): Any? {
+        if (encryptedValue == null) return null
+        val value = decrypt(encryptedValue) ?: return null
+        if (!value.current || parseTaggedKeyName(encryptedKey).configId != writeSlot.id) {
+            scheduleMigration(plainKey, encryptedKey, encryptedValue, value.bytes)
+        }
+        return decodeValue(value.bytes)
+    }
 
-            val value: ByteArray = decrypt(encryptedValue) ?: return null
+    /**
+     * Queues an entry read through a legacy config for re-encryption under [writeSlot]. Entries
+     * read within [MIGRATION_DELAY_MS] of each other are migrated by one background write.
+     */
+    private fun scheduleMigration(
+        plainKey: String,
+        encryptedKey: String,
+        encryptedValue: String,
+        value: ByteArray
+    ) {
+        synchronized(pendingMigrations) {
+            if (pendingMigrations.containsKey(encryptedKey)) return
+            pendingMigrations[encryptedKey] = PendingMigration(plainKey, encryptedValue, value)
+            if (migrationScheduled) return
+            migrationScheduled = true
+        }
+        ExecutorHelper.startOnBackground(flushMigrationsTask, MIGRATION_DELAY_MS)
+    }
 
+    /**
+     * Writes every queued migration with a single editor, skipping entries that were rewritten
+     * or removed since they were read.
+     */
+    private fun flushMigrations() {
+        val queued = synchronized(pendingMigrations) {
+            migrationScheduled = false
+            pendingMigrations.map { it.key to it.value }.also { pendingMigrations.clear() }
+        }
+        val migrated = mapInChunks(
+            queued,
+            bulkCryptoExecutor,
+            PARALLEL_MIGRATE_THRESHOLD,
+            1
+        ) { (encryptedKey, pending) ->
+            try {
+                val migratedKey = encryptKey(pending.plainKey)
+                val migratedValue = encrypt(pending.value)
+                if (migratedKey == null || migratedValue == null) {
+                    null
+                } else {
+                    MigratedEntry(
+                        encryptedKey,
+                        pending.encryptedValue,
+                        pending.plainKey,
+                        migratedKey,
+                        migratedValue
+                    )
+                }
+            } catch (e: Throwable) {
+                LogCat.logException(e, "EncryptedSharedPreferences.flushMigrations")
+                null
+            }
+        }.filterNotNull()
+        if (migrated.isEmpty()) return
+        synchronized(writeLock) {
+            val editor = mSharedPreferences.edit()
+            val written = migrated.filter { entry ->
+                mSharedPreferences.getString(entry.encryptedKey, null) == entry.encryptedValue
+            }
+            if (written.isEmpty()) return
+            for (entry in written) {
+                editor.remove(entry.encryptedKey).putString(entry.migratedKey, entry.migratedValue)
+            }
+            editor.apply()
+            for (entry in written) {
+                keyResolver.remember(entry.plainKey, entry.migratedKey)
+            }
+        }
+    }
+
+    //Cached string sets are shared, callers get their own copy
+    private fun copyIfMutable(value: Any?): Any? {
+        return if (value is Set<*>) ArraySet<Any?>(value) else value
+    }
+
+    private fun decodeValue(value: ByteArray): Any? {
+        try {
             val buffer = ByteBuffer.wrap(value)
             buffer.position(0)
             val typeId = buffer.getInt()
@@ -510,34 +650,8 @@ class EncryptedSharedPreferences(
                     }
                 }
             }
-        } catch (ex: GeneralSecurityException) {
-            throw SecurityException("Could not decrypt value. ${ex.message}", ex)
         } catch (_: RuntimeException) {
             return null
         }
     }
-
-    @Throws(GeneralSecurityException::class)
-    private fun encryptKeyValuePair(key: String?, value: ByteArray?): Pair<String, String> {
-        val encryptedKey = findEncryptedKey(key) ?: encryptKey(key)
-        val cipherText = encrypt(value)
-        if (encryptedKey == null || cipherText == null) {
-            throw GeneralSecurityException("Could not encrypt preference entry")
-        }
-        return Pair(encryptedKey, cipherText)
-    }
-
-    private fun rememberEncryptedKey(key: String?, encryptedKey: String?) {
-        val normalizedKey = key ?: NULL_VALUE
-        val normalizedEncryptedKey = encryptedKey ?: return
-        keyResolver.remember(normalizedKey, normalizedEncryptedKey)
-    }
-
-    private fun forgetEncryptedKey(key: String?) {
-        keyResolver.forget(key ?: NULL_VALUE)
-    }
-
-    private fun clearEncryptedKeyCache() {
-        keyResolver.clear()
-    }
 }
@@ -0,0 +1,71 @@
+package dev.skomlach.common.storage
+
+import dev.skomlach.common.logging.LogCat
+import java.util.ServiceLoader
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * A protected store worth opening before the first prompt, and the keys read on that path.
+ * [cacheDecodedValues] should match what the owning module passes to
+ * [SharedPreferenceProvider.getProtectedPreferences] for the store. [hotKeys] are only decoded
+ * ahead for stores that cache decoded values.
+ */
+class ProtectedStoreDeclaration @JvmOverloads constructor(
+    val name: String,
+    val hotKeys: Set<String> = emptySet(),
+    val cacheDecodedValues: Boolean = true
+)
+
+/**
+ * Implemented by modules that own protected stores; discovered through [ServiceLoader].
+ */
+interface ProtectedStoreDeclarationProvider {
+    fun getProtectedStores(): List<ProtectedStoreDeclaration>
+}
+
+object ProtectedStorageRegistry {
+    private val registered = CopyOnWriteArrayList<ProtectedStoreDeclaration>()
+
+    private val discovered: List<ProtectedStoreDeclaration> by lazy {
+        try {
+            ServiceLoader.load(ProtectedStoreDeclarationProvider::class.java)
+                .flatMap { provider ->
+                    runCatching { provider.getProtectedStores() }
+                        .onFailure { LogCat.logException(it, "ProtectedStorageRegistry") }
+                        .getOrDefault(emptyList())
+                }
+        } catch (e: Throwable) {
+            LogCat.logException(e, "ProtectedStorageRegistry")
+            emptyList()
+        }
+    }
+
+    fun register(vararg declarations: ProtectedStoreDeclaration) {
+        registered.addAll(declarations)
+    }
+
+    fun getDeclarations(): List<ProtectedStoreDeclaration> {
+        return mergeStoreDeclarations(discovered + registered)
+    }
+}
+
+/**
+ * Collapses declarations of the same store into one with the union of their hot keys, keeping
+ * the order stores were first declared in. A store opted out of value caching by any
+ * declaration stays opted out.
+ */
+internal fun mergeStoreDeclarations(
+    declarations: List<ProtectedStoreDeclaration>
+): List<ProtectedStoreDeclaration> {
+    val merged = LinkedHashMap<String, MutableSet<String>>()
+    val uncached = HashSet<String>()
+    for (declaration in declarations) {
+        val name = declaration.name.trim()
+        if (name.isEmpty()) continue
+        merged.getOrPut(name) { LinkedHashSet() }.addAll(declaration.hotKeys)
+        if (!declaration.cacheDecodedValues) uncached.add(name)
+    }
+    return merged.map { (name, hotKeys) ->
+        ProtectedStoreDeclaration(name, hotKeys, cacheDecodedValues = name !in uncached)
+    }
+}
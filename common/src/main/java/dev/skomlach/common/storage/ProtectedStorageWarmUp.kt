@@ -0,0 +1,61 @@
+package dev.skomlach.common.storage
+
+import dev.skomlach.common.logging.LogCat
+
+internal class WarmedStore(
+    val keysResolved: Int,
+    val valuesDecoded: Int
+)
+
+internal class ProtectedStorageWarmUpReport(
+    val configsMs: Long,
+    val storeMs: Map<String, Long>,
+    val keysResolved: Int,
+    val valuesDecoded: Int,
+    val failedStores: List<String>,
+    val totalMs: Long
+) {
+    override fun toString(): String {
+        return "configs=${configsMs}ms stores=$storeMs keys=$keysResolved values=$valuesDecoded" +
+                " failed=$failedStores total=${totalMs}ms"
+    }
+}
+
+/**
+ * Prepares the encryption configs once, then warms every declared store in order. A store that
+ * fails is reported and skipped, it never stops the others.
+ */
+internal fun runProtectedStorageWarmUp(
+    declarations: List<ProtectedStoreDeclaration>,
+    prepareConfigs: () -> Unit,
+    warmStore: (ProtectedStoreDeclaration) -> WarmedStore,
+    clock: () -> Long = { System.nanoTime() / 1_000_000L }
+): ProtectedStorageWarmUpReport {
+    val start = clock()
+    prepareConfigs()
+    val configsDone = clock()
+    val storeMs = LinkedHashMap<String, Long>()
+    val failed = ArrayList<String>()
+    var keysResolved = 0
+    var valuesDecoded = 0
+    for (declaration in declarations) {
+        val storeStart = clock()
+        try {
+            val warmed = warmStore(declaration)
+            keysResolved += warmed.keysResolved
+            valuesDecoded += warmed.valuesDecoded
+        } catch (e: Throwable) {
+            LogCat.logException(e, "ProtectedStorageWarmUp")
+            failed += declaration.name
+        }
+        storeMs[declaration.name] = clock() - storeStart
+    }
+    return ProtectedStorageWarmUpReport(
+        configsMs = configsDone - start,
+        storeMs = storeMs,
+        keysResolved = keysResolved,
+        valuesDecoded = valuesDecoded,
+        failedStores = failed,
+        totalMs = clock() - start
+    )
+}
@@ -28,10 +28,12 @@ import android.provider.Settings.Secure
 import android.security.keystore.KeyGenParameterSpec
 import android.security.keystore.KeyProperties
 import android.util.Base64
+import androidx.annotation.RequiresApi
 import androidx.core.content.ContextCompat
 import dev.skomlach.common.contextprovider.AndroidContext.appContext
 import dev.skomlach.common.logging.LogCat
 import dev.skomlach.common.misc.ExecutorHelper
+import dev.skomlach.common.misc.TaskLane
 import java.io.File
 import java.security.KeyStore
 import java.security.SecureRandom
@@ -46,40 +48,87 @@ import kotlin.text.Charsets.UTF_8
 
 object SharedPreferenceProvider {
     private val protectedPreferencesCache = ConcurrentHashMap<String, SharedPreferences>()
+    private val protectedBlobStoreCache = ConcurrentHashMap<String, EncryptedBlobStore>()
 
     fun getPreferences(name: String): SharedPreferences {
         return appContext.getSharedPreferences(name, Context.MODE_PRIVATE)
     }
 
-    fun getProtectedPreferences(name: String): SharedPreferences {
-        return protectedPreferencesCache.getOrPut(name) {
-            val targetContext = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
-                && !appContext.isDeviceProtectedStorage
-            ) {
-                appContext.createDeviceProtectedStorageContext()
-            } else {
-                appContext
+    /**
+     * @param cacheDecodedValues keep decoded values of this store in memory between reads; pass
+     * false for stores holding large or highly sensitive entries. Only the first caller of a
+     * store picks the setting; a later caller asking for the other one gets the open store and
+     * the mismatch is logged.
+     */
+    @JvmOverloads
+    fun getProtectedPreferences(name: String, cacheDecodedValues: Boolean = true): SharedPreferences {
+        val prefs = protectedPreferencesCache.getOrPut(name) {
+            EncryptedSharedPreferences(
+                protectedStorageContext(),
+                name,
+                cacheDecodedValues = cacheDecodedValues
+            )
+        }
+        if ((prefs as? EncryptedSharedPreferences)?.cachesDecodedValues != cacheDecodedValues) {
+            LogCat.logError("SharedPreferenceProvider") {
+                "Protected store $name is already open with cacheDecodedValues=${!cacheDecodedValues}"
             }
-            EncryptedSharedPreferences(targetContext, name)
+        }
+        return prefs
+    }
+
+    /**
+     * Encrypted file-per-record storage for large binary payloads, indexed by a protected store.
+     */
+    fun getProtectedBlobStore(name: String): EncryptedBlobStore {
+        return protectedBlobStoreCache.getOrPut(name) {
+            val context = protectedStorageContext()
+            val dataDir = ContextCompat.getDataDir(context)
+                ?: File(context.applicationInfo.dataDir)
+            EncryptedBlobStore(
+                File(File(dataDir, "protected_blobs"), name),
+                getProtectedPreferences("blob_index_$name", cacheDecodedValues = false)
+            )
+        }
+    }
+
+    private fun protectedStorageContext(): Context {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            && !appContext.isDeviceProtectedStorage
+        ) {
+            appContext.createDeviceProtectedStorageContext()
+        } else {
+            appContext
         }
     }
 
+    /**
+     * Opens the stores declared in [ProtectedStorageRegistry] plus [names] on the prefetch lane:
+     * configs are unwrapped, key names resolved and hot values decoded ahead of the first prompt.
+     * Timings are logged when done.
+     */
     fun warmUpProtectedStorage(vararg names: String) {
-        val normalizedNames = names
-            .asSequence()
-            .map { it.trim() }
-            .filter { it.isNotEmpty() }
-            .distinct()
-            .toList()
-        ExecutorHelper.startOnBackground {
-            runCatching {
-                EncryptionConfig.primaryInstance
-                EncryptionConfig.legacyDeviceIdInstance
-                EncryptionConfig.secondaryInstance
-                normalizedNames.forEach { getProtectedPreferences(it) }
-            }.onFailure {
-                LogCat.logException(it, "SharedPreferenceProvider.warmUpProtectedStorage")
-            }
+        val extra = names.map { ProtectedStoreDeclaration(it) }
+        ExecutorHelper.startOnBackground(TaskLane.PREFETCH) {
+            val report = runProtectedStorageWarmUp(
+                declarations = mergeStoreDeclarations(
+                    ProtectedStorageRegistry.getDeclarations() + extra
+                ),
+                prepareConfigs = {
+                    EncryptionConfig.primaryInstance
+                    EncryptionConfig.legacyDeviceIdInstance
+                    EncryptionConfig.secondaryInstance
+                },
+                warmStore = { declaration ->
+                    val prefs = getProtectedPreferences(
+                        declaration.name,
+                        declaration.cacheDecodedValues
+                    )
+                    (prefs as? EncryptedSharedPreferences)?.warmUp(declaration.hotKeys)
+                        ?: WarmedStore(0, 0)
+                }
+            )
+            LogCat.log("SharedPreferenceProvider", "Protected storage warm-up: $report")
         }
     }
 
@@ -107,6 +156,7 @@ object SharedPreferenceProvider {
             private const val KEYSTORE_ALIAS = "BiometricCompatProtectedPrefs"
             private const val KEYSTORE_WRAPPED_KEY = "bio_key_v2"
             private const val KEYSTORE_SALT = "bio_hash_v2"
+            private const val KEYSTORE_DERIVED_KEYS_ALIAS = "BiometricCompatDerivedKeys"
 
             @Volatile
             var failClosedWhenKeyStoreUnavailable: Boolean = true
@@ -119,6 +169,21 @@ object SharedPreferenceProvider {
                 getDeviceIdEncryptionConfig()
             }
 
+            //Outputs of the password-based key derivation, wrapped by a Keystore key on disk
+            internal val derivedKeyCache: DerivedKeyCache by lazy {
+                DerivedKeyCache(
+                    { getDataDir() },
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                        AesGcmKeyWrapper {
+                            getOrCreateKeyStoreKey(KEYSTORE_DERIVED_KEYS_ALIAS)
+                                ?: throw IllegalStateException("Android Keystore key unavailable")
+                        }
+                    } else {
+                        null
+                    }
+                )
+            }
+
             val primaryInstance: EncryptionConfig? by lazy {
                 getKeyStoreBackedEncryptionConfig()
                     ?: if (failClosedWhenKeyStoreUnavailable) {
@@ -196,26 +261,7 @@ object SharedPreferenceProvider {
             private fun getKeyStoreBackedEncryptionConfig(): EncryptionConfig? {
                 if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return null
                 return try {
-                    val keyStore = KeyStore.getInstance(ANDROID_KEYSTORE).apply { load(null) }
-                    if (!keyStore.containsAlias(KEYSTORE_ALIAS)) {
-                        val keyGenerator = KeyGenerator.getInstance(
-                            KeyProperties.KEY_ALGORITHM_AES,
-                            ANDROID_KEYSTORE
-                        )
-                        keyGenerator.init(
-                            KeyGenParameterSpec.Builder(
-                                KEYSTORE_ALIAS,
-                                KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
-                            )
-                                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
-                                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
-                                .setRandomizedEncryptionRequired(true)
-                                .build()
-                        )
-                        keyGenerator.generateKey()
-                    }
-                    val secretKey = keyStore.getKey(KEYSTORE_ALIAS, null) as? SecretKey
-                        ?: return null
+                    val secretKey = getOrCreateKeyStoreKey(KEYSTORE_ALIAS) ?: return null
                     val password = readOrCreateWrappedBytes(KEYSTORE_WRAPPED_KEY, 32, secretKey)
                     val salt = readOrCreateWrappedBytes(KEYSTORE_SALT, 128, secretKey)
                     EncryptionConfig(password, salt)
@@ -224,6 +270,29 @@ object SharedPreferenceProvider {
                 }
             }
 
+            @RequiresApi(Build.VERSION_CODES.M)
+            private fun getOrCreateKeyStoreKey(alias: String): SecretKey? {
+                val keyStore = KeyStore.getInstance(ANDROID_KEYSTORE).apply { load(null) }
+                if (!keyStore.containsAlias(alias)) {
+                    val keyGenerator = KeyGenerator.getInstance(
+                        KeyProperties.KEY_ALGORITHM_AES,
+                        ANDROID_KEYSTORE
+                    )
+                    keyGenerator.init(
+                        KeyGenParameterSpec.Builder(
+                            alias,
+                            KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
+                        )
+                            .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                            .setRandomizedEncryptionRequired(true)
+                            .build()
+                    )
+                    keyGenerator.generateKey()
+                }
+                return keyStore.getKey(alias, null) as? SecretKey
+            }
+
             private fun readOrCreateWrappedBytes(
                 fileName: String,
                 size: Int,
@@ -0,0 +1,73 @@
+package dev.skomlach.common.storage
+
+import android.content.SharedPreferences
+import dev.skomlach.common.logging.LogCat
+import dev.skomlach.common.misc.ExecutorHelper
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.withContext
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Applies [block] off the calling thread and commits it in one write. Protected stores also
+ * encrypt the values in parallel, see [EncryptedSharedPreferences.editAsync]. [onComplete] is
+ * posted to the main thread with the commit result.
+ */
+fun SharedPreferences.editAsync(
+    block: SharedPreferences.Editor.() -> Unit,
+    onComplete: ((Boolean) -> Unit)? = null
+) {
+    if (this is EncryptedSharedPreferences) {
+        editAsync(block, onComplete)
+        return
+    }
+    editAsync(block, onComplete, ExecutorHelper.backgroundExecutor, ExecutorHelper.executor)
+}
+
+internal fun SharedPreferences.editAsync(
+    block: SharedPreferences.Editor.() -> Unit,
+    onComplete: ((Boolean) -> Unit)?,
+    background: Executor,
+    callbacks: Executor
+) {
+    commitInBackground(background, callbacks, onComplete) { edit().apply(block).commit() }
+}
+
+/**
+ * Runs [commit] on [background] and hands its result to [onComplete] on [callbacks]. A commit
+ * that throws, for instance because a value could not be encrypted, or that [background]
+ * rejects reports false.
+ */
+internal fun commitInBackground(
+    background: Executor,
+    callbacks: Executor,
+    onComplete: ((Boolean) -> Unit)?,
+    commit: () -> Boolean
+) {
+    try {
+        background.execute {
+            val committed = commitCatching(commit)
+            onComplete?.let { callback -> callbacks.execute { callback(committed) } }
+        }
+    } catch (e: RejectedExecutionException) {
+        LogCat.logException(e, "SharedPreferences.editAsync")
+        onComplete?.let { callback -> callbacks.execute { callback(false) } }
+    }
+}
+
+/**
+ * Suspending form of [commitInBackground]; cancelling the caller does not abort a commit that
+ * already started.
+ */
+internal suspend fun commitOn(dispatcher: CoroutineDispatcher, commit: () -> Boolean): Boolean {
+    return withContext(dispatcher) { commitCatching(commit) }
+}
+
+private fun commitCatching(commit: () -> Boolean): Boolean {
+    return try {
+        commit()
+    } catch (e: Throwable) {
+        LogCat.logException(e, "SharedPreferences.editAsync")
+        false
+    }
+}
@@ -30,11 +30,10 @@ import dev.skomlach.common.logging.LogCat
 import dev.skomlach.common.misc.ExecutorHelper
 import dev.skomlach.common.network.NetworkApi
 import dev.skomlach.common.storage.SharedPreferenceProvider
-import org.json.JSONArray
 import org.json.JSONObject
 import java.io.ByteArrayOutputStream
+import java.io.File
 import java.net.HttpURLConnection
-import java.net.URLEncoder
 import java.security.SecureRandom
 import java.util.Locale
 import java.util.concurrent.ConcurrentHashMap
@@ -62,11 +61,17 @@ object LocalizationHelper {
     private val resourceStringCache = ConcurrentHashMap<String, String>()
     private val resourceTranslationAvailabilityCache = ConcurrentHashMap<String, Boolean>()
 
-    private val diskTranslationsCache =
-        ConcurrentHashMap<String, MutableMap<String, String>>()
+    private val diskTranslationsCache = ConcurrentHashMap<String, TranslationStore>()
 
     private val translationMemoryCache = ConcurrentHashMap<String, String>()
 
+    private val translationClient = TranslationClient(
+        listOf(
+            GoogleTranslateProvider { fetchFromWeb(it) },
+            FallbackTranslateProvider { fetchFromWeb(it) }
+        )
+    )
+
     private fun ensureLocaleState() {
         val currentTag = AndroidContext.appLocale.toLanguageTag()
         if (currentTag != lastKnownAppLocaleTag) {
@@ -74,6 +79,7 @@ object LocalizationHelper {
                 val latestTag = AndroidContext.appLocale.toLanguageTag()
                 if (latestTag != lastKnownAppLocaleTag) {
                     lastKnownAppLocaleTag = latestTag
+                    translationClient.cancelAll()
                     clearCaches()
                 }
             }
@@ -237,6 +243,7 @@ object LocalizationHelper {
     fun prefetch(context: Context, vararg formatArgs: Any?) {
         ensureLocaleState()
         try {
+            val sources = LinkedHashSet<String>()
             formatArgs.toList().forEach { resId ->
                 val name = try {
                     context.resources.getResourceEntryName(resId as Int)
@@ -247,13 +254,15 @@ object LocalizationHelper {
                 try {
                     val translated = getTranslatedStringFromResources(context, resId as Int)
                     if (translated.isNullOrEmpty()) {
-                        val source = getStringForLocaleCached(context, resId, Locale.US)
-                        invoke(source, Locale.US, AndroidContext.appLocale)
+                        sources += getStringForLocaleCached(context, resId, Locale.US)
                     }
                 } catch (e: Throwable) {
                     LogCat.logException(e, "LocalizationHelper $name")
                 }
             }
+            if (sources.isNotEmpty()) {
+                invoke(sources, Locale.US, AndroidContext.appLocale)
+            }
         } catch (e: Throwable) {
             LogCat.logException(e, "LocalizationHelper")
         }
@@ -311,20 +320,16 @@ object LocalizationHelper {
     }
 
     private fun invoke(
-        text: String,
+        texts: Collection<String>,
         fromLang: Locale,
-        toLang: Locale,
-        listener: TranslateResult? = null
+        toLang: Locale
     ) {
         ExecutorHelper.startOnBackground {
             ensureLocaleState()
-            val str = read(fromLang, toLang, text) ?: translate(text, fromLang, toLang).also {
-                if (it.isNotEmpty() && it != text) {
-                    store(fromLang, toLang, text, it)
-                }
-            }
-            ExecutorHelper.post {
-                listener?.onResult(str)
+            val missing = texts.filter { read(fromLang, toLang, it) == null }
+            if (missing.isEmpty() || !NetworkApi.hasInternet()) return@startOnBackground
+            translationClient.translate(missing, fromLang, toLang).forEach { (text, result) ->
+                store(fromLang, toLang, text, result)
             }
         }
     }
@@ -341,33 +346,49 @@ object LocalizationHelper {
             return translationMemoryCache[memKey]
         }
 
-        val pairKey = translationPairKey(fromLang, toLang)
-        val translations = getOrLoadTranslationsMap(pairKey)
-
-        val value = translations[text]?.trim()?.ifEmpty { null }
+        val value = translationStore(fromLang, toLang).get(text)?.trim()?.ifEmpty { null }
         translationMemoryCache[memKey] = value ?: return null
         return value
     }
 
-    private fun getOrLoadTranslationsMap(pairKey: String): MutableMap<String, String> {
-        return diskTranslationsCache.getOrPut(pairKey) {
-            val pref = SharedPreferenceProvider.getPreferences(PREF_NAME)
-            val set = pref.getStringSet(pairKey, emptySet()).orEmpty()
+    private fun translationStore(fromLang: Locale, toLang: Locale): TranslationStore {
+        val pairKey = translationPairKey(fromLang, toLang)
+        diskTranslationsCache[pairKey]?.let { return it }
+        synchronized(diskTranslationsCache) {
+            return diskTranslationsCache.getOrPut(pairKey) {
+                val name = "${fromLang.language}-${toLang.language}".replace(Regex("[^A-Za-z0-9-]"), "_")
+                TranslationStore(
+                    File(AndroidContext.appContext.filesDir, "$PREF_NAME/$name.bin")
+                ).also {
+                    migrateLegacyTranslations(pairKey, it)
+                }
+            }
+        }
+    }
 
-            val result = HashMap<String, String>(set.size * 2)
+    //Translations used to be kept as a StringSet of single-entry JSON objects per pair
+    private fun migrateLegacyTranslations(pairKey: String, store: TranslationStore) {
+        try {
+            val pref = SharedPreferenceProvider.getPreferences(PREF_NAME)
+            val set = pref.getStringSet(pairKey, null) ?: return
+            val legacy = HashMap<String, String>(set.size * 2)
             for (item in set) {
                 try {
                     val json = JSONObject(item)
                     val keys = json.keys()
                     while (keys.hasNext()) {
                         val key = keys.next()
-                        result[key] = json.optString(key)
+                        legacy[key] = json.optString(key)
                     }
                 } catch (e: Throwable) {
                     LogCat.logException(e, "LocalizationHelper")
                 }
             }
-            result
+            if (store.putAll(legacy)) {
+                pref.edit().remove(pairKey).apply()
+            }
+        } catch (e: Throwable) {
+            LogCat.logException(e, "LocalizationHelper")
         }
     }
 
@@ -380,195 +401,8 @@ object LocalizationHelper {
         if (fromLang.language == toLang.language) return
         if (text.trim().isEmpty() || result.trim().isEmpty() || text == result) return
 
-        val pairKey = translationPairKey(fromLang, toLang)
-
-        synchronized(pairKey.intern()) {
-            val map = getOrLoadTranslationsMap(pairKey)
-            val oldValue = map[text]
-            if (oldValue == result) {
-                translationMemoryCache[translationEntryKey(fromLang, toLang, text)] = result
-                return
-            }
-
-            map[text] = result
-            translationMemoryCache[translationEntryKey(fromLang, toLang, text)] = result
-
-            try {
-                val pref = SharedPreferenceProvider.getPreferences(PREF_NAME)
-                val set = HashSet<String>(pref.getStringSet(pairKey, emptySet()) ?: emptySet())
-
-                var existingJsonToRemove: String? = null
-                for (item in set) {
-                    try {
-                        val json = JSONObject(item)
-                        if (json.has(text)) {
-                            existingJsonToRemove = item
-                            break
-                        }
-                    } catch (_: Throwable) {
-                    }
-                }
-                if (existingJsonToRemove != null) {
-                    set.remove(existingJsonToRemove)
-                }
-
-                set.add(JSONObject().apply {
-                    put(text, result)
-                }.toString())
-
-                pref.edit().putStringSet(pairKey, set).apply()
-            } catch (e: Throwable) {
-                LogCat.logException(e, "LocalizationHelper")
-            }
-        }
-    }
-
-    private fun translate(text: String, fromLang: Locale, toLang: Locale): String {
-        try {
-            val parts = text.split(".")
-                .map { it.trim() }
-                .filter { it.isNotEmpty() }
-            if (parts.isEmpty()) return text
-
-            var sb = StringBuilder()
-
-            parts.forEach {
-                translateUseGoogleApi(it, fromLang, toLang)?.let { s ->
-                    if (s.isNotEmpty()) {
-                        sb.append(s).append(". ")
-                    }
-                }
-            }
-
-            var result = sb.toString().trim()
-            if (!text.endsWith(".") && result.endsWith(".")) {
-                result = result.substring(0, result.length - 1)
-            }
-            if (result.isNotEmpty()) return result
-
-            sb = StringBuilder()
-            parts.forEach {
-                translateUseFallbackApi(it, fromLang, toLang)?.let { s ->
-                    if (s.isNotEmpty()) {
-                        sb.append(s).append(". ")
-                    }
-                }
-            }
-
-            result = sb.toString().trim()
-            if (!text.endsWith(".") && result.endsWith(".")) {
-                result = result.substring(0, result.length - 1)
-            }
-            if (result.isNotEmpty()) return result
-        } catch (e: Throwable) {
-            LogCat.logException(e, "LocalizationHelper")
-        }
-        return text
-    }
-
-    //https://translate.googleapis.com/translate_a/single?client=gtx&sl=en&tl=fr&dt=t&q=father&ie=UTF-8&oe=UTF-8
-    //https://clients5.google.com/translate_a/t?client=dict-chrome-ex&sl=en&tl=fr&dt=t&q=father
-    private fun translateUseGoogleApi(t: String, fromLang: Locale, toLang: Locale): String? {
-        LogCat.logError("translateUseGoogleApi: from=$fromLang to=$toLang text=$t")
-        if (NetworkApi.hasInternet() && t.isNotEmpty()) {
-            try {
-                var text = t
-                for (i in 1..Int.MAX_VALUE) {
-                    if (text.contains("%$i$")) {
-                        text = text.replace("%$i$", "%$i%")
-                    } else {
-                        break
-                    }
-                }
-
-                val encode: String = URLEncoder.encode(text.replace("\n", " \\n "), "UTF-8")
-                val sb = StringBuilder()
-                sb.append("https://translate.googleapis.com/translate_a/single?client=gtx&sl=")
-                sb.append(fromLang.language)
-                sb.append("&tl=")
-                sb.append(toLang.language)
-                sb.append("&dt=t&q=")
-                sb.append(encode).append("&ie=UTF-8&oe=UTF-8")
-
-                val data = fetchFromWeb(sb.toString()) ?: return null
-
-                var s = JSONArray(data)
-                    .getJSONArray(0)
-                    .getJSONArray(0)
-                    .getString(0)
-
-                for (i in 1..Int.MAX_VALUE) {
-                    if (s.contains("%$i%")) {
-                        s = s
-                            .replace("%$i%", "%$i$")
-                            .replace("%$i\$S", "%$i\$s")
-                            .replace("%$i\$D", "%$i\$d")
-                    } else {
-                        break
-                    }
-                }
-
-                return s
-                    .replace(" \\ n ", "\n")
-                    .replace("\\ n", "\n")
-                    .replace("  ", " ")
-                    .trim()
-                    .ifEmpty { null }
-            } catch (e: Throwable) {
-                LogCat.logException(e, "LocalizationHelper")
-            }
-        }
-        return null
-    }
-
-    private fun translateUseFallbackApi(t: String, fromLang: Locale, toLang: Locale): String? {
-        LogCat.logError("translateUseFallbackApi: from=$fromLang to=$toLang text=$t")
-        if (NetworkApi.hasInternet() && t.isNotEmpty()) {
-            try {
-                var text = t
-                for (i in 1..Int.MAX_VALUE) {
-                    if (text.contains("%$i$")) {
-                        text = text.replace("%$i$", "%$i%")
-                    } else {
-                        break
-                    }
-                }
-
-                val encode: String = URLEncoder.encode(text.replace("\n", " \\n "), "UTF-8")
-                val sb = StringBuilder()
-                sb.append("https://clients5.google.com/translate_a/t?client=dict-chrome-ex&sl=")
-                sb.append(fromLang.language)
-                sb.append("&tl=")
-                sb.append(toLang.language)
-                sb.append("&dt=t&q=")
-                sb.append(encode).append("&ie=UTF-8&oe=UTF-8")
-
-                val data = fetchFromWeb(sb.toString()) ?: return null
-
-                var s = JSONArray(data).getString(0)
-
-                for (i in 1..Int.MAX_VALUE) {
-                    if (s.contains("%$i%")) {
-                        s = s
-                            .replace("%$i%", "%$i$")
-                            .replace("%$i\$S", "%$i\$s")
-                            .replace("%$i\$D", "%$i\$d")
-                    } else {
-                        break
-                    }
-                }
-
-                return s
-                    .replace(" \\ n ", "\n")
-                    .replace("\\ n", "\n")
-                    .replace("  ", " ")
-                    .trim()
-                    .ifEmpty { null }
-            } catch (e: Throwable) {
-                LogCat.logException(e, "LocalizationHelper")
-            }
-        }
-        return null
+        translationMemoryCache[translationEntryKey(fromLang, toLang, text)] = result
+        translationStore(fromLang, toLang).put(text, result)
     }
 
     private fun getTranslatedStringFromResources(currentContext: Context, id: Int): String? {
@@ -0,0 +1,209 @@
+/*
+ *  Copyright (c) 2026 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.translate
+
+import dev.skomlach.common.logging.LogCat
+import java.util.Locale
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * Translates texts sentence by sentence with as few provider requests as possible.
+ *
+ * Sentences are deduplicated, and a sentence already requested by another caller is awaited
+ * rather than fetched again. The rest are sent in batches to the first provider, and whatever it
+ * misses goes to the next one. At most [maxConcurrentRequests] requests run at once across all
+ * callers. [cancelAll] abandons everything in flight, for example after a locale change.
+ */
+internal class TranslationClient(
+    private val providers: List<TranslationProvider>,
+    maxConcurrentRequests: Int = 2,
+    private val maxBatchChars: Int = MAX_BATCH_CHARS,
+    private val maxBatchSize: Int = MAX_BATCH_SIZE
+) {
+    companion object {
+        private const val MAX_BATCH_CHARS = 1500
+        private const val MAX_BATCH_SIZE = 64
+        private const val WAIT_TIMEOUT_SEC = 60L
+
+        fun sentences(text: String): List<String> =
+            text.split(".").map { it.trim() }.filter { it.isNotEmpty() }
+    }
+
+    private class Call {
+        private val done = CountDownLatch(1)
+
+        @Volatile
+        var result: String? = null
+            private set
+
+        @Synchronized
+        fun complete(value: String?) {
+            if (done.count == 0L) return
+            result = value
+            done.countDown()
+        }
+
+        fun await(): String? {
+            return try {
+                done.await(WAIT_TIMEOUT_SEC, TimeUnit.SECONDS)
+                result
+            } catch (_: InterruptedException) {
+                Thread.currentThread().interrupt()
+                null
+            }
+        }
+    }
+
+    private val inFlight = HashMap<String, Call>()
+    private val permits = Semaphore(maxConcurrentRequests)
+
+    @Volatile
+    private var generation = 0
+
+    /**
+     * @return translations of those [texts] whose every sentence was translated
+     */
+    fun translate(texts: Collection<String>, from: Locale, to: Locale): Map<String, String> {
+        val sentencesByText = LinkedHashMap<String, List<String>>()
+        texts.forEach { sentencesByText[it] = sentences(it) }
+        val started = generation
+        val owned = LinkedHashMap<String, Call>()
+        val joined = HashMap<String, Call>()
+        synchronized(inFlight) {
+            for (sentence in sentencesByText.values.flatten()) {
+                if (owned.containsKey(sentence) || joined.containsKey(sentence)) continue
+                val key = key(from, to, sentence)
+                val existing = inFlight[key]
+                if (existing != null) {
+                    joined[sentence] = existing
+                } else {
+                    val call = Call()
+                    inFlight[key] = call
+                    owned[sentence] = call
+                }
+            }
+        }
+        try {
+            fetch(owned, from, to, started)
+        } finally {
+            synchronized(inFlight) {
+                for ((sentence, call) in owned) {
+                    val key = key(from, to, sentence)
+                    if (inFlight[key] === call) inFlight.remove(key)
+                    call.complete(null)
+                }
+            }
+        }
+
+        val translated = HashMap<String, String?>()
+        owned.forEach { (sentence, call) -> translated[sentence] = call.result }
+        joined.forEach { (sentence, call) -> translated[sentence] = call.await() }
+
+        val result = LinkedHashMap<String, String>()
+        texts@ for ((text, sentences) in sentencesByText) {
+            if (sentences.isEmpty()) continue
+            val sb = StringBuilder()
+            for (sentence in sentences) {
+                sb.append(translated[sentence] ?: continue@texts).append(". ")
+            }
+            var value = sb.toString().trim()
+            if (!text.endsWith(".") && value.endsWith(".")) {
+                value = value.substring(0, value.length - 1)
+            }
+            result[text] = value
+        }
+        return result
+    }
+
+    /**
+     * Completes every request in flight with no translation; their owners stop before the next
+     * provider request.
+     */
+    fun cancelAll() {
+        generation++
+        synchronized(inFlight) {
+            inFlight.values.forEach { it.complete(null) }
+            inFlight.clear()
+        }
+    }
+
+    private fun fetch(calls: Map<String, Call>, from: Locale, to: Locale, started: Int) {
+        var pending = calls.keys.toList()
+        for (provider in providers) {
+            if (pending.isEmpty()) return
+            val missing = ArrayList<String>()
+            for (batch in batches(pending)) {
+                if (started != generation) return
+                val translations = request(provider, batch, from, to)
+                batch.forEachIndexed { i, sentence ->
+                    val value = translations?.getOrNull(i)?.trim()?.ifEmpty { null }
+                    if (value != null) calls.getValue(sentence).complete(value) else missing += sentence
+                }
+            }
+            pending = missing
+        }
+    }
+
+    private fun request(
+        provider: TranslationProvider,
+        batch: List<String>,
+        from: Locale,
+        to: Locale
+    ): List<String?>? {
+        try {
+            permits.acquire()
+        } catch (_: InterruptedException) {
+            Thread.currentThread().interrupt()
+            return null
+        }
+        return try {
+            provider.translate(batch, from, to)
+        } catch (e: Throwable) {
+            LogCat.logException(e, "TranslationClient")
+            null
+        } finally {
+            permits.release()
+        }
+    }
+
+    private fun batches(sentences: List<String>): List<List<String>> {
+        val batches = ArrayList<List<String>>()
+        var current = ArrayList<String>()
+        var chars = 0
+        for (sentence in sentences) {
+            if (current.isNotEmpty() &&
+                (chars + sentence.length > maxBatchChars || current.size == maxBatchSize)
+            ) {
+                batches += current
+                current = ArrayList()
+                chars = 0
+            }
+            current += sentence
+            chars += sentence.length
+        }
+        if (current.isNotEmpty()) batches += current
+        return batches
+    }
+
+    private fun key(from: Locale, to: Locale, sentence: String): String =
+        from.language + ">>" + to.language + "::" + sentence
+}
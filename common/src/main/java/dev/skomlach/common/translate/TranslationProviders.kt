@@ -0,0 +1,131 @@
+/*
+ *  Copyright (c) 2026 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.translate
+
+import org.json.JSONArray
+import java.net.URLEncoder
+import java.util.Locale
+
+internal fun interface TranslationProvider {
+    /**
+     * @return translations aligned with [segments], with nulls for missed ones, or null when
+     * the request failed
+     */
+    fun translate(segments: List<String>, from: Locale, to: Locale): List<String?>?
+}
+
+//https://translate.googleapis.com/translate_a/single?client=gtx&sl=en&tl=fr&dt=t&q=father&ie=UTF-8&oe=UTF-8
+/**
+ * The endpoint takes one text, so the segments are sent as its lines and split back; a reply
+ * that does not keep the line structure counts as failed.
+ */
+internal class GoogleTranslateProvider(
+    private val fetch: (String) -> String?,
+    private val endpoint: String = "https://translate.googleapis.com/translate_a/single"
+) : TranslationProvider {
+    override fun translate(segments: List<String>, from: Locale, to: Locale): List<String?>? {
+        val query = segments.joinToString("\n") { protectSegment(it) }
+        val url = buildString {
+            append(endpoint)
+            append("?client=gtx&sl=")
+            append(from.language)
+            append("&tl=")
+            append(to.language)
+            append("&dt=t&q=")
+            append(URLEncoder.encode(query, "UTF-8"))
+            append("&ie=UTF-8&oe=UTF-8")
+        }
+        val data = fetch(url) ?: return null
+        val sentences = JSONArray(data).getJSONArray(0)
+        val joined = StringBuilder()
+        for (i in 0 until sentences.length()) {
+            val sentence = sentences.optJSONArray(i) ?: continue
+            if (!sentence.isNull(0)) joined.append(sentence.getString(0))
+        }
+        val lines = joined.split("\n")
+        if (lines.size != segments.size) return null
+        return lines.map { restoreSegment(it) }
+    }
+}
+
+//https://clients5.google.com/translate_a/t?client=dict-chrome-ex&sl=en&tl=fr&dt=t&q=father
+/**
+ * The endpoint takes repeated q parameters and answers with one entry per parameter.
+ */
+internal class FallbackTranslateProvider(
+    private val fetch: (String) -> String?,
+    private val endpoint: String = "https://clients5.google.com/translate_a/t"
+) : TranslationProvider {
+    override fun translate(segments: List<String>, from: Locale, to: Locale): List<String?>? {
+        val url = buildString {
+            append(endpoint)
+            append("?client=dict-chrome-ex&sl=")
+            append(from.language)
+            append("&tl=")
+            append(to.language)
+            append("&dt=t")
+            segments.forEach {
+                append("&q=")
+                append(URLEncoder.encode(protectSegment(it), "UTF-8"))
+            }
+            append("&ie=UTF-8&oe=UTF-8")
+        }
+        val data = fetch(url) ?: return null
+        val entries = JSONArray(data)
+        if (entries.length() != segments.size) return null
+        return List(segments.size) { i ->
+            //Either the translation or [translation, detected language]
+            val entry = entries.optJSONArray(i)?.optString(0) ?: entries.optString(i)
+            restoreSegment(entry)
+        }
+    }
+}
+
+private fun protectSegment(segment: String): String {
+    var text = segment
+    for (i in 1..Int.MAX_VALUE) {
+        if (text.contains("%$i$")) {
+            text = text.replace("%$i$", "%$i%")
+        } else {
+            break
+        }
+    }
+    return text.replace("\n", " \\n ")
+}
+
+private fun restoreSegment(translated: String): String? {
+    var s = translated
+    for (i in 1..Int.MAX_VALUE) {
+        if (s.contains("%$i%")) {
+            s = s
+                .replace("%$i%", "%$i$")
+                .replace("%$i\$S", "%$i\$s")
+                .replace("%$i\$D", "%$i\$d")
+        } else {
+            break
+        }
+    }
+    return s
+        .replace(" \\ n ", "\n")
+        .replace("\\ n", "\n")
+        .replace("  ", " ")
+        .trim()
+        .ifEmpty { null }
+}
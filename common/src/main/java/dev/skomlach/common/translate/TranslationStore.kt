@@ -0,0 +1,176 @@
+/*
+ *  Copyright (c) 2026 Sergey Komlach aka Salat-Cx65; Original project https://github.com/Salat-Cx65/AdvancedBiometricPromptCompat
+ *  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package dev.skomlach.common.translate
+
+import dev.skomlach.common.logging.LogCat
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Translations of one language pair, keyed by a 64-bit hash of the source text.
+ *
+ * The file is an append-only log of (hash, translation) records where the last record of a hash
+ * wins. It is read sequentially once, on first access, and rewritten when superseded records
+ * outnumber live ones. A record torn by a crash is dropped on the next load.
+ */
+internal class TranslationStore(private val file: File) {
+    companion object {
+        private const val MAGIC = 0x4c545331
+        private const val HEADER_BYTES = 4L
+        private const val RECORD_HEADER_BYTES = 12L
+        private const val MIN_COMPACT_RECORDS = 64
+        private const val MAX_VALUE_BYTES = 64 * 1024
+
+        //FNV-1a over UTF-16 units; 64 bits keep collisions negligible for any realistic set of strings
+        fun hash(text: String): Long {
+            var hash = -0x340d631b7bdddcdbL
+            for (c in text) {
+                hash = (hash xor c.code.toLong()) * 0x100000001b3L
+            }
+            return hash
+        }
+    }
+
+    private var entries: HashMap<Long, String>? = null
+    private var records = 0
+
+    @Synchronized
+    fun get(text: String): String? = load()[hash(text)]
+
+    /**
+     * @return false when the translations could not be written; they are still served from memory
+     */
+    @Synchronized
+    fun put(text: String, translation: String): Boolean = putAll(mapOf(text to translation))
+
+    @Synchronized
+    fun putAll(translations: Map<String, String>): Boolean {
+        val map = load()
+        val changed = ArrayList<Pair<Long, ByteArray>>(translations.size)
+        for ((text, translation) in translations) {
+            val key = hash(text)
+            if (map.put(key, translation) != translation) {
+                val bytes = translation.toByteArray(Charsets.UTF_8)
+                //Would be taken for corruption on load, so it stays in memory only
+                if (bytes.size <= MAX_VALUE_BYTES) changed += key to bytes
+            }
+        }
+        if (changed.isEmpty()) return true
+        return try {
+            append(changed)
+            if (records >= MIN_COMPACT_RECORDS && records > map.size * 2) {
+                compact(map)
+            }
+            true
+        } catch (e: Throwable) {
+            LogCat.logException(e, "TranslationStore")
+            false
+        }
+    }
+
+    private fun load(): HashMap<Long, String> {
+        entries?.let { return it }
+        val map = HashMap<Long, String>()
+        var count = 0
+        var valid = 0L
+        if (file.exists()) {
+            try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    if (input.readInt() != MAGIC) throw IOException("Unknown translation store format")
+                    valid = HEADER_BYTES
+                    while (true) {
+                        val key = try {
+                            input.readLong()
+                        } catch (_: EOFException) {
+                            break
+                        }
+                        val size = input.readInt()
+                        if (size < 0 || size > MAX_VALUE_BYTES) throw IOException("Corrupted translation record")
+                        val bytes = ByteArray(size)
+                        input.readFully(bytes)
+                        map[key] = String(bytes, Charsets.UTF_8)
+                        count++
+                        valid += RECORD_HEADER_BYTES + size
+                    }
+                }
+            } catch (_: EOFException) {
+                //Torn tail, everything before it is kept
+            } catch (e: Throwable) {
+                LogCat.logException(e, "TranslationStore")
+            }
+            //Appends must start on a record boundary
+            if (file.length() != valid) {
+                try {
+                    if (valid == 0L) file.delete() else RandomAccessFile(file, "rw").use { it.setLength(valid) }
+                } catch (e: Throwable) {
+                    LogCat.logException(e, "TranslationStore")
+                }
+            }
+        }
+        entries = map
+        records = count
+        return map
+    }
+
+    private fun append(items: List<Pair<Long, ByteArray>>) {
+        file.parentFile?.mkdirs()
+        val fresh = !file.exists() || file.length() == 0L
+        DataOutputStream(BufferedOutputStream(FileOutputStream(file, true))).use { out ->
+            if (fresh) out.writeInt(MAGIC)
+            for ((key, value) in items) {
+                writeRecord(out, key, value)
+            }
+        }
+        records += items.size
+    }
+
+    private fun compact(map: Map<Long, String>) {
+        val tmpFile = File(file.parentFile, file.name + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmpFile))).use { out ->
+                out.writeInt(MAGIC)
+                for ((key, value) in map) {
+                    val bytes = value.toByteArray(Charsets.UTF_8)
+                    if (bytes.size <= MAX_VALUE_BYTES) writeRecord(out, key, bytes)
+                }
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw IllegalStateException("Failed to rename ${tmpFile.absolutePath} to ${file.absolutePath}")
+            }
+            records = map.size
+        } finally {
+            tmpFile.delete()
+        }
+    }
+
+    private fun writeRecord(out: DataOutputStream, key: Long, bytes: ByteArray) {
+        out.writeLong(key)
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+}
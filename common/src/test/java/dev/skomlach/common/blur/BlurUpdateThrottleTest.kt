@@ -0,0 +1,73 @@
+package dev.skomlach.common.blur
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class BlurUpdateThrottleTest {
+
+    @Test
+    fun `first change updates immediately and repeats collapse into one`() {
+        val throttle = BlurUpdateThrottle(200)
+
+        assertEquals(0L, throttle.invalidate(1_000))
+        assertNull(throttle.invalidate(1_001))
+        assertNull(throttle.invalidate(1_002))
+        assertTrue(throttle.start(1_003))
+    }
+
+    @Test
+    fun `changes during an update schedule one trailing update at the rate limit`() {
+        val throttle = BlurUpdateThrottle(200)
+        throttle.invalidate(1_000)
+        throttle.start(1_000)
+
+        assertNull(throttle.invalidate(1_050))
+        assertNull(throttle.invalidate(1_060))
+
+        assertEquals(130L, throttle.finish(1_070))
+        assertTrue(throttle.start(1_200))
+    }
+
+    @Test
+    fun `update without later changes does not reschedule`() {
+        val throttle = BlurUpdateThrottle(200)
+        throttle.invalidate(1_000)
+        throttle.start(1_000)
+
+        assertNull(throttle.finish(1_010))
+        assertFalse(throttle.start(1_500))
+        assertEquals(0L, throttle.invalidate(1_500))
+    }
+
+    @Test
+    fun `reset forgets the rate limit and pending work`() {
+        val throttle = BlurUpdateThrottle(200)
+        throttle.invalidate(1_000)
+        throttle.start(1_000)
+
+        throttle.reset()
+
+        assertFalse(throttle.start(1_001))
+        assertEquals(0L, throttle.invalidate(1_001))
+    }
+
+    @Test
+    fun `fingerprint follows sampled content and size`() {
+        val frame = IntArray(100 * 50) { it * 7 }
+        val pixel = { x: Int, y: Int -> frame[y * 100 + x] }
+        val same = sampledFingerprint(100, 50, 8, pixel)
+
+        assertEquals(same, sampledFingerprint(100, 50, 8, pixel))
+
+        frame.fill(0)
+        assertNotEquals(same, sampledFingerprint(100, 50, 8, pixel))
+        assertNotEquals(
+            sampledFingerprint(100, 50, 8) { _, _ -> 0 },
+            sampledFingerprint(50, 100, 8) { _, _ -> 0 }
+        )
+    }
+}
@@ -0,0 +1,249 @@
+package dev.skomlach.common.blur
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.util.concurrent.Executors
+import kotlin.random.Random
+
+class StackBlurTest {
+
+    private fun image(width: Int, height: Int, seed: Int): IntArray {
+        val random = Random(seed)
+        return IntArray(width * height) { random.nextInt() }
+    }
+
+    private fun assertMatchesReference(
+        engine: StackBlur,
+        width: Int,
+        height: Int,
+        radius: Int,
+        seed: Int,
+        executor: java.util.concurrent.Executor? = null
+    ) {
+        val source = image(width, height, seed)
+        val expected = source.copyOf()
+        referenceStackBlur(expected, width, height, radius)
+        val actual = source.copyOf()
+
+        engine.blur(actual, width, height, radius, executor)
+
+        assertArrayEquals("${width}x$height r=$radius", expected, actual)
+    }
+
+    @Test
+    fun `output matches the original implementation`() {
+        val engine = StackBlur()
+        assertMatchesReference(engine, 64, 48, 4, 1)
+        assertMatchesReference(engine, 97, 31, 25, 2)
+        assertMatchesReference(engine, 3, 5, 25, 3)
+        assertMatchesReference(engine, 1, 1, 2, 4)
+        assertMatchesReference(engine, 200, 1, 7, 5)
+        assertMatchesReference(engine, 1, 200, 7, 6)
+    }
+
+    @Test
+    fun `parallel bands match the original implementation`() {
+        val pool = Executors.newFixedThreadPool(4)
+        try {
+            val engine = StackBlur()
+            assertMatchesReference(engine, 320, 240, 4, 7, pool)
+            assertMatchesReference(engine, 257, 129, 25, 8, pool)
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    @Test
+    fun `buffers are reused and shrinking images stay correct`() {
+        val engine = StackBlur()
+        val buffer = engine.pixelBuffer(100 * 100)
+        assertMatchesReference(engine, 100, 100, 5, 9)
+
+        assertSame(buffer, engine.pixelBuffer(40 * 30))
+        assertMatchesReference(engine, 40, 30, 5, 10)
+        assertMatchesReference(engine, 40, 30, 3, 11)
+    }
+
+    //Stack Blur v1.0 by Mario Klingemann, as FastBlur.stack implemented it before the engine
+    private fun referenceStackBlur(pix: IntArray, w: Int, h: Int, radius: Int) {
+        val wm = w - 1
+        val hm = h - 1
+        val wh = w * h
+        val div = radius + radius + 1
+        val r = IntArray(wh)
+        val g = IntArray(wh)
+        val b = IntArray(wh)
+        var rsum: Int
+        var gsum: Int
+        var bsum: Int
+        var x: Int
+        var y: Int
+        var i: Int
+        var p: Int
+        var yp: Int
+        var yi: Int
+        val vmin = IntArray(Math.max(w, h))
+        var divsum = div + 1 shr 1
+        divsum *= divsum
+        val dv = IntArray(256 * divsum)
+        i = 0
+        while (i < 256 * divsum) {
+            dv[i] = i / divsum
+            i++
+        }
+        yi = 0
+        var yw: Int = yi
+        val stack = Array(div) { IntArray(3) }
+        var stackpointer: Int
+        var stackstart: Int
+        var sir: IntArray
+        var rbs: Int
+        val r1 = radius + 1
+        var routsum: Int
+        var goutsum: Int
+        var boutsum: Int
+        var rinsum: Int
+        var ginsum: Int
+        var binsum: Int
+        y = 0
+        while (y < h) {
+            rinsum = 0; ginsum = 0; binsum = 0
+            routsum = 0; goutsum = 0; boutsum = 0
+            rsum = 0; gsum = 0; bsum = 0
+            i = -radius
+            while (i <= radius) {
+                p = pix[yi + wm.coerceAtMost(i.coerceAtLeast(0))]
+                sir = stack[i + radius]
+                sir[0] = p and 0xff0000 shr 16
+                sir[1] = p and 0x00ff00 shr 8
+                sir[2] = p and 0x0000ff
+                rbs = r1 - Math.abs(i)
+                rsum += sir[0] * rbs
+                gsum += sir[1] * rbs
+                bsum += sir[2] * rbs
+                if (i > 0) {
+                    rinsum += sir[0]
+                    ginsum += sir[1]
+                    binsum += sir[2]
+                } else {
+                    routsum += sir[0]
+                    goutsum += sir[1]
+                    boutsum += sir[2]
+                }
+                i++
+            }
+            stackpointer = radius
+            x = 0
+            while (x < w) {
+                r[yi] = dv[rsum]
+                g[yi] = dv[gsum]
+                b[yi] = dv[bsum]
+                rsum -= routsum
+                gsum -= goutsum
+                bsum -= boutsum
+                stackstart = stackpointer - radius + div
+                sir = stack[stackstart % div]
+                routsum -= sir[0]
+                goutsum -= sir[1]
+                boutsum -= sir[2]
+                if (y == 0) {
+                    vmin[x] = (x + radius + 1).coerceAtMost(wm)
+                }
+                p = pix[yw + vmin[x]]
+                sir[0] = p and 0xff0000 shr 16
+                sir[1] = p and 0x00ff00 shr 8
+                sir[2] = p and 0x0000ff
+                rinsum += sir[0]
+                ginsum += sir[1]
+                binsum += sir[2]
+                rsum += rinsum
+                gsum += ginsum
+                bsum += binsum
+                stackpointer = (stackpointer + 1) % div
+                sir = stack[stackpointer % div]
+                routsum += sir[0]
+                goutsum += sir[1]
+                boutsum += sir[2]
+                rinsum -= sir[0]
+                ginsum -= sir[1]
+                binsum -= sir[2]
+                yi++
+                x++
+            }
+            yw += w
+            y++
+        }
+        x = 0
+        while (x < w) {
+            rinsum = 0; ginsum = 0; binsum = 0
+            routsum = 0; goutsum = 0; boutsum = 0
+            rsum = 0; gsum = 0; bsum = 0
+            yp = -radius * w
+            i = -radius
+            while (i <= radius) {
+                yi = 0.coerceAtLeast(yp) + x
+                sir = stack[i + radius]
+                sir[0] = r[yi]
+                sir[1] = g[yi]
+                sir[2] = b[yi]
+                rbs = r1 - Math.abs(i)
+                rsum += r[yi] * rbs
+                gsum += g[yi] * rbs
+                bsum += b[yi] * rbs
+                if (i > 0) {
+                    rinsum += sir[0]
+                    ginsum += sir[1]
+                    binsum += sir[2]
+                } else {
+                    routsum += sir[0]
+                    goutsum += sir[1]
+                    boutsum += sir[2]
+                }
+                if (i < hm) {
+                    yp += w
+                }
+                i++
+            }
+            yi = x
+            stackpointer = radius
+            y = 0
+            while (y < h) {
+                pix[yi] =
+                    -0x1000000 and pix[yi] or (dv[rsum] shl 16) or (dv[gsum] shl 8) or dv[bsum]
+                rsum -= routsum
+                gsum -= goutsum
+                bsum -= boutsum
+                stackstart = stackpointer - radius + div
+                sir = stack[stackstart % div]
+                routsum -= sir[0]
+                goutsum -= sir[1]
+                boutsum -= sir[2]
+                if (x == 0) {
+                    vmin[y] = Math.min(y + r1, hm) * w
+                }
+                p = x + vmin[y]
+                sir[0] = r[p]
+                sir[1] = g[p]
+                sir[2] = b[p]
+                rinsum += sir[0]
+                ginsum += sir[1]
+                binsum += sir[2]
+                rsum += rinsum
+                gsum += ginsum
+                bsum += binsum
+                stackpointer = (stackpointer + 1) % div
+                sir = stack[stackpointer]
+                routsum += sir[0]
+                goutsum += sir[1]
+                boutsum += sir[2]
+                rinsum -= sir[0]
+                ginsum -= sir[1]
+                binsum -= sir[2]
+                yi += w
+                y++
+            }
+            x++
+        }
+    }
+}
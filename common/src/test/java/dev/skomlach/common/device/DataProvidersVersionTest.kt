@@ -0,0 +1,36 @@
+package dev.skomlach.common.device
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class DataProvidersVersionTest {
+    private val dir = Files.createTempDirectory("versions").toFile()
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun missingCachedFileFallsBackToAssetVersion() {
+        assertEquals("asset", DataProviders.databaseVersion(File(dir, "db.json")))
+    }
+
+    @Test
+    fun revalidationKeepsVersionAndNewContentChangesIt() {
+        val file = File(dir, "db.json")
+        file.writeText("{\"a\":1}")
+        JsonFileDownloader.validatorsFile(file).writeText("ETag: \"v1\"")
+        val downloaded = DataProviders.databaseVersion(file)
+
+        file.setLastModified(file.lastModified() - 60_000)
+        assertEquals(downloaded, DataProviders.databaseVersion(file))
+
+        JsonFileDownloader.validatorsFile(file).writeText("ETag: \"v2\"")
+        assertNotEquals(downloaded, DataProviders.databaseVersion(file))
+    }
+}
@@ -0,0 +1,126 @@
+package dev.skomlach.common.device
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.net.HttpURLConnection
+import java.net.InetSocketAddress
+import java.net.URL
+import java.nio.file.Files
+
+class JsonFileDownloaderTest {
+    private lateinit var server: HttpServer
+    private lateinit var dir: File
+    private val requests = ArrayList<Map<String, String?>>()
+
+    @Volatile
+    private var body = "{\"devices\": [1, 2, 3]}"
+
+    @Volatile
+    private var etag = "\"v1\""
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("downloader").toFile()
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/db.json") { exchange ->
+            requests += mapOf(
+                "If-None-Match" to exchange.requestHeaders.getFirst("If-None-Match"),
+                "If-Modified-Since" to exchange.requestHeaders.getFirst("If-Modified-Since")
+            )
+            if (exchange.requestHeaders.getFirst("If-None-Match") == etag) {
+                respond(exchange, 304, null)
+            } else {
+                exchange.responseHeaders.add("ETag", etag)
+                exchange.responseHeaders.add("Last-Modified", "Mon, 19 Oct 2026 10:00:00 GMT")
+                respond(exchange, 200, body)
+            }
+        }
+        server.createContext("/moved") { exchange ->
+            exchange.responseHeaders.add("Location", "/db.json")
+            respond(exchange, 302, null)
+        }
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+        dir.deleteRecursively()
+    }
+
+    private fun respond(exchange: HttpExchange, code: Int, text: String?) {
+        val bytes = text?.toByteArray()
+        exchange.sendResponseHeaders(code, bytes?.size?.toLong() ?: -1)
+        exchange.responseBody.use { out -> bytes?.let { out.write(it) } }
+    }
+
+    private fun url(path: String) = "http://127.0.0.1:${server.address.port}$path"
+
+    private val downloader = JsonFileDownloader(
+        openConnection = { URL(it).openConnection() as HttpURLConnection },
+        isWebUrl = { it.startsWith("http://") || it.startsWith("https://") },
+        userAgent = { null }
+    )
+
+    @Test
+    fun `downloads then revalidates with the stored validators`() {
+        val target = File(dir, "db.json")
+
+        assertEquals(JsonFileDownloader.Result.UPDATED, downloader.refresh(url("/db.json"), target))
+        assertEquals(body, target.readText())
+        assertNull(requests[0]["If-None-Match"])
+
+        target.setLastModified(0)
+        assertEquals(
+            JsonFileDownloader.Result.NOT_MODIFIED,
+            downloader.refresh(url("/db.json"), target)
+        )
+        assertEquals("\"v1\"", requests[1]["If-None-Match"])
+        assertEquals("Mon, 19 Oct 2026 10:00:00 GMT", requests[1]["If-Modified-Since"])
+        assertEquals(body, target.readText())
+        assertFalse(target.lastModified() == 0L)
+    }
+
+    @Test
+    fun `malformed body keeps the previous copy`() {
+        val target = File(dir, "db.json")
+        downloader.refresh(url("/db.json"), target)
+        val previous = target.readText()
+
+        etag = "\"v2\""
+        body = "{\"devices\": [1, 2"
+
+        assertEquals(JsonFileDownloader.Result.FAILED, downloader.refresh(url("/db.json"), target))
+        assertEquals(previous, target.readText())
+        assertFalse(File(dir, "db.json.tmp").exists())
+    }
+
+    @Test
+    fun `oversized body is rejected`() {
+        val target = File(dir, "db.json")
+        val small = JsonFileDownloader(
+            openConnection = { URL(it).openConnection() as HttpURLConnection },
+            isWebUrl = { true },
+            userAgent = { null },
+            maxBytes = 8
+        )
+
+        assertEquals(JsonFileDownloader.Result.FAILED, small.refresh(url("/db.json"), target))
+        assertFalse(target.exists())
+    }
+
+    @Test
+    fun `relative redirects are followed`() {
+        val target = File(dir, "db.json")
+
+        assertEquals(JsonFileDownloader.Result.UPDATED, downloader.refresh(url("/moved"), target))
+        assertEquals(body, target.readText())
+    }
+}
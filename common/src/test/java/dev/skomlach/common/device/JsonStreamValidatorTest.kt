@@ -0,0 +1,66 @@
+package dev.skomlach.common.device
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class JsonStreamValidatorTest {
+
+    private fun isValid(json: String, chunk: Int = Int.MAX_VALUE): Boolean {
+        val bytes = json.toByteArray()
+        val validator = JsonStreamValidator(maxDepth = 8)
+        return try {
+            var offset = 0
+            while (offset < bytes.size) {
+                val length = minOf(chunk, bytes.size - offset)
+                validator.feed(bytes, offset, length)
+                offset += length
+            }
+            validator.finish()
+            true
+        } catch (_: IllegalArgumentException) {
+            false
+        }
+    }
+
+    @Test
+    fun `accepts well formed documents in any chunking`() {
+        val json = """
+            {"name": "Pixel \"8\" \u00e9", "models": ["GKWS6", "G9BQD"], "size": -12.5e+3,
+             "zero": 0, "flags": [true, false, null], "empty": {}, "none": [], "utf": "Гугл"}
+        """.trimIndent()
+
+        assertTrue(isValid(json))
+        assertTrue(isValid(json, chunk = 1))
+        assertTrue(isValid(json, chunk = 7))
+        assertTrue(isValid("[1,[2,[3]],{\"a\":{\"b\":0.5E1}}]  \n"))
+    }
+
+    @Test
+    fun `rejects malformed documents`() {
+        assertFalse(isValid(""))
+        assertFalse(isValid("\"root\""))
+        assertFalse(isValid("42"))
+        assertFalse(isValid("{\"a\":1"))
+        assertFalse(isValid("{\"a\":1,}"))
+        assertFalse(isValid("[1 2]"))
+        assertFalse(isValid("[01]"))
+        assertFalse(isValid("[1.]"))
+        assertFalse(isValid("[-]"))
+        assertFalse(isValid("[1e]"))
+        assertFalse(isValid("[tru]"))
+        assertFalse(isValid("{a:1}"))
+        assertFalse(isValid("[\"\\x\"]"))
+        assertFalse(isValid("[\"\\u12G4\"]"))
+        assertFalse(isValid("[\"line\nbreak\"]"))
+        assertFalse(isValid("[1]]"))
+        assertFalse(isValid("{\"a\":[1}"))
+        assertFalse(isValid("[] []"))
+    }
+
+    @Test
+    fun `rejects nesting beyond the limit`() {
+        assertTrue(isValid("[".repeat(8) + "]".repeat(8)))
+        assertFalse(isValid("[".repeat(9) + "]".repeat(9)))
+    }
+}
@@ -0,0 +1,90 @@
+package dev.skomlach.common.logging
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+
+class LogCatTest {
+    private val debug = LogCat.DEBUG
+    private val sink = LogCat.traceSink
+
+    @After
+    fun tearDown() {
+        LogCat.DEBUG = debug
+        LogCat.traceSink = sink
+    }
+
+    @Test
+    fun `lazy messages are not built when logging is off`() {
+        LogCat.DEBUG = false
+
+        LogCat.log("Tag") { fail("evaluated") }
+        LogCat.logError("Tag") { fail("evaluated") }
+        LogCat.log("Tag", "event") { fail("evaluated") }
+    }
+
+    @Test
+    fun `fields render after the event`() {
+        val fields = LogFields("frame").apply {
+            field("faces", 2)
+            field("scores", floatArrayOf(0.5f, 1f))
+        }
+
+        assertEquals("frame faces=2 scores=[0.5, 1.0]", fields.toString())
+    }
+
+    @Test
+    fun `spans nest and are recorded when they close`() {
+        var now = 0L
+        val ring = TraceRing(clock = { now })
+        LogCat.DEBUG = true
+        LogCat.traceSink = ring
+
+        val result = LogCat.trace("outer") {
+            now = 10
+            LogCat.trace("inner") { now = 15 }
+            now = 40
+            "done"
+        }
+
+        assertEquals("done", result)
+        val spans = ring.spans()
+        assertEquals(listOf("inner", "outer"), spans.map { it.name })
+        assertEquals(listOf(1, 0), spans.map { it.depth })
+        assertEquals(listOf(5L, 40L), spans.map { it.durationNanos })
+    }
+
+    @Test
+    fun `span closes when the block throws`() {
+        val ring = TraceRing()
+        LogCat.DEBUG = true
+        LogCat.traceSink = ring
+
+        runCatching { LogCat.trace("failing") { throw IllegalStateException() } }
+
+        assertEquals(listOf("failing"), ring.spans().map { it.name })
+    }
+
+    @Test
+    fun `tracing is skipped when logging is off`() {
+        val ring = TraceRing()
+        LogCat.DEBUG = false
+        LogCat.traceSink = ring
+
+        assertEquals(3, LogCat.trace("skipped") { 3 })
+        assertEquals(0, ring.spans().size)
+    }
+
+    @Test
+    fun `ring keeps the latest spans`() {
+        val ring = TraceRing(capacity = 2)
+        for (name in listOf("a", "b", "c")) {
+            ring.begin(name)
+            ring.end()
+        }
+        ring.end()
+
+        assertEquals(listOf("b", "c"), ring.spans().map { it.name })
+    }
+}
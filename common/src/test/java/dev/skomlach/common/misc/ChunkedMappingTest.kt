@@ -0,0 +1,82 @@
+package dev.skomlach.common.misc
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ChunkedMappingTest {
+
+    @Test
+    fun `small inputs run inline without touching the executor`() {
+        val executor = Executor { throw AssertionError("executor should not be used") }
+
+        val result = mapInChunks((1..10).toList(), executor, 64, 4) { it * 2 }
+
+        assertEquals((1..10).map { it * 2 }, result)
+    }
+
+    @Test
+    fun `parallel mapping keeps input order and transforms every item once`() {
+        val pool = Executors.newFixedThreadPool(4)
+        try {
+            val calls = AtomicInteger(0)
+            val items = (0 until 1_000).toList()
+
+            val result = mapInChunks(items, pool, 64, 16) {
+                calls.incrementAndGet()
+                "v$it"
+            }
+
+            assertEquals(items.map { "v$it" }, result)
+            assertEquals(items.size, calls.get())
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    @Test
+    fun `calling thread finishes the work when helpers never run`() {
+        val parked = ArrayList<Runnable>()
+        val stalled = Executor { parked += it }
+        val caller = Thread.currentThread()
+        val seenThreads = HashSet<Thread>()
+
+        val result = mapInChunks((0 until 200).toList(), stalled, 64, 16) {
+            seenThreads += Thread.currentThread()
+            it + 1
+        }
+
+        assertEquals((1..200).toList(), result)
+        assertEquals(setOf(caller), seenThreads)
+        assertTrue(parked.isNotEmpty())
+        //Late helpers find nothing left to do
+        parked.forEach { it.run() }
+    }
+
+    @Test
+    fun `rejected helpers fall back to the calling thread`() {
+        val rejecting = Executor { throw java.util.concurrent.RejectedExecutionException() }
+
+        val result = mapInChunks((0 until 100).toList(), rejecting, 64, 8) { -it }
+
+        assertEquals((0 until 100).map { -it }, result)
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun `failures are rethrown on the calling thread`() {
+        val pool = Executors.newFixedThreadPool(2)
+        try {
+            mapInChunks((0 until 100).toList(), pool, 64, 8) {
+                if (it == 77) throw IllegalStateException("broken entry")
+                it
+            }
+        } finally {
+            pool.shutdownNow()
+            pool.awaitTermination(1, TimeUnit.SECONDS)
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package dev.skomlach.common.misc
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class LaneExecutorTest {
+
+    private fun lane(
+        overflow: LaneOverflow,
+        callerMayBlock: Boolean = true,
+        retryLater: (Runnable) -> Unit = { throw AssertionError("unexpected retry") }
+    ) = LaneExecutor(
+        name = "test",
+        threads = 1,
+        queueCapacity = 1,
+        threadPriority = Thread.NORM_PRIORITY,
+        overflow = overflow,
+        callerMayBlock = { callerMayBlock },
+        retryLater = retryLater
+    )
+
+    //Occupies the single thread and the single queue slot of the lane
+    private fun fill(lane: LaneExecutor, release: CountDownLatch) {
+        val started = CountDownLatch(1)
+        val blocker = Runnable {
+            started.countDown()
+            release.await(5, TimeUnit.SECONDS)
+        }
+        lane.execute(blocker)
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        lane.execute {}
+    }
+
+    @Test
+    fun `tasks run on named lane threads`() {
+        val lane = lane(LaneOverflow.CALLER_RUNS)
+        val done = CountDownLatch(1)
+        var threadName = ""
+
+        lane.execute {
+            threadName = Thread.currentThread().name
+            done.countDown()
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertTrue(threadName.startsWith("BiometricCompat-test-"))
+    }
+
+    @Test
+    fun `full lane makes a background caller run the task`() {
+        val lane = lane(LaneOverflow.CALLER_RUNS)
+        val release = CountDownLatch(1)
+        fill(lane, release)
+        var ranOn: Thread? = null
+
+        lane.execute { ranOn = Thread.currentThread() }
+        release.countDown()
+
+        assertEquals(Thread.currentThread(), ranOn)
+    }
+
+    @Test
+    fun `full lane defers submissions from a caller that must not block`() {
+        val retried = ArrayList<Runnable>()
+        val lane = lane(LaneOverflow.CALLER_RUNS, callerMayBlock = false, retryLater = { retried += it })
+        val release = CountDownLatch(1)
+        fill(lane, release)
+        val ran = CountDownLatch(1)
+
+        lane.execute { ran.countDown() }
+        assertEquals(1, retried.size)
+        assertEquals(1L, ran.count)
+
+        release.countDown()
+        while (lane.queuedTasks > 0) Thread.sleep(5)
+        retried.single().run()
+        assertTrue(ran.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test(expected = RejectedExecutionException::class)
+    fun `full rejecting lane throws`() {
+        val lane = lane(LaneOverflow.REJECT)
+        val release = CountDownLatch(1)
+        try {
+            fill(lane, release)
+            lane.execute {}
+        } finally {
+            release.countDown()
+        }
+    }
+
+    @Test
+    fun `cancel drops queued tasks and interrupts running ones of the tag`() {
+        val lane = lane(LaneOverflow.REJECT)
+        val interrupted = CountDownLatch(1)
+        val started = CountDownLatch(1)
+        val queuedRan = AtomicBoolean(false)
+        lane.execute("prefetch", Runnable {
+            started.countDown()
+            try {
+                Thread.sleep(5_000)
+            } catch (_: InterruptedException) {
+                interrupted.countDown()
+            }
+        })
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        lane.execute("prefetch", Runnable { queuedRan.set(true) })
+
+        assertEquals(2, lane.cancel("prefetch"))
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS))
+        assertEquals(0, lane.queuedTasks)
+        val after = CountDownLatch(1)
+        lane.execute { after.countDown() }
+        assertTrue(after.await(5, TimeUnit.SECONDS))
+        assertFalse(queuedRan.get())
+        assertEquals(0, lane.cancel("prefetch"))
+    }
+}
@@ -0,0 +1,98 @@
+package dev.skomlach.common.misc
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ReflectionMemberCacheTest {
+
+    @Suppress("unused")
+    class FakeManager private constructor() {
+        fun isHardwareDetected(): Boolean = true
+        fun hasEnrolledFingers(): Boolean = false
+        fun isHardwareDetected(flags: Int): Boolean = true
+        fun getLockoutMode(): Int = 2
+        fun hardwareName(): String = "fake"
+
+        companion object {
+            @JvmStatic
+            fun getInstance(): FakeManager = FakeManager()
+        }
+    }
+
+    private class MapStore : ReflectionMemberCache.Persisted {
+        val values = HashMap<String, String>()
+        var reads = 0
+
+        override fun get(key: String): String? {
+            reads++
+            return values[key]
+        }
+
+        override fun put(key: String, value: String) {
+            values[key] = value
+        }
+    }
+
+    @Test
+    fun `scans match the signature rules`() {
+        val cache = ReflectionMemberCache(null) { "v1" }
+
+        assertEquals(
+            setOf("isHardwareDetected", "hasEnrolledFingers"),
+            cache.booleanGetters(FakeManager::class.java, arrayOf("Hardware", null, "Enrolled"))
+                .map { it.name }.toSet()
+        )
+        assertEquals(
+            listOf("getLockoutMode"),
+            cache.intGetters(FakeManager::class.java, "getLockout").map { it.name }
+        )
+        assertEquals(
+            listOf("getInstance"),
+            cache.instanceFactories(FakeManager::class.java).map { it.name }
+        )
+    }
+
+    @Test
+    fun `results and misses are served from memory`() {
+        val store = MapStore()
+        val cache = ReflectionMemberCache(store) { "v1" }
+
+        val first = cache.booleanGetters(FakeManager::class.java, arrayOf("Missing"))
+        val second = cache.booleanGetters(FakeManager::class.java, arrayOf("Missing"))
+
+        assertTrue(first.isEmpty())
+        assertTrue(second.isEmpty())
+        assertEquals(1, store.reads)
+    }
+
+    @Test
+    fun `persisted members are reused while the version matches`() {
+        val store = MapStore()
+        ReflectionMemberCache(store) { "v1" }.intGetters(FakeManager::class.java, "getLockout")
+        val key = FakeManager::class.java.name + "|int:getLockout"
+        //A duplicate a scan would never produce, so its presence shows the entry was used
+        store.values[key] = store.values.getValue(key) + "\ngetLockoutMode"
+
+        val sameVersion = ReflectionMemberCache(store) { "v1" }
+            .intGetters(FakeManager::class.java, "getLockout")
+        val newVersion = ReflectionMemberCache(store) { "v2" }
+            .intGetters(FakeManager::class.java, "getLockout")
+
+        assertEquals(2, sameVersion.size)
+        assertEquals(listOf("getLockoutMode"), newVersion.map { it.name })
+    }
+
+    @Test
+    fun `stale persisted members fall back to a scan`() {
+        val store = MapStore()
+        val key = FakeManager::class.java.name + "|int:getLockout"
+        store.values[key] = "1:v1\ngetRemovedMode"
+
+        val members = ReflectionMemberCache(store) { "v1" }
+            .intGetters(FakeManager::class.java, "getLockout")
+
+        assertEquals(listOf("getLockoutMode"), members.map { it.name })
+        assertEquals("1:v1\ngetLockoutMode", store.values[key])
+    }
+}
@@ -0,0 +1,76 @@
+package dev.skomlach.common.protection
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.File
+
+class MultiPatternScannerTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val scanner = MultiPatternScanner(listOf("frida", "gum-js-loop", "gmain", "xposed", "substrate"))
+
+    private fun maps(vararg paths: String): File {
+        val file = folder.newFile()
+        file.writeText(paths.withIndex().joinToString("\n", postfix = "\n") { (i, path) ->
+            "7f%08x-7f%08x r-xp 00000000 fd:00 %d    %s".format(i * 4096, i * 4096 + 4096, 1000 + i, path)
+        })
+        return file
+    }
+
+    @Test
+    fun `clean maps file has no match`() {
+        val file = maps("/system/lib64/libc.so", "/apex/com.android.art/lib64/libart.so", "[anon:dalvik-main space]")
+
+        assertNull(scanner.scanFile(file, ByteArray(16), Long.MAX_VALUE))
+    }
+
+    @Test
+    fun `matches ignore case and cross buffer boundaries`() {
+        val file = maps("/system/lib64/libc.so", "/data/local/tmp/re.FRIDA.server/frida-agent-64.so")
+
+        for (size in 1..32) {
+            assertEquals("frida", scanner.scanFile(file, ByteArray(size), Long.MAX_VALUE))
+        }
+        assertEquals("substrate", scanner.scanFile(maps("/data/app/com.saurik.Substrate/lib.so"), ByteArray(7), Long.MAX_VALUE))
+    }
+
+    @Test
+    fun `overlapping patterns are found through failure links`() {
+        val scanner = MultiPatternScanner(listOf("gum-js-loop", "js-lo", "gmain"))
+
+        assertEquals(1, scanner.scan(ByteArrayInputStream("gum-js-lx gum-jS-Lo".toByteArray()), ByteArray(4)))
+        assertEquals(2, scanner.scan(ByteArrayInputStream("ggmgmain".toByteArray()), ByteArray(3)))
+        assertEquals(-1, scanner.scan(ByteArrayInputStream("gmai\nn".toByteArray()), ByteArray(3)))
+    }
+
+    @Test
+    fun `scan stops at the byte limit`() {
+        val file = maps("/system/lib64/libc.so", "/data/local/tmp/libxposed.so")
+
+        assertNull(scanner.scanFile(file, ByteArray(64), 40))
+        assertEquals("xposed", scanner.scanFile(file, ByteArray(64), file.length()))
+    }
+
+    @Test
+    fun `thread names are read from comm files only`() {
+        val tasks = folder.newFolder("task")
+        for ((tid, name) in listOf(101 to "main", 102 to "RenderThread", 103 to "gum-js-loop")) {
+            File(tasks, "$tid").mkdir()
+            File(tasks, "$tid/comm").writeText("$name\n")
+        }
+        File(tasks, "104").mkdir()
+        File(tasks, "104/status").writeText("Name:\tgmain\n")
+        val threads = MultiPatternScanner(listOf("frida", "gum-js-loop", "gmain", "gdbus"))
+
+        assertEquals("gum-js-loop", threads.scanTaskNames(tasks, ByteArray(64), 16))
+
+        File(tasks, "103/comm").writeText("binder:1234_1\n")
+        assertNull(threads.scanTaskNames(tasks, ByteArray(64), 16))
+    }
+}
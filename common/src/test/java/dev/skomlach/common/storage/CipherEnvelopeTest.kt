@@ -0,0 +1,80 @@
+package dev.skomlach.common.storage
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class CipherEnvelopeTest {
+
+    private class Slot(val id: String, val plain: Map<String, String>) {
+        var attempts = 0
+    }
+
+    private fun decrypt(ciphertext: TaggedCiphertext, slots: List<Slot>) =
+        decryptTagged(ciphertext, slots, { it.id }) { slot, payload ->
+            slot.attempts++
+            slot.plain[payload]
+        }
+
+    @Test
+    fun `config id is short stable and config specific`() {
+        val first = encryptionConfigId(byteArrayOf(1, 2, 3), byteArrayOf(4, 5))
+        val second = encryptionConfigId(byteArrayOf(1, 2, 3), byteArrayOf(4, 6))
+
+        assertEquals(CONFIG_ID_LENGTH, first.length)
+        assertEquals(first, encryptionConfigId(byteArrayOf(1, 2, 3), byteArrayOf(4, 5)))
+        assertNotEquals(first, second)
+    }
+
+    @Test
+    fun `value envelope round trips and leaves legacy values untagged`() {
+        val legacy = "aXY=:bWFj:Y3Q="
+        val tagged = parseTaggedValue(tagValue("0123abcd", legacy))
+
+        assertEquals("0123abcd", tagged.configId)
+        assertEquals(legacy, tagged.payload)
+        assertNull(parseTaggedValue(legacy).configId)
+        assertEquals(legacy, parseTaggedValue(legacy).payload)
+    }
+
+    @Test
+    fun `key name envelope keeps url safe payloads intact`() {
+        val legacy = "e2_ab_cd-ef_gh"
+        val tagged = tagKeyName("0123abcd", legacy)
+        val parsed = parseTaggedKeyName(tagged)
+
+        assertEquals("e3_0123abcdab_cd-ef_gh", tagged)
+        assertEquals("0123abcd", parsed.configId)
+        assertEquals(legacy, parsed.payload)
+        assertNull(parseTaggedKeyName(legacy).configId)
+    }
+
+    @Test
+    fun `tagged entries are decrypted with their own slot only`() {
+        val primary = Slot("aaaaaaaa", mapOf("p" to "from primary"))
+        val legacy = Slot("bbbbbbbb", mapOf("l" to "from legacy"))
+
+        val result = decrypt(TaggedCiphertext("bbbbbbbb", "l"), listOf(primary, legacy))
+
+        assertEquals("from legacy", result?.value)
+        assertEquals(legacy, result?.slot)
+        assertEquals(0, primary.attempts)
+        assertEquals(1, legacy.attempts)
+    }
+
+    @Test
+    fun `untagged and mistagged entries fall back to trying every slot`() {
+        val primary = Slot("aaaaaaaa", emptyMap())
+        val legacy = Slot("bbbbbbbb", mapOf("l" to "from legacy"))
+
+        val untagged = decrypt(TaggedCiphertext(null, "l"), listOf(primary, legacy))
+        val mistagged = decrypt(TaggedCiphertext("aaaaaaaa", "l"), listOf(primary, legacy))
+        val missing = decrypt(TaggedCiphertext("cccccccc", "x"), listOf(primary, legacy))
+
+        assertEquals(legacy, untagged?.slot)
+        assertEquals(legacy, mistagged?.slot)
+        assertNull(missing)
+        assertEquals(3, primary.attempts)
+    }
+}
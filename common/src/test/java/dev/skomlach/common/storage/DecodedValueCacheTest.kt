@@ -0,0 +1,62 @@
+package dev.skomlach.common.storage
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class DecodedValueCacheTest {
+
+    @Test
+    fun `hit requires the same encrypted key and ciphertext`() {
+        val cache = DecodedValueCache(8)
+        cache.put("lockout", "enc_lockout", "ct1", true)
+
+        assertEquals(true, cache.get("lockout", "enc_lockout", "ct1")?.value)
+        assertNull(cache.get("lockout", "enc_lockout", "ct2"))
+        //The stale entry is dropped on mismatch
+        assertNull(cache.get("lockout", "enc_lockout", "ct1"))
+    }
+
+    @Test
+    fun `null values are cached as hits`() {
+        val cache = DecodedValueCache(8)
+        cache.put("missing", "enc_missing", "ct", null)
+
+        val hit = cache.get("missing", "enc_missing", "ct")
+
+        assertNotNull(hit)
+        assertNull(hit?.value)
+    }
+
+    @Test
+    fun `least recently used entries are evicted beyond the bound`() {
+        val cache = DecodedValueCache(2)
+        cache.put("a", "enc_a", "ct", 1)
+        cache.put("b", "enc_b", "ct", 2)
+        cache.get("a", "enc_a", "ct")
+        cache.put("c", "enc_c", "ct", 3)
+
+        assertEquals(2, cache.size)
+        assertEquals(1, cache.get("a", "enc_a", "ct")?.value)
+        assertNull(cache.get("b", "enc_b", "ct"))
+    }
+
+    @Test
+    fun `invalidation by plain or encrypted key releases entries`() {
+        val cache = DecodedValueCache(8)
+        cache.put("a", "enc_a", "ct", 1)
+        cache.put("b", "enc_b", "ct", 2)
+        cache.put("c", "enc_c", "ct", 3)
+
+        cache.invalidate(listOf("a"))
+        cache.invalidateEncrypted("enc_b")
+
+        assertNull(cache.get("a", "enc_a", "ct"))
+        assertNull(cache.get("b", "enc_b", "ct"))
+        assertEquals(3, cache.get("c", "enc_c", "ct")?.value)
+
+        cache.clear()
+        assertEquals(0, cache.size)
+    }
+}
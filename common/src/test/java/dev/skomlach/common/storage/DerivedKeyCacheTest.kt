@@ -0,0 +1,115 @@
+package dev.skomlach.common.storage
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+
+class DerivedKeyCacheTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val wrappingKey: SecretKey = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+    private val binding = derivedKeyBinding(byteArrayOf(1, 2, 3), byteArrayOf(4, 5, 6))
+
+    private var derivations = 0
+
+    private fun derive(): DerivedKeyMaterial {
+        derivations++
+        return DerivedKeyMaterial(ByteArray(16) { (it + derivations).toByte() }, ByteArray(32) { 7 })
+    }
+
+    private fun newCache(wrapper: KeyMaterialWrapper? = AesGcmKeyWrapper { wrappingKey }) =
+        DerivedKeyCache({ folder.root }, wrapper)
+
+    @Test
+    fun `derivation runs once and later processes read the wrapped copy`() {
+        val first = newCache().getOrDerive("cfg", binding, ::derive)
+        val again = newCache().getOrDerive("cfg", binding, ::derive)
+
+        assertEquals(1, derivations)
+        assertArrayEquals(first.encryptionKey, again.encryptionKey)
+        assertArrayEquals(first.macKey, again.macKey)
+    }
+
+    @Test
+    fun `persisted keys are never stored in the clear`() {
+        val material = newCache().getOrDerive("cfg", binding, ::derive)
+        val stored = folder.root.listFiles()!!.single().let {
+            it.setReadable(true, true)
+            it.readBytes()
+        }
+
+        assertFalse(stored.asList().windowed(material.macKey.size).contains(material.macKey.asList()))
+    }
+
+    @Test
+    fun `changed inputs trigger a fresh derivation`() {
+        newCache().getOrDerive("cfg", binding, ::derive)
+        val otherBinding = derivedKeyBinding(byteArrayOf(1, 2, 3), byteArrayOf(9))
+
+        newCache().getOrDerive("cfg", otherBinding, ::derive)
+        newCache().getOrDerive("cfg", otherBinding, ::derive)
+
+        assertEquals(2, derivations)
+    }
+
+    @Test
+    fun `tampered or foreign files are replaced`() {
+        newCache().getOrDerive("cfg", binding, ::derive)
+        val file = folder.root.listFiles()!!.single()
+        file.setWritable(true, true)
+        file.writeBytes(byteArrayOf(12) + ByteArray(40))
+
+        newCache().getOrDerive("cfg", binding, ::derive)
+        val otherKey = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+        newCache(AesGcmKeyWrapper { otherKey }).getOrDerive("cfg", binding, ::derive)
+
+        assertEquals(3, derivations)
+    }
+
+    @Test
+    fun `a fresh derivation replaces the previous file in place`() {
+        newCache().getOrDerive("cfg", binding, ::derive)
+        val otherBinding = derivedKeyBinding(byteArrayOf(1, 2, 3), byteArrayOf(9))
+        val fresh = newCache().getOrDerive("cfg", otherBinding, ::derive)
+        val again = newCache().getOrDerive("cfg", otherBinding, ::derive)
+
+        assertEquals(2, derivations)
+        assertArrayEquals(fresh.encryptionKey, again.encryptionKey)
+        assertEquals(listOf("bio_dk_cfg"), folder.root.list()!!.toList())
+    }
+
+    @Test
+    fun `a leftover partial write does not hide the published keys`() {
+        val first = newCache().getOrDerive("cfg", binding, ::derive)
+        File(folder.root, "bio_dk_cfg.tmp").apply {
+            writeBytes(ByteArray(5))
+            setReadOnly()
+        }
+
+        val again = newCache().getOrDerive("cfg", binding, ::derive)
+        newCache().getOrDerive("cfg", derivedKeyBinding(byteArrayOf(1), byteArrayOf(2)), ::derive)
+
+        assertEquals(2, derivations)
+        assertArrayEquals(first.encryptionKey, again.encryptionKey)
+        assertEquals(listOf("bio_dk_cfg"), folder.root.list()!!.toList())
+    }
+
+    @Test
+    fun `without a wrapper keys stay in memory only`() {
+        val cache = newCache(wrapper = null)
+
+        cache.getOrDerive("cfg", binding, ::derive)
+        cache.getOrDerive("cfg", binding, ::derive)
+
+        assertEquals(1, derivations)
+        assertEquals(emptyList<File>(), folder.root.listFiles()!!.toList())
+    }
+}
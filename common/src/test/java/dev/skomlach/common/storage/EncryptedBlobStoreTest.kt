@@ -0,0 +1,231 @@
+package dev.skomlach.common.storage
+
+import android.content.SharedPreferences
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import kotlin.random.Random
+
+class EncryptedBlobStoreTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val index = FakeSharedPreferences()
+
+    private fun newStore() = EncryptedBlobStore(File(folder.root, "blobs"), index, 16)
+
+    private fun blobFiles() = File(folder.root, "blobs").listFiles().orEmpty().toList()
+
+    @Test
+    fun `records round trip across chunk boundaries`() {
+        val store = newStore()
+        val sizes = listOf(0, 1, 15, 16, 17, 48, 1000)
+
+        sizes.forEach { size -> assertTrue(store.write("r$size", Random(size).nextBytes(size))) }
+
+        val reopened = newStore()
+        sizes.forEach { size -> assertArrayEquals(Random(size).nextBytes(size), reopened.read("r$size")) }
+        assertEquals(sizes.map { "r$it" }.sorted(), reopened.names())
+    }
+
+    @Test
+    fun `stored files do not contain the plaintext`() {
+        val payload = "voice-template-voice-template-voice-template".toByteArray()
+        newStore().write("voice", payload)
+
+        val stored = blobFiles().single().readBytes()
+
+        assertFalse(String(stored, Charsets.ISO_8859_1).contains("voice-template"))
+    }
+
+    @Test
+    fun `streaming writes are invisible until committed`() {
+        val store = newStore()
+        store.write("face", byteArrayOf(1, 2, 3))
+
+        val writer = store.openWrite("face")
+        writer.write(ByteArray(40) { 9 })
+        assertArrayEquals(byteArrayOf(1, 2, 3), store.read("face"))
+
+        writer.commit()
+        assertArrayEquals(ByteArray(40) { 9 }, store.read("face"))
+        assertEquals(1, blobFiles().size)
+    }
+
+    @Test
+    fun `closing an uncommitted writer discards it`() {
+        val store = newStore()
+
+        store.openWrite("zk").use { it.write(ByteArray(20)) }
+
+        assertNull(store.read("zk"))
+        assertTrue(blobFiles().isEmpty())
+    }
+
+    @Test
+    fun `truncated or tampered records fail to read`() {
+        val store = newStore()
+        store.write("truncated", ByteArray(50) { it.toByte() })
+        store.write("tampered", ByteArray(50) { it.toByte() })
+        val files = index.all.filterKeys { it.startsWith("record:") }
+            .mapValues { File(File(folder.root, "blobs"), it.value as String) }
+
+        files.getValue("record:truncated").let { it.writeBytes(it.readBytes().copyOf(it.length().toInt() - 40)) }
+        files.getValue("record:tampered").let { file ->
+            val bytes = file.readBytes()
+            bytes[bytes.size - 20] = (bytes[bytes.size - 20].toInt() xor 1).toByte()
+            file.writeBytes(bytes)
+        }
+
+        assertNull(store.read("truncated"))
+        assertNull(store.read("tampered"))
+    }
+
+    @Test(expected = IOException::class)
+    fun `records cannot be swapped between names`() {
+        val store = newStore()
+        store.write("a", ByteArray(10) { 1 })
+        store.write("b", ByteArray(10) { 2 })
+        val fileOfA = index.getString("record:a", null)
+        index.edit().putString("record:b", fileOfA).commit()
+
+        store.openRead("b")!!.use { it.readBytes() }
+    }
+
+    @Test
+    fun `writes fail until the record key is stored`() {
+        index.failCommits = true
+        val store = newStore()
+
+        assertFalse(store.write("face", ByteArray(40) { 1 }))
+        assertTrue(blobFiles().isEmpty())
+
+        index.failCommits = false
+        assertTrue(store.write("face", ByteArray(40) { 2 }))
+        assertArrayEquals(ByteArray(40) { 2 }, newStore().read("face"))
+    }
+
+    @Test
+    fun `remove clear and stale files are cleaned up`() {
+        val store = newStore()
+        store.write("a", ByteArray(10))
+        store.write("b", ByteArray(10))
+        File(File(folder.root, "blobs"), "orphan.blob.tmp").writeBytes(ByteArray(4))
+
+        store.remove("a")
+        assertEquals(listOf("b"), store.names())
+
+        newStore().read("b")
+        assertEquals(1, blobFiles().size)
+
+        store.clear()
+        assertTrue(store.names().isEmpty())
+        assertTrue(blobFiles().isEmpty())
+    }
+
+    private class FakeSharedPreferences : SharedPreferences {
+        private val data = LinkedHashMap<String, Any>()
+        var failCommits = false
+
+        override fun getAll(): MutableMap<String, *> = LinkedHashMap(data)
+
+        override fun getString(key: String?, defValue: String?): String? {
+            return data[key] as? String ?: defValue
+        }
+
+        override fun getStringSet(key: String?, defValues: MutableSet<String>?): MutableSet<String>? =
+            @Suppress("UNCHECKED_CAST")
+            ((data[key] as? Set<String>)?.toMutableSet()) ?: defValues
+
+        override fun getInt(key: String?, defValue: Int): Int = data[key] as? Int ?: defValue
+
+        override fun getLong(key: String?, defValue: Long): Long = data[key] as? Long ?: defValue
+
+        override fun getFloat(key: String?, defValue: Float): Float = data[key] as? Float ?: defValue
+
+        override fun getBoolean(key: String?, defValue: Boolean): Boolean =
+            data[key] as? Boolean ?: defValue
+
+        override fun contains(key: String?): Boolean = data.containsKey(key)
+
+        override fun edit(): SharedPreferences.Editor = Editor(data) { failCommits }
+
+        override fun registerOnSharedPreferenceChangeListener(
+            listener: SharedPreferences.OnSharedPreferenceChangeListener?
+        ) = Unit
+
+        override fun unregisterOnSharedPreferenceChangeListener(
+            listener: SharedPreferences.OnSharedPreferenceChangeListener?
+        ) = Unit
+
+        private class Editor(
+            private val target: LinkedHashMap<String, Any>,
+            private val failCommits: () -> Boolean
+        ) : SharedPreferences.Editor {
+            private val updates = LinkedHashMap<String, Any?>()
+            private var clearRequested = false
+
+            override fun putString(key: String?, value: String?): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putStringSet(
+                key: String?,
+                values: MutableSet<String>?
+            ): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = values?.toSet()
+            }
+
+            override fun putInt(key: String?, value: Int): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putLong(key: String?, value: Long): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putFloat(key: String?, value: Float): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun putBoolean(key: String?, value: Boolean): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = value
+            }
+
+            override fun remove(key: String?): SharedPreferences.Editor = apply {
+                updates[key.orEmpty()] = null
+            }
+
+            override fun clear(): SharedPreferences.Editor = apply {
+                clearRequested = true
+            }
+
+            override fun commit(): Boolean {
+                if (failCommits()) return false
+                apply()
+                return true
+            }
+
+            override fun apply() {
+                if (clearRequested) {
+                    target.clear()
+                }
+                updates.forEach { (key, value) ->
+                    if (value == null) {
+                        target.remove(key)
+                    } else {
+                        target[key] = value
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package dev.skomlach.common.storage
+
+import dev.skomlach.common.logging.LogCat
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.Base64
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class EncryptedEditorTest {
+    private val debug = LogCat.DEBUG
+    private lateinit var bulk: ExecutorService
+
+    @Before
+    fun setUp() {
+        LogCat.DEBUG = false
+        bulk = Executors.newFixedThreadPool(2)
+    }
+
+    @After
+    fun tearDown() {
+        LogCat.DEBUG = debug
+        bulk.shutdownNow()
+    }
+
+    private inner class FakeStore(val prefs: FakeSharedPreferences) : EncryptedEditor.Store {
+        val encryptions = AtomicInteger()
+        var failOn: String? = null
+        val notified = mutableListOf<String?>()
+        var invalidatedAll = false
+
+        override val writeLock = Any()
+        override val bulkCryptoExecutor get() = bulk
+
+        override fun storedKeys(): Collection<String?> = prefs.all.keys
+
+        override fun encryptKey(key: String): String = "k_$key"
+
+        override fun encryptValue(payload: ByteArray): String {
+            encryptions.incrementAndGet()
+            val encoded = Base64.getEncoder().encodeToString(payload)
+            if (failOn != null && decode("v_$encoded") == failOn) {
+                throw IllegalStateException("Keystore unavailable")
+            }
+            return "v_$encoded"
+        }
+
+        override fun findEncryptedKey(key: String): String? = "k_$key".takeIf { prefs.contains(it) }
+
+        override fun rememberEncryptedKey(key: String, encryptedKey: String) = Unit
+
+        override fun forgetEncryptedKey(key: String) = Unit
+
+        override fun clearEncryptedKeys() = Unit
+
+        override fun invalidateValues(keys: List<String?>, cleared: Boolean) {
+            invalidatedAll = cleared
+        }
+
+        override fun notifyListeners(keys: List<String?>) {
+            notified.addAll(keys)
+        }
+    }
+
+    private fun decode(stored: String?): Any? {
+        val buffer = ByteBuffer.wrap(Base64.getDecoder().decode(stored!!.removePrefix("v_")))
+        return when (EncryptedType.fromId(buffer.getInt())) {
+            EncryptedType.STRING -> String(ByteArray(buffer.getInt()).also { buffer.get(it) })
+            EncryptedType.INT -> buffer.getInt()
+            EncryptedType.LONG -> buffer.getLong()
+            EncryptedType.BOOLEAN -> buffer.get() != 0.toByte()
+            else -> fail("unexpected type")
+        }
+    }
+
+    private fun FakeSharedPreferences.decoded(): Map<String, Any?> =
+        all.mapValues { decode(it.value as String) }
+
+    @Test
+    fun `deferred values are encrypted on commit and written at once`() {
+        val prefs = FakeSharedPreferences()
+        val store = FakeStore(prefs)
+        val editor = EncryptedEditor(store, prefs.edit(), deferEncryption = true)
+
+        editor.putString("name", "face").putInt("count", 3).putLong("time", 42L)
+            .putBoolean("enrolled", true).putString("label", "front").putInt("version", 2)
+        assertEquals(0, store.encryptions.get())
+
+        assertTrue(editor.commit())
+
+        assertEquals(6, store.encryptions.get())
+        assertEquals(1, prefs.writes)
+        assertEquals(
+            mapOf(
+                "k_name" to "face", "k_count" to 3, "k_time" to 42L,
+                "k_enrolled" to true, "k_label" to "front", "k_version" to 2
+            ),
+            prefs.decoded()
+        )
+        assertEquals(listOf("name", "count", "time", "enrolled", "label", "version"), store.notified)
+    }
+
+    @Test
+    fun `values are encrypted when put unless deferred`() {
+        val prefs = FakeSharedPreferences()
+        val store = FakeStore(prefs)
+
+        EncryptedEditor(store, prefs.edit()).putInt("count", 1)
+
+        assertEquals(1, store.encryptions.get())
+    }
+
+    @Test
+    fun `clear and puts in one batch leave only the new values`() {
+        val prefs = FakeSharedPreferences(mapOf("k_old" to "v_", "k_kept" to "v_"))
+        val store = FakeStore(prefs)
+
+        assertTrue(
+            EncryptedEditor(store, prefs.edit(), deferEncryption = true)
+                .clear().putString("kept", "new").putInt("added", 7).commit()
+        )
+
+        assertEquals(1, prefs.writes)
+        assertEquals(mapOf("k_kept" to "new", "k_added" to 7), prefs.decoded())
+        assertTrue(store.invalidatedAll)
+    }
+
+    @Test
+    fun `the last edit of a key in a batch wins`() {
+        val prefs = FakeSharedPreferences()
+        val store = FakeStore(prefs)
+        EncryptedEditor(store, prefs.edit()).putInt("a", 1).putInt("b", 1).commit()
+
+        EncryptedEditor(store, prefs.edit(), deferEncryption = true)
+            .remove("a").putInt("a", 2)
+            .putInt("b", 2).remove("b")
+            .commit()
+
+        assertEquals(mapOf("k_a" to 2), prefs.decoded())
+    }
+
+    @Test
+    fun `a value that fails to encrypt aborts the whole batch`() {
+        val prefs = FakeSharedPreferences()
+        val store = FakeStore(prefs).apply { failOn = "secret" }
+        val editor = EncryptedEditor(store, prefs.edit(), deferEncryption = true)
+            .putString("name", "face").putString("template", "secret")
+
+        try {
+            editor.commit()
+            fail("commit succeeded")
+        } catch (_: IllegalStateException) {
+        }
+
+        assertEquals(0, prefs.writes)
+        assertFalse(prefs.contains("k_name"))
+        assertTrue(store.notified.isEmpty())
+    }
+
+    @Test
+    fun `a batch whose encryption fails completes with false`() {
+        val prefs = FakeSharedPreferences()
+        val store = FakeStore(prefs).apply { failOn = "secret" }
+        val editor = EncryptedEditor(store, prefs.edit(), deferEncryption = true)
+            .putString("template", "secret")
+        var result: Boolean? = null
+
+        commitInBackground(bulk, { it.run() }, { result = it }, editor::commit)
+        bulk.shutdown()
+        bulk.awaitTermination(5, TimeUnit.SECONDS)
+
+        assertEquals(false, result)
+        assertEquals(0, prefs.writes)
+    }
+}
@@ -0,0 +1,87 @@
+package dev.skomlach.common.storage
+
+import android.content.SharedPreferences
+
+/**
+ * In-memory [SharedPreferences] with the framework's editor semantics: clear() applies before
+ * the other edits and the last edit of a key wins. Counts the writes that reached it.
+ */
+internal class FakeSharedPreferences(initial: Map<String, Any?> = emptyMap()) : SharedPreferences {
+    private val values = LinkedHashMap<String, Any?>(initial)
+    var writes = 0
+        private set
+
+    @Synchronized
+    override fun getAll(): MutableMap<String, *> = LinkedHashMap(values)
+
+    @Synchronized
+    override fun getString(key: String?, defValue: String?): String? =
+        values[key] as? String ?: defValue
+
+    @Synchronized
+    @Suppress("UNCHECKED_CAST")
+    override fun getStringSet(key: String?, defValues: MutableSet<String>?): MutableSet<String>? =
+        values[key] as? MutableSet<String> ?: defValues
+
+    @Synchronized
+    override fun getInt(key: String?, defValue: Int): Int = values[key] as? Int ?: defValue
+
+    @Synchronized
+    override fun getLong(key: String?, defValue: Long): Long = values[key] as? Long ?: defValue
+
+    @Synchronized
+    override fun getFloat(key: String?, defValue: Float): Float = values[key] as? Float ?: defValue
+
+    @Synchronized
+    override fun getBoolean(key: String?, defValue: Boolean): Boolean =
+        values[key] as? Boolean ?: defValue
+
+    @Synchronized
+    override fun contains(key: String?): Boolean = values.containsKey(key)
+
+    override fun edit(): SharedPreferences.Editor = FakeEditor()
+
+    override fun registerOnSharedPreferenceChangeListener(
+        listener: SharedPreferences.OnSharedPreferenceChangeListener?
+    ) = Unit
+
+    override fun unregisterOnSharedPreferenceChangeListener(
+        listener: SharedPreferences.OnSharedPreferenceChangeListener?
+    ) = Unit
+
+    @Synchronized
+    private fun write(clear: Boolean, edits: Map<String, Any?>) {
+        writes++
+        if (clear) values.clear()
+        for ((key, value) in edits) {
+            if (value === Removed) values.remove(key) else values[key] = value
+        }
+    }
+
+    private object Removed
+
+    private inner class FakeEditor : SharedPreferences.Editor {
+        private val edits = LinkedHashMap<String, Any?>()
+        private var clear = false
+
+        private fun put(key: String?, value: Any?) = apply { edits[key!!] = value }
+
+        override fun putString(key: String?, value: String?) = put(key, value)
+        override fun putStringSet(key: String?, values: MutableSet<String>?) = put(key, values)
+        override fun putInt(key: String?, value: Int) = put(key, value)
+        override fun putLong(key: String?, value: Long) = put(key, value)
+        override fun putFloat(key: String?, value: Float) = put(key, value)
+        override fun putBoolean(key: String?, value: Boolean) = put(key, value)
+        override fun remove(key: String?) = put(key, Removed)
+        override fun clear() = apply { clear = true }
+
+        override fun commit(): Boolean {
+            write(clear, edits)
+            return true
+        }
+
+        override fun apply() {
+            write(clear, edits)
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package dev.skomlach.common.storage
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ProtectedStorageWarmUpTest {
+
+    @Test
+    fun mergeUnitesHotKeysOfTheSameStoreInDeclarationOrder() {
+        val merged = mergeStoreDeclarations(
+            listOf(
+                ProtectedStoreDeclaration("lockout", setOf("a")),
+                ProtectedStoreDeclaration("templates"),
+                ProtectedStoreDeclaration(" lockout ", setOf("b", "a")),
+                ProtectedStoreDeclaration("  ")
+            )
+        )
+
+        assertEquals(listOf("lockout", "templates"), merged.map { it.name })
+        assertEquals(setOf("a", "b"), merged[0].hotKeys)
+        assertTrue(merged[1].hotKeys.isEmpty())
+    }
+
+    @Test
+    fun mergeKeepsStoreOptedOutOfValueCaching() {
+        val merged = mergeStoreDeclarations(
+            listOf(
+                ProtectedStoreDeclaration("templates", setOf("index")),
+                ProtectedStoreDeclaration("lockout"),
+                ProtectedStoreDeclaration("templates", cacheDecodedValues = false)
+            )
+        )
+
+        assertFalse(merged[0].cacheDecodedValues)
+        assertEquals(setOf("index"), merged[0].hotKeys)
+        assertTrue(merged[1].cacheDecodedValues)
+    }
+
+    @Test
+    fun configsArePreparedBeforeAnyStoreIsWarmed() {
+        val calls = mutableListOf<String>()
+
+        runProtectedStorageWarmUp(
+            declarations = listOf(ProtectedStoreDeclaration("first"), ProtectedStoreDeclaration("second")),
+            prepareConfigs = { calls += "configs" },
+            warmStore = {
+                calls += it.name
+                WarmedStore(0, 0)
+            }
+        )
+
+        assertEquals(listOf("configs", "first", "second"), calls)
+    }
+
+    @Test
+    fun reportSumsStoresAndTimesEachPhase() {
+        var now = 0L
+        val report = runProtectedStorageWarmUp(
+            declarations = listOf(ProtectedStoreDeclaration("first"), ProtectedStoreDeclaration("second")),
+            prepareConfigs = { now += 40 },
+            warmStore = {
+                now += if (it.name == "first") 5 else 7
+                WarmedStore(keysResolved = 3, valuesDecoded = 2)
+            },
+            clock = { now }
+        )
+
+        assertEquals(40L, report.configsMs)
+        assertEquals(mapOf("first" to 5L, "second" to 7L), report.storeMs)
+        assertEquals(6, report.keysResolved)
+        assertEquals(4, report.valuesDecoded)
+        assertEquals(52L, report.totalMs)
+    }
+
+    @Test
+    fun failingStoreIsReportedAndDoesNotStopTheOthers() {
+        val warmed = mutableListOf<String>()
+        val report = runProtectedStorageWarmUp(
+            declarations = listOf(ProtectedStoreDeclaration("broken"), ProtectedStoreDeclaration("healthy")),
+            prepareConfigs = {},
+            warmStore = {
+                if (it.name == "broken") throw SecurityException("Could not decrypt value")
+                warmed += it.name
+                WarmedStore(1, 1)
+            }
+        )
+
+        assertEquals(listOf("healthy"), warmed)
+        assertEquals(listOf("broken"), report.failedStores)
+        assertEquals(1, report.keysResolved)
+    }
+}
@@ -0,0 +1,135 @@
+package dev.skomlach.common.storage
+
+import dev.skomlach.common.logging.LogCat
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+class SharedPreferencesBatchTest {
+    private val debug = LogCat.DEBUG
+    private lateinit var background: ExecutorService
+    private val direct = Executor { it.run() }
+
+    @Before
+    fun setUp() {
+        LogCat.DEBUG = false
+        background = Executors.newSingleThreadExecutor()
+    }
+
+    @After
+    fun tearDown() {
+        LogCat.DEBUG = debug
+        background.shutdownNow()
+    }
+
+    private fun awaitResult(start: (onComplete: (Boolean) -> Unit) -> Unit): Boolean {
+        val done = CountDownLatch(1)
+        var result: Boolean? = null
+        start { committed ->
+            result = committed
+            done.countDown()
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        return result!!
+    }
+
+    @Test
+    fun `plain preferences are edited off the caller and committed once`() {
+        val prefs = FakeSharedPreferences()
+        val caller = Thread.currentThread()
+        var editedOn: Thread? = null
+
+        val committed = awaitResult { onComplete ->
+            prefs.editAsync({
+                editedOn = Thread.currentThread()
+                putInt("count", 3).putString("name", "face")
+            }, onComplete, background, direct)
+        }
+
+        assertTrue(committed)
+        assertNotSame(caller, editedOn)
+        assertEquals(1, prefs.writes)
+        assertEquals(mapOf("count" to 3, "name" to "face"), prefs.all)
+    }
+
+    @Test
+    fun `a failing edit block reports false`() {
+        val prefs = FakeSharedPreferences()
+
+        val committed = awaitResult { onComplete ->
+            prefs.editAsync({ throw IllegalStateException("broken") }, onComplete, background, direct)
+        }
+
+        assertFalse(committed)
+        assertEquals(0, prefs.writes)
+    }
+
+    @Test
+    fun `a commit that throws reports false`() {
+        val committed = awaitResult { onComplete ->
+            commitInBackground(background, direct, onComplete) {
+                throw SecurityException("Could not encrypt data: value")
+            }
+        }
+
+        assertFalse(committed)
+    }
+
+    @Test
+    fun `results are delivered through the callback executor`() {
+        val delivered = mutableListOf<Runnable>()
+        var result: Boolean? = null
+
+        commitInBackground(direct, { delivered.add(it) }, { result = it }) { true }
+
+        assertEquals(null, result)
+        delivered.single().run()
+        assertEquals(true, result)
+    }
+
+    @Test
+    fun `a rejected batch reports false`() {
+        var result: Boolean? = null
+
+        commitInBackground(
+            { throw RejectedExecutionException("saturated") },
+            direct,
+            { result = it }
+        ) { true }
+
+        assertEquals(false, result)
+    }
+
+    @Test
+    fun `suspending commits run on the given dispatcher`() {
+        val dispatcher = background.asCoroutineDispatcher()
+        val caller = Thread.currentThread()
+        var committedOn: Thread? = null
+
+        val committed = runBlocking {
+            commitOn(dispatcher) {
+                committedOn = Thread.currentThread()
+                true
+            }
+        }
+        val failed = runBlocking {
+            commitOn(dispatcher) { throw SecurityException("Could not encrypt data: value") }
+        }
+
+        assertTrue(committed)
+        assertNotSame(caller, committedOn)
+        assertFalse(failed)
+    }
+}
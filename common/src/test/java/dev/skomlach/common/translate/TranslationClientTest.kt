@@ -0,0 +1,141 @@
+package dev.skomlach.common.translate
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.Locale
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class TranslationClientTest {
+    private val from = Locale.US
+    private val to = Locale.FRENCH
+
+    //Upper-cases what it knows, misses the rest
+    private class FakeProvider(
+        private val known: (String) -> Boolean = { true },
+        private val gate: CountDownLatch? = null
+    ) : TranslationProvider {
+        val requests: MutableList<List<String>> = Collections.synchronizedList(ArrayList())
+        val entered = CountDownLatch(1)
+        private val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+
+        override fun translate(segments: List<String>, from: Locale, to: Locale): List<String?> {
+            requests += segments
+            maxRunning.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+            entered.countDown()
+            gate?.await(5, TimeUnit.SECONDS)
+            running.decrementAndGet()
+            return segments.map { if (known(it)) it.uppercase(Locale.ROOT) else null }
+        }
+    }
+
+    @Test
+    fun `distinct sentences of all texts go out in one request`() {
+        val provider = FakeProvider()
+        val client = TranslationClient(listOf(provider))
+
+        val result = client.translate(
+            listOf("Touch the sensor. Try again.", "Try again", "Cancel"),
+            from,
+            to
+        )
+
+        assertEquals(listOf(listOf("Touch the sensor", "Try again", "Cancel")), provider.requests)
+        assertEquals("TOUCH THE SENSOR. TRY AGAIN.", result["Touch the sensor. Try again."])
+        assertEquals("TRY AGAIN", result["Try again"])
+        assertEquals("CANCEL", result["Cancel"])
+    }
+
+    @Test
+    fun `batches respect the size limits`() {
+        val provider = FakeProvider()
+        val client = TranslationClient(listOf(provider), maxBatchChars = 10, maxBatchSize = 2)
+
+        client.translate(listOf("aaaa", "bbbb", "cccc", "dddddddddddd"), from, to)
+
+        assertEquals(
+            listOf(listOf("aaaa", "bbbb"), listOf("cccc"), listOf("dddddddddddd")),
+            provider.requests
+        )
+    }
+
+    @Test
+    fun `next provider only gets what the previous one missed`() {
+        val first = FakeProvider(known = { it == "Try again" })
+        val second = FakeProvider(known = { it != "Unknown" })
+        val client = TranslationClient(listOf(first, second))
+
+        val result = client.translate(listOf("Try again", "Cancel", "Unknown. Cancel"), from, to)
+
+        assertEquals(listOf(listOf("Cancel", "Unknown")), second.requests)
+        assertEquals(mapOf("Try again" to "TRY AGAIN", "Cancel" to "CANCEL"), result)
+    }
+
+    @Test
+    fun `concurrent callers share one request for the same sentence`() {
+        val gate = CountDownLatch(1)
+        val provider = FakeProvider(gate = gate)
+        val client = TranslationClient(listOf(provider))
+        var first: Map<String, String> = emptyMap()
+        var second: Map<String, String> = emptyMap()
+
+        val owner = thread { first = client.translate(listOf("Hello"), from, to) }
+        assertTrue(provider.entered.await(5, TimeUnit.SECONDS))
+        val waiter = thread { second = client.translate(listOf("Hello"), from, to) }
+        Thread.sleep(50)
+        gate.countDown()
+        owner.join(5_000)
+        waiter.join(5_000)
+
+        assertEquals(1, provider.requests.size)
+        assertEquals("HELLO", first["Hello"])
+        assertEquals("HELLO", second["Hello"])
+    }
+
+    @Test
+    fun `cancel releases waiters and stops the owner`() {
+        val gate = CountDownLatch(1)
+        val first = FakeProvider(known = { false }, gate = gate)
+        val second = FakeProvider()
+        val client = TranslationClient(listOf(first, second))
+        var owned: Map<String, String>? = null
+        var joined: Map<String, String>? = null
+
+        val owner = thread { owned = client.translate(listOf("Hello"), from, to) }
+        assertTrue(first.entered.await(5, TimeUnit.SECONDS))
+        val waiter = thread { joined = client.translate(listOf("Hello"), from, to) }
+        Thread.sleep(50)
+
+        client.cancelAll()
+        waiter.join(5_000)
+        assertEquals(emptyMap<String, String>(), joined)
+
+        gate.countDown()
+        owner.join(5_000)
+        assertEquals(emptyMap<String, String>(), owned)
+        assertTrue(second.requests.isEmpty())
+    }
+
+    @Test
+    fun `requests are bounded across callers`() {
+        val gate = CountDownLatch(1)
+        val provider = FakeProvider(gate = gate)
+        val client = TranslationClient(listOf(provider), maxConcurrentRequests = 1)
+
+        val callers = listOf("One", "Two", "Three").map { text ->
+            thread { client.translate(listOf(text), from, to) }
+        }
+        assertTrue(provider.entered.await(5, TimeUnit.SECONDS))
+        Thread.sleep(50)
+        gate.countDown()
+        callers.forEach { it.join(5_000) }
+
+        assertEquals(3, provider.requests.size)
+        assertEquals(1, provider.maxRunning.get())
+    }
+}
@@ -0,0 +1,74 @@
+package dev.skomlach.common.translate
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+class TranslationStoreTest {
+    private val dir = Files.createTempDirectory("translations").toFile()
+    private val file = File(dir, "pairs/en-fr.bin")
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun `translations survive reopening and the last write wins`() {
+        val store = TranslationStore(file)
+        assertTrue(store.put("Father", "Père"))
+        assertTrue(store.putAll(mapOf("Mother" to "Mère", "Father" to "Papa")))
+
+        val reopened = TranslationStore(file)
+
+        assertEquals("Papa", reopened.get("Father"))
+        assertEquals("Mère", reopened.get("Mother"))
+        assertNull(reopened.get("Child"))
+    }
+
+    @Test
+    fun `unchanged translations are not appended`() {
+        val store = TranslationStore(file)
+        store.put("Father", "Père")
+        val length = file.length()
+
+        store.put("Father", "Père")
+
+        assertEquals(length, file.length())
+    }
+
+    @Test
+    fun `torn record is dropped and later appends stay readable`() {
+        TranslationStore(file).putAll(mapOf("One" to "Un", "Two" to "Deux"))
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 2) }
+
+        val recovered = TranslationStore(file)
+        assertEquals("Un", recovered.get("One"))
+        assertNull(recovered.get("Two"))
+        recovered.put("Three", "Trois")
+
+        val reopened = TranslationStore(file)
+        assertEquals("Un", reopened.get("One"))
+        assertEquals("Trois", reopened.get("Three"))
+    }
+
+    @Test
+    fun `rewrites are compacted`() {
+        val store = TranslationStore(file)
+        store.put("Stable", "Stable")
+        for (i in 0 until 200) {
+            store.put("Counter", "Compteur $i")
+        }
+
+        val reopened = TranslationStore(file)
+
+        assertEquals("Compteur 199", reopened.get("Counter"))
+        assertEquals("Stable", reopened.get("Stable"))
+        assertTrue(file.length() < 64 * 24)
+    }
+}